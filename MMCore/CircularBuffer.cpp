@@ -28,6 +28,7 @@
 #include "../MMDevice/DeviceUtils.h"
 #include "../MMDevice/DeviceThreads.h"
 #include "boost/date_time/posix_time/posix_time.hpp"
+#include "boost/thread/thread_time.hpp"
 #include <cstdio>
 
 #ifdef WIN32
@@ -46,7 +47,8 @@ CircularBuffer::CircularBuffer(unsigned int memorySizeMB) :
    insertIndex_(0), 
    saveIndex_(0), 
    memorySizeMB_(memorySizeMB), 
-   overflow_(false)
+   overflow_(false),
+   nextLeaseId_(1)
 {
 }
 
@@ -67,6 +69,11 @@ bool CircularBuffer::Initialize(unsigned channels, unsigned slices, unsigned int
          if (frameArray_.size() > 0)
             return true; // nothing to change
 
+      // Leased frames are still in use by the caller, so their memory
+      // cannot be reallocated
+      if (!leases_.empty())
+         return false;
+
       width_ = w;
       height_ = h;
       pixDepth_ = pixDepth;
@@ -115,6 +122,26 @@ bool CircularBuffer::Initialize(unsigned channels, unsigned slices, unsigned int
    return ret;
 }
 
+/**
+* Discards all images that have not been retrieved. Leased frames are kept:
+* if there are any, counting continues from the current position so that
+* they are not overwritten until released.
+*/
+void CircularBuffer::Clear()
+{
+   MMThreadGuard guard(g_bufferLock);
+   overflow_ = false;
+   if (leases_.empty())
+   {
+      insertIndex_ = 0;
+      saveIndex_ = 0;
+   }
+   else
+   {
+      saveIndex_ = insertIndex_;
+   }
+}
+
 unsigned long CircularBuffer::GetSize() const
 {
    MMThreadGuard guard(g_bufferLock);
@@ -124,7 +151,7 @@ unsigned long CircularBuffer::GetSize() const
 unsigned long CircularBuffer::GetFreeSize() const
 {
    MMThreadGuard guard(g_bufferLock);
-   long freeSize = (long)frameArray_.size() - (insertIndex_ - saveIndex_);
+   long freeSize = (long)frameArray_.size() - (insertIndex_ - GetOldestHeldIndex());
    if (freeSize < 0)
       return 0;
    else
@@ -137,6 +164,27 @@ unsigned long CircularBuffer::GetRemainingImageCount() const
    return (unsigned long)(insertIndex_ - saveIndex_);
 }
 
+/**
+* Blocks until the buffer holds at least one image that has not been
+* retrieved, or until timeoutMs has passed, without polling.
+* Returns true if an image is available.
+*/
+bool CircularBuffer::WaitForImage(unsigned long timeoutMs) const
+{
+   boost::system_time deadline = boost::get_system_time() +
+      boost::posix_time::milliseconds(timeoutMs);
+
+   // The count is checked while holding waitMutex_, and inserters notify
+   // while holding it, so an insertion cannot be missed.
+   boost::unique_lock<boost::mutex> lock(waitMutex_);
+   while (GetRemainingImageCount() == 0)
+   {
+      if (!imageInserted_.timed_wait(lock, deadline))
+         return GetRemainingImageCount() > 0;
+   }
+   return true;
+}
+
 /**
 * Inserts a single image in the buffer.
 */
@@ -164,7 +212,7 @@ bool CircularBuffer::InsertMultiChannel(const unsigned char* pixArray, unsigned
          throw CMMError("Incompatible image dimensions in the circular buffer", MMERR_CircularBufferIncompatibleImage);
 
 
-      notOverflowed = (long)frameArray_.size() - (insertIndex_ - saveIndex_) > 0;
+      notOverflowed = (long)frameArray_.size() - (insertIndex_ - GetOldestHeldIndex()) > 0;
       if (!notOverflowed) {
          // buffer overflow
          overflow_ = true;
@@ -231,7 +279,8 @@ bool CircularBuffer::InsertMultiChannel(const unsigned char* pixArray, unsigned
 
       imageCounter_++;
       insertIndex_++;
-      if ((insertIndex_ - (long)frameArray_.size()) > adjustThreshold && (saveIndex_- (long)frameArray_.size()) > adjustThreshold)
+      // (not while frames are leased, as the leases refer to the indices)
+      if (leases_.empty() && (insertIndex_ - (long)frameArray_.size()) > adjustThreshold && (saveIndex_- (long)frameArray_.size()) > adjustThreshold)
       {
          // adjust buffer indices to avoid overflowing integer size
          insertIndex_ -= adjustThreshold;
@@ -239,6 +288,11 @@ bool CircularBuffer::InsertMultiChannel(const unsigned char* pixArray, unsigned
       }
    }
 
+   {
+      boost::lock_guard<boost::mutex> lock(waitMutex_);
+      imageInserted_.notify_all();
+   }
+
    return true;
 }
 
@@ -320,6 +374,86 @@ const ImgBuffer* CircularBuffer::GetNextImageBuffer(unsigned channel, unsigned s
    return 0;
 }
 
+/**
+* Removes up to maxCount images from the buffer while holding the lock once.
+* Stops early when an image for the given channel and slice is missing; such
+* a frame is left for GetNextImageBuffer() to report.
+* Returns the number of images placed in buffers.
+*/
+unsigned long CircularBuffer::GetNextImageBuffers(unsigned channel, unsigned slice, unsigned long maxCount, std::vector<const ImgBuffer*>& buffers)
+{
+   MMThreadGuard guard(g_bufferLock);
+
+   buffers.clear();
+   while (saveIndex_ < insertIndex_ && buffers.size() < maxCount)
+   {
+      const ImgBuffer* pBuf = frameArray_[(saveIndex_) % frameArray_.size()].FindImage(channel, slice);
+      if (pBuf == 0)
+         break;
+      buffers.push_back(pBuf);
+      saveIndex_++;
+   }
+   return (unsigned long) buffers.size();
+}
+
+/**
+* Removes the next image from the buffer like GetNextImageBuffer(), but keeps
+* its frame from being overwritten until ReleaseImageBuffer() is called with
+* the returned leaseId. This lets the caller use the pixels in place.
+* While a frame is leased, it and all later frames count as occupied, so
+* holding leases for too long makes the buffer overflow.
+*/
+const ImgBuffer* CircularBuffer::LeaseNextImageBuffer(unsigned channel, unsigned slice, long& leaseId)
+{
+   MMThreadGuard guard(g_bufferLock);
+
+   leaseId = 0;
+   if (saveIndex_ < insertIndex_)
+   {
+      const ImgBuffer* pBuf = frameArray_[(saveIndex_) % frameArray_.size()].FindImage(channel, slice);
+      if (pBuf != 0)
+      {
+         leaseId = nextLeaseId_++;
+         leases_[leaseId] = saveIndex_;
+      }
+      saveIndex_++;
+      return pBuf;
+   }
+   return 0;
+}
+
+/**
+* Ends a lease obtained from LeaseNextImageBuffer(). Returns false if the
+* lease is not known, e.g. because it has already been released.
+*/
+bool CircularBuffer::ReleaseImageBuffer(long leaseId)
+{
+   MMThreadGuard guard(g_bufferLock);
+   return leases_.erase(leaseId) > 0;
+}
+
+unsigned long CircularBuffer::GetLeaseCount() const
+{
+   MMThreadGuard guard(g_bufferLock);
+   return (unsigned long) leases_.size();
+}
+
+/**
+* Returns the index of the oldest frame that may not be overwritten: the
+* oldest leased frame, or else the next frame to be retrieved.
+* g_bufferLock must be held by the caller.
+*/
+long CircularBuffer::GetOldestHeldIndex() const
+{
+   long oldest = saveIndex_;
+   for (std::map<long, long>::const_iterator it = leases_.begin(), end = leases_.end(); it != end; ++it)
+   {
+      if (it->second < oldest)
+         oldest = it->second;
+   }
+   return oldest;
+}
+
 //N.B. an unsigned long millisecond clock tick rolls over in 47 days.
 // millisecond clock tick incrementing from the time first requested
 unsigned long CircularBuffer::GetClockTicksMs() const
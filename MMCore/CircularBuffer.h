@@ -25,7 +25,11 @@
 #if !defined(_CIRCULAR_BUFFER_)
 #define _CIRCULAR_BUFFER_
 
+#include <map>
 #include <vector>
+
+#include <boost/thread/condition_variable.hpp>
+#include <boost/thread/mutex.hpp>
 #include "../MMDevice/ImgBuffer.h"
 #include "../MMDevice/MMDevice.h"
 #include "ErrorCodes.h"
@@ -55,6 +59,7 @@ public:
    unsigned long GetSize() const;
    unsigned long GetFreeSize() const;
    unsigned long GetRemainingImageCount() const;
+   bool WaitForImage(unsigned long timeoutMs) const;
 
    unsigned int Width() const {MMThreadGuard guard(g_bufferLock); return width_;}
    unsigned int Height() const {MMThreadGuard guard(g_bufferLock); return height_;}
@@ -67,7 +72,11 @@ public:
    const ImgBuffer* GetTopImageBuffer(unsigned channel, unsigned slice) const;
    const ImgBuffer* GetNthFromTopImageBuffer(unsigned long n) const;
    const ImgBuffer* GetNextImageBuffer(unsigned channel, unsigned slice);
-   void Clear() {MMThreadGuard guard(g_bufferLock); insertIndex_=0; saveIndex_=0; overflow_ = false;}
+   const ImgBuffer* LeaseNextImageBuffer(unsigned channel, unsigned slice, long& leaseId);
+   bool ReleaseImageBuffer(long leaseId);
+   unsigned long GetLeaseCount() const;
+   unsigned long GetNextImageBuffers(unsigned channel, unsigned slice, unsigned long maxCount, std::vector<const ImgBuffer*>& buffers);
+   void Clear();
 
    bool Overflow() {MMThreadGuard guard(g_bufferLock); return overflow_;}
 
@@ -85,7 +94,17 @@ private:
    bool overflow_;
    std::vector<FrameBuffer> frameArray_;
 
+   // Frames handed out by LeaseNextImageBuffer() and not yet released
+   // (lease ID -> frame index); they are not overwritten until released
+   std::map<long, long> leases_;
+   long nextLeaseId_;
+
+   // Signalled after each insertion; see WaitForImage()
+   mutable boost::mutex waitMutex_;
+   mutable boost::condition_variable imageInserted_;
+
    unsigned long GetClockTicksMs() const;
+   long GetOldestHeldIndex() const;
 
 };
 
@@ -395,6 +395,7 @@ int CoreCallback::PrepareForAcq(const MM::Device* /*caller*/)
  */
 int CoreCallback::OnPropertiesChanged(const MM::Device* /* caller */)
 {
+   core_->invalidateStateCache();
    if (core_->externalCallback_)
       core_->externalCallback_->onPropertiesChanged();
 
@@ -417,10 +418,7 @@ int CoreCallback::OnPropertyChanged(const MM::Device* device, const char* propNa
       bool readOnly;
       device->GetPropertyReadOnly(propName, readOnly);
       const PropertySetting* ps = new PropertySetting(label, propName, value, readOnly);
-      {
-         MMThreadGuard scg(core_->stateCacheLock_);
-         core_->stateCache_.addSetting(*ps);
-      }
+      core_->addToStateCache(*ps);
       core_->externalCallback_->onPropertyChanged(label, propName, value);
 
       // Find all configs that contain this property and callback to indicate 
@@ -483,6 +481,7 @@ int CoreCallback::OnPropertyChanged(const MM::Device* device, const char* propNa
  */
 int CoreCallback::OnConfigGroupChanged(const char* groupName, const char* newConfigName)
 {
+   core_->invalidateStateCache();
    if (core_->externalCallback_) {
       core_->externalCallback_->onConfigGroupChanged(groupName, newConfigName);
    }
@@ -495,6 +494,7 @@ int CoreCallback::OnConfigGroupChanged(const char* groupName, const char* newCon
  */
 int CoreCallback::OnPixelSizeChanged(double newPixelSizeUm)
 {
+   core_->invalidateStateCache();
    if (core_->externalCallback_) {
       core_->externalCallback_->onPixelSizeChanged(newPixelSizeUm);
    }
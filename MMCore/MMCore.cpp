@@ -106,7 +106,7 @@ using namespace std;
  * (Keep the 3 numbers on one line to make it easier to look at diffs when
  * merging/rebasing.)
  */
-const int MMCore_versionMajor = 8, MMCore_versionMinor = 1, MMCore_versionPatch = 1;
+const int MMCore_versionMajor = 8, MMCore_versionMinor = 5, MMCore_versionPatch = 0;
 
 
 ///////////////////////////////////////////////////////////////////////////////
@@ -134,6 +134,7 @@ CMMCore::CMMCore() :
    cbuf_(0),
    pluginManager_(new CPluginManager()),
    deviceManager_(new mm::DeviceManager()),
+   stateCacheGeneration_(0),
    pPostedErrorsLock_(NULL)
 {
    configGroups_ = new ConfigGroupCollection();
@@ -943,11 +944,52 @@ void CMMCore::updateSystemStateCache()
    Configuration wk = getSystemState();
    {
       MMThreadGuard scg(stateCacheLock_);
+      // Only a real change invalidates what was derived from the cache
+      if (wk.size() != stateCache_.size() || !stateCache_.isConfigurationIncluded(wk))
+         ++stateCacheGeneration_;
       stateCache_ = wk;
    }
    LOG_INFO(coreLogger_) << "Did update system state cache";
 }
 
+/**
+ * Returns a number that changes whenever the system state cache, or other
+ * state that is recorded in image metadata (ROI, pixel size), may have
+ * changed.
+ *
+ * This allows callers to keep derived data (such as the tags added to each
+ * image) until the state actually changes, instead of calling
+ * getSystemStateCache() for every image.
+ */
+long CMMCore::getSystemStateCacheGeneration() const
+{
+   MMThreadGuard scg(stateCacheLock_);
+   return stateCacheGeneration_;
+}
+
+/**
+ * Adds a setting to the system state cache. The cache generation only
+ * changes if the setting was not already cached with the same value.
+ */
+void CMMCore::addToStateCache(const PropertySetting& setting) const
+{
+   MMThreadGuard scg(stateCacheLock_);
+   if (stateCache_.isSettingIncluded(setting))
+      return;
+   stateCache_.addSetting(setting);
+   ++stateCacheGeneration_;
+}
+
+/**
+ * Signals a state change that is not reflected in the system state cache
+ * itself (see getSystemStateCacheGeneration()).
+ */
+void CMMCore::invalidateStateCache() const
+{
+   MMThreadGuard scg(stateCacheLock_);
+   ++stateCacheGeneration_;
+}
+
 /**
  * Returns device type.
  */
@@ -2422,10 +2464,7 @@ void CMMCore::setAutoShutter(bool state)
 {
    properties_->Set(MM::g_Keyword_CoreAutoShutter, state ? "1" : "0");
    autoShutter_ = state;
-   {
-      MMThreadGuard scg(stateCacheLock_);
-      stateCache_.addSetting(PropertySetting(MM::g_Keyword_CoreDevice, MM::g_Keyword_CoreAutoShutter, state ? "1" : "0"));
-   }
+   addToStateCache(PropertySetting(MM::g_Keyword_CoreDevice, MM::g_Keyword_CoreAutoShutter, state ? "1" : "0"));
    LOG_DEBUG(coreLogger_) << "Autoshutter turned " << (state ? "on" : "off");
 }
 
@@ -2457,10 +2496,7 @@ void CMMCore::setShutterOpen(const char* shutterLabel, bool state) throw (CMMErr
 
       if (pShutter->HasProperty(MM::g_Keyword_State))
       {
-         {
-            MMThreadGuard scg(stateCacheLock_);
-            stateCache_.addSetting(PropertySetting(shutterLabel, MM::g_Keyword_State, CDeviceUtils::ConvertToString(state)));
-         }
+         addToStateCache(PropertySetting(shutterLabel, MM::g_Keyword_State, CDeviceUtils::ConvertToString(state)));
       }
    }
 }
@@ -2669,8 +2705,8 @@ void CMMCore::startSequenceAcquisition(long numImages, double intervalMs, bool s
 		{
 			if (!cbuf_->Initialize(camera->GetNumberOfChannels(), 1, camera->GetImageWidth(), camera->GetImageHeight(), camera->GetImageBytesPerPixel()))
 			{
-				logError(getDeviceName(camera).c_str(), getCoreErrorText(MMERR_CircularBufferFailedToInitialize).c_str());
-				throw CMMError(getCoreErrorText(MMERR_CircularBufferFailedToInitialize).c_str(), MMERR_CircularBufferFailedToInitialize);
+				logError(getDeviceName(camera).c_str(), getCoreErrorText(circularBufferInitError()).c_str());
+				throw CMMError(getCoreErrorText(circularBufferInitError()).c_str(), circularBufferInitError());
 			}
 			cbuf_->Clear();
          mm::DeviceModuleLockGuard guard(camera);
@@ -2757,8 +2793,8 @@ void CMMCore::initializeCircularBuffer() throw (CMMError)
       mm::DeviceModuleLockGuard guard(camera);
       if (!cbuf_->Initialize(camera->GetNumberOfChannels(), 1, camera->GetImageWidth(), camera->GetImageHeight(), camera->GetImageBytesPerPixel()))
       {
-         logError(getDeviceName(camera).c_str(), getCoreErrorText(MMERR_CircularBufferFailedToInitialize).c_str());
-         throw CMMError(getCoreErrorText(MMERR_CircularBufferFailedToInitialize).c_str(), MMERR_CircularBufferFailedToInitialize);
+         logError(getDeviceName(camera).c_str(), getCoreErrorText(circularBufferInitError()).c_str());
+         throw CMMError(getCoreErrorText(circularBufferInitError()).c_str(), circularBufferInitError());
       }
       cbuf_->Clear();
    }
@@ -2810,8 +2846,8 @@ void CMMCore::startContinuousSequenceAcquisition(double intervalMs) throw (CMMEr
 
       if (!cbuf_->Initialize(camera->GetNumberOfChannels(), 1, camera->GetImageWidth(), camera->GetImageHeight(), camera->GetImageBytesPerPixel()))
       {
-         logError(getDeviceName(camera).c_str(), getCoreErrorText(MMERR_CircularBufferFailedToInitialize).c_str());
-         throw CMMError(getCoreErrorText(MMERR_CircularBufferFailedToInitialize).c_str(), MMERR_CircularBufferFailedToInitialize);
+         logError(getDeviceName(camera).c_str(), getCoreErrorText(circularBufferInitError()).c_str());
+         throw CMMError(getCoreErrorText(circularBufferInitError()).c_str(), circularBufferInitError());
       }
       cbuf_->Clear();
       LOG_DEBUG(coreLogger_) << "Will start continuous sequence acquisition from current camera";
@@ -2982,6 +3018,131 @@ void* CMMCore::popNextImageMD(Metadata& md) throw (CMMError)
    return popNextImageMD(0, 0, md);
 }
 
+/**
+ * Gets and removes up to maxImages images from the circular buffer in one
+ * call.
+ *
+ * The pixels are copied one after another to the start of destination; no
+ * more images are removed than fit in destinationSize bytes. For image i,
+ * tagCounts[i] gives the number of metadata tags that it contributes to
+ * tags, which holds the tags of all images in order as alternating keys and
+ * values.
+ *
+ * Returns the number of images removed, which is 0 if the buffer is empty.
+ */
+long CMMCore::popNextImagesMD(unsigned channel, long maxImages,
+      void* destination, long destinationSize,
+      std::vector<long>& tagCounts, std::vector<std::string>& tags)
+   throw (CMMError)
+{
+   tagCounts.clear();
+   tags.clear();
+   if (destination == 0)
+      throw CMMError(getCoreErrorText(MMERR_NullPointerException).c_str(), MMERR_NullPointerException);
+
+   const unsigned long imageSize = cbuf_->Width() * cbuf_->Height() * cbuf_->Depth();
+   if (imageSize == 0 || maxImages <= 0 || destinationSize <= 0)
+      return 0;
+   unsigned long maxCount = (unsigned long) destinationSize / imageSize;
+   if (maxCount == 0)
+      throw CMMError("Destination buffer is too small to hold an image");
+   if ((unsigned long) maxImages < maxCount)
+      maxCount = (unsigned long) maxImages;
+
+   std::vector<const ImgBuffer*> buffers;
+   cbuf_->GetNextImageBuffers(channel, 0, maxCount, buffers);
+
+   unsigned char* pDest = static_cast<unsigned char*>(destination);
+   for (std::vector<const ImgBuffer*>::const_iterator it = buffers.begin(),
+         end = buffers.end(); it != end; ++it)
+   {
+      memcpy(pDest, (*it)->GetPixels(), imageSize);
+      pDest += imageSize;
+
+      // The images have already been removed from the buffer, so a tag
+      // that can't be read (e.g. an array tag) is skipped, not fatal
+      const Metadata& md = (*it)->GetMetadata();
+      std::vector<std::string> keys = md.GetKeys();
+      long tagCount = 0;
+      for (std::vector<std::string>::const_iterator key = keys.begin(),
+            keyEnd = keys.end(); key != keyEnd; ++key)
+      {
+         try
+         {
+            std::string value = md.GetSingleTag(key->c_str()).GetValue();
+            tags.push_back(*key);
+            tags.push_back(value);
+            ++tagCount;
+         }
+         catch (const MetadataError&)
+         {
+         }
+      }
+      tagCounts.push_back(tagCount);
+   }
+   return (long) buffers.size();
+}
+
+/**
+ * Gets and removes the next image from the circular buffer without copying
+ * it: the returned pointer refers to the image inside the buffer.
+ *
+ * The image stays valid until releaseLeasedImage() is called with leaseId.
+ * Until then the buffer will not overwrite it, so each lease must be
+ * released promptly or the buffer will overflow. Clearing the buffer keeps
+ * leased images, and the buffer is not reallocated (e.g. for a new ROI)
+ * until all leases have been released.
+ *
+ * leaseByteCount and leaseBytesPerPixel receive the size of the leased image.
+ */
+void* CMMCore::leaseNextImageMD(unsigned channel, Metadata& md, long& leaseId,
+      long& leaseByteCount, long& leaseBytesPerPixel) throw (CMMError)
+{
+   const ImgBuffer* pBuf = cbuf_->LeaseNextImageBuffer(channel, 0, leaseId);
+   if (pBuf != 0)
+   {
+      md = pBuf->GetMetadata();
+      // The frame's own size, which differs from the camera's if the ROI or
+      // binning changed after it was inserted
+      leaseBytesPerPixel = (long) pBuf->Depth();
+      leaseByteCount = (long) (pBuf->Width() * pBuf->Height() * pBuf->Depth());
+      return const_cast<unsigned char*>(pBuf->GetPixels());
+   }
+   else
+      throw CMMError(getCoreErrorText(MMERR_CircularBufferEmpty).c_str(), MMERR_CircularBufferEmpty);
+}
+
+/**
+ * Ends a lease obtained from leaseNextImageMD(), allowing the buffer to
+ * reuse the image's memory. Returns false if the lease had already ended.
+ */
+bool CMMCore::releaseLeasedImage(long leaseId)
+{
+   if (!cbuf_)
+      return false;
+   return cbuf_->ReleaseImageBuffer(leaseId);
+}
+
+/**
+ * Returns the number of images leased from the circular buffer and not
+ * yet released.
+ */
+long CMMCore::getLeasedImageCount()
+{
+   if (!cbuf_)
+      return 0;
+   return (long) cbuf_->GetLeaseCount();
+}
+
+/**
+ * Returns the error code for a failed circular buffer initialization.
+ */
+int CMMCore::circularBufferInitError() const
+{
+   return cbuf_->GetLeaseCount() > 0 ?
+      MMERR_CircularBufferImagesLeased : MMERR_CircularBufferFailedToInitialize;
+}
+
 /**
  * Removes all images from the circular buffer.
  *
@@ -2999,6 +3160,8 @@ void CMMCore::clearCircularBuffer() throw (CMMError)
 void CMMCore::setCircularBufferMemoryFootprint(unsigned sizeMB ///< n megabytes
                                                ) throw (CMMError)
 {
+   if (cbuf_ && cbuf_->GetLeaseCount() > 0)
+      throw CMMError(getCoreErrorText(MMERR_CircularBufferImagesLeased).c_str(), MMERR_CircularBufferImagesLeased);
    delete cbuf_; // discard old buffer
    LOG_DEBUG(coreLogger_) << "Will set circular buffer size to " <<
       sizeMB << " MB";
@@ -3025,7 +3188,7 @@ void CMMCore::setCircularBufferMemoryFootprint(unsigned sizeMB ///< n megabytes
 		{
          mm::DeviceModuleLockGuard guard(camera);
          if (!cbuf_->Initialize(camera->GetNumberOfChannels(), 1, camera->GetImageWidth(), camera->GetImageHeight(), camera->GetImageBytesPerPixel()))
-				throw CMMError(getCoreErrorText(MMERR_CircularBufferFailedToInitialize).c_str(), MMERR_CircularBufferFailedToInitialize);
+				throw CMMError(getCoreErrorText(circularBufferInitError()).c_str(), circularBufferInitError());
 		}
 
       LOG_DEBUG(coreLogger_) << "Did set circular buffer size to " <<
@@ -3059,6 +3222,23 @@ long CMMCore::getRemainingImageCount()
    return 0;
 }
 
+/**
+ * Waits until the circular buffer holds an image that has not been
+ * retrieved, for at most timeoutMs milliseconds.
+ *
+ * Unlike polling getRemainingImageCount(), the calling thread sleeps until
+ * the camera inserts an image, so it is woken as soon as one arrives.
+ * Returns true if an image is available, false if the wait timed out.
+ */
+bool CMMCore::waitForImage(long timeoutMs)
+{
+   if (!cbuf_)
+      return false;
+   if (timeoutMs < 0)
+      timeoutMs = 0;
+   return cbuf_->WaitForImage((unsigned long) timeoutMs);
+}
+
 long CMMCore::getBufferTotalCapacity()
 {
    if (cbuf_)
@@ -3169,10 +3349,7 @@ void CMMCore::setAutoFocusDevice(const char* autofocusLabel) throw (CMMError)
    }
    properties_->Refresh(); // TODO: more efficient
    std::string newAutofocusLabel = getAutoFocusDevice();
-   {
-      MMThreadGuard scg(stateCacheLock_);
-      stateCache_.addSetting(PropertySetting(MM::g_Keyword_CoreDevice, MM::g_Keyword_CoreAutoFocus, newAutofocusLabel.c_str()));
-   }
+   addToStateCache(PropertySetting(MM::g_Keyword_CoreDevice, MM::g_Keyword_CoreAutoFocus, newAutofocusLabel.c_str()));
 }
 
 /**
@@ -3236,10 +3413,7 @@ void CMMCore::setImageProcessorDevice(const char* procLabel) throw (CMMError)
    }
    properties_->Refresh(); // TODO: more efficient
    std::string newProcLabel = getImageProcessorDevice();
-   {
-      MMThreadGuard scg(stateCacheLock_);
-      stateCache_.addSetting(PropertySetting(MM::g_Keyword_CoreDevice, MM::g_Keyword_CoreImageProcessor, newProcLabel.c_str()));
-   }
+   addToStateCache(PropertySetting(MM::g_Keyword_CoreDevice, MM::g_Keyword_CoreImageProcessor, newProcLabel.c_str()));
 }
 
 /**
@@ -3260,10 +3434,7 @@ void CMMCore::setSLMDevice(const char* slmLabel) throw (CMMError)
    }
    properties_->Refresh(); // TODO: more efficient
    std::string newSLMLabel = getSLMDevice();
-   {
-      MMThreadGuard scg(stateCacheLock_);
-      stateCache_.addSetting(PropertySetting(MM::g_Keyword_CoreDevice, MM::g_Keyword_CoreSLM, newSLMLabel.c_str()));
-   }
+   addToStateCache(PropertySetting(MM::g_Keyword_CoreDevice, MM::g_Keyword_CoreSLM, newSLMLabel.c_str()));
 }
 
 
@@ -3285,10 +3456,7 @@ void CMMCore::setGalvoDevice(const char* galvoLabel) throw (CMMError)
    }
    properties_->Refresh(); // TODO: more efficient
    std::string newGalvoLabel = getGalvoDevice();
-   {
-      MMThreadGuard scg(stateCacheLock_);
-      stateCache_.addSetting(PropertySetting(MM::g_Keyword_CoreDevice, MM::g_Keyword_CoreGalvo, newGalvoLabel.c_str()));
-   }
+   addToStateCache(PropertySetting(MM::g_Keyword_CoreDevice, MM::g_Keyword_CoreGalvo, newGalvoLabel.c_str()));
 }
 
 /**
@@ -3307,10 +3475,7 @@ void CMMCore::setChannelGroup(const char* chGroup) throw (CMMError)
    }
    properties_->Refresh(); // TODO: more efficient
    std::string newChGroup = getChannelGroup();
-   {
-      MMThreadGuard scg(stateCacheLock_);
-      stateCache_.addSetting(PropertySetting(MM::g_Keyword_CoreDevice, MM::g_Keyword_CoreChannelGroup, newChGroup.c_str()));
-   }
+   addToStateCache(PropertySetting(MM::g_Keyword_CoreDevice, MM::g_Keyword_CoreChannelGroup, newChGroup.c_str()));
 }
 
 /**
@@ -3365,10 +3530,7 @@ void CMMCore::setShutterDevice(const char* shutterLabel) throw (CMMError)
    }
    properties_->Refresh(); // TODO: more efficient
    std::string newShutterLabel = getShutterDevice();
-   {
-      MMThreadGuard scg(stateCacheLock_);
-      stateCache_.addSetting(PropertySetting(MM::g_Keyword_CoreDevice, MM::g_Keyword_CoreShutter, newShutterLabel.c_str()));
-   }
+   addToStateCache(PropertySetting(MM::g_Keyword_CoreDevice, MM::g_Keyword_CoreShutter, newShutterLabel.c_str()));
 }
 
 /**
@@ -3390,10 +3552,7 @@ void CMMCore::setFocusDevice(const char* focusLabel) throw (CMMError)
    }
    properties_->Refresh(); // TODO: more efficient
    std::string newFocusLabel = getFocusDevice();
-   {
-      MMThreadGuard scg(stateCacheLock_);
-      stateCache_.addSetting(PropertySetting(MM::g_Keyword_CoreDevice, MM::g_Keyword_CoreFocus, newFocusLabel.c_str()));
-   }
+   addToStateCache(PropertySetting(MM::g_Keyword_CoreDevice, MM::g_Keyword_CoreFocus, newFocusLabel.c_str()));
 }
 
 /**
@@ -3413,10 +3572,7 @@ void CMMCore::setXYStageDevice(const char* xyDeviceLabel) throw (CMMError)
       LOG_INFO(coreLogger_) << "Default xy stage unset";
    }
    std::string newXYStageLabel = getXYStageDevice();
-   {
-      MMThreadGuard scg(stateCacheLock_);
-      stateCache_.addSetting(PropertySetting(MM::g_Keyword_CoreDevice, MM::g_Keyword_CoreXYStage, newXYStageLabel.c_str()));
-   }
+   addToStateCache(PropertySetting(MM::g_Keyword_CoreDevice, MM::g_Keyword_CoreXYStage, newXYStageLabel.c_str()));
 }
 
 /**
@@ -3452,10 +3608,7 @@ void CMMCore::setCameraDevice(const char* cameraLabel) throw (CMMError)
    }
    properties_->Refresh(); // TODO: more efficient
    std::string newCameraLabel = getCameraDevice();
-   {
-      MMThreadGuard scg(stateCacheLock_);
-      stateCache_.addSetting(PropertySetting(MM::g_Keyword_CoreDevice, MM::g_Keyword_CoreCamera, newCameraLabel.c_str()));
-   }
+   addToStateCache(PropertySetting(MM::g_Keyword_CoreDevice, MM::g_Keyword_CoreCamera, newCameraLabel.c_str()));
 }
 
 /**
@@ -3556,10 +3709,7 @@ string CMMCore::getProperty(const char* label, const char* propName) throw (CMME
    // use the opportunity to update the cache
    // Note, stateCache is mutable so that we can update it from this const function
    PropertySetting s(label, propName, value.c_str());
-   {
-      MMThreadGuard scg(stateCacheLock_);
-      stateCache_.addSetting(s);
-   }
+   addToStateCache(s);
 
    return value;
 }
@@ -3609,10 +3759,7 @@ void CMMCore::setProperty(const char* label, const char* propName,
          propName << " = " << propValue;
 
       properties_->Execute(propName, propValue);
-      {
-         MMThreadGuard scg(stateCacheLock_);
-         stateCache_.addSetting(PropertySetting(MM::g_Keyword_CoreDevice, propName, propValue));
-      }
+      addToStateCache(PropertySetting(MM::g_Keyword_CoreDevice, propName, propValue));
 
       LOG_DEBUG(coreLogger_) << "Did set Core property: " <<
          propName << " = " << propValue;
@@ -3625,10 +3772,7 @@ void CMMCore::setProperty(const char* label, const char* propName,
 
       pDevice->SetProperty(propName, propValue);
 
-      {
-         MMThreadGuard scg(stateCacheLock_);
-         stateCache_.addSetting(PropertySetting(label, propName, propValue));
-      }
+      addToStateCache(PropertySetting(label, propName, propValue));
    }
 }
 
@@ -4047,10 +4191,7 @@ void CMMCore::setExposure(const char* label, double dExp) throw (CMMError)
       pCamera->SetExposure(dExp);
       if (pCamera->HasProperty(MM::g_Keyword_Exposure))
       {
-         {
-            MMThreadGuard scg(stateCacheLock_);
-            stateCache_.addSetting(PropertySetting(label, MM::g_Keyword_Exposure, CDeviceUtils::ConvertToString(dExp)));
-         }
+         addToStateCache(PropertySetting(label, MM::g_Keyword_Exposure, CDeviceUtils::ConvertToString(dExp)));
       }
    }
 
@@ -4108,6 +4249,7 @@ void CMMCore::setROI(int x, int y, int xSize, int ySize) throw (CMMError)
       // popNextImage() to handle this correctly, so we need to make sure we
       // discard such images.
       cbuf_->Clear();
+      invalidateStateCache();
    }
    else
       throw CMMError(getCoreErrorText(MMERR_CameraNotAvailable).c_str(), MMERR_CameraNotAvailable);
@@ -4194,6 +4336,7 @@ void CMMCore::clearROI() throw (CMMError)
       // popNextImage() to handle this correctly, so we need to make sure we
       // discard such images.
       cbuf_->Clear();
+      invalidateStateCache();
    }
 }
 
@@ -4217,19 +4360,13 @@ void CMMCore::setState(const char* deviceLabel, long state) throw (CMMError)
 
    if (pStateDev->HasProperty(MM::g_Keyword_State))
    {
-      {
-         MMThreadGuard scg(stateCacheLock_);
-         stateCache_.addSetting(PropertySetting(deviceLabel, MM::g_Keyword_State, CDeviceUtils::ConvertToString(state)));
-      }
+      addToStateCache(PropertySetting(deviceLabel, MM::g_Keyword_State, CDeviceUtils::ConvertToString(state)));
    }
    if (pStateDev->HasProperty(MM::g_Keyword_Label))
    {
       std::string posLbl = pStateDev->GetPositionLabel(state);
 
-      {
-         MMThreadGuard scg(stateCacheLock_);
-         stateCache_.addSetting(PropertySetting(deviceLabel, MM::g_Keyword_Label, posLbl.c_str()));
-      }
+      addToStateCache(PropertySetting(deviceLabel, MM::g_Keyword_Label, posLbl.c_str()));
    }
 
    LOG_DEBUG(coreLogger_) << "Did set " << deviceLabel << " to state " << state;
@@ -4288,19 +4425,13 @@ void CMMCore::setStateLabel(const char* deviceLabel, const char* stateLabel) thr
 
    if (pStateDev->HasProperty(MM::g_Keyword_Label))
    {
-      {
-         MMThreadGuard scg(stateCacheLock_);
-         stateCache_.addSetting(PropertySetting(deviceLabel, MM::g_Keyword_Label, stateLabel));
-      }
+      addToStateCache(PropertySetting(deviceLabel, MM::g_Keyword_Label, stateLabel));
    }
    if (pStateDev->HasProperty(MM::g_Keyword_State))
    {
       long state = getStateFromLabel(deviceLabel, stateLabel);
-      {
-         MMThreadGuard scg(stateCacheLock_);
-         stateCache_.addSetting(PropertySetting(deviceLabel, MM::g_Keyword_State,
-                  CDeviceUtils::ConvertToString(state)));
-      }
+      addToStateCache(PropertySetting(deviceLabel, MM::g_Keyword_State,
+               CDeviceUtils::ConvertToString(state)));
    }
 }
 
@@ -4541,6 +4672,7 @@ void CMMCore::definePixelSizeConfig(const char* resolutionID, const char* device
    CheckPropertyValue(value);
 
    pixelSizeGroup_->Define(resolutionID, deviceLabel, propName, value);
+   invalidateStateCache();
 
    LOG_DEBUG(coreLogger_) << "Pixel size config: "
       "preset " << resolutionID << ": added setting : " <<
@@ -4556,6 +4688,7 @@ void CMMCore::definePixelSizeConfig(const char* resolutionID) throw (CMMError)
    CheckConfigPresetName(resolutionID);
 
    pixelSizeGroup_->Define(resolutionID);
+   invalidateStateCache();
 
    LOG_DEBUG(coreLogger_) << "Pixel size config: "
       "added preset " << resolutionID;
@@ -4585,6 +4718,7 @@ void CMMCore::setPixelSizeUm(const char* resolutionID, double pixSize)  throw (C
       throw CMMError(ToQuotedString(resolutionID) + ": " + getCoreErrorText(MMERR_NoConfigGroup),
             MMERR_NoConfigGroup);
    psc->setPixelSizeUm(pixSize);
+   invalidateStateCache();
 
    LOG_DEBUG(coreLogger_) << "Pixel size config: "
       "preset " << resolutionID << ": set resolution to " <<
@@ -4887,6 +5021,8 @@ void CMMCore::renamePixelSizeConfig(const char* oldConfigName, const char* newCo
             MMERR_NoConfiguration);
    }
 
+   invalidateStateCache();
+
    LOG_DEBUG(coreLogger_) << "Pixel size config: "
       "renamed preset " << oldConfigName << " to " << newConfigName;
 }
@@ -4907,6 +5043,8 @@ void CMMCore::deletePixelSizeConfig(const char* configName) throw (CMMError)
             MMERR_NoConfiguration);
    }
 
+   invalidateStateCache();
+
    LOG_DEBUG(coreLogger_) << "Pixel size config: "
       "deleted preset " << configName;
 }
@@ -6648,6 +6786,8 @@ void CMMCore::InitializeErrorMessages()
    errorText_[MMERR_CircularBufferFailedToInitialize] =
       "Failed to initialize circular buffer - memory requirements not adequate.";
    errorText_[MMERR_CircularBufferEmpty] = "Circular buffer is empty.";
+   errorText_[MMERR_CircularBufferImagesLeased] =
+      "Circular buffer can not be reallocated while leased images have not been released.";
    errorText_[MMERR_ContFocusNotAvailable] = "Auto-focus focus device not defined.";
    errorText_[MMERR_BadConfigName] = "Configuration name contains illegale characters (/\\*!')";
    errorText_[MMERR_NotAllowedDuringSequenceAcquisition] =
@@ -6817,10 +6957,7 @@ void CMMCore::applyConfiguration(const Configuration& config) throw (CMMError)
       if (setting.getDeviceLabel().compare(MM::g_Keyword_CoreDevice) == 0)
       {
          properties_->Execute(setting.getPropertyName().c_str(), setting.getPropertyValue().c_str());
-         {
-            MMThreadGuard scg(stateCacheLock_);
-            stateCache_.addSetting(PropertySetting(MM::g_Keyword_CoreDevice, setting.getPropertyName().c_str(), setting.getPropertyValue().c_str()));
-         }
+         addToStateCache(PropertySetting(MM::g_Keyword_CoreDevice, setting.getPropertyName().c_str(), setting.getPropertyValue().c_str()));
       }
       else
       {
@@ -6833,10 +6970,7 @@ void CMMCore::applyConfiguration(const Configuration& config) throw (CMMError)
             pDevice->SetProperty(setting.getPropertyName(),
                   setting.getPropertyValue());
 
-            {
-               MMThreadGuard scg(stateCacheLock_);
-               stateCache_.addSetting(setting);
-            }
+            addToStateCache(setting);
          }
          catch (const CMMError&)
          {
@@ -6880,10 +7014,7 @@ int CMMCore::applyProperties(vector<PropertySetting>& props, string& lastError)
          pDevice->SetProperty(props[i].getPropertyName(),
                props[i].getPropertyValue());
 
-         {
-            MMThreadGuard scg(stateCacheLock_);
-            stateCache_.addSetting(props[i]);
-         }
+         addToStateCache(props[i]);
       }
       catch (const CMMError& e)
       {
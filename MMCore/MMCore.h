@@ -286,6 +286,7 @@ public:
    ///@{
    Configuration getSystemStateCache() const;
    void updateSystemStateCache();
+   long getSystemStateCacheGeneration() const;
    std::string getPropertyFromCache(const char* deviceLabel,
          const char* propName) const throw (CMMError);
    std::string getCurrentConfigFromCache(const char* groupName) throw (CMMError);
@@ -403,8 +404,17 @@ public:
    void* getNBeforeLastImageMD(unsigned long n, Metadata& md)
       const throw (CMMError);
    void* popNextImageMD(Metadata& md) throw (CMMError);
+   long popNextImagesMD(unsigned channel, long maxImages,
+         void* destination, long destinationSize,
+         std::vector<long>& tagCounts, std::vector<std::string>& tags)
+      throw (CMMError);
+   void* leaseNextImageMD(unsigned channel, Metadata& md, long& leaseId,
+         long& leaseByteCount, long& leaseBytesPerPixel) throw (CMMError);
+   bool releaseLeasedImage(long leaseId);
+   long getLeasedImageCount();
 
    long getRemainingImageCount();
+   bool waitForImage(long timeoutMs);
    long getBufferTotalCapacity();
    long getBufferFreeCapacity();
    bool isBufferOverflowed() const;
@@ -664,6 +674,7 @@ private:
    // or acquiring a module lock
    mutable MMThreadLock stateCacheLock_;
    mutable Configuration stateCache_; // Synchronized by stateCacheLock_
+   mutable long stateCacheGeneration_; // Synchronized by stateCacheLock_
 
    MMThreadLock* pPostedErrorsLock_;
    mutable std::deque<std::pair< int, std::string> > postedErrors_;
@@ -693,6 +704,9 @@ private:
    void assignDefaultRole(boost::shared_ptr<DeviceInstance> pDev);
    void updateCoreProperty(const char* propName, MM::DeviceType devType) throw (CMMError);
    void loadSystemConfigurationImpl(const char* fileName) throw (CMMError);
+   void addToStateCache(const PropertySetting& setting) const;
+   void invalidateStateCache() const;
+   int circularBufferInitError() const;
 };
 
 #endif //_MMCORE_H_
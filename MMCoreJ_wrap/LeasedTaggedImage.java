@@ -0,0 +1,63 @@
+package mmcorej;
+
+import java.nio.ByteBuffer;
+
+import org.json.JSONObject;
+
+/**
+ * A TaggedImage whose pixels are a view of an image that is still in the
+ * circular buffer, as returned by CMMCore.leaseNextTaggedImage().
+ *
+ * The pixels are a read-only direct ByteBuffer. The buffer does not reuse
+ * the image's memory until release() is called, after which the pixels must
+ * no longer be accessed.
+ */
+public class LeasedTaggedImage extends TaggedImage {
+   private final CMMCore core_;
+   private final int leaseId_;
+   private final int bytesPerPixel_;
+   private boolean released_ = false;
+
+   public LeasedTaggedImage(Object pix, JSONObject tags, CMMCore core,
+         int leaseId, int bytesPerPixel) {
+      super(pix, tags);
+      core_ = core;
+      leaseId_ = leaseId;
+      bytesPerPixel_ = bytesPerPixel;
+   }
+
+   public int getLeaseId() {
+      return leaseId_;
+   }
+
+   public synchronized boolean isReleased() {
+      return released_;
+   }
+
+   /**
+    * Returns the image's memory to the circular buffer. Calling this more
+    * than once has no effect.
+    */
+   public synchronized void release() {
+      if (!released_) {
+         released_ = true;
+         core_.releaseLeasedImage(leaseId_);
+      }
+   }
+
+   /**
+    * Returns a TaggedImage with a copy of the pixels, as a byte[] or short[]
+    * like popNextTaggedImage() would return, which stays valid after
+    * release(). The tags are shared.
+    */
+   public synchronized TaggedImage copy() throws java.lang.Exception {
+      if (released_) {
+         throw new IllegalStateException("Leased image has been released");
+      }
+      ByteBuffer source = ((ByteBuffer) pix).duplicate().order(
+            ((ByteBuffer) pix).order());
+      source.clear();
+      return new TaggedImage(CMMCore.copyPixels(source, bytesPerPixel_, null),
+            tags);
+   }
+}
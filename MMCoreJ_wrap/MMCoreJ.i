@@ -283,6 +283,9 @@
 %apply int &OUTPUT { int &y };
 %apply int &OUTPUT { int &xSize };
 %apply int &OUTPUT { int &ySize };
+%apply long &OUTPUT { long &leaseId };
+%apply long &OUTPUT { long &leaseByteCount };
+%apply long &OUTPUT { long &leaseBytesPerPixel };
 
 
 // Java typemap
@@ -385,6 +388,25 @@
 
 %typemap(javain) std::vector<unsigned char*> "$javainput" 
 
+// Map input arguments: java direct ByteBuffer -> C++ (void*, long) pair,
+// used to receive a batch of images from the circular buffer
+%typemap(jni) (void* destination, long destinationSize)      "jobject"
+%typemap(jtype) (void* destination, long destinationSize)    "java.nio.ByteBuffer"
+%typemap(jstype) (void* destination, long destinationSize)   "java.nio.ByteBuffer"
+%typemap(javain) (void* destination, long destinationSize)   "$javainput"
+%typemap(in) (void* destination, long destinationSize)
+{
+   $1 = JCALL1(GetDirectBufferAddress, jenv, $input);
+   if ($1 == 0)
+   {
+      jclass excep = jenv->FindClass("java/lang/IllegalArgumentException");
+      if (excep)
+         jenv->ThrowNew(excep, "A direct ByteBuffer is required.");
+      return $null;
+   }
+   $2 = (long) JCALL1(GetDirectBufferCapacity, jenv, $input);
+}
+
 // Java typemap
 // change default SWIG mapping of void* return values
 // to return CObject containing array of pixel values
@@ -486,6 +508,21 @@
    }
 }
 
+// Java typemap
+// leaseNextImageMD() returns a direct ByteBuffer that views the image in the
+// circular buffer, instead of a copy of the pixels
+%typemap(jni) void* leaseNextImageMD        "jobject"
+%typemap(jtype) void* leaseNextImageMD      "java.nio.ByteBuffer"
+%typemap(jstype) void* leaseNextImageMD     "java.nio.ByteBuffer"
+%typemap(javaout) void* leaseNextImageMD {
+   return $jnicall;
+}
+%typemap(out) void* leaseNextImageMD
+{
+   // arg5 is the leaseByteCount output: the size of the leased frame
+   $result = JCALL2(NewDirectByteBuffer, jenv, result, (jlong) *arg5);
+}
+
 // Java typemap
 // change default SWIG mapping of void* return values
 // to return CObject containing array of pixel values
@@ -611,21 +648,21 @@
 
 %typemap(javaimports) CMMCore %{
    import org.json.JSONObject;
+   import java.nio.ByteBuffer;
+   import java.nio.ByteOrder;
+   import java.nio.ShortBuffer;
+   import java.util.ArrayList;
+   import java.util.Arrays;
+   import java.util.Collections;
+   import java.util.HashMap;
+   import java.util.Iterator;
+   import java.util.List;
+   import java.util.Map;
    import java.awt.geom.Point2D;
    import java.awt.Rectangle;
 %}
 
 %typemap(javacode) CMMCore %{
-   private JSONObject metadataToMap(Metadata md) {
-      JSONObject tags = new JSONObject();
-      for (String key:md.GetKeys()) {
-         try {
-            tags.put(key, md.GetSingleTag(key).GetValue());
-         } catch (Exception e) {} 
-      }
-      return tags;
-   }
-
    private String getROITag() throws java.lang.Exception {
       String roi = "";
       int [] x = new int[1];
@@ -673,8 +710,11 @@
 
    private TaggedImage createTaggedImage(Object pixels, Metadata md, int cameraChannelIndex) throws java.lang.Exception {
       TaggedImage image = createTaggedImage(pixels, md);
-      JSONObject tags = image.tags;
-      
+      addCameraChannelTags(image.tags, cameraChannelIndex);
+      return image;
+   }
+
+   private void addCameraChannelTags(JSONObject tags, int cameraChannelIndex) throws java.lang.Exception {
       if (!tags.has("CameraChannelIndex")) {
          tags.put("CameraChannelIndex", cameraChannelIndex);
          tags.put("ChannelIndex", cameraChannelIndex);
@@ -686,18 +726,27 @@
             tags.put("Channel",physicalCamera);
          }
       }
-      return image;
    }
 
-   private TaggedImage createTaggedImage(Object pixels, Metadata md) throws java.lang.Exception {
-      JSONObject tags = metadataToMap(md);
+   // Tags that only depend on the system state, shared by all images until
+   // getSystemStateCacheGeneration() changes. Never modified once built.
+   private Map<String, Object> stateTags_ = null;
+   private int stateTagsGeneration_;
+
+   private synchronized Map<String, Object> getStateTags() throws java.lang.Exception {
+      int generation = getSystemStateCacheGeneration();
+      if (stateTags_ != null && generation == stateTagsGeneration_) {
+         return stateTags_;
+      }
+
+      JSONObject tags = new JSONObject();
       PropertySetting setting;
       Configuration config = getSystemStateCache();
       for (int i = 0; i < config.size(); ++i) {
          setting = config.getSetting(i);
          String key = setting.getDeviceLabel() + "-" + setting.getPropertyName();
          String value = setting.getPropertyValue();
-          tags.put(key, value);
+         tags.put(key, value);
       }
       tags.put("BitDepth", getImageBitDepth());
       tags.put("PixelSizeUm", getPixelSizeUm(true));
@@ -720,9 +769,30 @@
 
 
       try {
-         tags.put("Binning", getProperty(getCameraDevice(), "Binning"));
+         tags.put("Binning", getPropertyFromCache(getCameraDevice(), "Binning"));
       } catch (Exception ex) {}
-      
+
+      Map<String, Object> stateTags = new HashMap<String, Object>();
+      for (Iterator<String> keys = tags.keys(); keys.hasNext(); ) {
+         String key = keys.next();
+         stateTags.put(key, tags.get(key));
+      }
+      stateTags_ = Collections.unmodifiableMap(stateTags);
+      stateTagsGeneration_ = generation;
+      return stateTags_;
+   }
+
+   private TaggedImage createTaggedImage(Object pixels, Metadata md) throws java.lang.Exception {
+      Map<String, Object> stateTags = getStateTags();
+      JSONObject tags = new JSONObject(stateTags);
+      // As before, the state takes precedence over the image metadata
+      for (String key:md.GetKeys()) {
+         if (!stateTags.containsKey(key)) {
+            try {
+               tags.put(key, md.GetSingleTag(key).GetValue());
+            } catch (Exception e) {}
+         }
+      }
       return new TaggedImage(pixels, tags);	
    }
 
@@ -762,6 +832,149 @@
       return popNextTaggedImage(0);
    }
 
+   /**
+    * Removes the next image from the circular buffer without copying its
+    * pixels (see leaseNextImageMD()). The pixels of the returned image are
+    * a read-only direct ByteBuffer, in native byte order, that views the
+    * image in the buffer. Call release() on the image once the pixels have
+    * been consumed.
+    */
+   public LeasedTaggedImage leaseNextTaggedImage(int cameraChannelIndex) throws java.lang.Exception {
+      Metadata md = new Metadata();
+      int[] leaseId = new int[1];
+      int[] byteCount = new int[1];
+      int[] bytesPerPixel = new int[1];
+      ByteBuffer pixels = leaseNextImageMD(cameraChannelIndex, md, leaseId,
+            byteCount, bytesPerPixel);
+      try {
+         TaggedImage image = createTaggedImage(
+               pixels.asReadOnlyBuffer().order(ByteOrder.nativeOrder()),
+               md, cameraChannelIndex);
+         return new LeasedTaggedImage(image.pix, image.tags, this, leaseId[0],
+               bytesPerPixel[0]);
+      } catch (java.lang.Exception e) {
+         releaseLeasedImage(leaseId[0]);
+         throw e;
+      }
+   }
+
+   public LeasedTaggedImage leaseNextTaggedImage() throws java.lang.Exception {
+      return leaseNextTaggedImage(0);
+   }
+
+   /**
+    * Waits up to timeoutMs milliseconds for an image to arrive in the
+    * circular buffer (see waitForImage()) and removes it.
+    * Returns null if no image arrived in time.
+    */
+   public TaggedImage popNextTaggedImage(int cameraChannelIndex, int timeoutMs) throws java.lang.Exception {
+      if (!waitForImage(timeoutMs)) {
+         return null;
+      }
+      return popNextTaggedImage(cameraChannelIndex);
+   }
+
+   // Reused by popNextTaggedImages() between batches
+   private ByteBuffer batchBuffer_ = null;
+   private LongVector batchTagCounts_ = null;
+   private StrVector batchTags_ = null;
+
+   /**
+    * Removes up to images.length images from the circular buffer with a
+    * single call into the core, instead of one call per image as
+    * popNextTaggedImage() makes. The images are stored at the start of
+    * images, in the order they were acquired.
+    *
+    * The pixel array of an element that is not null is reused if it has
+    * the type and size needed for the next image; pass the previous batch
+    * back in once it is no longer used to avoid allocating new arrays.
+    *
+    * Returns the number of images removed; 0 if the buffer is empty.
+    */
+   public synchronized int popNextTaggedImages(int cameraChannelIndex,
+         TaggedImage[] images) throws java.lang.Exception {
+      int bytesPerPixel = (int) getBytesPerPixel();
+      int imageSize = (int) (getImageWidth() * getImageHeight()) * bytesPerPixel;
+      if (images.length == 0 || imageSize == 0) {
+         return 0;
+      }
+      long capacity = (long) imageSize * images.length;
+      if (capacity > Integer.MAX_VALUE) {
+         capacity = (Integer.MAX_VALUE / imageSize) * (long) imageSize;
+      }
+      if (batchBuffer_ == null || batchBuffer_.capacity() < capacity) {
+         batchBuffer_ = ByteBuffer.allocateDirect((int) capacity);
+         batchTagCounts_ = new LongVector();
+         batchTags_ = new StrVector();
+      }
+      int count = popNextImagesMD(cameraChannelIndex, images.length,
+            batchBuffer_, batchTagCounts_, batchTags_);
+
+      Map<String, Object> stateTags = getStateTags();
+      int tagIndex = 0;
+      for (int i = 0; i < count; ++i) {
+         batchBuffer_.limit((i + 1) * imageSize).position(i * imageSize);
+         ByteBuffer source = batchBuffer_.slice().order(ByteOrder.nativeOrder());
+         Object pixels = copyPixels(source, bytesPerPixel,
+               images[i] == null ? null : images[i].pix);
+
+         JSONObject tags = new JSONObject(stateTags);
+         int tagCount = batchTagCounts_.get(i);
+         for (int j = 0; j < tagCount; ++j, tagIndex += 2) {
+            String key = batchTags_.get(tagIndex);
+            if (!stateTags.containsKey(key)) {
+               tags.put(key, batchTags_.get(tagIndex + 1));
+            }
+         }
+         addCameraChannelTags(tags, cameraChannelIndex);
+         images[i] = new TaggedImage(pixels, tags);
+      }
+      batchBuffer_.clear();
+      return count;
+   }
+
+   /**
+    * Removes up to maxImages images from the circular buffer with a single
+    * call into the core. See popNextTaggedImages(int, TaggedImage[]).
+    */
+   public List<TaggedImage> popNextTaggedImages(int cameraChannelIndex,
+         int maxImages) throws java.lang.Exception {
+      TaggedImage[] images = new TaggedImage[maxImages];
+      int count = popNextTaggedImages(cameraChannelIndex, images);
+      return new ArrayList<TaggedImage>(Arrays.asList(images).subList(0, count));
+   }
+
+   public List<TaggedImage> popNextTaggedImages(int maxImages) throws java.lang.Exception {
+      return popNextTaggedImages(0, maxImages);
+   }
+
+   // Copies pixels in native byte order to an array of the type that
+   // popNextTaggedImage() would return, reusing previous if possible
+   static Object copyPixels(ByteBuffer source, int bytesPerPixel,
+         Object previous) {
+      if (bytesPerPixel == 2 || bytesPerPixel == 8) {
+         ShortBuffer shorts = source.asShortBuffer();
+         short[] pixels;
+         if (previous instanceof short[]
+               && ((short[]) previous).length == shorts.remaining()) {
+            pixels = (short[]) previous;
+         } else {
+            pixels = new short[shorts.remaining()];
+         }
+         shorts.get(pixels);
+         return pixels;
+      }
+      byte[] pixels;
+      if (previous instanceof byte[]
+            && ((byte[]) previous).length == source.remaining()) {
+         pixels = (byte[]) previous;
+      } else {
+         pixels = new byte[source.remaining()];
+      }
+      source.get(pixels);
+      return pixels;
+   }
+
    // convenience functions follow
    
    /*
@@ -309,6 +309,8 @@ public:
    {
       MetadataTag* tag = FindTag(key);
       const MetadataSingleTag* stag = tag->ToSingleTag();
+      if (stag == 0)
+         throw MetadataKeyError();
       return *stag;
    }
 
@@ -316,6 +318,8 @@ public:
    {
       MetadataTag* tag = FindTag(key);
       const MetadataArrayTag* atag = tag->ToArrayTag();
+      if (atag == 0)
+         throw MetadataKeyError();
       return *atag;
    }
 
@@ -32,12 +32,13 @@
     [java.io EOFException] ; abused to indicate canceled burst image collection
     [java.net InetAddress UnknownHostException]
     [java.util Date UUID]
-    [java.util.concurrent CountDownLatch LinkedBlockingQueue TimeUnit]
-    [mmcorej Configuration Metadata TaggedImage]
+    [java.util.concurrent CountDownLatch ExecutionException LinkedBlockingQueue
+                          TimeUnit]
+    [mmcorej Configuration DeviceType Metadata TaggedImage]
     [org.json JSONArray JSONObject]
     [org.micromanager.acquisition MMAcquisition TaggedImageQueue]
     [org.micromanager.api PositionList SequenceSettings]
-    [org.micromanager.utils MDUtils ReportingUtils])
+    [org.micromanager.utils MDUtils ReportingUtils TimelineRecorder])
   (:gen-class
     :name org.micromanager.AcquisitionEngine2010
     :implements [org.micromanager.api.IAcquisitionEngine2010]
@@ -66,6 +67,17 @@
 
 (def active-slice-sequence (atom nil))
 
+;; future collecting the images of the last snap event, while the next
+;; event's devices are being set up
+(def pending-collection (atom nil))
+
+(def popped-images (atom clojure.lang.PersistentQueue/EMPTY))
+
+(def pop-batch-size 64)
+
+;; Longest uninterrupted wait for an image, so that a stop request is noticed
+(def image-wait-slice-ms 100)
+
 (def pixel-type-depths {"GRAY8" 1 "GRAY16" 2 "RGB32" 4 "RGB64" 8})
 
 (defn throw-exception [msg] 
@@ -79,6 +91,24 @@
 (defn elapsed-time [state]
   (if (state :start-time) (- (jvm-time-ms) (state :start-time)) 0))
 
+;; timeline tracing (see TimelineRecorder)
+
+(def ^TimelineRecorder timeline (TimelineRecorder/getInstance))
+
+(defmacro with-span
+  "Runs body and, when timeline recording is enabled, records it as a span
+   named span-name. detail is only evaluated when recording."
+  [span-name detail & body]
+  `(let [start# (System/nanoTime)]
+     (try (do ~@body)
+       (finally
+         (when (.isEnabled timeline)
+           (.end timeline "engine" ~span-name start# ~detail))))))
+
+(defn event-label [event]
+  (str "f" (:frame-index event) " p" (:position-index event)
+       " c" (:channel-index event) " z" (:slice-index event)))
+
 (defn core-time-from-tags [tags]
   (try (Double/parseDouble (tags "ElapsedTime-ms")) (catch Exception e nil)))
 
@@ -150,6 +180,9 @@
    :tags
    (merge-with #(or %2 %1) ; only overwrite tags if generated tag is not nil
      (:tags img)
+     ;; The core tags the image with the device properties when it is read
+     ;; out, which may be after the next event has changed them
+     (:system-state state)
      (generate-metadata event state)
      {"ElapsedTime-ms" elapsed-time-ms}
      )}) ;; include any existing metadata
@@ -188,6 +221,22 @@
 
 ;; hardware control
 
+(defn await-collection
+  "Waits until the images of the previous snap event have been collected,
+   rethrowing any exception thrown while collecting them. Must be called
+   before the camera is used or reconfigured."
+  []
+  (when-let [collection @pending-collection]
+    (reset! pending-collection nil)
+    (with-span "await collection" nil
+      (try @collection
+           (catch ExecutionException e
+             (throw (.getCause e)))))))
+
+(defn camera-or-core? [dev]
+  (or (= dev "Core")
+      (= DeviceType/CameraDevice (core getDeviceType dev))))
+
 (defn wait-for-device [dev]
   (when-not (empty? dev)
     (try
@@ -197,12 +246,14 @@
 
 (defn set-exposure [camera exp]
   (when (not= exp (get-in @state [:cameras camera :exposure]))
+    (await-collection)
     (device-best-effort camera (core setExposure exp))
     (swap! state assoc-in [:cameras camera :exposure] exp)))
 
 (defn wait-for-pending-devices []
   (log "pending devices: " @pending-devices)
-  (dorun (map wait-for-device @pending-devices)))
+  (with-span "wait-for-pending-devices" (apply str (interpose " " @pending-devices))
+    (dorun (map wait-for-device @pending-devices))))
 
 (defn get-z-stage-position [stage]
   (if-not (empty? stage) (core getPosition stage) 0))
@@ -240,31 +291,37 @@
   ([stage-dev z]
     (when (and (not (empty? stage-dev))
                (not= z (get-in @state [:last-stage-positions stage-dev])))
-      (set-z-stage-position stage-dev z)
+      (with-span "set-stage-position" stage-dev
+        (set-z-stage-position stage-dev z))
       (swap! state assoc-in [:last-stage-positions stage-dev] z)))
   ([stage-dev x y]
     (when (and x y
                (not= [x y] (get-in @state [:last-stage-positions stage-dev])))
-      (device-best-effort stage-dev (core setXYPosition stage-dev x y))
+      (with-span "set-stage-position" stage-dev
+        (device-best-effort stage-dev (core setXYPosition stage-dev x y)))
       (swap! state assoc-in [:last-stage-positions stage-dev] [x y]))))
 
 (defn set-property
   [prop]
   (let [[[d p] v] prop]
     (when (not= v (get-in @state [:last-property-settings d p]))
-      (device-best-effort d (core setProperty d p v))
+      (when (camera-or-core? d)
+        (await-collection))
+      (with-span "set-property" (str d "-" p "=" v)
+        (device-best-effort d (core setProperty d p v)))
       (swap! state assoc-in [:last-property-settings d p] v))))
 
 (defn run-autofocus []
-  (let [z-drive (@state :default-z-drive)
-        z0 (get-z-stage-position z-drive)]
-  (try
-    (log "running autofocus" (-> @state :autofocus-device .getDeviceName))
-    (let [z (-> @state :autofocus-device .fullFocus)]
-      (swap! state assoc-in [:last-stage-positions (@state :default-z-drive)] z))
-    (catch Exception e
-           (ReportingUtils/logError e "Autofocus failed.")
-           (set-stage-position z-drive (+ 1.0e-6 z0))))))
+  (with-span "run-autofocus" nil
+    (let [z-drive (@state :default-z-drive)
+          z0 (get-z-stage-position z-drive)]
+      (try
+        (log "running autofocus" (-> @state :autofocus-device .getDeviceName))
+        (let [z (-> @state :autofocus-device .fullFocus)]
+          (swap! state assoc-in [:last-stage-positions (@state :default-z-drive)] z))
+        (catch Exception e
+          (ReportingUtils/logError e "Autofocus failed.")
+          (set-stage-position z-drive (+ 1.0e-6 z0)))))))
 
 (defn snap-image [open-before close-after]
   (with-core-setting [getAutoShutter setAutoShutter false]
@@ -345,6 +402,7 @@
     (start-property-sequences (:properties trigger-sequence))
     (when absolute-slices
       (start-slice-sequence (:slices trigger-sequence)))
+    (reset! popped-images clojure.lang.PersistentQueue/EMPTY)
     (core startSequenceAcquisition
           (if (first-trigger-missing?)
             (inc length)
@@ -352,9 +410,17 @@
           0
           true)))
 
+;; Images are taken from the circular buffer in batches, with one call
+;; into the core per batch, and handed out one at a time.
 (defn pop-tagged-image []
-  (try (. mmc popNextTaggedImage)
-       (catch Exception e nil)))
+  (when (empty? @popped-images)
+    (try (reset! popped-images
+                 (into clojure.lang.PersistentQueue/EMPTY
+                       (. mmc popNextTaggedImages pop-batch-size)))
+         (catch Exception e nil)))
+  (when-let [image (peek @popped-images)]
+    (swap! popped-images pop)
+    image))
 
 (defn pop-tagged-image-timeout
   [timeout-ms]
@@ -374,7 +440,9 @@
             (when (. mmc isBufferOverflowed)
               (log "halting image collection due to circular buffer overflow")
               (throw-exception "Circular buffer overflowed."))
-            (Thread/sleep 1)
+            (. mmc waitForImage
+               (min image-wait-slice-ms
+                    (- deadline (System/currentTimeMillis))))
             (recur)))))))
 
 (defn pop-burst-image
@@ -512,15 +580,22 @@
           camera-channel-names (get-camera-channel-names)]
       (produce-burst-images burst-events camera-channel-names pop-timeout-ms out-queue))))
 
-(defn collect-snap-image [event out-queue]
+(defn collect-snap-image
+  "Gets the image of a snap event; state-value is the engine state from
+   when the image was exposed, used for the image's metadata."
+  [event out-queue state-value]
   (let [image (unwrap-tagged-image (core getTaggedImage (event :camera-channel-index)))]
     (select-keys event [:position-index :frame-index
                         :slice-index :channel-index])
     (when out-queue
       (send-tagged-image out-queue
-            (make-TaggedImage (annotate-image image event @state (elapsed-time @state)))))
+            (make-TaggedImage (annotate-image image event state-value (elapsed-time state-value)))))
     image))
 
+(defn collect-snap-images [event out-queue state-value]
+  (doseq [sub-event (make-multicamera-events event)]
+    (collect-snap-image sub-event out-queue state-value)))
+
 (defn return-config []
   (dorun (map set-property
     (clojure.set/difference
@@ -545,26 +620,27 @@
 
 (defn acq-sleep [interval-ms]
   (log "acq-sleep")
-  (when (and (@state :init-continuous-focus)
-             (not (core isContinuousFocusEnabled)))
-    (try (enable-continuous-focus true) (catch Throwable t nil))) ; don't quit if this fails
-  (let [target-time (+ (@state :last-wake-time) interval-ms)
-        delta (- target-time (jvm-time-ms))]
-     (when (and gui
-                (< 1000 delta)
-                (@state :live-mode-on)
-                (not (.isLiveModeOn gui)))
-      (.enableLiveMode gui true))
-    (when (pos? delta)
-      (interruptible-sleep delta))
-    (await-resume)
-    (when gui
-      (swap! state assoc :live-mode-on (.isLiveModeOn gui))
-      (when (.isLiveModeOn gui)
-        (.enableLiveMode gui false)))
-    (let [now (jvm-time-ms)
-          wake-time (if (> now (+ target-time 10)) now target-time)]
-      (swap! state assoc :last-wake-time wake-time))))
+  (with-span "acq-sleep" nil
+    (when (and (@state :init-continuous-focus)
+               (not (core isContinuousFocusEnabled)))
+      (try (enable-continuous-focus true) (catch Throwable t nil))) ; don't quit if this fails
+    (let [target-time (+ (@state :last-wake-time) interval-ms)
+          delta (- target-time (jvm-time-ms))]
+      (when (and gui
+                 (< 1000 delta)
+                 (@state :live-mode-on)
+                 (not (.isLiveModeOn gui)))
+        (.enableLiveMode gui true))
+      (when (pos? delta)
+        (interruptible-sleep delta))
+      (await-resume)
+      (when gui
+        (swap! state assoc :live-mode-on (.isLiveModeOn gui))
+        (when (.isLiveModeOn gui)
+          (.enableLiveMode gui false)))
+      (let [now (jvm-time-ms)
+            wake-time (if (> now (+ target-time 10)) now target-time)]
+        (swap! state assoc :last-wake-time wake-time)))))
 
 ;; higher level
 
@@ -574,22 +650,38 @@
            [true (:close-shutter event)]
            [false false])]
     (swap! state assoc :system-state (map-config (core getSystemStateCache)))
-    (condp = (:task event)
-      :snap (apply snap-image shutter-states)
-      :burst (init-burst (count (:burst-data event))
-                         (:trigger-sequence event)
-                         (:relative-z event))
-      nil)))
+    (with-span "expose" (event-label event)
+      (condp = (:task event)
+        :snap (apply snap-image shutter-states)
+        :burst (init-burst (count (:burst-data event))
+                           (:trigger-sequence event)
+                           (:relative-z event))
+        nil))))
 
 (defn collect [event out-queue settings]
   (log "collecting image(s)")
-  (try
-    (condp = (:task event)
-      :snap (doseq [sub-event (make-multicamera-events event)]
-              (collect-snap-image sub-event out-queue))
-      :burst (collect-burst-images event out-queue settings))
-    (catch EOFException eat
-      (log "halted image collection and output due to engine stop"))))
+  (with-span "collect" (event-label event)
+    (try
+      (condp = (:task event)
+        :snap (collect-snap-images event out-queue @state)
+        :burst (collect-burst-images event out-queue settings))
+      (catch EOFException eat
+        (log "halted image collection and output due to engine stop")))))
+
+(defn collect-async
+  "Collects the images of a snap event on another thread. Until
+   await-collection is called, the devices for the next event can be set
+   while the camera is being read out."
+  [event out-queue]
+  (let [state-value @state]
+    (reset! pending-collection
+            (future
+              (log "collecting image(s)")
+              (with-span "collect" (event-label event)
+                (try
+                  (collect-snap-images event out-queue state-value)
+                  (catch EOFException eat
+                    (log "halted image collection and output due to engine stop"))))))))
 
 (defn z-in-msp [msp z-drive]
   (-> msp MultiStagePosition-to-map :axes (get z-drive) first))
@@ -731,8 +823,10 @@
                    (recall-z-reference current-position)
                    (log "END recall-z-reference"))
                 #(when-let [wait-time-ms (:wait-time-ms event)]
+                   (await-collection)
                    (acq-sleep wait-time-ms))
                 #(when (get event :autofocus)
+                   (await-collection)
                    (wait-for-pending-devices)
                    (run-autofocus))
                 #(when check-z-ref
@@ -747,14 +841,20 @@
                    (log "END set z position"))
                 (for [runnable (event :runnables)]
                   #(do
+                     (await-collection)
                      (log "BEGIN run one runnable")
                      (.run runnable)
                      (log "END run one runnable")))
                 #(do
+                   (await-collection)
                    (wait-for-pending-devices)
                    (log "BEGIN acquire")
                    (expose event)
-                   (collect event out-queue settings)
+                   ; The hardware changes of the next event can overlap
+                   ; with the readout of a snapped image
+                   (if (= :snap (:task event))
+                     (collect-async event out-queue)
+                     (collect event out-queue settings))
                    (stop-triggering)
                    (log "END acquire"))
                 #(log "#####" "END acquisition event"))))))
@@ -762,7 +862,8 @@
 (defn execute [event-fns]
   (doseq [event-fn event-fns :while (not (:stop @state))]
     (event-fn)
-    (await-resume)))
+    (await-resume))
+  (await-collection))
 
 (defn run-acquisition [settings out-queue cleanup? position-list autofocus-device]
     (try
@@ -773,6 +874,7 @@
           (.enableLiveMode false)
           (.enableRoiButtons false)))
       (prepare-state state (when (:use-position-list settings) position-list) autofocus-device)
+      (.markAcquisitionStart timeline)
       (def last-state state) ; for debugging
       (let [acq-seq (generate-acq-sequence settings @attached-runnables)]
         (def acq-sequence acq-seq) ; for debugging
@@ -782,6 +884,8 @@
              ; XXX There ought to be a way to get errors programmatically...
              (future (ReportingUtils/showError t "Acquisition failed.")))
       (finally
+        ; an error has already been reported if a collection is still running
+        (try (await-collection) (catch Throwable t nil))
         (when cleanup?
           (cleanup))
         (if (:stop @state)
@@ -0,0 +1,177 @@
+package org.micromanager;
+
+import clojure.lang.AFn;
+import clojure.lang.Atom;
+import clojure.lang.ISeq;
+import clojure.lang.PersistentHashMap;
+import clojure.lang.PersistentHashSet;
+import clojure.lang.RT;
+import clojure.lang.Symbol;
+import clojure.lang.Var;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import mmcorej.DeviceType;
+import mmcorej.TaggedImage;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AcqEngineTest {
+   private static final String ENGINE = "org.micromanager.acq-engine";
+
+   /**
+    * Stands in for CMMCore, which the engine calls by reflection. Like the
+    * core, it tags images with the property values it has when the image is
+    * read out. The first readout waits until a second property change has
+    * been made, as when the camera is still being read out while the next
+    * event sets up the devices.
+    */
+   public static class FakeCore {
+      private final Map<String, String> cache_ = new HashMap<String, String>();
+      private final CountDownLatch secondChange_ = new CountDownLatch(2);
+      private int readouts_ = 0;
+
+      public synchronized Map<String, String> getCache() {
+         return new HashMap<String, String>(cache_);
+      }
+
+      public void setProperty(String device, String property, String value) {
+         synchronized (this) {
+            cache_.put(device + "-" + property, value);
+         }
+         secondChange_.countDown();
+      }
+
+      public TaggedImage getTaggedImage(long cameraChannel) throws Exception {
+         synchronized (this) {
+            readouts_++;
+         }
+         // Gives up after a while, in case the engine waits for this image
+         // before changing the property
+         secondChange_.await(5, TimeUnit.SECONDS);
+         return new TaggedImage(new byte[4], new JSONObject(getCache()));
+      }
+
+      public DeviceType getDeviceType(String device) {
+         return device.equals("Camera")
+               ? DeviceType.CameraDevice : DeviceType.StateDevice;
+      }
+
+      public String getCameraDevice() {
+         return "Camera";
+      }
+
+      public String getShutterDevice() {
+         return "";
+      }
+
+      public boolean getAutoShutter() {
+         return false;
+      }
+
+      public void setAutoShutter(boolean autoShutter) {
+      }
+
+      public void snapImage() {
+      }
+
+      public void waitForDevice(String device) {
+      }
+
+      public long getNumberOfCameraChannels() {
+         return 1;
+      }
+
+      public String getCameraChannelName(long channel) {
+         return "Camera";
+      }
+
+      public Object getSystemStateCache() {
+         return null;
+      }
+
+      public void logMessage(String message, boolean debug) {
+      }
+   }
+
+   private FakeCore core_;
+   private Var mmc_;
+   private Var mapConfig_;
+   private Object oldMmc_;
+   private Object oldMapConfig_;
+
+   @BeforeClass
+   public static void loadEngine() {
+      RT.var("clojure.core", "require").invoke(Symbol.intern(ENGINE));
+   }
+
+   @Before
+   public void useFakeCore() {
+      core_ = new FakeCore();
+      mmc_ = RT.var("org.micromanager.mm", "mmc");
+      oldMmc_ = mmc_.getRawRoot();
+      mmc_.bindRoot(core_);
+      // The engine reads the state cache through map-config; the fake's
+      // cache is already a map
+      mapConfig_ = RT.var("org.micromanager.mm", "map-config");
+      oldMapConfig_ = mapConfig_.getRawRoot();
+      mapConfig_.bindRoot(new AFn() {
+         @Override
+         public Object invoke(Object config) {
+            return PersistentHashMap.create(core_.getCache());
+         }
+      });
+      ((Atom) RT.var(ENGINE, "pending-devices").deref()).reset(
+            PersistentHashSet.EMPTY);
+      ((Atom) RT.var(ENGINE, "pending-collection").deref()).reset(null);
+   }
+
+   @After
+   public void restoreCore() {
+      mmc_.bindRoot(oldMmc_);
+      mapConfig_.bindRoot(oldMapConfig_);
+   }
+
+   private static Object snapEvent(int frame, String filterState) {
+      return RT.readString("{:task :snap :frame-index " + frame
+            + " :position-index 0 :slice-index 0 :channel-index 0"
+            + " :channel {:name \"Default\" :properties [[[\"Filter\" \"State\"] \""
+            + filterState + "\"]]}}");
+   }
+
+   @Test
+   public void imagesAreTaggedWithThePropertiesTheyWereExposedWith()
+         throws Exception {
+      LinkedBlockingQueue<TaggedImage> out = new LinkedBlockingQueue<TaggedImage>();
+      // Each acquisition thread has a state of its own
+      Var.pushThreadBindings(RT.map(RT.var(ENGINE, "state"),
+            new Atom(PersistentHashMap.EMPTY)));
+      try {
+         Var makeEventFns = RT.var(ENGINE, "make-event-fns");
+         ISeq eventFns = (ISeq) RT.var("clojure.core", "concat").invoke(
+               makeEventFns.invoke(snapEvent(0, "0"), out, null),
+               makeEventFns.invoke(snapEvent(1, "1"), out, null));
+         RT.var(ENGINE, "execute").invoke(eventFns);
+      } finally {
+         Var.popThreadBindings();
+      }
+
+      assertEquals(2, core_.readouts_);
+      assertEquals(2, out.size());
+      JSONObject first = out.take().tags;
+      assertEquals(0, first.getInt("FrameIndex"));
+      assertEquals("0", first.getString("Filter-State"));
+      JSONObject second = out.take().tags;
+      assertEquals(1, second.getInt("FrameIndex"));
+      assertEquals("1", second.getString("Filter-State"));
+   }
+}
@@ -333,6 +333,20 @@ public class JSONArray {
     }
 
 
+    /**
+     * Make a copy of this JSONArray, including nested JSONObjects and
+     * JSONArrays (see JSONObject.copy()).
+     * @return A JSONArray with the same contents.
+     */
+    public JSONArray copy() {
+        JSONArray ja = new JSONArray();
+        for (Object o : this.myArrayList) {
+            ja.myArrayList.add(JSONObject.copyValue(o));
+        }
+        return ja;
+    }
+
+
     /**
      * Get the optional object value associated with an index.
      * @param index The index must be between 0 and length() - 1.
@@ -867,6 +867,41 @@ public class JSONObject {
         return this.myHashMap.remove(key);
     }
 
+
+    /**
+     * Make a copy of this JSONObject. Nested JSONObjects and JSONArrays are
+     * copied too, so changes to either one do not show up in the other. This
+     * is much cheaper than <code>new JSONObject(jo.toString())</code>, as
+     * the values are not formatted and parsed. Like toString(), it must not
+     * run while another thread changes this JSONObject.
+     * @return A JSONObject with the same contents.
+     */
+    public JSONObject copy() {
+        HashMap<String, Object> map = new HashMap<String, Object>(this.myHashMap);
+        for (Map.Entry<String, Object> e : map.entrySet()) {
+            Object o = e.getValue();
+            if (o instanceof JSONObject || o instanceof JSONArray) {
+                e.setValue(copyValue(o));
+            }
+        }
+        JSONObject jo = new JSONObject();
+        jo.myHashMap = map;
+        return jo;
+    }
+
+
+    /**
+     * Copy a value if it is a JSONObject or JSONArray.
+     */
+    static Object copyValue(Object o) {
+        if (o instanceof JSONObject) {
+            return ((JSONObject) o).copy();
+        } else if (o instanceof JSONArray) {
+            return ((JSONArray) o).copy();
+        }
+        return o;
+    }
+
     /**
      * Throw an exception if the object is an NaN or infinite number.
      * @param o The object to test.
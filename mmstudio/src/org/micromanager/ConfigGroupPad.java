@@ -47,6 +47,9 @@ import org.micromanager.utils.*;
 /**
  * Preset panel.
  * Displays a list of groups and lets the user select a preset.
+ *
+ * Property values are taken from the snapshots of a PropertyStateService
+ * and the core's cache, so that updating the pad does not wait for devices.
  */
 public class ConfigGroupPad extends JScrollPane{
 
@@ -54,6 +57,16 @@ public class ConfigGroupPad extends JScrollPane{
    private JTable table_;
    private StateTableData data_;
    private ScriptInterface parentGUI_;
+   private PropertyStateService propertyState_;
+   // Rebuilds the table once the first snapshot has been read
+   private final Runnable rebuildWhenRead_ = new Runnable() {
+      @Override
+      public void run() {
+         if (propertyState_.getSnapshot().getVersion() > 0) {
+            refreshStructure(true);
+         }
+      }
+   };
    Preferences prefs_;
    private final String COLUMN_WIDTH = "group_col_width";
    public PresetEditor presetEditor_ = null;
@@ -100,6 +113,26 @@ public class ConfigGroupPad extends JScrollPane{
       parentGUI_ = parentGUI;
    }
 
+   public void setPropertyState(PropertyStateService propertyState) {
+      propertyState_ = propertyState;
+      propertyState_.addListener(new PropertyStateService.Listener() {
+         @Override
+         public void snapshotChanged(PropertySnapshot snapshot) {
+            if (data_ != null) {
+               data_.refreshStatus();
+               table_.repaint();
+            }
+         }
+      });
+   }
+
+   private PropertyStateService getPropertyState(CMMCore core) {
+      if (propertyState_ == null) {
+         propertyState_ = new PropertyStateService(core);
+      }
+      return propertyState_;
+   }
+
    public void refreshStructure(boolean fromCache) {
       if (data_ != null) {
          data_.rebuildModel(fromCache);
@@ -235,9 +268,10 @@ public class ConfigGroupPad extends JScrollPane{
                         // we use the non-config-pad-updating version of
                         // MMStudio.refreshGUI(). Calling updateGUI(ture) or,
                         // equivalently, refreshGUI(), results in a system
-                        // state cache update, which can be very slow.
+                        // state cache update, which can be very slow. The
+                        // core's cache already has what we just set.
                         MMStudio parentGUI = (MMStudio) parentGUI_;
-                        parentGUI.updateGUI(false);
+                        parentGUI.updateGUI(false, true);
                      }
                      else {
                         parentGUI_.refreshGUI();
@@ -266,20 +300,27 @@ public class ConfigGroupPad extends JScrollPane{
          return true;
       }
 
+      /**
+       * Rebuilds the list of groups from the core's cache and the latest
+       * property snapshot. The devices are not read, whatever fromCache
+       * says; MMStudio.updateGUI() has them read in the background first.
+       * Until the first snapshot is there, the groups are listed without
+       * property details, and the list is rebuilt when it arrives.
+       */
       public void rebuildModel(boolean fromCache) {
          try {
             ReportingUtils.logMessage("Rebuilding config group table");
+            PropertySnapshot snapshot = getPropertyState(core_).getSnapshot();
+            if (snapshot.getVersion() == 0) {
+               propertyState_.requestRefresh(false, rebuildWhenRead_);
+            }
             StrVector groups = core_.getAvailableConfigGroups();
             groupList_.clear();
 
             for (String group : groups) {
                StateItem item = new StateItem();
                item.group = group;
-               if (fromCache) {
-                  item.config = core_.getCurrentConfigFromCache(item.group);
-               } else {
-                  item.config = core_.getCurrentConfig(item.group);
-               }
+               item.config = core_.getCurrentConfigFromCache(item.group);
                item.allowed = core_.getAvailableConfigs(item.group).toArray();
 
 
@@ -292,23 +333,22 @@ public class ConfigGroupPad extends JScrollPane{
 
                if (item.allowed.length == 1) {
                   Configuration cfg = core_.getConfigData(item.group, item.allowed[0]);
-                  if (cfg.size() == 1) {
-                     item.device = cfg.getSetting(0).getDeviceLabel();
-                     item.name = cfg.getSetting(0).getPropertyName();
-                     item.hasLimits = core_.hasPropertyLimits(item.device, item.name);
-                     boolean itemHasAllowedValues = (0 < core_.getAllowedPropertyValues(item.device, item.name).size());
+                  PropertyItem property = cfg.size() == 1 ? snapshot.getPropertyItem(
+                        cfg.getSetting(0).getDeviceLabel(),
+                        cfg.getSetting(0).getPropertyName()) : null;
+                  if (property != null) {
+                     item.device = property.device;
+                     item.name = property.name;
+                     item.hasLimits = property.hasRange;
+                     boolean itemHasAllowedValues = (0 < property.allowed.length);
                      if (item.hasLimits || !itemHasAllowedValues) {
                         item.singleProp = true;
-                        item.type = core_.getPropertyType(item.device, item.name);
-                        if (fromCache) {
-                           item.setValueFromCoreString(core_.getPropertyFromCache(item.device, item.name));
-                        } else {
-                           item.setValueFromCoreString(core_.getProperty(item.device, item.name));
-                        }
+                        item.type = property.type;
+                        item.value = property.value;
                         item.config = item.value;
-                        item.lowerLimit = core_.getPropertyLowerLimit(item.device, item.name);
-                        item.upperLimit = core_.getPropertyUpperLimit(item.device, item.name);
-                        item.singlePropAllowed = core_.getAllowedPropertyValues(item.device, item.name).toArray();
+                        item.lowerLimit = property.lowerLimit;
+                        item.upperLimit = property.upperLimit;
+                        item.singlePropAllowed = property.allowed;
                      }
 
                   }
@@ -324,16 +364,15 @@ public class ConfigGroupPad extends JScrollPane{
       }
 
       // Update the current presets for each config group, without updating
-      // the list of config groups and presets.
+      // the list of config groups and presets. Only reads the core's cache.
       public void refreshStatus() {
          try {
-            ReportingUtils.logMessage("Refreshing config group table");
             for (StateItem item : groupList_) {
                if (item.singleProp) {
-                  item.setValueFromCoreString(core_.getProperty(item.device, item.name));
+                  item.setValueFromCoreString(core_.getPropertyFromCache(item.device, item.name));
                   item.config = item.value;
                } else {
-                  item.config = core_.getCurrentConfig(item.group);
+                  item.config = core_.getCurrentConfigFromCache(item.group);
                   // set descr to current situation so that Tooltips get updated
                   if (item.config.length() > 0) {
                      Configuration curCfg = core_.getConfigData(item.group, item.config);
@@ -343,7 +382,6 @@ public class ConfigGroupPad extends JScrollPane{
                   }
                }
             }
-            ReportingUtils.logMessage("Finished refreshing config group table");
          } catch (Exception e) {
             handleException(e);
          }
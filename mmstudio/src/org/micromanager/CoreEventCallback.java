@@ -22,28 +22,32 @@
 
 package org.micromanager;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.Arrays;
 
 import mmcorej.CMMCore;
 import mmcorej.MMEventCallback;
 
 import org.micromanager.acquisition.AcquisitionWrapperEngine;
 import org.micromanager.api.MMListenerInterface;
+import org.micromanager.events.CoreEventDispatcher;
+import org.micromanager.events.CoreEventDispatcher.CoreEvent;
 import org.micromanager.events.EventManager;
 import org.micromanager.events.MMListenerProxy;
 
 
 /**
  * Callback to update Java layer when a change happens in the MMCore.
+ *
+ * Notifications are handed to a CoreEventDispatcher, which delivers them to
+ * the listeners on its own thread, so that the core's callback thread is
+ * never held up by the GUI.  Repeated notifications about the same device
+ * or property that arrive within one frame interval are merged.
  */
 public class CoreEventCallback extends MMEventCallback {
 
    private final CMMCore core_;
    private final AcquisitionWrapperEngine engine_;
-   private final List<MMListenerInterface> MMListeners_
-         = Collections.synchronizedList(new ArrayList<MMListenerInterface>());
+   private final CoreEventDispatcher dispatcher_ = new CoreEventDispatcher();
    private volatile boolean ignorePropertyChanges_;
 
    @SuppressWarnings("LeakingThisInConstructor")
@@ -64,99 +68,150 @@ public class CoreEventCallback extends MMEventCallback {
          if (ignorePropertyChanges_) {
             core_.logMessage("Notification from MMCore ignored since the system is still loading", true);
          } else {
-            core_.updateSystemStateCache();
-            // update all registered listeners 
-            for (MMListenerInterface mmIntf : MMListeners_) {
-               mmIntf.propertiesChangedAlert();
-            }
-            core_.logMessage("Notification from MMCore!", true);
+            dispatcher_.post("PropertiesChanged", new CoreEvent() {
+               @Override
+               public boolean prepare() {
+                  core_.updateSystemStateCache();
+                  core_.logMessage("Notification from MMCore!", true);
+                  return true;
+               }
+
+               @Override
+               public void deliver(MMListenerInterface listener) {
+                  listener.propertiesChangedAlert();
+               }
+            });
          }
       }
    }
 
    @Override
-   public void onPropertyChanged(String deviceName, String propName, String propValue) {
-      core_.logMessage("Notification for Device: " + deviceName + " Property: " +
-            propName + " changed to value: " + propValue, true);
-      // update all registered listeners
-      for (MMListenerInterface mmIntf:MMListeners_) {
-         mmIntf.propertyChangedAlert(deviceName, propName, propValue);
-      }
+   public void onPropertyChanged(final String deviceName, final String propName,
+         final String propValue) {
+      dispatcher_.post(Arrays.asList("PropertyChanged", deviceName, propName),
+            new CoreEvent() {
+         @Override
+         public boolean prepare() {
+            core_.logMessage("Notification for Device: " + deviceName + " Property: " +
+                  propName + " changed to value: " + propValue, true);
+            return true;
+         }
+
+         @Override
+         public void deliver(MMListenerInterface listener) {
+            listener.propertyChangedAlert(deviceName, propName, propValue);
+         }
+      });
    }
 
    @Override
-   public void onConfigGroupChanged(String groupName, String newConfig) {
-      try {
-         for (MMListenerInterface mmIntf:MMListeners_) {
-            mmIntf.configGroupChangedAlert(groupName, newConfig);
+   public void onConfigGroupChanged(final String groupName, final String newConfig) {
+      dispatcher_.post(Arrays.asList("ConfigGroupChanged", groupName),
+            new CoreEvent() {
+         @Override
+         public void deliver(MMListenerInterface listener) {
+            listener.configGroupChangedAlert(groupName, newConfig);
          }
-      } catch (Exception e) {
-      }
+      });
    }
    
    @Override
    public void onSystemConfigurationLoaded() {
-      for (MMListenerInterface mmIntf:MMListeners_) {
-         mmIntf.systemConfigurationLoaded();
-      }
+      dispatcher_.post("SystemConfigurationLoaded", new CoreEvent() {
+         @Override
+         public void deliver(MMListenerInterface listener) {
+            listener.systemConfigurationLoaded();
+         }
+      });
    }
 
    @Override
-   public void onPixelSizeChanged(double newPixelSizeUm) {
-      for (MMListenerInterface mmIntf:MMListeners_) {
-         mmIntf.pixelSizeChangedAlert(newPixelSizeUm);
-      }
+   public void onPixelSizeChanged(final double newPixelSizeUm) {
+      dispatcher_.post("PixelSizeChanged", new CoreEvent() {
+         @Override
+         public void deliver(MMListenerInterface listener) {
+            listener.pixelSizeChangedAlert(newPixelSizeUm);
+         }
+      });
    }
 
    @Override
-   public void onStagePositionChanged(String deviceName, double pos) {
-      // TODO: this check should be in the core, not the java layer!
-      if (deviceName.equals(core_.getFocusDevice())) {
-         for (MMListenerInterface mmIntf:MMListeners_) {
-            mmIntf.stagePositionChangedAlert(deviceName, pos);
+   public void onStagePositionChanged(final String deviceName, final double pos) {
+      dispatcher_.post(Arrays.asList("StagePositionChanged", deviceName),
+            new CoreEvent() {
+         @Override
+         public boolean prepare() {
+            // TODO: this check should be in the core, not the java layer!
+            return deviceName.equals(core_.getFocusDevice());
          }
-      }
+
+         @Override
+         public void deliver(MMListenerInterface listener) {
+            listener.stagePositionChangedAlert(deviceName, pos);
+         }
+      });
    }
 
    @Override
-   public void onXYStagePositionChanged(String deviceName, double xPos, double yPos) {
-      // TODO: this check should be in the core, not the java layer!
-      if (deviceName.equals(core_.getXYStageDevice())) {
-         for (MMListenerInterface mmIntf:MMListeners_) {
-            mmIntf.xyStagePositionChanged(deviceName, xPos, yPos);
+   public void onXYStagePositionChanged(final String deviceName, final double xPos,
+         final double yPos) {
+      dispatcher_.post(Arrays.asList("XYStagePositionChanged", deviceName),
+            new CoreEvent() {
+         @Override
+         public boolean prepare() {
+            // TODO: this check should be in the core, not the java layer!
+            return deviceName.equals(core_.getXYStageDevice());
          }
-      }
+
+         @Override
+         public void deliver(MMListenerInterface listener) {
+            listener.xyStagePositionChanged(deviceName, xPos, yPos);
+         }
+      });
    }
 
    @Override
-   public void onExposureChanged(String deviceName, double exposure) {
-      for (MMListenerInterface mmIntf:MMListeners_) {
-         mmIntf.exposureChanged(deviceName, exposure);
-      }
+   public void onExposureChanged(final String deviceName, final double exposure) {
+      dispatcher_.post(Arrays.asList("ExposureChanged", deviceName),
+            new CoreEvent() {
+         @Override
+         public void deliver(MMListenerInterface listener) {
+            listener.exposureChanged(deviceName, exposure);
+         }
+      });
    }
    
    @Override
-   public void onSLMExposureChanged(String deviceName, double exposure) {
-      for (MMListenerInterface mmIntf:MMListeners_) {
-         mmIntf.slmExposureChanged(deviceName, exposure);
-      }
+   public void onSLMExposureChanged(final String deviceName, final double exposure) {
+      dispatcher_.post(Arrays.asList("SLMExposureChanged", deviceName),
+            new CoreEvent() {
+         @Override
+         public void deliver(MMListenerInterface listener) {
+            listener.slmExposureChanged(deviceName, exposure);
+         }
+      });
    }
 
    public final void addMMListener(MMListenerInterface newL) {
-      if (MMListeners_.contains(newL)) {
+      if (dispatcher_.hasListener(newL)) {
          return;
       }
-      MMListeners_.add(newL);
+      dispatcher_.addListener(newL);
    }
 
    public void removeMMListener(MMListenerInterface oldL) {
-      if (!MMListeners_.contains(oldL)) {
-         return;
-      }
-      MMListeners_.remove(oldL);
+      dispatcher_.removeListener(oldL);
    }
 
    public void setIgnoring(boolean isIgnoring) {
       ignorePropertyChanges_ = isIgnoring;
    }
+
+   /**
+    * Gives access to the dispatcher, e.g. to read its counts of merged and
+    * dropped notifications.
+    */
+   public CoreEventDispatcher getDispatcher() {
+      return dispatcher_;
+   }
 }
@@ -26,6 +26,8 @@ package org.micromanager;
 import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
 
+import org.micromanager.acquisition.TiffCompression;
+
 /**
  * Options data for MMStudio.
  */
@@ -41,6 +43,7 @@ public class MMOptions {
    private static final String PREF_WINDOW_MAG = "windowMag";
    private static final String MPTIFF_METADATA_FILE = "MakeMetadataFileWithMultipageTiff";
    private static final String MPTIFF_SEPARATE_FILES_FOR_POSITIONS = "SplitXYPostionsInFilesMPTiff";
+   private static final String MPTIFF_COMPRESSION = "CompressionMPTiff";
    private static final String SYNCEXPOSUREMAINANDMDA = "SyncExposureBetweenMainAndMDAWindows";
    private static final String HIDE_MDA_DISPLAY = "HideMDADisplay";
    private static final String FAST_STORAGE = "FastStorage"; // No longer used but should not be reused
@@ -57,6 +60,7 @@ public class MMOptions {
    public double windowMag_;
    public boolean mpTiffMetadataFile_;
    public boolean mpTiffSeparateFilesForPositions_;
+   public int mpTiffCompression_;
    public boolean syncExposureMainAndMDA_;
    public boolean hideMDADisplay_;
    public boolean deleteOldCoreLogs_;
@@ -78,6 +82,7 @@ public class MMOptions {
       windowMag_ = 1.0;
       mpTiffMetadataFile_ = false;
       mpTiffSeparateFilesForPositions_ = true;
+      mpTiffCompression_ = TiffCompression.NONE;
       syncExposureMainAndMDA_ = false;
       hideMDADisplay_ = false;
       deleteOldCoreLogs_ = false;
@@ -102,6 +107,7 @@ public class MMOptions {
       prefs.putDouble(PREF_WINDOW_MAG, windowMag_);
       prefs.putBoolean(MPTIFF_METADATA_FILE, mpTiffMetadataFile_);
       prefs.putBoolean(MPTIFF_SEPARATE_FILES_FOR_POSITIONS, mpTiffSeparateFilesForPositions_);
+      prefs.putInt(MPTIFF_COMPRESSION, mpTiffCompression_);
       prefs.putBoolean(SYNCEXPOSUREMAINANDMDA, syncExposureMainAndMDA_);
       prefs.putBoolean(HIDE_MDA_DISPLAY, hideMDADisplay_);
       prefs.putBoolean(DELETE_OLD_CORELOGS, deleteOldCoreLogs_);
@@ -120,6 +126,10 @@ public class MMOptions {
       windowMag_ = prefs.getDouble(PREF_WINDOW_MAG, windowMag_);
       mpTiffMetadataFile_ = prefs.getBoolean(MPTIFF_METADATA_FILE, mpTiffMetadataFile_);
       mpTiffSeparateFilesForPositions_ = prefs.getBoolean(MPTIFF_SEPARATE_FILES_FOR_POSITIONS, mpTiffSeparateFilesForPositions_);
+      mpTiffCompression_ = prefs.getInt(MPTIFF_COMPRESSION, mpTiffCompression_);
+      if (!TiffCompression.isValid(mpTiffCompression_)) {
+         mpTiffCompression_ = TiffCompression.NONE;
+      }
       syncExposureMainAndMDA_ = prefs.getBoolean(SYNCEXPOSUREMAINANDMDA, syncExposureMainAndMDA_);
       hideMDADisplay_ = prefs.getBoolean(HIDE_MDA_DISPLAY, hideMDADisplay_);
       deleteOldCoreLogs_ =
@@ -48,6 +48,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.prefs.Preferences;
 
 import javax.swing.JCheckBoxMenuItem;
@@ -113,7 +114,9 @@ import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.JavaUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMException;
+import org.micromanager.utils.MMListenerAdapter;
 import org.micromanager.utils.MMScriptException;
+import org.micromanager.utils.PropertyStateService;
 import org.micromanager.utils.ReportingUtils;
 import org.micromanager.utils.TextUtils;
 import org.micromanager.utils.UIMonitor;
@@ -151,6 +154,16 @@ public class MMStudio implements ScriptInterface {
    private GUIColors guiColors_;
    private GraphFrame profileWin_;
    private PropertyEditor propertyBrowser_;
+   private PropertyStateService propertyState_;
+   // Whether a GUI update waiting for a property refresh should also
+   // rebuild the config pad
+   private final AtomicBoolean pendingConfigPadUpdate_ = new AtomicBoolean(false);
+   private final Runnable deferredGUIUpdate_ = new Runnable() {
+      @Override
+      public void run() {
+         updateGUINow(pendingConfigPadUpdate_.getAndSet(false));
+      }
+   };
    private CalibrationListDlg calibrationListDlg_;
    private AcqControlDlg acqControlWin_;
    private PluginManager pluginManager_;
@@ -325,6 +338,8 @@ public class MMStudio implements ScriptInterface {
 
       core_.enableStderrLog(true);
 
+      propertyState_ = new PropertyStateService(core_);
+
       snapLiveManager_ = new SnapLiveManager(studio_, core_);
 
       frame_ = new MainFrame(this, core_, snapLiveManager_, mainPrefs_);
@@ -407,6 +422,13 @@ public class MMStudio implements ScriptInterface {
 
       // This entity is a class property to avoid garbage collection.
       coreCallback_ = new CoreEventCallback(core_, engine_);
+      coreCallback_.addMMListener(new MMListenerAdapter() {
+         @Override
+         public void propertyChangedAlert(String device, String property,
+               String value) {
+            propertyState_.applyChange(device, property, value);
+         }
+      });
 
       try {
          core_.setCircularBufferMemoryFootprint(options_.circularBufferSizeMB_);
@@ -725,6 +747,13 @@ public class MMStudio implements ScriptInterface {
    public boolean getSeparateFilesForPositionsMPTiff() {
       return options_.mpTiffSeparateFilesForPositions_;
    }
+
+   /**
+    * @return one of the TiffCompression settings
+    */
+   public int getMultipageTiffCompression() {
+      return options_.mpTiffCompression_;
+   }
    
    @Override
    public boolean getHideMDADisplayOption() {
@@ -1053,6 +1082,7 @@ public class MMStudio implements ScriptInterface {
       propertyBrowser_.setGui(studio_);
       propertyBrowser_.setVisible(true);
       propertyBrowser_.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+      propertyBrowser_.setPropertyState(propertyState_);
       propertyBrowser_.setCore(core_);
    }
 
@@ -1395,7 +1425,8 @@ public class MMStudio implements ScriptInterface {
 
    @Subscribe
    public void onPropertiesChanged(PropertiesChangedEvent event) {
-      updateGUI(true);
+      // The core has already updated its cache before telling us
+      updateGUI(true, true);
    }
 
    @Subscribe
@@ -1405,13 +1436,41 @@ public class MMStudio implements ScriptInterface {
       }
    }
 
+   /**
+    * Has the devices read in the background and then updates the GUI from
+    * the new property snapshot. Returns at once: the GUI is updated later,
+    * on the EDT, when the devices have been read. To wait for the values,
+    * use getPropertyState().requestRefresh(true, null).get() off the EDT.
+    * @param updateConfigPadStructure true to also rebuild the config pad
+    */
    public void updateGUI(boolean updateConfigPadStructure) {
       updateGUI(updateConfigPadStructure, false);
    }
 
+   /**
+    * Returns the service that keeps the snapshot of device properties shown
+    * in the GUI.
+    */
+   public PropertyStateService getPropertyState() {
+      return propertyState_;
+   }
+
+   /**
+    * Has the property snapshot refreshed in the background, from the
+    * devices unless fromCache, and then updates the GUI from it on the EDT.
+    * Returns without waiting for either. Requests made while one waits are
+    * merged.
+    */
    public void updateGUI(boolean updateConfigPadStructure, boolean fromCache) {
+      if (updateConfigPadStructure) {
+         pendingConfigPadUpdate_.set(true);
+      }
+      propertyState_.requestRefresh(!fromCache, deferredGUIUpdate_);
+   }
+
+   private void updateGUINow(boolean updateConfigPadStructure) {
       ReportingUtils.logMessage("Updating GUI; config pad = " +
-            updateConfigPadStructure + "; from cache = " + fromCache);
+            updateConfigPadStructure);
       try {
          staticInfo_.refreshValues();
          afMgr_.refresh();
@@ -1421,11 +1480,10 @@ public class MMStudio implements ScriptInterface {
             double exp = core_.getExposure();
             frame_.setDisplayedExposureTime(exp);
             configureBinningCombo();
-            String binSize;
-            if (fromCache) {
+            String binSize = propertyState_.getSnapshot().getValue(
+                  StaticInfo.cameraLabel_, MMCoreJ.getG_Keyword_Binning());
+            if (binSize == null) {
                binSize = core_.getPropertyFromCache(StaticInfo.cameraLabel_, MMCoreJ.getG_Keyword_Binning());
-            } else {
-               binSize = core_.getProperty(StaticInfo.cameraLabel_, MMCoreJ.getG_Keyword_Binning());
             }
             frame_.setBinSize(binSize);
          }
@@ -1452,11 +1510,7 @@ public class MMStudio implements ScriptInterface {
          ConfigGroupPad pad = frame_.getConfigPad();
          // state devices
          if (updateConfigPadStructure && (pad != null)) {
-            pad.refreshStructure(fromCache);
-            // Needed to update read-only properties.  May slow things down...
-            if (!fromCache) {
-               core_.updateSystemStateCache();
-            }
+            pad.refreshStructure(true);
          }
 
          // update Channel menus in Multi-dimensional acquisition dialog
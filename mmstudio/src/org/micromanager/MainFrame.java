@@ -175,6 +175,7 @@ public class MainFrame extends MMFrame implements LiveModeListener {
    }
 
    public void initializeConfigPad() {
+      configPad_.setPropertyState(studio_.getPropertyState());
       configPad_.setCore(core_);
       configPad_.setParentGUI(studio_);
       configPadButtonPanel_.setCore(core_);
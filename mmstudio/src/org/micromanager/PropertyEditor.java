@@ -49,14 +49,14 @@ import javax.swing.table.TableColumn;
 import com.swtdesigner.SwingResourceManager;
 
 import mmcorej.CMMCore;
-import mmcorej.StrVector;
 
 import org.micromanager.api.ScriptInterface;
-import org.micromanager.utils.MMListenerAdapter;
 import org.micromanager.utils.MMFrame;
 import org.micromanager.utils.PropertyValueCellEditor;
 import org.micromanager.utils.PropertyValueCellRenderer;
 import org.micromanager.utils.PropertyItem;
+import org.micromanager.utils.PropertySnapshot;
+import org.micromanager.utils.PropertyStateService;
 import org.micromanager.utils.PropertyTableData;
 import org.micromanager.utils.ShowFlags;
 
@@ -69,6 +69,9 @@ import org.micromanager.utils.ReportingUtils;
  * device - property - value
  *
  * aka the "Device/Property Browser"
+ *
+ * The properties shown come from a PropertyStateService and are updated as
+ * it hands over new snapshots.
  */
 public class PropertyEditor extends MMFrame {
    private final SpringLayout springLayout;
@@ -87,30 +90,37 @@ public class PropertyEditor extends MMFrame {
    private JCheckBox showReadonlyCheckBox_;
    private final JScrollPane scrollPane_;
    private ScriptInterface gui_;
-   
-   public class myMMListener extends MMListenerAdapter {
+   private PropertyStateService propertyState_;
 
+   private final PropertyStateService.Listener snapshotListener_ =
+         new PropertyStateService.Listener() {
       @Override
-      public void propertiesChangedAlert() {
-         // avoid re-executing a refresh because of callbacks while we are updating
-         if (!data_.updating()) {
-            refresh();
+      public void snapshotChanged(PropertySnapshot snapshot) {
+         if (data_ != null) {
+            data_.update(snapshot);
          }
       }
-
-      @Override
-      public void propertyChangedAlert(String device, String property, String value) {
-         data_.update(device, property, value);
-      }
-   }
-
-   private final myMMListener myMMListener_ = new myMMListener();
+   };
 
    public void setGui(ScriptInterface gui) {
       gui_ = gui;
-      gui_.addMMListener(myMMListener_);
    }
 
+   public void setPropertyState(PropertyStateService propertyState) {
+      propertyState_ = propertyState;
+      propertyState_.addListener(snapshotListener_);
+      if (data_ != null) {
+         data_.setPropertyState(propertyState_);
+      }
+   }
+
+   @Override
+   public void dispose() {
+      if (propertyState_ != null) {
+         propertyState_.removeListener(snapshotListener_);
+      }
+      super.dispose();
+   }
 
 
    public PropertyEditor() {
@@ -165,7 +175,8 @@ public class PropertyEditor extends MMFrame {
       refreshButton.addActionListener(new ActionListener() {
          @Override
          public void actionPerformed(ActionEvent e) {
-            refresh();
+            // Read the devices again; the table follows when done
+            data_.getPropertyState().requestRefresh(true, null);
          }
       });
       refreshButton.setText("Refresh! ");
@@ -278,7 +289,7 @@ public class PropertyEditor extends MMFrame {
       data_.gui_ = gui_;
       data_.flags_ = flags_;
       data_.showUnused_ = true;
-      data_.refresh(false);
+      data_.refresh(true);
    }
 
    public void updateStatus() {
@@ -292,6 +303,9 @@ public class PropertyEditor extends MMFrame {
         data_.flags_ = flags_;
         data_.showUnused_ = true;
         data_.setColumnNames("Property", "Value", "");
+        if (propertyState_ != null) {
+           data_.setPropertyState(propertyState_);
+        }
 
         table_ = new JTable();
         table_.setAutoCreateColumnsFromModel(false);
@@ -326,39 +340,20 @@ public class PropertyEditor extends MMFrame {
          if (col == PropertyValueColumn_) {
             setValueInCore(item,value);
          }
-         core_.updateSystemStateCache();
-         refresh(true);
-         gui_.refreshGUIFromCache();
+         refreshAfterSet();
          fireTableCellUpdated(row, col);
       }
 
-      public void update (String device, String propName, String newValue) {
-         PropertyItem item = getItem(device, propName);
-         if (item != null) {
-            item.value = newValue;
-            // Better to call fireTableCellUpdated(row, col)???
-            fireTableDataChanged();
-         }
-      }
-      
       @Override
       public void update(ShowFlags flags, String groupName, String presetName, boolean fromCache) {  
          try {
-            StrVector devices = core_.getLoadedDevices();
+            PropertySnapshot snapshot = getSnapshot();
             propList_.clear();
 
-            boolean liveMode = gui_.isLiveModeOn();
-            if (!fromCache) {
-               // Some properties may not be readable if we are
-               // mid-acquisition.
-               gui_.enableLiveMode(false);
-            }
-            for (int i=0; i<devices.size(); i++) { 
-               if (data_.showDevice(flags, devices.get(i))) {
-                  StrVector properties = core_.getDevicePropertyNames(devices.get(i));
-                  for (int j=0; j<properties.size(); j++){
-                     PropertyItem item = new PropertyItem();
-                     item.readFromCore(core_, devices.get(i), properties.get(j), fromCache);
+            for (String device : snapshot.getDevices()) {
+               if (data_.showDevice(flags, device)) {
+                  for (String property : snapshot.getPropertyNames(device)) {
+                     PropertyItem item = snapshot.getPropertyItem(device, property);
 
                      if ((!item.readOnly || showReadOnly_) && !item.preInit) {
                         propList_.add(item);
@@ -366,12 +361,9 @@ public class PropertyEditor extends MMFrame {
                   }
                }
             }
+            setStructureVersion(snapshot.getStructureVersion());
 
             updateRowVisibility(flags); 
-
-            if (!fromCache) {
-               gui_.enableLiveMode(liveMode);
-            }
          } catch (Exception e) {
             handleException(e);
          }
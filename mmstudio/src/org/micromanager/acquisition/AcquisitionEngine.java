@@ -307,6 +307,19 @@ public interface AcquisitionEngine {
     */
    public boolean isMultiPositionEnabled();
 
+   /**
+    * Sets a flag that signals whether the positions will be visited in the
+    * order that needs the least stage travel, rather than in list order
+    * @param selected - reorders the positions when true
+    */
+   public void enablePositionOrderOptimization(boolean selected);
+
+   /**
+    * Returns true when the positions will be visited in travel-optimized
+    * order
+    */
+   public boolean isPositionOrderOptimizationEnabled();
+
    /**
     * Access to the channels used in this acquisition
     * @return - Channels used in this acquisition
@@ -8,10 +8,18 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.prefs.Preferences;
 import java.util.Set;
 
+import javax.swing.JDialog;
 import javax.swing.JOptionPane;
+import javax.swing.JProgressBar;
+import javax.swing.SwingUtilities;
 
 import mmcorej.CMMCore;
 import mmcorej.Configuration;
@@ -23,14 +31,17 @@ import org.json.JSONObject;
 import org.micromanager.api.DataProcessor;
 import org.micromanager.api.ImageCache;
 import org.micromanager.api.IAcquisitionEngine2010;
+import org.micromanager.api.MultiStagePosition;
 import org.micromanager.api.PositionList;
 import org.micromanager.api.ScriptInterface;
 import org.micromanager.api.SequenceSettings;
+import org.micromanager.api.StagePosition;
 import org.micromanager.events.EventManager;
 import org.micromanager.events.PipelineEvent;
 import org.micromanager.events.ProcessorEvent;
 import org.micromanager.events.SummaryMetadataEvent;
 import org.micromanager.internalinterfaces.AcqSettingsListener;
+import org.micromanager.positionlist.StageTravelOptimizer;
 import org.micromanager.utils.AcqOrderMode;
 import org.micromanager.utils.AutofocusManager;
 import org.micromanager.utils.ChannelSpec;
@@ -56,6 +67,7 @@ public class AcquisitionWrapperEngine implements AcquisitionEngine {
    private boolean useFrames_;
    private boolean useChannels_;
    private boolean useMultiPosition_;
+   private boolean optimizePositionOrder_;
    private boolean keepShutterOpenForStack_;
    private boolean keepShutterOpenForChannels_;
    private ArrayList<ChannelSpec> channels_ = new ArrayList<ChannelSpec>();
@@ -80,6 +92,12 @@ public class AcquisitionWrapperEngine implements AcquisitionEngine {
    private ArrayList<AcqSettingsListener> settingsListeners_;
    private AcquisitionManager acqManager_;
    private int cameraTimeout_ = 20000;
+   // Stage speeds for position ordering, and the stages they were read from
+   private String travelSpeedStages_;
+   private double[] travelSpeeds_;
+   // Last computed position order, and what it was computed from
+   private String travelOrderKey_;
+   private int[] travelOrder_;
 
    public AcquisitionWrapperEngine(AcquisitionManager mgr) {
       nameToProcessorClass_ = new HashMap<String, Class<? extends DataProcessor<TaggedImage>>>();
@@ -117,6 +135,149 @@ public class AcquisitionWrapperEngine implements AcquisitionEngine {
       return acquisitionEngine2010;
    }
 
+   /**
+    * Returns a copy of the position list, reordered for short stage travel.
+    * When the positions are revisited every time point, the way back to the
+    * first position is included. The order is kept for the next
+    * acquisition with the same stage positions and settings.
+    */
+   private PositionList getTravelOptimizedPositionList(PositionList posList,
+           SequenceSettings acquisitionSettings) {
+      int numFrames = acquisitionSettings.customIntervalsMs != null
+              ? acquisitionSettings.customIntervalsMs.size()
+              : acquisitionSettings.numFrames;
+      StageTravelOptimizer optimizer = makeTravelOptimizer(
+              numFrames > 1 && !acquisitionSettings.timeFirst);
+      MultiStagePosition[] positions = posList.getPositions();
+      String key = travelOrderKey(positions, optimizer);
+      if (!key.equals(travelOrderKey_)) {
+         int[] order = computeTravelOrder(positions, optimizer);
+         if (order == null) {
+            return posList;
+         }
+         travelOrderKey_ = key;
+         travelOrder_ = order;
+      }
+      MultiStagePosition[] reordered = new MultiStagePosition[positions.length];
+      for (int i = 0; i < reordered.length; i++) {
+         reordered[i] = MultiStagePosition.newInstance(positions[travelOrder_[i]]);
+      }
+      PositionList optimized = new PositionList();
+      optimized.setPositions(reordered);
+      return optimized;
+   }
+
+   /**
+    * Describes everything the computed order depends on: the optimizer
+    * settings and the stage coordinates and autofocus mode of each position.
+    */
+   private static String travelOrderKey(MultiStagePosition[] positions,
+           StageTravelOptimizer optimizer) {
+      StringBuilder key = new StringBuilder();
+      key.append(optimizer.isClosedTour()).append(' ')
+              .append(optimizer.getXSpeed()).append(' ')
+              .append(optimizer.getYSpeed()).append(' ')
+              .append(optimizer.getZSpeed()).append('\n');
+      for (MultiStagePosition msp : positions) {
+         key.append(msp.getProperty(PositionList.AF_KEY));
+         for (int i = 0; i < msp.size(); i++) {
+            StagePosition sp = msp.get(i);
+            // Exact bits are quicker to append than formatted numbers
+            key.append(' ').append(sp.stageName).append(' ').append(sp.numAxes)
+                    .append(' ').append(Double.doubleToLongBits(sp.x))
+                    .append(' ').append(Double.doubleToLongBits(sp.y))
+                    .append(' ').append(Double.doubleToLongBits(sp.z));
+         }
+         key.append('\n');
+      }
+      return key.toString();
+   }
+
+   /**
+    * Returns an optimizer with the speeds of the current stages, which are
+    * read from the devices only when the stages change.
+    */
+   private StageTravelOptimizer makeTravelOptimizer(boolean closedTour) {
+      String xyStage = core_.getXYStageDevice();
+      String zStage = core_.getFocusDevice();
+      String stages = xyStage + "\n" + zStage;
+      if (!stages.equals(travelSpeedStages_)) {
+         StageTravelOptimizer fromDevices = new StageTravelOptimizer();
+         fromDevices.setSpeedsFromDevices(core_, xyStage, zStage);
+         travelSpeeds_ = new double[] {fromDevices.getXSpeed(),
+            fromDevices.getYSpeed(), fromDevices.getZSpeed()};
+         travelSpeedStages_ = stages;
+      }
+      StageTravelOptimizer optimizer = new StageTravelOptimizer();
+      optimizer.setXYSpeed(travelSpeeds_[0], travelSpeeds_[1]);
+      optimizer.setZSpeed(travelSpeeds_[2]);
+      optimizer.setClosedTour(closedTour);
+      return optimizer;
+   }
+
+   /**
+    * Computes the visiting order. On the EDT, this happens on a worker
+    * thread; if that takes a while, a dialog shows progress and lets the
+    * user go on with the list order instead.
+    * @return the order, or null to use the list order
+    */
+   private int[] computeTravelOrder(final MultiStagePosition[] positions,
+           final StageTravelOptimizer optimizer) {
+      if (!SwingUtilities.isEventDispatchThread()) {
+         return optimizer.computeOrder(positions);
+      }
+      JProgressBar progressBar = new JProgressBar();
+      progressBar.setIndeterminate(true);
+      JOptionPane pane = new JOptionPane(new Object[] {
+         "Finding a short stage route through "
+                 + positions.length + " positions...",
+         progressBar}, JOptionPane.INFORMATION_MESSAGE,
+              JOptionPane.DEFAULT_OPTION, null, new Object[] {"Use list order"});
+      final JDialog dialog = pane.createDialog(null, "Position order");
+      FutureTask<int[]> task = new FutureTask<int[]>(new Callable<int[]>() {
+         @Override
+         public int[] call() {
+            return optimizer.computeOrder(positions);
+         }
+      }) {
+         @Override
+         protected void done() {
+            SwingUtilities.invokeLater(new Runnable() {
+               @Override
+               public void run() {
+                  dialog.dispose();
+               }
+            });
+         }
+      };
+      Thread worker = new Thread(task, "Stage travel optimization");
+      worker.setDaemon(true);
+      worker.start();
+      try {
+         try {
+            return task.get(200, TimeUnit.MILLISECONDS);
+         } catch (TimeoutException ex) {
+            // The modal dialog keeps the GUI responsive until the task
+            // closes it, or the user does
+            dialog.setVisible(true);
+            if (!task.isDone()) {
+               task.cancel(true);
+               ReportingUtils.logMessage("Stage travel optimization skipped");
+               return null;
+            }
+            return task.get();
+         }
+      } catch (InterruptedException ex) {
+         task.cancel(true);
+         return null;
+      } catch (ExecutionException ex) {
+         ReportingUtils.logError(ex.getCause(), "Stage travel optimization failed");
+         return null;
+      } finally {
+         dialog.dispose();
+      }
+   }
+
    protected String runAcquisition(SequenceSettings acquisitionSettings, 
            AcquisitionManager acqManager) {
       //Make sure computer can write to selected location and that there is enough space to do so
@@ -151,10 +312,16 @@ public class AcquisitionWrapperEngine implements AcquisitionEngine {
       studio_.enableLiveMode(false);
 
       try {
+         PositionList posList = studio_.getPositionList();
+         if (acquisitionSettings.usePositionList
+                 && acquisitionSettings.optimizePositionOrder) {
+            posList = getTravelOptimizedPositionList(posList, acquisitionSettings);
+         }
+
          // Start up the acquisition engine
          BlockingQueue<TaggedImage> engineOutputQueue = getAcquisitionEngine2010().run(
                  acquisitionSettings, true,
-                 studio_.getPositionList(),
+                 posList,
                  studio_.getAutofocusManager().getDevice());
          summaryMetadata_ = getAcquisitionEngine2010().getSummaryMetadata();
          org.micromanager.events.EventManager.post(
@@ -448,6 +615,7 @@ public class AcquisitionWrapperEngine implements AcquisitionEngine {
       }
       acquisitionSettings.comment = comment_;
       acquisitionSettings.usePositionList = this.useMultiPosition_;
+      acquisitionSettings.optimizePositionOrder = this.optimizePositionOrder_;
       acquisitionSettings.cameraTimeout = cameraTimeout_;
       return acquisitionSettings;
    }
@@ -525,6 +693,7 @@ public class AcquisitionWrapperEngine implements AcquisitionEngine {
       comment_ = ss.comment;
       
       useMultiPosition_ = ss.usePositionList;
+      optimizePositionOrder_ = ss.optimizePositionOrder;
       cameraTimeout_ = ss.cameraTimeout;
    }
 
@@ -818,6 +987,16 @@ public class AcquisitionWrapperEngine implements AcquisitionEngine {
       return useMultiPosition_;
    }
 
+   @Override
+   public void enablePositionOrderOptimization(boolean selected) {
+      optimizePositionOrder_ = selected;
+   }
+
+   @Override
+   public boolean isPositionOrderOptimizationEnabled() {
+      return optimizePositionOrder_;
+   }
+
    @Override
    public ArrayList<ChannelSpec> getChannels() {
       return channels_;
@@ -1,5 +1,7 @@
 package org.micromanager.acquisition;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 import javax.swing.JOptionPane;
@@ -7,6 +9,7 @@ import javax.swing.SwingUtilities;
 import mmcorej.TaggedImage;
 import org.micromanager.api.ImageCache;
 import org.micromanager.utils.ReportingUtils;
+import org.micromanager.utils.TimelineRecorder;
 
 /**
  * Dequeue tagged images and append to image cache
@@ -37,6 +40,7 @@ public class DefaultTaggedImageSink  {
          public void run() {
             long t1 = System.currentTimeMillis();
             int imageCount = 0;
+            TimelineRecorder timeline = TimelineRecorder.getInstance();
             try {
                while (true) {
                   TaggedImage image = imageProducingQueue_.poll(1, TimeUnit.SECONDS);
@@ -45,8 +49,13 @@ public class DefaultTaggedImageSink  {
                         break;
                      }
                      ++imageCount;
+                     long start = timeline.begin();
                      try {
                         imageCache_.putImage(image);
+                        if (timeline.isEnabled()) {
+                           timeline.end("storage", "sink", start,
+                                 TimelineRecorder.describe(image));
+                        }
                      }
                      catch (OutOfMemoryError e) {
                         handleOutOfMemory(e, sinkFullCallback);
@@ -60,11 +69,33 @@ public class DefaultTaggedImageSink  {
             long t2 = System.currentTimeMillis();
             ReportingUtils.logMessage(imageCount + " images stored in " + (t2 - t1) + " ms.");
             imageCache_.finished();
+            if (timeline.isEnabled()) {
+               writeTimeline(timeline);
+            }
          }
       };
       savingThread.start();
    }
 
+   // Writes the acquisition's timeline next to the data set, or to the
+   // temporary directory if the data set is not saved
+   private void writeTimeline(TimelineRecorder timeline) {
+      String location = imageCache_.getDiskLocation();
+      File file;
+      if (location != null) {
+         file = new File(location, "timeline.json");
+      } else {
+         file = new File(System.getProperty("java.io.tmpdir"),
+               "timeline-" + System.currentTimeMillis() + ".json");
+      }
+      try {
+         timeline.writeChromeTrace(file);
+         ReportingUtils.logMessage("Acquisition timeline written to " + file.getPath());
+      } catch (IOException e) {
+         ReportingUtils.logError(e, "Failed to write acquisition timeline");
+      }
+   }
+
    // Never called from EDT
    private void handleOutOfMemory(final OutOfMemoryError e,
          Runnable sinkFullCallback)
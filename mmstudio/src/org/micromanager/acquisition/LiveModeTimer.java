@@ -229,7 +229,6 @@ public class LiveModeTimer {
       return running_;
    }
 
-   @SuppressWarnings("SleepWhileInLoop")
    public void begin() throws Exception {
       if(running_) {
          return;
@@ -247,15 +246,9 @@ public class LiveModeTimer {
       long period = getInterval();
 
       // Wait for first image to create ImageWindow, so that we can be sure about image size
-      long start = System.currentTimeMillis();
-      long now = start;
       // Give 10s extra for the camera to transfer the image to us.
       long timeout = period + 10000;
-      while (core_.getRemainingImageCount() == 0 && (now - start < timeout) ) {
-         now = System.currentTimeMillis();
-         Thread.sleep(5);
-      }
-      if (now - start >= timeout) {
+      if (!core_.waitForImage((int) timeout)) {
          throw new Exception("Camera did not send image within " + timeout + "ms");
       }
 
@@ -50,10 +50,15 @@ public class MultipageTiffReader {
    private static final long BIGGEST_INT_BIT = (long) Math.pow(2, 31);
 
    
+   public static final char WIDTH = MultipageTiffWriter.WIDTH;
+   public static final char HEIGHT = MultipageTiffWriter.HEIGHT;
    public static final char BITS_PER_SAMPLE = MultipageTiffWriter.BITS_PER_SAMPLE;
+   public static final char COMPRESSION = MultipageTiffWriter.COMPRESSION;
    public static final char STRIP_OFFSETS = MultipageTiffWriter.STRIP_OFFSETS;    
    public static final char SAMPLES_PER_PIXEL = MultipageTiffWriter.SAMPLES_PER_PIXEL;
+   public static final char ROWS_PER_STRIP = MultipageTiffWriter.ROWS_PER_STRIP;
    public static final char STRIP_BYTE_COUNTS = MultipageTiffWriter.STRIP_BYTE_COUNTS;
+   public static final char PREDICTOR = MultipageTiffWriter.PREDICTOR;
    public static final char IMAGE_DESCRIPTION = MultipageTiffWriter.IMAGE_DESCRIPTION;
    
    public static final char MM_METADATA = MultipageTiffWriter.MM_METADATA;
@@ -391,15 +396,61 @@ public class MultipageTiffReader {
             data.mdLength = entry.count;
          } else if (entry.tag == STRIP_OFFSETS) {
             data.pixelOffset = entry.value;
+            data.stripOffsets = readStripArray(entry);
          } else if (entry.tag == STRIP_BYTE_COUNTS) {
             data.bytesPerImage = entry.value;
-         } 
+            data.stripByteCounts = readStripArray(entry);
+         } else if (entry.tag == WIDTH) {
+            data.width = entry.value;
+         } else if (entry.tag == HEIGHT) {
+            data.height = entry.value;
+         } else if (entry.tag == ROWS_PER_STRIP) {
+            data.rowsPerStrip = entry.value;
+         } else if (entry.tag == COMPRESSION) {
+            data.compression = (char) entry.value;
+         } else if (entry.tag == PREDICTOR) {
+            data.predictor = (char) entry.value;
+         }
       }
       data.nextIFD = unsignInt(entries.getInt(numEntries*12));
       data.nextIFDOffsetLocation = byteOffset + 2 + numEntries*12;
       return data;
    }
 
+   //Reads the offsets or byte counts of all strips of an image
+   private long[] readStripArray(IFDEntry entry) throws IOException {
+      if (entry.count == 1) {
+         return new long[] {entry.value};
+      }
+      int bytesPerValue = entry.type == 3 ? 2 : 4;
+      ByteBuffer buffer = readIntoBuffer(entry.value, (int) entry.count * bytesPerValue);
+      long[] values = new long[(int) entry.count];
+      for (int i = 0; i < values.length; i++) {
+         values[i] = bytesPerValue == 2 ? buffer.getChar(2 * i) : unsignInt(buffer.getInt(4 * i));
+      }
+      return values;
+   }
+
+   //Reads and decompresses all strips of a compressed image
+   private byte[] readStrips(IFDData data) throws IOException {
+      int samplesPerPixel = rgb_ ? 3 : 1;
+      int rowBytes = (int) data.width * byteDepth_ * samplesPerPixel;
+      byte[] pixels = new byte[rowBytes * (int) data.height];
+      long rowsPerStrip = data.rowsPerStrip > 0 ? data.rowsPerStrip : data.height;
+      int position = 0;
+      for (int i = 0; i < data.stripOffsets.length && position < pixels.length; i++) {
+         int length = (int) Math.min(rowsPerStrip * rowBytes, pixels.length - position);
+         ByteBuffer strip = readIntoBuffer(data.stripOffsets[i], (int) data.stripByteCounts[i]);
+         byte[] decompressed = TiffCompression.decompress(data.compression, strip.array(), length);
+         System.arraycopy(decompressed, 0, pixels, position, Math.min(length, decompressed.length));
+         position += length;
+      }
+      if (data.predictor == TiffCompression.PREDICTOR_HORIZONTAL) {
+         TiffCompression.undoPredictor(pixels, rowBytes, samplesPerPixel, byteDepth_, byteOrder_);
+      }
+      return pixels;
+   }
+
    private String getString(ByteBuffer buffer) {
       try {
          return new String(buffer.array(), "UTF-8");
@@ -410,9 +461,7 @@ public class MultipageTiffReader {
    }
    
    private TaggedImage readTaggedImage(IFDData data) throws IOException {
-      ByteBuffer pixelBuffer = ByteBuffer.allocate( (int) data.bytesPerImage).order(byteOrder_);
       ByteBuffer mdBuffer = ByteBuffer.allocate((int) data.mdLength).order(byteOrder_);
-      fileChannel_.read(pixelBuffer, data.pixelOffset);
       fileChannel_.read(mdBuffer, data.mdOffset);
       JSONObject md = new JSONObject();
       try {
@@ -424,6 +473,15 @@ public class MultipageTiffReader {
       if ( byteDepth_ == 0) {
          getRGBAndByteDepth(md);
       }
+
+      ByteBuffer pixelBuffer;
+      if (data.compression == TiffCompression.TIFF_NONE && data.stripOffsets.length == 1) {
+         pixelBuffer = ByteBuffer.allocate( (int) data.bytesPerImage).order(byteOrder_);
+         fileChannel_.read(pixelBuffer, data.pixelOffset);
+      } else {
+         pixelBuffer = ByteBuffer.wrap(readStrips(data)).order(byteOrder_);
+         data.bytesPerImage = pixelBuffer.capacity();
+      }
       
       if (rgb_) {
          if (byteDepth_ == 1) {
@@ -672,6 +730,13 @@ public class MultipageTiffReader {
       public long mdLength;
       public long nextIFD;
       public long nextIFDOffsetLocation;
+      public long width;
+      public long height;
+      public long rowsPerStrip;
+      public long[] stripOffsets = new long[1];
+      public long[] stripByteCounts = new long[1];
+      public char compression = TiffCompression.TIFF_NONE;
+      public char predictor = TiffCompression.PREDICTOR_NONE;
       
       public IFDData() {}
    }
@@ -34,9 +34,15 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.CharBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import mmcorej.TaggedImage;
@@ -48,6 +54,7 @@ import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
+import org.micromanager.utils.TimelineRecorder;
 
 public class MultipageTiffWriter {
    
@@ -80,6 +87,7 @@ public class MultipageTiffWriter {
    public static final char X_RESOLUTION = 282;
    public static final char Y_RESOLUTION = 283;
    public static final char RESOLUTION_UNIT = 296;
+   public static final char PREDICTOR = 317;
    public static final char IJ_METADATA_BYTE_COUNTS = TiffDecoder.META_DATA_BYTE_COUNTS;
    public static final char IJ_METADATA = TiffDecoder.META_DATA;
    public static final char MM_METADATA = 51123;
@@ -88,12 +96,17 @@ public class MultipageTiffWriter {
          
    public static final ByteOrder BYTE_ORDER = ByteOrder.nativeOrder();
    
+   //Uncompressed size of the strips that compressed images are divided into,
+   //each strip is compressed on its own thread
+   private static final int COMPRESSED_STRIP_BYTES = 65536;
+   
    final private boolean omeTiff_;
    
    private TaggedImageStorageMultipageTiff masterMPTiffStorage_;
    private RandomAccessFile raFile_;
    private FileChannel fileChannel_; 
    private ThreadPoolExecutor writingExecutor_;
+   private final TimelineRecorder timeline_ = TimelineRecorder.getInstance();
    private long filePosition_ = 0;
    private long indexMapPosition_; //current position of the dynamically written index map
    private long indexMapFirstEntry_; // mark position of first entry so that number of entries can be written at end
@@ -113,8 +126,12 @@ public class MultipageTiffWriter {
    private long ijMetadataTagPosition_;
    //Reader associated with this file
    private MultipageTiffReader reader_;
-   private long blankPixelsOffset_ = -1;
    private boolean fastStorageMode_;
+   private ExecutorService compressionExecutor_;
+   private char compression_ = TiffCompression.TIFF_NONE;
+   private boolean predictor_ = false;
+   private int rowsPerStrip_, numStrips_, maxBytesPerImagePixels_;
+   private byte[][] blankStrips_;
    
    public MultipageTiffWriter(String directory, String filename, 
            JSONObject summaryMD, TaggedImageStorageMultipageTiff mpTiffStorage,
@@ -132,6 +149,7 @@ public class MultipageTiffWriter {
       } catch (JSONException ex) {
          ReportingUtils.logError(ex);
       }
+      setUpCompression(mpTiffStorage.getCompression());
       
       //This is an overestimate of file size because file gets truncated at end
       long fileSize = Math.min(MAX_FILE_SIZE, summaryMD.toString().length() + 2000000
@@ -154,6 +172,7 @@ public class MultipageTiffWriter {
       }
       fileChannel_ = raFile_.getChannel();
       writingExecutor_ = masterMPTiffStorage_.getWritingExecutor();
+      compressionExecutor_ = masterMPTiffStorage_.getCompressionExecutor();
       indexMap_ = new HashMap<String, Long>();
       reader_.setFileChannel(fileChannel_);
       reader_.setIndexMap(indexMap_);
@@ -217,7 +236,9 @@ public class MultipageTiffWriter {
            @Override
            public void run() {
              try {
+                long start = timeline_.begin();
                 fileChannel_.write(buffers);
+                timeline_.end("storage", "file write", start, null);
                 for (ByteBuffer buffer:buffers) {
                     if (buffer.limit() == currentImageByteBufferCapacity_) {
                         currentImageByteBuffers_.offer(buffer);
@@ -367,10 +388,10 @@ public class MultipageTiffWriter {
    
    public boolean hasSpaceToWrite(TaggedImage img, int omeMDLength) {
       int mdLength = img.tags.toString().length();
-      int IFDSize = ENTRIES_PER_IFD*12 + 4 + 16;
+      int IFDSize = (ENTRIES_PER_IFD + 1)*12 + 4 + 16 + (numStrips_ > 1 ? 8*numStrips_ : 0);
       //5 MB extra padding...just to be safe...
       int extraPadding = 5000000; 
-      long size = mdLength+IFDSize+bytesPerImagePixels_+SPACE_FOR_COMMENTS+
+      long size = mdLength+IFDSize+maxBytesPerImagePixels_+SPACE_FOR_COMMENTS+
       numChannels_ * DISPLAY_SETTINGS_BYTES_PER_CHANNEL + extraPadding + filePosition_;
       if (omeTiff_) {
          size += omeMDLength;
@@ -392,6 +413,7 @@ public class MultipageTiffWriter {
    }
         
    public void writeImage(TaggedImage img) throws IOException {
+      long start = timeline_.begin();
       if (writingExecutor_ != null) {
          int queueSize = writingExecutor_.getQueue().size();
          int attemptCount = 0;
@@ -409,9 +431,11 @@ public class MultipageTiffWriter {
          }
       }
       long offset = filePosition_;
+      String label = MDUtils.getLabel(img.tags);
       writeIFD(img);
-      addToIndexMap(MDUtils.getLabel(img.tags), offset);
+      addToIndexMap(label, offset);
       writeBuffers();
+      timeline_.end("storage", "tiff write", start, label);
       //wait until image has finished writing to return
 //      int size = writingExecutor_.getQueue().size();
 //      while (size > 0) {
@@ -450,6 +474,11 @@ public class MultipageTiffWriter {
    }
    
    public void overwritePixels(Object pixels, int channel, int slice, int frame, int position) throws IOException {
+      if (compression_ != TiffCompression.TIFF_NONE) {
+         //compressed pixels don't fit in the space of the ones they replace
+         ReportingUtils.showError("Can't overwrite pixel data of compressed Image Stack Files");
+         return;
+      }
       long byteOffset = indexMap_.get(MDUtils.generateLabel(channel, slice, frame, position));      
       ByteBuffer buffer = ByteBuffer.allocate(2).order(BYTE_ORDER);
       fileChannel_.read(buffer, byteOffset);
@@ -485,18 +514,28 @@ public class MultipageTiffWriter {
    }
 
    private void writeIFD(TaggedImage img) throws IOException {
-      char numEntries = ((firstIFD_  ? ENTRIES_PER_IFD + 4 : ENTRIES_PER_IFD));
       if (img.tags.has("Summary")) {
          img.tags.remove("Summary");
       }
       byte[] mdBytes = getBytesFromString(img.tags.toString() + " ");
       mdBytes[mdBytes.length - 1] = 0; // null terminate TIFF ASCII string
+      writeIFD(mdBytes, getStrips(img.pix));
+   }
+
+   private void writeIFD(byte[] mdBytes, ByteBuffer[] strips) throws IOException {
+      char numEntries = (char) ((firstIFD_  ? ENTRIES_PER_IFD + 4 : ENTRIES_PER_IFD) + (predictor_ ? 1 : 0));
+      int pixelBytes = 0;
+      for (ByteBuffer strip : strips) {
+         pixelBytes += strip.remaining();
+      }
+      //offsets and byte counts of more than one strip are stored after the IFD
+      int stripArrayBytes = strips.length > 1 ? 8 * strips.length : 0;
 
       //2 bytes for number of directory entries, 12 bytes per directory entry, 4 byte offset of next IFD
-     //6 bytes for bits per sample if RGB, 16 bytes for x and y resolution, 1 byte per character of MD string
-     //number of bytes for pixels
-     int totalBytes = 2 + numEntries*12 + 4 + (rgb_?6:0) + 16 + mdBytes.length + bytesPerImagePixels_;
-     int IFDandBitDepthBytes = 2+ numEntries*12 + 4 + (rgb_?6:0);
+     //6 bytes for bits per sample if RGB, 8 bytes per strip if more than one, 16 bytes for x and y resolution,
+     //1 byte per character of MD string, number of bytes for pixels
+     int totalBytes = 2 + numEntries*12 + 4 + (rgb_?6:0) + stripArrayBytes + 16 + mdBytes.length + pixelBytes;
+     int IFDandBitDepthBytes = 2+ numEntries*12 + 4 + (rgb_?6:0) + stripArrayBytes;
      
      ByteBuffer ifdBuffer = allocateByteBuffer(IFDandBitDepthBytes);
      CharBuffer charView = ifdBuffer.asCharBuffer();
@@ -513,7 +552,11 @@ public class MultipageTiffWriter {
       if (rgb_) {
          tagDataOffset += 6;
       }
-      writeIFDEntry(ifdBuffer,charView,COMPRESSION,(char)3,1,1);
+      long stripOffsetsOffset = tagDataOffset;
+      long stripByteCountsOffset = tagDataOffset + 4 * strips.length;
+      tagDataOffset += stripArrayBytes;
+      long pixelOffset = tagDataOffset;
+      writeIFDEntry(ifdBuffer,charView,COMPRESSION,(char)3,1,compression_);
       writeIFDEntry(ifdBuffer,charView,PHOTOMETRIC_INTERPRETATION,(char)3,1,rgb_?2:1);
       
       if (firstIFD_ ) {
@@ -523,16 +566,27 @@ public class MultipageTiffWriter {
          writeIFDEntry(ifdBuffer, charView, IMAGE_DESCRIPTION, (char) 2, 0, 0);
       }
            
-      writeIFDEntry(ifdBuffer,charView,STRIP_OFFSETS,(char)4,1, tagDataOffset );
-      tagDataOffset += bytesPerImagePixels_;
+      if (strips.length == 1) {
+         writeIFDEntry(ifdBuffer,charView,STRIP_OFFSETS,(char)4,1, pixelOffset );
+      } else {
+         writeIFDEntry(ifdBuffer,charView,STRIP_OFFSETS,(char)4,strips.length, stripOffsetsOffset );
+      }
+      tagDataOffset += pixelBytes;
       writeIFDEntry(ifdBuffer,charView,SAMPLES_PER_PIXEL,(char)3,1,(rgb_?3:1));
-      writeIFDEntry(ifdBuffer,charView,ROWS_PER_STRIP, (char) 3, 1, imageHeight_);
-      writeIFDEntry(ifdBuffer,charView,STRIP_BYTE_COUNTS, (char) 4, 1, bytesPerImagePixels_ );
+      writeIFDEntry(ifdBuffer,charView,ROWS_PER_STRIP, (char) 3, 1, rowsPerStrip_);
+      if (strips.length == 1) {
+         writeIFDEntry(ifdBuffer,charView,STRIP_BYTE_COUNTS, (char) 4, 1, pixelBytes );
+      } else {
+         writeIFDEntry(ifdBuffer,charView,STRIP_BYTE_COUNTS, (char) 4, strips.length, stripByteCountsOffset );
+      }
       writeIFDEntry(ifdBuffer,charView,X_RESOLUTION, (char)5, 1, tagDataOffset);
       tagDataOffset += 8;
       writeIFDEntry(ifdBuffer,charView,Y_RESOLUTION, (char)5, 1, tagDataOffset);
       tagDataOffset += 8;
       writeIFDEntry(ifdBuffer,charView,RESOLUTION_UNIT, (char) 3,1,3);
+      if (predictor_) {
+         writeIFDEntry(ifdBuffer,charView,PREDICTOR, (char) 3,1,TiffCompression.PREDICTOR_HORIZONTAL);
+      }
       if (firstIFD_) {         
          ijMetadataCountsTagPosition_ = filePosition_ + bufferPosition_;
          writeIFDEntry(ifdBuffer,charView,IJ_METADATA_BYTE_COUNTS,(char)4,0,0);
@@ -549,9 +603,20 @@ public class MultipageTiffWriter {
          charView.put(bufferPosition_/2,(char) (byteDepth_*8));
          charView.put(bufferPosition_/2+1,(char) (byteDepth_*8));
          charView.put(bufferPosition_/2+2,(char) (byteDepth_*8));
+         bufferPosition_ += 6;
+      }
+      if (strips.length > 1) {
+         long stripOffset = pixelOffset;
+         for (int i = 0; i < strips.length; i++) {
+            ifdBuffer.putInt(bufferPosition_ + 4 * i, (int) stripOffset);
+            ifdBuffer.putInt(bufferPosition_ + 4 * (strips.length + i), strips[i].remaining());
+            stripOffset += strips[i].remaining();
+         }
       }
       buffers_.add(ifdBuffer);
-      buffers_.add(getPixelBuffer(img.pix));
+      for (ByteBuffer strip : strips) {
+         buffers_.add(strip);
+      }
       buffers_.add(getResolutionValuesBuffer());   
       buffers_.add(ByteBuffer.wrap(mdBytes));
       
@@ -936,89 +1001,97 @@ public class MultipageTiffWriter {
    }
   
    private void writeBlankIFD() throws IOException {
-//      boolean blankPixelsAlreadyWritten = blankPixelsOffset_ != -1;
-      boolean blankPixelsAlreadyWritten = false;
+      writeIFD(getBytesFromString("NULL "), getBlankStrips());
+   }
 
-      char numEntries = (char) (((firstIFD_ && omeTiff_) ? ENTRIES_PER_IFD + 2 : ENTRIES_PER_IFD)
-              + (firstIFD_ ? 2 : 0));
-     
-      byte[] mdBytes = getBytesFromString("NULL ");
+   private void setUpCompression(int setting) {
+      if (rgb_ && setting != TiffCompression.NONE) {
+         //ImageJ 1.48 only reads the first image of compressed RGB stacks
+         ReportingUtils.logMessage("Image Stack Files of RGB images are written uncompressed");
+         setting = TiffCompression.NONE;
+      }
+      compression_ = TiffCompression.getTiffCompression(setting);
+      predictor_ = TiffCompression.usesPredictor(setting) && (byteDepth_ == 1 || byteDepth_ == 2);
+      rowsPerStrip_ = imageHeight_;
+      maxBytesPerImagePixels_ = bytesPerImagePixels_;
+      if (compression_ != TiffCompression.TIFF_NONE && imageHeight_ > 0) {
+         int rowBytes = bytesPerImagePixels_ / imageHeight_;
+         rowsPerStrip_ = Math.max(1, Math.min(imageHeight_, COMPRESSED_STRIP_BYTES / Math.max(1, rowBytes)));
+         maxBytesPerImagePixels_ = 0;
+         for (int row = 0; row < imageHeight_; row += rowsPerStrip_) {
+            maxBytesPerImagePixels_ += TiffCompression.maxCompressedLength(
+                    Math.min(rowsPerStrip_, imageHeight_ - row) * rowBytes);
+         }
+      }
+      numStrips_ = rowsPerStrip_ > 0 ? (imageHeight_ + rowsPerStrip_ - 1) / rowsPerStrip_ : 1;
+   }
 
-      //2 bytes for number of directory entries, 12 bytes per directory entry, 4 byte offset of next IFD
-     //6 bytes for bits per sample if RGB, 16 bytes for x and y resolution, 1 byte per character of MD string
-     //number of bytes for pixels
-     int totalBytes = 2 + numEntries*12 + 4 + (rgb_?6:0) + 16 + mdBytes.length
-             + (blankPixelsAlreadyWritten ? 0 : bytesPerImagePixels_);
-     int IFDandBitDepthBytes = 2+ numEntries*12 + 4 + (rgb_?6:0);
-     
-     ByteBuffer ifdBuffer = allocateByteBuffer(IFDandBitDepthBytes);
-     CharBuffer charView = ifdBuffer.asCharBuffer();
-         
-     long tagDataOffset = filePosition_ + 2 + numEntries*12 + 4;
-     nextIFDOffsetLocation_ = filePosition_ + 2 + numEntries*12;
-     
-     bufferPosition_ = 0;
-      charView.put(bufferPosition_,numEntries);
-      bufferPosition_ += 2;
-      writeIFDEntry(ifdBuffer,charView, WIDTH,(char)4,1,imageWidth_);
-      writeIFDEntry(ifdBuffer,charView,HEIGHT,(char)4,1,imageHeight_);
-      writeIFDEntry(ifdBuffer,charView,BITS_PER_SAMPLE,(char)3,rgb_?3:1,  rgb_? tagDataOffset:byteDepth_*8);
-      if (rgb_) {
-         tagDataOffset += 6;
+   private ByteBuffer[] getStrips(Object pixels) throws IOException {
+      ByteBuffer pixelBuffer = getPixelBuffer(pixels);
+      if (compression_ == TiffCompression.TIFF_NONE) {
+         return new ByteBuffer[] {pixelBuffer};
       }
-      writeIFDEntry(ifdBuffer,charView,COMPRESSION,(char)3,1,1);
-      writeIFDEntry(ifdBuffer,charView,PHOTOMETRIC_INTERPRETATION,(char)3,1,rgb_?2:1);
-      
-      if (firstIFD_ && omeTiff_) {
-                  omeDescriptionTagPosition_ = filePosition_ + bufferPosition_;
-         writeIFDEntry(ifdBuffer, charView, IMAGE_DESCRIPTION, (char) 2, 0, 0);
-      }     
-      if (firstIFD_) {
-         ijDescriptionTagPosition_ = filePosition_ + bufferPosition_;
-         writeIFDEntry(ifdBuffer, charView, IMAGE_DESCRIPTION, (char) 2, 0, 0);
+      byte[][] compressed = compressStrips(pixelBuffer);
+      //the uncompressed pixels aren't written, so their buffer can be reused right away
+      if (pixelBuffer.isDirect() && pixelBuffer.capacity() == currentImageByteBufferCapacity_) {
+         currentImageByteBuffers_.offer(pixelBuffer);
       }
-           
-      if (!blankPixelsAlreadyWritten) { //Write blank pixels
-         writeIFDEntry(ifdBuffer, charView, STRIP_OFFSETS, (char) 4, 1, tagDataOffset);
-         blankPixelsOffset_ = tagDataOffset;
-         tagDataOffset += bytesPerImagePixels_;
-      } else {
-         writeIFDEntry(ifdBuffer, charView, STRIP_OFFSETS, (char) 4, 1, blankPixelsOffset_);
+      return wrap(compressed);
+   }
+
+   private ByteBuffer[] getBlankStrips() throws IOException {
+      if (compression_ == TiffCompression.TIFF_NONE) {
+         return new ByteBuffer[] {ByteBuffer.wrap(new byte[bytesPerImagePixels_])};
       }
-      
-      writeIFDEntry(ifdBuffer,charView,SAMPLES_PER_PIXEL,(char)3,1,(rgb_?3:1));
-      writeIFDEntry(ifdBuffer,charView,ROWS_PER_STRIP, (char) 3, 1, imageHeight_);
-      writeIFDEntry(ifdBuffer,charView,STRIP_BYTE_COUNTS, (char) 4, 1, bytesPerImagePixels_ );
-      writeIFDEntry(ifdBuffer,charView,X_RESOLUTION, (char)5, 1, tagDataOffset);
-      tagDataOffset += 8;
-      writeIFDEntry(ifdBuffer,charView,Y_RESOLUTION, (char)5, 1, tagDataOffset);
-      tagDataOffset += 8;
-      writeIFDEntry(ifdBuffer,charView,RESOLUTION_UNIT, (char) 3,1,3);
-      if (firstIFD_) {         
-         ijMetadataCountsTagPosition_ = filePosition_ + bufferPosition_;
-         writeIFDEntry(ifdBuffer,charView,IJ_METADATA_BYTE_COUNTS,(char)4,0,0);
-         ijMetadataTagPosition_ = filePosition_ + bufferPosition_;
-         writeIFDEntry(ifdBuffer,charView,IJ_METADATA,(char)1,0,0);
+      if (blankStrips_ == null) {
+         blankStrips_ = compressStrips(ByteBuffer.wrap(new byte[bytesPerImagePixels_]));
       }
-      writeIFDEntry(ifdBuffer,charView,MM_METADATA,(char)2,mdBytes.length,tagDataOffset);
-      tagDataOffset += mdBytes.length;
-      //NextIFDOffset
-      ifdBuffer.putInt(bufferPosition_, (int)tagDataOffset);
-      bufferPosition_ += 4;
-      
-      if (rgb_) {
-         charView.put(bufferPosition_/2,(char) (byteDepth_*8));
-         charView.put(bufferPosition_/2+1,(char) (byteDepth_*8));
-         charView.put(bufferPosition_/2+2,(char) (byteDepth_*8));
+      return wrap(blankStrips_);
+   }
+
+   private static ByteBuffer[] wrap(byte[][] arrays) {
+      ByteBuffer[] buffers = new ByteBuffer[arrays.length];
+      for (int i = 0; i < arrays.length; i++) {
+         buffers[i] = ByteBuffer.wrap(arrays[i]);
       }
-      buffers_.add(ifdBuffer);
-      if (!blankPixelsAlreadyWritten) {
-         buffers_.add(ByteBuffer.wrap(new byte[bytesPerImagePixels_]));
+      return buffers;
+   }
+
+   /**
+    * Compresses the strips of an image in parallel, and waits until all are done
+    */
+   private byte[][] compressStrips(final ByteBuffer pixels) throws IOException {
+      final int rowBytes = bytesPerImagePixels_ / imageHeight_;
+      final int samplesPerPixel = rgb_ ? 3 : 1;
+      List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>(numStrips_);
+      for (int row = 0; row < imageHeight_; row += rowsPerStrip_) {
+         final int start = row * rowBytes;
+         final int length = Math.min(rowsPerStrip_, imageHeight_ - row) * rowBytes;
+         futures.add(compressionExecutor_.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+               byte[] strip = new byte[length];
+               ByteBuffer source = pixels.duplicate();
+               source.position(start);
+               source.get(strip);
+               if (predictor_) {
+                  TiffCompression.applyPredictor(strip, rowBytes, samplesPerPixel, byteDepth_, BYTE_ORDER);
+               }
+               return TiffCompression.compress(compression_, strip);
+            }
+         }));
       }
-      buffers_.add(getResolutionValuesBuffer());   
-      buffers_.add(ByteBuffer.wrap(mdBytes));
-      
-      filePosition_ += totalBytes;
-      firstIFD_ = false;
+      byte[][] strips = new byte[futures.size()][];
+      try {
+         for (int i = 0; i < strips.length; i++) {
+            strips[i] = futures.get(i).get();
+         }
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while compressing image");
+      } catch (ExecutionException ex) {
+         throw new IOException("Couldn't compress image: " + ex.getCause());
+      }
+      return strips;
    }
 }
@@ -21,20 +21,22 @@
 //
 package org.micromanager.acquisition;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteOrder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.TreeMap;
-import loci.common.DateTools;
-import loci.common.services.ServiceFactory;
-import loci.formats.MetadataTools;
-import loci.formats.meta.IMetadata;
-import loci.formats.services.OMEXMLService;
-import ome.units.UNITS;
-import ome.units.quantity.Length;
-import ome.units.quantity.Time;
-import ome.xml.model.primitives.Color;
-import ome.xml.model.primitives.NonNegativeInteger;
-import ome.xml.model.primitives.PositiveInteger;
-import ome.xml.model.primitives.Timestamp;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -42,90 +44,206 @@ import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
 
+/**
+ * Generates the OME-XML block of an OME-TIFF data set.
+ *
+ * Only a small header per series (image) is kept in memory.  The TiffData
+ * and Plane entries of every image are appended as compact binary records
+ * to a scratch file while the acquisition runs, and toString() assembles
+ * the XML from them in a single pass.  Memory use therefore does not grow
+ * with the number of planes, apart from the final XML string itself.
+ */
 public class OMEMetadata {
 
-   private IMetadata metadata_;
+   private static final String OME_NAMESPACE =
+           "http://www.openmicroscopy.org/Schemas/OME/2015-01";
+   private static final String OME_HEADER =
+           "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+           + "<OME xmlns=\"" + OME_NAMESPACE + "\" "
+           + "xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" "
+           + "Creator=\"Micro-Manager\" "
+           + "xsi:schemaLocation=\"" + OME_NAMESPACE + " " + OME_NAMESPACE + "/ome.xsd\">";
+   private static final String MICRONS = "\u00b5m";
+   private static final String INSTRUMENT_ID = "Instrument:0";
+
+   // Record types in the plane record file
+   private static final byte RECORD_PLANE = 0;  // TiffData and Plane
+   private static final byte RECORD_TIFFDATA = 1; // TiffData only, for missing planes
+   // Flags of optional Plane values
+   private static final int HAS_EXPOSURE = 1;
+   private static final int HAS_X = 2;
+   private static final int HAS_Y = 4;
+   private static final int HAS_Z = 8;
+   private static final int HAS_DELTA_T = 16;
+   // Records of a series are buffered in memory and written in chunks of this size
+   private static final int CHUNK_SIZE = 32 * 1024;
+   private static final int MAX_RECORD_SIZE = 1 + 6 * 4 + 5 * 8;
+
    private TaggedImageStorageMultipageTiff mptStorage_;
-   private TreeMap<Integer, Indices> seriesIndices_ = new TreeMap<Integer, Indices>();
+   private TreeMap<Integer, Series> series_ = new TreeMap<Integer, Series>();
    private int numSlices_, numChannels_;
-   private TreeMap<String, Integer> tiffDataIndexMap_;
-   
-   private class Indices {
-      //specific to each series independent of file
-      int tiffDataIndex_ = -1;
-      //specific to each series indpeendent of file
-      int planeIndex_ = 0;
+   private String[] detectorAttributes_ = null;
+   // TIFF files referenced by TiffData entries; records refer to them by index
+   private List<String> fileNames_ = new ArrayList<String>();
+   private List<String> fileUUIDs_ = new ArrayList<String>();
+   private HashMap<String, Integer> fileIndices_ = new HashMap<String, Integer>();
+   private File recordFile_ = null;
+   private RandomAccessFile records_ = null;
+   private long numRecords_ = 0;
+
+   /*
+    * Everything that is known about one series (XY position), except for
+    * the plane records.
+    */
+   private class Series {
+      final int index_;
+      String name_;
+      String dimensionOrder_;
+      String pixelType_;
+      int width_, height_, sizeZ_, sizeC_, sizeT_;
+      double pixelSize_ = 0, zStep_ = 0, interval_ = 0;
+      String stageLabel_;
+      Double stageX_ = null, stageY_ = null;
+      String description_ = null;
+      String acquisitionDate_ = null;
+      List<String> channelNames_ = new ArrayList<String>();
+      List<Integer> channelColors_ = new ArrayList<Integer>();
+      int planeCount_ = 0;
+
+      // Records not yet written to the record file
+      final ByteArrayOutputStream buffer_ = new ByteArrayOutputStream(1024);
+      final DataOutputStream out_ = new DataOutputStream(buffer_);
+      // Records already written, as (offset, length) pairs in the record file
+      final List<long[]> chunks_ = new ArrayList<long[]>();
+
+      // Latest frame written for each channel and slice, with its location.
+      // This is all fillInMissingTiffDatas() needs to find substitute IFDs.
+      final int[] lastFrame_, lastIFD_, lastFile_;
+
+      Series(int index) {
+         index_ = index;
+         int n = Math.max(1, numChannels_ * numSlices_);
+         lastFrame_ = new int[n];
+         lastIFD_ = new int[n];
+         lastFile_ = new int[n];
+         Arrays.fill(lastFrame_, -1);
+      }
+
+      int slot(int channel, int slice) {
+         if (channel < 0 || channel >= numChannels_ || slice < 0 || slice >= numSlices_) {
+            return -1;
+         }
+         return channel * numSlices_ + slice;
+      }
+
+      void recordWritten() throws IOException {
+         numRecords_++;
+         if (buffer_.size() >= CHUNK_SIZE) {
+            flush();
+         }
+      }
+
+      void flush() throws IOException {
+         if (buffer_.size() == 0) {
+            return;
+         }
+         RandomAccessFile file = getRecordFile();
+         long offset = file.length();
+         file.seek(offset);
+         file.write(buffer_.toByteArray());
+         chunks_.add(new long[]{offset, buffer_.size()});
+         buffer_.reset();
+      }
    }
-   
+
    public OMEMetadata(TaggedImageStorageMultipageTiff mpt) {
       mptStorage_ = mpt;
-      tiffDataIndexMap_ = new TreeMap<String,Integer>();
-      metadata_ = MetadataTools.createOMEXMLMetadata();
    }
-   
+
    public static String getOMEStringPointerToMasterFile(String filename, String uuid)  {
-      try {
-         IMetadata md = MetadataTools.createOMEXMLMetadata();
-         md.setBinaryOnlyMetadataFile(filename);
-         md.setBinaryOnlyUUID(uuid);
-         return new ServiceFactory().getInstance(OMEXMLService.class).getOMEXML(md) + " ";
-      } catch (Exception ex) {
-         ReportingUtils.logError("Couldn't generate partial OME block");
-         return " ";
-      }
+      StringBuilder sb = new StringBuilder(OME_HEADER);
+      sb.append("<BinaryOnly MetadataFile=\"").append(escape(filename))
+              .append("\" UUID=\"").append(escape(uuid)).append("\"/></OME> ");
+      return sb.toString();
    }
 
    @Override
-   public String toString() {
+   public synchronized String toString() {
       try {
-         OMEXMLService service = new ServiceFactory().getInstance(OMEXMLService.class);
-         return service.getOMEXML(metadata_) + " ";
+         StringBuilder sb = new StringBuilder((int) Math.min(Integer.MAX_VALUE / 2,
+                 4096 + 200 * numRecords_));
+         sb.append(OME_HEADER);
+         if (!series_.isEmpty()) {
+            sb.append("<Instrument ID=\"").append(INSTRUMENT_ID).append("\">");
+            if (detectorAttributes_ != null) {
+               for (String detector : detectorAttributes_) {
+                  sb.append("<Detector ").append(detector).append("/>");
+               }
+            }
+            sb.append("</Instrument>");
+         }
+         byte[] chunk = new byte[CHUNK_SIZE + MAX_RECORD_SIZE];
+         for (Series s : series_.values()) {
+            appendSeries(sb, s, chunk);
+         }
+         sb.append("</OME> ");
+         return sb.toString();
       } catch (Exception ex) {
          ReportingUtils.logError(ex);
          return "";
       }
    }
 
-   public void setNumFrames(int seriesIndex, int numFrames) {
-      metadata_.setPixelsSizeT(new PositiveInteger(numFrames), seriesIndex);
+   /**
+    * Deletes the scratch file holding the plane records.  toString() can
+    * no longer be used after this.
+    */
+   public synchronized void close() {
+      if (records_ != null) {
+         try {
+            records_.close();
+         } catch (IOException ex) {
+            ReportingUtils.logError(ex);
+         }
+         recordFile_.delete();
+         records_ = null;
+         recordFile_ = null;
+      }
+   }
+
+   public synchronized void setNumFrames(int seriesIndex, int numFrames) {
+      Series s = series_.get(seriesIndex);
+      if (s != null) {
+         s.sizeT_ = numFrames;
+      }
    }
 
-   private void startSeriesMetadata(JSONObject firstImageTags, int seriesIndex, String baseFileName) 
+   private void startSeriesMetadata(JSONObject firstImageTags, int seriesIndex, String baseFileName)
            throws JSONException, MMScriptException {
-      Indices indices = new Indices();
-      indices.planeIndex_ = 0;
-      indices.tiffDataIndex_ = 0;
-      seriesIndices_.put(seriesIndex, indices);  
-      //Last one is samples per pixel
       JSONObject summaryMD = mptStorage_.getSummaryMetadata();
       numSlices_ = MDUtils.getNumSlices(summaryMD);
       numChannels_ = MDUtils.getNumChannels(summaryMD);
-      MetadataTools.populateMetadata(metadata_, seriesIndex, baseFileName, MultipageTiffWriter.BYTE_ORDER.equals(ByteOrder.LITTLE_ENDIAN),
-              mptStorage_.slicesFirst() ? "XYZCT" : "XYCZT", "uint" + (MDUtils.isGRAY8(summaryMD) ? "8" : "16"),
-              MDUtils.getWidth(summaryMD), MDUtils.getHeight(summaryMD),
-              numSlices_, MDUtils.getNumChannels(summaryMD), MDUtils.getNumFrames(summaryMD), 1);
+      Series s = new Series(seriesIndex);
+      series_.put(seriesIndex, s);
+      s.name_ = baseFileName;
+      s.dimensionOrder_ = mptStorage_.slicesFirst() ? "XYZCT" : "XYCZT";
+      s.pixelType_ = "uint" + (MDUtils.isGRAY8(summaryMD) ? "8" : "16");
+      s.width_ = MDUtils.getWidth(summaryMD);
+      s.height_ = MDUtils.getHeight(summaryMD);
+      s.sizeZ_ = numSlices_;
+      s.sizeC_ = numChannels_;
+      s.sizeT_ = MDUtils.getNumFrames(summaryMD);
 
       if (MDUtils.hasPixelSizeUm(summaryMD)) {
-         double pixelSize = MDUtils.getPixelSizeUm(summaryMD);
-         if (pixelSize > 0) {
-            metadata_.setPixelsPhysicalSizeX(new Length(pixelSize, UNITS.MICROM), seriesIndex);
-            metadata_.setPixelsPhysicalSizeY(new Length(pixelSize, UNITS.MICROM), seriesIndex);
-         }
+         s.pixelSize_ = MDUtils.getPixelSizeUm(summaryMD);
       }
       if (MDUtils.hasZStepUm(summaryMD)) {
-         double zStep = MDUtils.getZStepUm(summaryMD);
-         if (zStep != 0) {
-            metadata_.setPixelsPhysicalSizeZ(new Length(Math.abs(zStep), UNITS.MICROM), seriesIndex);
-         }
+         s.zStep_ = Math.abs(MDUtils.getZStepUm(summaryMD));
       }
-
       if (MDUtils.hasIntervalMs(summaryMD)) {
-         double interval = MDUtils.getIntervalMs(summaryMD);
-         if (interval > 0) { //don't write it for burst mode because it won't be true
-            metadata_.setPixelsTimeIncrement(new Time(interval, UNITS.MS), seriesIndex);
-         }
+         s.interval_ = MDUtils.getIntervalMs(summaryMD);
       }
-      
+
       String positionName;
       try {
          positionName = MDUtils.getPositionName(firstImageTags);
@@ -133,101 +251,85 @@ public class OMEMetadata {
          ReportingUtils.logError("Couldn't find position name in image metadata");
          positionName = "pos" + MDUtils.getPositionIndex(firstImageTags);
       }
-      metadata_.setStageLabelName(positionName, seriesIndex);
-
-      String instrumentID = MetadataTools.createLSID("Microscope");
-      metadata_.setInstrumentID(instrumentID, 0);
-      // link Instrument and Image
-      metadata_.setImageInstrumentRef(instrumentID, seriesIndex);
+      s.stageLabel_ = positionName;
 
       JSONObject comments = mptStorage_.getDisplayAndComments().getJSONObject("Comments");
       if (comments.has("Summary") && !comments.isNull("Summary")) {
-         metadata_.setImageDescription(comments.getString("Summary"), seriesIndex);
+         s.description_ = comments.getString("Summary");
       }
 
       JSONArray channels = mptStorage_.getDisplayAndComments().getJSONArray("Channels");
       for (int channelIndex = 0; channelIndex < channels.length(); channelIndex++) {
          JSONObject channel = channels.getJSONObject(channelIndex);
-         metadata_.setChannelColor(new Color(channel.getInt("Color")), seriesIndex, channelIndex);
-         metadata_.setChannelName(channel.getString("Name"), seriesIndex, channelIndex);
+         s.channelColors_.add(channel.getInt("Color"));
+         s.channelNames_.add(channel.getString("Name"));
       }
    }
-   
+
    /*
     * Method called when numC*numZ*numT != total number of planes
     */
-   public void fillInMissingTiffDatas(int frame, int position) {
+   public synchronized void fillInMissingTiffDatas(int frame, int position) {
+      Series s = series_.get(position);
+      if (s == null) {
+         return;
+      }
       try {
-      for (int slice = 0; slice < numSlices_; slice++) {
-         for (int channel = 0; channel < numChannels_; channel++) {
-            //make sure each tiffdata entry is present. If it is missing, link Tiffdata entry
-            //to a a preveious IFD
-            Integer tiffDataIndex =  tiffDataIndexMap_.get(MDUtils.generateLabel(channel, slice, frame, position));
-            if (tiffDataIndex == null) {
-               //this plane was never added, so link to another IFD
-               //find substitute channel, frame, slice
-               int s = slice;
-               int backIndex = slice - 1, forwardIndex = slice + 1;
-               int frameSearchIndex = frame;
+         for (int slice = 0; slice < numSlices_; slice++) {
+            for (int channel = 0; channel < numChannels_; channel++) {
+               //make sure each tiffdata entry is present. If it is missing, link Tiffdata entry
+               //to a a previous IFD
+               if (s.lastFrame_[s.slot(channel, slice)] >= frame) {
+                  continue;
+               }
                //If some but not all channels have z stacks, find the closest slice for the given
                //channel that has an image.  Also if time point missing, go back until image is found
-               while (tiffDataIndex == null) {
-                  
-                              
-                  tiffDataIndex = tiffDataIndexMap_.get(MDUtils.generateLabel(channel, s, frameSearchIndex, position));
-                  if (tiffDataIndex != null) {
-                     break;
-                  }
-
-                  if (backIndex >= 0) {
-                     tiffDataIndex = tiffDataIndexMap_.get(MDUtils.generateLabel(channel, backIndex, frameSearchIndex, position));
-                     if (tiffDataIndex != null) {                   
-                        break;
-                     }
-                     backIndex--;
-                  }
-                  if (forwardIndex < numSlices_) {
-                     tiffDataIndex = tiffDataIndexMap_.get(MDUtils.generateLabel(channel, forwardIndex, frameSearchIndex, position));
-                     if (tiffDataIndex != null) {                  
-                        break;
-                     }
-                     forwardIndex++;
-                  }
-
-                  if (backIndex < 0 && forwardIndex >= numSlices_) {
-                     frameSearchIndex--;
-                     backIndex = slice - 1;
-                     forwardIndex = slice + 1;
-                     if (frameSearchIndex < 0) {
-                        break;
-                     }
-                  }
+               int substitute = findSubstitute(s, channel, slice, frame);
+               if (substitute < 0) {
+                  continue;
                }
-               NonNegativeInteger ifd = metadata_.getTiffDataIFD(position, tiffDataIndex);
-               String filename = metadata_.getUUIDFileName(position, tiffDataIndex);
-               String uuid = metadata_.getUUIDValue(position, tiffDataIndex);
-               Indices indices = seriesIndices_.get(position);
-
-               metadata_.setTiffDataFirstZ(new NonNegativeInteger(slice), position, indices.tiffDataIndex_);
-               metadata_.setTiffDataFirstC(new NonNegativeInteger(channel), position, indices.tiffDataIndex_);
-               metadata_.setTiffDataFirstT(new NonNegativeInteger(frame), position, indices.tiffDataIndex_);
-
-               metadata_.setTiffDataIFD(ifd, position, indices.tiffDataIndex_);
-               metadata_.setUUIDFileName(filename, position, indices.tiffDataIndex_);
-               metadata_.setUUIDValue(uuid, position, indices.tiffDataIndex_);
-               metadata_.setTiffDataPlaneCount(new NonNegativeInteger(1), position, indices.tiffDataIndex_);
-
-               indices.tiffDataIndex_++;
+               s.out_.writeByte(RECORD_TIFFDATA);
+               s.out_.writeInt(channel);
+               s.out_.writeInt(slice);
+               s.out_.writeInt(frame);
+               s.out_.writeInt(s.lastIFD_[substitute]);
+               s.out_.writeInt(s.lastFile_[substitute]);
+               s.recordWritten();
             }
          }
-      }
       } catch (Exception e) {
          ReportingUtils.logError("Couldn't fill in missing tiffdata entries in ome metadata");
       }
    }
 
-   public void addImageTagsToOME(JSONObject tags, int ifdCount, String baseFileName, String currentFileName,
-           String uuid)
+   /*
+    * Returns the slot of the image of the given channel that is closest
+    * to the given slice in the latest frame not after the given frame, or
+    * -1 if there is none.  Of two slices at the same distance, the lower
+    * one wins.
+    */
+   private int findSubstitute(Series s, int channel, int slice, int frame) {
+      int best = -1;
+      int bestFrame = -1;
+      for (int distance = 0; distance < numSlices_; distance++) {
+         int[] candidates = {slice - distance, slice + distance};
+         for (int candidate : candidates) {
+            int slot = s.slot(channel, candidate);
+            if (slot < 0) {
+               continue;
+            }
+            int f = s.lastFrame_[slot];
+            if (f <= frame && f > bestFrame) {
+               best = slot;
+               bestFrame = f;
+            }
+         }
+      }
+      return best;
+   }
+
+   public synchronized void addImageTagsToOME(JSONObject tags, int ifdCount, String baseFileName,
+           String currentFileName, String uuid)
            throws JSONException, MMScriptException {
       int position;
       try {
@@ -235,100 +337,301 @@ public class OMEMetadata {
       } catch (Exception e) {
          position = 0;
       }
-      if (!seriesIndices_.containsKey(position)) {
+      if (!series_.containsKey(position)) {
          startSeriesMetadata(tags, position, baseFileName);
          try {
             //Add these tags in only once, but need to get them from image rather than summary metadata
             setOMEDetectorMetadata(tags);
             if (MDUtils.hasImageTime(tags)) {
-               // Alas, the metadata "Time" field is in one of two formats.
-               String imageDate = MDUtils.getImageTime(tags);
-               String reformattedDate = DateTools.formatDate(imageDate,
-                       "yyyy-MM-dd HH:mm:ss Z", true);
-               if (reformattedDate == null) {
-                  reformattedDate = DateTools.formatDate(imageDate,
-                          "yyyy-MM-dd E HH:mm:ss Z", true);
-               }
-               if (reformattedDate != null) {
-                  metadata_.setImageAcquisitionDate(
-                          new Timestamp(reformattedDate), position);
-               }
+               series_.get(position).acquisitionDate_ = formatDate(MDUtils.getImageTime(tags));
             }
          } catch (Exception e) {
             ReportingUtils.logError(e, "Problem adding System state cache metadata to OME Metadata: " + e);
          }
       }
 
-      Indices indices = seriesIndices_.get(position);
+      Series s = series_.get(position);
 
-      //Required tags: Channel, slice, and frame index
+      int slice, frame, channel;
       try {
-         int slice = MDUtils.getSliceIndex(tags);
-         int frame = MDUtils.getFrameIndex(tags);
-         int channel = MDUtils.getChannelIndex(tags);
-             
-         // ifdCount is 0 when a new file started, tiff data plane count is 0 at a new position
-         metadata_.setTiffDataFirstZ(new NonNegativeInteger(slice), position, indices.tiffDataIndex_);         
-         metadata_.setTiffDataFirstC(new NonNegativeInteger(channel), position, indices.tiffDataIndex_);
-         metadata_.setTiffDataFirstT(new NonNegativeInteger(frame), position, indices.tiffDataIndex_);
-         metadata_.setTiffDataIFD(new NonNegativeInteger(ifdCount), position, indices.tiffDataIndex_);
-         metadata_.setUUIDFileName(currentFileName, position, indices.tiffDataIndex_);
-         metadata_.setUUIDValue(uuid, position, indices.tiffDataIndex_);
-         tiffDataIndexMap_.put(MDUtils.generateLabel(channel, slice, frame, position), indices.tiffDataIndex_);
-         metadata_.setTiffDataPlaneCount(new NonNegativeInteger(1), position, indices.tiffDataIndex_);
-
-         metadata_.setPlaneTheZ(new NonNegativeInteger(slice), position, indices.planeIndex_);
-         metadata_.setPlaneTheC(new NonNegativeInteger(channel), position, indices.planeIndex_);
-         metadata_.setPlaneTheT(new NonNegativeInteger(frame), position, indices.planeIndex_);
+         //Required tags: Channel, slice, and frame index
+         slice = MDUtils.getSliceIndex(tags);
+         frame = MDUtils.getFrameIndex(tags);
+         channel = MDUtils.getChannelIndex(tags);
       } catch (JSONException ex) {
          ReportingUtils.showError("Image Metadata missing ChannelIndex, SliceIndex, or FrameIndex");
-      } catch (Exception e) {
-         ReportingUtils.logError("Couldn't add to OME metadata");
+         return;
       }
 
       //Optional tags
+      int flags = 0;
+      double exposure = 0, x = 0, y = 0, z = 0, deltaT = 0;
       try {
-
          if (MDUtils.hasExposureMs(tags)) {
-            metadata_.setPlaneExposureTime(
-                  new Time(MDUtils.getExposureMs(tags), UNITS.MS),
-                  position, indices.planeIndex_);
+            exposure = MDUtils.getExposureMs(tags);
+            flags |= HAS_EXPOSURE;
          }
          if (MDUtils.hasXPositionUm(tags)) {
-            final Length xPosition =
-                  new Length(MDUtils.getXPositionUm(tags), UNITS.MICROM);
-            metadata_.setPlanePositionX(xPosition, position,
-                  indices.planeIndex_);
-            if (indices.planeIndex_ == 0) { //should be set at start, but dont have position coordinates then
-               metadata_.setStageLabelX(xPosition, position);
+            x = MDUtils.getXPositionUm(tags);
+            flags |= HAS_X;
+            if (s.planeCount_ == 0) { //should be set at start, but dont have position coordinates then
+               s.stageX_ = x;
             }
          }
          if (MDUtils.hasYPositionUm(tags)) {
-            final Length yPosition =
-                  new Length(MDUtils.getYPositionUm(tags), UNITS.MICROM);
-            metadata_.setPlanePositionY(yPosition, position,
-                  indices.planeIndex_);
-            if (indices.planeIndex_ == 0) {
-               metadata_.setStageLabelY(yPosition, position);
+            y = MDUtils.getYPositionUm(tags);
+            flags |= HAS_Y;
+            if (s.planeCount_ == 0) {
+               s.stageY_ = y;
             }
          }
          if (MDUtils.hasZPositionUm(tags)) {
-            metadata_.setPlanePositionZ(
-                  new Length(MDUtils.getZPositionUm(tags), UNITS.MICROM),
-                  position, indices.planeIndex_);
+            z = MDUtils.getZPositionUm(tags);
+            flags |= HAS_Z;
          }
          if (MDUtils.hasElapsedTimeMs(tags)) {
-            metadata_.setPlaneDeltaT(
-                  new Time(MDUtils.getElapsedTimeMs(tags), UNITS.MS),
-                  position, indices.planeIndex_);
+            deltaT = MDUtils.getElapsedTimeMs(tags);
+            flags |= HAS_DELTA_T;
          }
-
       } catch (JSONException e) {
          ReportingUtils.logError("Problem adding tags to OME Metadata");
       }
 
-      indices.planeIndex_++;
-      indices.tiffDataIndex_++;
+      try {
+         int fileIndex = getFileIndex(currentFileName, uuid);
+         s.out_.writeByte(RECORD_PLANE);
+         s.out_.writeInt(channel);
+         s.out_.writeInt(slice);
+         s.out_.writeInt(frame);
+         s.out_.writeInt(ifdCount);
+         s.out_.writeInt(fileIndex);
+         s.out_.writeInt(flags);
+         if ((flags & HAS_EXPOSURE) != 0) {
+            s.out_.writeDouble(exposure);
+         }
+         if ((flags & HAS_X) != 0) {
+            s.out_.writeDouble(x);
+         }
+         if ((flags & HAS_Y) != 0) {
+            s.out_.writeDouble(y);
+         }
+         if ((flags & HAS_Z) != 0) {
+            s.out_.writeDouble(z);
+         }
+         if ((flags & HAS_DELTA_T) != 0) {
+            s.out_.writeDouble(deltaT);
+         }
+         s.planeCount_++;
+         s.recordWritten();
+
+         int slot = s.slot(channel, slice);
+         if (slot >= 0 && frame >= s.lastFrame_[slot]) {
+            s.lastFrame_[slot] = frame;
+            s.lastIFD_[slot] = ifdCount;
+            s.lastFile_[slot] = fileIndex;
+         }
+      } catch (IOException e) {
+         ReportingUtils.logError(e, "Couldn't add to OME metadata");
+      }
+   }
+
+   private int getFileIndex(String fileName, String uuid) {
+      Integer index = fileIndices_.get(uuid);
+      if (index == null) {
+         index = fileNames_.size();
+         fileNames_.add(fileName);
+         fileUUIDs_.add(uuid);
+         fileIndices_.put(uuid, index);
+      }
+      return index;
+   }
+
+   private RandomAccessFile getRecordFile() throws IOException {
+      if (records_ == null) {
+         recordFile_ = File.createTempFile("OMEPlanes", ".bin");
+         recordFile_.deleteOnExit();
+         records_ = new RandomAccessFile(recordFile_, "rw");
+      }
+      return records_;
+   }
+
+   /*
+    * Writes the Image element of one series.  The records are read twice,
+    * because the schema wants all TiffData entries before the Planes.
+    */
+   private void appendSeries(StringBuilder sb, Series s, byte[] chunk) throws IOException {
+      sb.append("<Image ID=\"Image:").append(s.index_).append("\" Name=\"")
+              .append(escape(s.name_)).append("\">");
+      if (s.acquisitionDate_ != null) {
+         sb.append("<AcquisitionDate>").append(s.acquisitionDate_).append("</AcquisitionDate>");
+      }
+      if (s.description_ != null) {
+         sb.append("<Description>").append(escape(s.description_)).append("</Description>");
+      }
+      sb.append("<InstrumentRef ID=\"").append(INSTRUMENT_ID).append("\"/>");
+      sb.append("<StageLabel Name=\"").append(escape(s.stageLabel_)).append("\"");
+      if (s.stageX_ != null) {
+         appendLength(sb, "X", s.stageX_);
+      }
+      if (s.stageY_ != null) {
+         appendLength(sb, "Y", s.stageY_);
+      }
+      sb.append("/>");
+
+      sb.append("<Pixels BigEndian=\"")
+              .append(!MultipageTiffWriter.BYTE_ORDER.equals(ByteOrder.LITTLE_ENDIAN))
+              .append("\" DimensionOrder=\"").append(s.dimensionOrder_)
+              .append("\" ID=\"Pixels:").append(s.index_).append("\"");
+      if (s.pixelSize_ > 0) {
+         appendLength(sb, "PhysicalSizeX", s.pixelSize_);
+         appendLength(sb, "PhysicalSizeY", s.pixelSize_);
+      }
+      if (s.zStep_ != 0) {
+         appendLength(sb, "PhysicalSizeZ", s.zStep_);
+      }
+      sb.append(" SizeC=\"").append(s.sizeC_).append("\" SizeT=\"").append(s.sizeT_)
+              .append("\" SizeX=\"").append(s.width_).append("\" SizeY=\"").append(s.height_)
+              .append("\" SizeZ=\"").append(s.sizeZ_).append("\"");
+      if (s.interval_ > 0) { //don't write it for burst mode because it won't be true
+         appendTime(sb, "TimeIncrement", s.interval_);
+      }
+      sb.append(" Type=\"").append(s.pixelType_).append("\">");
+
+      int numChannels = Math.max(s.sizeC_, s.channelNames_.size());
+      for (int c = 0; c < numChannels; c++) {
+         sb.append("<Channel");
+         if (c < s.channelColors_.size()) {
+            sb.append(" Color=\"").append(s.channelColors_.get(c)).append("\"");
+         }
+         sb.append(" ID=\"Channel:").append(s.index_).append(':').append(c).append("\"");
+         if (c < s.channelNames_.size()) {
+            sb.append(" Name=\"").append(escape(s.channelNames_.get(c))).append("\"");
+         }
+         sb.append(" SamplesPerPixel=\"1\"><LightPath/></Channel>");
+      }
+
+      s.flush();
+      for (int pass = 0; pass < 2; pass++) {
+         for (long[] c : s.chunks_) {
+            records_.seek(c[0]);
+            records_.readFully(chunk, 0, (int) c[1]);
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(chunk, 0, (int) c[1]));
+            while (in.available() > 0) {
+               appendRecord(sb, in, pass == 0);
+            }
+         }
+      }
+      sb.append("</Pixels></Image>");
+   }
+
+   /*
+    * Reads one record and, depending on the pass, appends it as TiffData
+    * or Plane element.
+    */
+   private void appendRecord(StringBuilder sb, DataInputStream in, boolean tiffData)
+           throws IOException {
+      byte type = in.readByte();
+      int channel = in.readInt();
+      int slice = in.readInt();
+      int frame = in.readInt();
+      int ifd = in.readInt();
+      int file = in.readInt();
+      if (tiffData) {
+         sb.append("<TiffData FirstC=\"").append(channel).append("\" FirstT=\"").append(frame)
+                 .append("\" FirstZ=\"").append(slice).append("\" IFD=\"").append(ifd)
+                 .append("\" PlaneCount=\"1\"><UUID FileName=\"")
+                 .append(escape(fileNames_.get(file))).append("\">")
+                 .append(escape(fileUUIDs_.get(file))).append("</UUID></TiffData>");
+      }
+      if (type != RECORD_PLANE) {
+         return;
+      }
+      int flags = in.readInt();
+      double exposure = (flags & HAS_EXPOSURE) != 0 ? in.readDouble() : 0;
+      double x = (flags & HAS_X) != 0 ? in.readDouble() : 0;
+      double y = (flags & HAS_Y) != 0 ? in.readDouble() : 0;
+      double z = (flags & HAS_Z) != 0 ? in.readDouble() : 0;
+      double deltaT = (flags & HAS_DELTA_T) != 0 ? in.readDouble() : 0;
+      if (tiffData) {
+         return;
+      }
+      sb.append("<Plane");
+      if ((flags & HAS_DELTA_T) != 0) {
+         appendTime(sb, "DeltaT", deltaT);
+      }
+      if ((flags & HAS_EXPOSURE) != 0) {
+         appendTime(sb, "ExposureTime", exposure);
+      }
+      if ((flags & HAS_X) != 0) {
+         appendLength(sb, "PositionX", x);
+      }
+      if ((flags & HAS_Y) != 0) {
+         appendLength(sb, "PositionY", y);
+      }
+      if ((flags & HAS_Z) != 0) {
+         appendLength(sb, "PositionZ", z);
+      }
+      sb.append(" TheC=\"").append(channel).append("\" TheT=\"").append(frame)
+              .append("\" TheZ=\"").append(slice).append("\"/>");
+   }
+
+   private static void appendLength(StringBuilder sb, String name, double um) {
+      sb.append(' ').append(name).append("=\"").append(um).append("\" ")
+              .append(name).append("Unit=\"").append(MICRONS).append('"');
+   }
+
+   private static void appendTime(StringBuilder sb, String name, double ms) {
+      sb.append(' ').append(name).append("=\"").append(ms).append("\" ")
+              .append(name).append("Unit=\"ms\"");
+   }
+
+   private static String escape(String s) {
+      if (s == null) {
+         return "";
+      }
+      StringBuilder sb = null;
+      for (int i = 0; i < s.length(); i++) {
+         char c = s.charAt(i);
+         String replacement;
+         switch (c) {
+            case '&': replacement = "&amp;"; break;
+            case '<': replacement = "&lt;"; break;
+            case '>': replacement = "&gt;"; break;
+            case '"': replacement = "&quot;"; break;
+            case '\'': replacement = "&apos;"; break;
+            default: replacement = null;
+         }
+         if (replacement != null && sb == null) {
+            sb = new StringBuilder(s.length() + 16);
+            sb.append(s, 0, i);
+         }
+         if (sb != null) {
+            if (replacement != null) {
+               sb.append(replacement);
+            } else {
+               sb.append(c);
+            }
+         }
+      }
+      return sb == null ? s : sb.toString();
+   }
+
+   /*
+    * Converts the image "Time" tag, which comes in one of two formats,
+    * to the ISO 8601 form OME wants.  Returns null if neither format fits.
+    */
+   private static String formatDate(String imageDate) {
+      String[] formats = {"yyyy-MM-dd HH:mm:ss Z", "yyyy-MM-dd E HH:mm:ss Z"};
+      for (String format : formats) {
+         try {
+            Date date = new SimpleDateFormat(format).parse(imageDate);
+            return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(date);
+         } catch (ParseException ex) {
+            // try the next format
+         }
+      }
+      return null;
    }
 
    private void setOMEDetectorMetadata(JSONObject tags) throws JSONException {
@@ -353,25 +656,25 @@ public class OMEMetadata {
          cameras[0] = coreCam;
       }
 
+      String[] detectors = new String[cameras.length];
       for (int detectorIndex = 0; detectorIndex < cameras.length; detectorIndex++) {
          String camera = cameras[detectorIndex];
-         String detectorID = MetadataTools.createLSID(camera);
-         //Instrument index, detector index
-         metadata_.setDetectorID(detectorID, 0, detectorIndex);
+         StringBuilder sb = new StringBuilder();
+         sb.append("ID=\"Detector:0:").append(detectorIndex).append("\"");
          if (tags.has(camera + "-Name") && !tags.isNull(camera + "-Name")) {
-            metadata_.setDetectorManufacturer(tags.getString(camera + "-Name"), 0, detectorIndex);
+            sb.append(" Manufacturer=\"").append(escape(tags.getString(camera + "-Name"))).append("\"");
          }
          if (tags.has(camera + "-CameraName") && !tags.isNull(camera + "-CameraName")) {
-            metadata_.setDetectorModel(tags.getString(camera + "-CameraName"), 0, detectorIndex);
+            sb.append(" Model=\"").append(escape(tags.getString(camera + "-CameraName"))).append("\"");
          }
          if (tags.has(camera + "-Offset") && !tags.isNull(camera + "-Offset")) {
-            metadata_.setDetectorOffset(Double.parseDouble(tags.getString(camera + "-Offset")), 0, detectorIndex);
+            sb.append(" Offset=\"").append(Double.parseDouble(tags.getString(camera + "-Offset"))).append("\"");
          }
          if (tags.has(camera + "-CameraID") && !tags.isNull(camera + "-CameraID")) {
-            metadata_.setDetectorSerialNumber(tags.getString(camera + "-CameraID"), 0, detectorIndex);
+            sb.append(" SerialNumber=\"").append(escape(tags.getString(camera + "-CameraID"))).append("\"");
          }
-
+         detectors[detectorIndex] = sb.toString();
       }
+      detectorAttributes_ = detectors;
    }
 }
-
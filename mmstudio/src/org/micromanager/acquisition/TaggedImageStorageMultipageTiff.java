@@ -33,7 +33,10 @@ import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import mmcorej.TaggedImage;
@@ -73,6 +76,8 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
    private final boolean fastStorageMode_;
    private int lastAcquiredPosition_ = 0;
    private ThreadPoolExecutor writingExecutor_;
+   private final int compression_;
+   private ExecutorService compressionExecutor_;
 
    // Images currently being written (need to keep around so that they can be
    // returned upon request via getImage()). The data structure must be
@@ -90,7 +95,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
    public TaggedImageStorageMultipageTiff(String dir, Boolean newDataSet, JSONObject summaryMetadata) throws IOException {            
       this(dir, newDataSet, summaryMetadata, MMStudio.getInstance().getMetadataFileWithMultipageTiff(),
               MMStudio.getInstance().getSeparateFilesForPositionsMPTiff(),
-              true);
+              true, MMStudio.getInstance().getMultipageTiffCompression());
    }
    
    /*
@@ -98,7 +103,18 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
     */
    public TaggedImageStorageMultipageTiff(String dir, boolean newDataSet, JSONObject summaryMetadata, 
          boolean separateMDFile, boolean separateFilesForPositions, boolean fastStorageMode) throws IOException {
+      this(dir, newDataSet, summaryMetadata, separateMDFile, separateFilesForPositions,
+              fastStorageMode, TiffCompression.NONE);
+   }
+
+   /*
+    * As above, with one of the TiffCompression settings for the pixels of new data sets
+    */
+   public TaggedImageStorageMultipageTiff(String dir, boolean newDataSet, JSONObject summaryMetadata, 
+         boolean separateMDFile, boolean separateFilesForPositions, boolean fastStorageMode,
+         int compression) throws IOException {
       fastStorageMode_ = fastStorageMode;
+      compression_ = compression;
       omeTiff_ = true;
       separateMetadataFile_ = separateMDFile;
       splitByXYPosition_ = separateFilesForPositions;
@@ -135,6 +151,18 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       return writingExecutor_;
    }
    
+   public int getCompression() {
+      return compression_;
+   }
+   
+   /**
+    * Thread pool on which the writers compress image strips, null if images
+    * are not compressed
+    */
+   public ExecutorService getCompressionExecutor() {
+      return compressionExecutor_;
+   }
+   
    boolean slicesFirst() {
       return ((ImageLabelComparator) tiffReadersByLabel_.comparator()).getSlicesFirst();
    }
@@ -232,6 +260,10 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
    public void putImage(TaggedImage taggedImage) throws MMException, IOException {
       final String label = MDUtils.getLabel(taggedImage.tags);
       startWritingTask(label, taggedImage);
+      if (writingExecutor_ == null) {
+         // Not in fast storage mode: the image has already been written
+         return;
+      }
 
       // Now, we must hold on to taggedImage, so that we can return it if
       // somebody calls getImage() before the writing is finished.
@@ -271,6 +303,17 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          writingExecutor_ = new ThreadPoolExecutor(1, 1, 0, TimeUnit.NANOSECONDS,
                  new LinkedBlockingQueue<java.lang.Runnable>());
       }
+      if (compression_ != TiffCompression.NONE && compressionExecutor_ == null) {
+         compressionExecutor_ = Executors.newFixedThreadPool(
+                 Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "Image stack file compression");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }
       int fileSetIndex = 0;
       if (splitByXYPosition_) {
          try {
@@ -361,6 +404,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
 
          //figure out where the full string of OME metadata can be stored 
          String fullOMEXMLMetadata = omeMetadata_.toString();
+         omeMetadata_.close();
          int length = fullOMEXMLMetadata.length();
          String uuid = null, filename = null;
          FileSet master = null;
@@ -413,6 +457,10 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
                Thread.interrupted();
             }
          }
+         //all images have been compressed by now
+         if (compressionExecutor_ != null) {
+            compressionExecutor_.shutdown();
+         }
       } catch (IOException ex) {
          ReportingUtils.logError(ex);
       }
@@ -2,7 +2,6 @@
 package org.micromanager.acquisition;
 
 import java.nio.Buffer;
-import java.nio.ByteBuffer;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
@@ -11,6 +10,7 @@ import mmcorej.TaggedImage;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.api.TaggedImageStorage;
+import org.micromanager.utils.CompactImageMetadata;
 import org.micromanager.utils.DirectBuffers;
 import org.micromanager.utils.ImageLabelComparator;
 import org.micromanager.utils.MDUtils;
@@ -27,9 +27,11 @@ import org.micromanager.utils.ReportingUtils;
 public class TaggedImageStorageRamFast implements TaggedImageStorage {
 
    
+   // Pixels are kept in a direct buffer. The tags are kept as they came in,
+   // with their coordinates in typed fields; nothing is serialized.
    private class DirectTaggedImage {
        Buffer pixelBuffer;
-       ByteBuffer tagsBuffer;
+       CompactImageMetadata tags;
    }
    
    private class LRUCache<T,U> extends LinkedHashMap<T,U> {
@@ -62,30 +64,19 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
       lruCache_ = new LRUCache<String, TaggedImage>(10);
    }
 
-   private ByteBuffer bufferFromJSON(JSONObject json) {
-      return DirectBuffers.bufferFromString(json.toString());
-   }
-   
-   private JSONObject JSONFromBuffer(ByteBuffer byteBuffer) throws JSONException {
-      return new JSONObject(DirectBuffers.stringFromBuffer(byteBuffer));
-   }
-   
-   private DirectTaggedImage taggedImageToDirectTaggedImage(TaggedImage taggedImage) throws JSONException, MMScriptException{
+   private DirectTaggedImage taggedImageToDirectTaggedImage(TaggedImage taggedImage,
+         CompactImageMetadata tags) throws JSONException, MMScriptException {
       DirectTaggedImage direct = new DirectTaggedImage();
-      direct.tagsBuffer = bufferFromJSON(taggedImage.tags);
+      direct.tags = tags;
       direct.pixelBuffer = DirectBuffers.bufferFromArray(taggedImage.pix);
       return direct;
    }
    
    private TaggedImage directTaggedImageToTaggedImage(DirectTaggedImage directImage) {
         if (directImage != null) {
-            try {
-                return new TaggedImage(DirectBuffers.arrayFromBuffer(directImage.pixelBuffer),
-                                       JSONFromBuffer(directImage.tagsBuffer));
-            } catch (JSONException ex) {
-               ReportingUtils.logError(ex);
-               return null;
-            }
+            // Each read from the store gets its own copy of the tags
+            return new TaggedImage(DirectBuffers.arrayFromBuffer(directImage.pixelBuffer),
+                                   MDUtils.copy(directImage.tags.getTags()));
         } else {
            return null;
         } 
@@ -93,16 +84,21 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
    
    @Override
    public void putImage(final TaggedImage taggedImage) throws MMException {
-      String label = MDUtils.getLabel(taggedImage.tags);
+      CompactImageMetadata tags = CompactImageMetadata.fromTags(taggedImage.tags);
+      if (!tags.hasIndices()) {
+         ReportingUtils.logError("Image not stored: its tags lack the channel, slice, frame or position index");
+         return;
+      }
+      String label = tags.getLabel();
       try {
          // Allocate the direct tagged image before altering any data, in case
          // OutOfMemoryError is thrown.
          DirectTaggedImage directImage =
-               taggedImageToDirectTaggedImage(taggedImage);
+               taggedImageToDirectTaggedImage(taggedImage, tags);
 
          lruCache_.put(label, taggedImage);
          imageMap_.put(label, directImage);
-         lastFrame_ = Math.max(lastFrame_, MDUtils.getFrameIndex(taggedImage.tags));
+         lastFrame_ = Math.max(lastFrame_, tags.getFrameIndex());
       } catch (Exception ex) {
          ReportingUtils.logError(ex);
       }
@@ -0,0 +1,385 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          TiffCompression.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Lossless compression of the pixel strips of Image Stack Files, using the
+ * TIFF LZW or Deflate schemes. LZW can be preceded by horizontal
+ * differencing (TIFF Predictor 2), which stores each sample as the
+ * difference with its left neighbour and makes smooth images compress
+ * considerably better. Deflate is not offered with the predictor because
+ * ImageJ 1.48 cannot read that combination, but it is decompressed.
+ */
+public final class TiffCompression {
+   // Compression settings, as chosen in the Options dialog
+   public static final int NONE = 0;
+   public static final int LZW = 1;
+   public static final int DEFLATE = 2;
+   public static final int LZW_PREDICTOR = 3;
+   public static final String[] NAMES = {"None", "LZW", "Deflate",
+      "LZW with predictor"};
+
+   // Values of the TIFF Compression and Predictor tags
+   static final char TIFF_NONE = 1;
+   static final char TIFF_LZW = 5;
+   static final char TIFF_DEFLATE = 8;
+   static final char TIFF_DEFLATE_OLD = 32946;
+   static final char PREDICTOR_NONE = 1;
+   static final char PREDICTOR_HORIZONTAL = 2;
+
+   private static final int LZW_CLEAR = 256;
+   private static final int LZW_EOI = 257;
+   private static final int LZW_FIRST_CODE = 258;
+   // The table is cleared before codes that need more than 12 bits
+   private static final int LZW_TABLE_FULL = 4094;
+   private static final int LZW_HASH_BITS = 14;
+
+   private TiffCompression() {
+   }
+
+   /**
+    * Checks a setting read from the preferences
+    */
+   public static boolean isValid(int setting) {
+      return setting >= NONE && setting <= LZW_PREDICTOR;
+   }
+
+   /**
+    * @return value of the TIFF Compression tag for the given setting
+    */
+   static char getTiffCompression(int setting) {
+      switch (setting) {
+         case LZW:
+         case LZW_PREDICTOR:
+            return TIFF_LZW;
+         case DEFLATE:
+            return TIFF_DEFLATE;
+         default:
+            return TIFF_NONE;
+      }
+   }
+
+   static boolean usesPredictor(int setting) {
+      return setting == LZW_PREDICTOR;
+   }
+
+   /**
+    * Upper bound of the compressed size of a strip of the given length
+    */
+   static int maxCompressedLength(int length) {
+      // LZW at worst emits a 12 bit code per byte
+      return length + length / 2 + 64;
+   }
+
+   /**
+    * Compresses one strip
+    * @param compression - value of the TIFF Compression tag
+    * @param data - uncompressed strip
+    * @return compressed strip
+    */
+   static byte[] compress(char compression, byte[] data) throws IOException {
+      if (compression == TIFF_LZW) {
+         return lzwCompress(data);
+      } else if (compression == TIFF_DEFLATE) {
+         return deflate(data);
+      } else if (compression == TIFF_NONE) {
+         return data;
+      }
+      throw new IOException("Unsupported TIFF compression: " + (int) compression);
+   }
+
+   /**
+    * Decompresses one strip
+    * @param compression - value of the TIFF Compression tag
+    * @param data - compressed strip
+    * @param length - length of the uncompressed strip
+    * @return uncompressed strip
+    */
+   static byte[] decompress(char compression, byte[] data, int length) throws IOException {
+      if (compression == TIFF_LZW) {
+         return lzwDecompress(data, length);
+      } else if (compression == TIFF_DEFLATE || compression == TIFF_DEFLATE_OLD) {
+         return inflate(data, length);
+      } else if (compression == TIFF_NONE) {
+         return data;
+      }
+      throw new IOException("Unsupported TIFF compression: " + (int) compression);
+   }
+
+   /**
+    * Replaces each sample by the difference with the sample of the same
+    * component to its left (TIFF Predictor 2)
+    * @param data - whole rows of pixels
+    * @param rowBytes - bytes per row
+    * @param samplesPerPixel - 1 for grayscale, 3 for RGB
+    * @param bytesPerSample - 1 or 2
+    * @param order - byte order of 16 bit samples
+    */
+   static void applyPredictor(byte[] data, int rowBytes, int samplesPerPixel,
+           int bytesPerSample, ByteOrder order) {
+      if (bytesPerSample == 1) {
+         for (int row = 0; row < data.length; row += rowBytes) {
+            for (int i = row + rowBytes - 1; i >= row + samplesPerPixel; i--) {
+               data[i] -= data[i - samplesPerPixel];
+            }
+         }
+      } else {
+         ByteBuffer buffer = ByteBuffer.wrap(data).order(order);
+         int stride = 2 * samplesPerPixel;
+         for (int row = 0; row < data.length; row += rowBytes) {
+            for (int i = row + rowBytes - 2; i >= row + stride; i -= 2) {
+               buffer.putShort(i, (short) (buffer.getShort(i) - buffer.getShort(i - stride)));
+            }
+         }
+      }
+   }
+
+   /**
+    * Reverses applyPredictor
+    */
+   static void undoPredictor(byte[] data, int rowBytes, int samplesPerPixel,
+           int bytesPerSample, ByteOrder order) {
+      if (bytesPerSample == 1) {
+         for (int row = 0; row < data.length; row += rowBytes) {
+            for (int i = row + samplesPerPixel; i < row + rowBytes; i++) {
+               data[i] += data[i - samplesPerPixel];
+            }
+         }
+      } else {
+         ByteBuffer buffer = ByteBuffer.wrap(data).order(order);
+         int stride = 2 * samplesPerPixel;
+         for (int row = 0; row < data.length; row += rowBytes) {
+            for (int i = row + stride; i < row + rowBytes; i += 2) {
+               buffer.putShort(i, (short) (buffer.getShort(i) + buffer.getShort(i - stride)));
+            }
+         }
+      }
+   }
+
+   private static byte[] deflate(byte[] data) {
+      // Favor speed: the compression ratio of noisy camera images hardly
+      // improves at higher levels
+      Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+      try {
+         deflater.setInput(data);
+         deflater.finish();
+         byte[] out = new byte[maxCompressedLength(data.length)];
+         int length = 0;
+         while (!deflater.finished()) {
+            if (length == out.length) {
+               out = Arrays.copyOf(out, 2 * out.length);
+            }
+            length += deflater.deflate(out, length, out.length - length);
+         }
+         return Arrays.copyOf(out, length);
+      } finally {
+         deflater.end();
+      }
+   }
+
+   private static byte[] inflate(byte[] data, int length) throws IOException {
+      Inflater inflater = new Inflater();
+      try {
+         inflater.setInput(data);
+         byte[] out = new byte[length];
+         int position = 0;
+         while (position < length && !inflater.finished()) {
+            int n = inflater.inflate(out, position, length - position);
+            if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+               throw new IOException("Deflate compressed strip is truncated");
+            }
+            position += n;
+         }
+         return out;
+      } catch (DataFormatException ex) {
+         throw new IOException("Corrupt Deflate compressed strip: " + ex.getMessage());
+      } finally {
+         inflater.end();
+      }
+   }
+
+   private static byte[] lzwCompress(byte[] data) {
+      BitOutput out = new BitOutput(data.length / 2 + 16);
+      // hash table of the string table: key is (prefix code << 8 | byte)
+      int hashSize = 1 << LZW_HASH_BITS;
+      int[] keys = new int[hashSize];
+      int[] codes = new int[hashSize];
+      Arrays.fill(keys, -1);
+      int width = 9;
+      int nextCode = LZW_FIRST_CODE;
+      out.write(LZW_CLEAR, width);
+      if (data.length == 0) {
+         out.write(LZW_EOI, width);
+         return out.toByteArray();
+      }
+      int prefix = data[0] & 0xff;
+      for (int i = 1; i < data.length; i++) {
+         int c = data[i] & 0xff;
+         int key = (prefix << 8) | c;
+         int h = (key * 0x9E3779B1) >>> (32 - LZW_HASH_BITS);
+         while (keys[h] != -1 && keys[h] != key) {
+            h = (h + 1) & (hashSize - 1);
+         }
+         if (keys[h] == key) {
+            prefix = codes[h];
+            continue;
+         }
+         out.write(prefix, width);
+         keys[h] = key;
+         codes[h] = nextCode++;
+         if (nextCode == LZW_TABLE_FULL) {
+            out.write(LZW_CLEAR, width);
+            Arrays.fill(keys, -1);
+            nextCode = LZW_FIRST_CODE;
+            width = 9;
+         } else if (nextCode == (1 << width)) {
+            width++;
+         }
+         prefix = c;
+      }
+      out.write(prefix, width);
+      // The reader adds a table entry for this last code as well, which can
+      // make it widen the code that follows
+      if (nextCode + 1 == (1 << width)) {
+         width++;
+      }
+      out.write(LZW_EOI, width);
+      return out.toByteArray();
+   }
+
+   private static byte[] lzwDecompress(byte[] data, int length) throws IOException {
+      byte[] out = new byte[length];
+      int[] prefix = new int[4096];
+      byte[] suffix = new byte[4096];
+      byte[] first = new byte[4096];
+      int[] stringLength = new int[4096];
+      for (int i = 0; i < 256; i++) {
+         suffix[i] = (byte) i;
+         first[i] = (byte) i;
+         stringLength[i] = 1;
+      }
+      long totalBits = 8L * data.length;
+      long bitPosition = 0;
+      int position = 0;
+      int width = 9;
+      int nextCode = LZW_FIRST_CODE;
+      int oldCode = -1;
+      while (bitPosition + width <= totalBits && position < length) {
+         int code = readBits(data, bitPosition, width);
+         bitPosition += width;
+         if (code == LZW_EOI) {
+            break;
+         }
+         if (code == LZW_CLEAR) {
+            width = 9;
+            nextCode = LZW_FIRST_CODE;
+            oldCode = -1;
+            continue;
+         }
+         if (oldCode == -1) {
+            if (code > 255) {
+               throw new IOException("Corrupt LZW compressed strip");
+            }
+         } else {
+            if (code > nextCode || nextCode > 4095) {
+               throw new IOException("Corrupt LZW compressed strip");
+            }
+            prefix[nextCode] = oldCode;
+            suffix[nextCode] = first[code == nextCode ? oldCode : code];
+            first[nextCode] = first[oldCode];
+            stringLength[nextCode] = stringLength[oldCode] + 1;
+            nextCode++;
+            if (nextCode == (1 << width) - 1 && width < 12) {
+               width++;
+            }
+         }
+         // strings are stored backwards, from their last byte
+         int end = position + stringLength[code];
+         int k = code;
+         for (int i = end - 1; i >= position; i--) {
+            if (i < length) {
+               out[i] = suffix[k];
+            }
+            k = prefix[k];
+         }
+         position = end;
+         oldCode = code;
+      }
+      return out;
+   }
+
+   private static int readBits(byte[] data, long bitPosition, int width) {
+      int index = (int) (bitPosition >>> 3);
+      int bits = (data[index] & 0xff) << 16;
+      if (index + 1 < data.length) {
+         bits |= (data[index + 1] & 0xff) << 8;
+      }
+      if (index + 2 < data.length) {
+         bits |= data[index + 2] & 0xff;
+      }
+      return (bits >>> (24 - (int) (bitPosition & 7) - width)) & ((1 << width) - 1);
+   }
+
+   /**
+    * Packs codes most significant bit first, as TIFF LZW requires
+    */
+   private static class BitOutput {
+      private byte[] buffer_;
+      private int length_ = 0;
+      private int bits_ = 0;
+      private int bitCount_ = 0;
+
+      BitOutput(int capacity) {
+         buffer_ = new byte[capacity];
+      }
+
+      void write(int code, int width) {
+         bits_ = (bits_ << width) | code;
+         bitCount_ += width;
+         while (bitCount_ >= 8) {
+            bitCount_ -= 8;
+            put((byte) (bits_ >>> bitCount_));
+         }
+      }
+
+      byte[] toByteArray() {
+         if (bitCount_ > 0) {
+            put((byte) (bits_ << (8 - bitCount_)));
+            bitCount_ = 0;
+         }
+         return Arrays.copyOf(buffer_, length_);
+      }
+
+      private void put(byte b) {
+         if (length_ == buffer_.length) {
+            buffer_ = Arrays.copyOf(buffer_, 2 * buffer_.length);
+         }
+         buffer_[length_++] = b;
+      }
+   }
+}
@@ -27,6 +27,7 @@ import java.util.concurrent.TimeUnit;
 import org.micromanager.events.EventManager;
 import org.micromanager.events.ProcessorEnabledEvent;
 import org.micromanager.utils.ReportingUtils;
+import org.micromanager.utils.TimelineRecorder;
 
 /**
  * A DataProcessor thread allows for on-the-fly modification of image
@@ -49,6 +50,8 @@ public abstract class DataProcessor<E> extends Thread {
    // This boolean controls whether or not this DataProcessor will receive
    // images.
    private boolean isEnabled_ = true;
+   // When the datum being processed was received, for the timeline
+   private long receivedNs_ = 0;
 
    /**
     * The scripting interface (commonly known as the "gui" object).
@@ -183,6 +186,7 @@ public abstract class DataProcessor<E> extends Thread {
             if (tmpQueue != null) {
                E datum = tmpQueue.poll(100, TimeUnit.MILLISECONDS);
                if (datum != null) {
+                  receivedNs_ = System.nanoTime();
                   return datum;
                }
             }
@@ -216,6 +220,12 @@ public abstract class DataProcessor<E> extends Thread {
     * Do not override this method (it should have been final).
     */
    protected void produce(E datum) {
+      TimelineRecorder timeline = TimelineRecorder.getInstance();
+      if (timeline.isEnabled() && receivedNs_ != 0) {
+         timeline.end("processing", getClass().getSimpleName(), receivedNs_,
+               TimelineRecorder.describe(datum));
+         receivedNs_ = 0;
+      }
       try {
          output_.put(datum);
       } catch (InterruptedException ex) {
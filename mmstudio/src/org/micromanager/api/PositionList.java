@@ -38,6 +38,7 @@ import javax.swing.event.ChangeListener;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.micromanager.positionlist.StageTravelOptimizer;
 import org.micromanager.utils.MMException;
 import org.micromanager.utils.MMSerializationException;
 
@@ -212,6 +213,23 @@ public class PositionList {
       notifyChangeListeners();
    }
 
+   /**
+    * Reorders the positions so that visiting them in list order needs
+    * little stage travel. The first position stays first.
+    */
+   public void optimizeStageTravel() {
+      optimizeStageTravel(new StageTravelOptimizer());
+   }
+
+   /**
+    * Reorders the positions using the given optimizer, e.g. one that knows
+    * the stage speeds.
+    * @param optimizer - computes the new order
+    */
+   public void optimizeStageTravel(StageTravelOptimizer optimizer) {
+      setPositions(optimizer.optimize(getPositions()));
+   }
+
    /**
     * Returns an array of positions contained in the list.
     * @return position array
@@ -128,6 +128,7 @@ public class AcqControlDlg extends MMFrame implements PropertyChangeListener,
    private final JLabel displayMode_;
    private final JCheckBox stackKeepShutterOpenCheckBox_;
    private final JCheckBox chanKeepShutterOpenCheckBox_;
+   private final JCheckBox optimizePositionOrderCheckBox_;
    private final AcqOrderMode[] acqOrderModes_;
    private AdvancedOptionsDialog advancedOptionsWindow_;
    // persistent properties (app settings)
@@ -139,6 +140,7 @@ public class AcqControlDlg extends MMFrame implements PropertyChangeListener,
    private static final String ACQ_ZSTEP = "acqZstep";
    private static final String ACQ_ENABLE_SLICE_SETTINGS = "enableSliceSettings";
    private static final String ACQ_ENABLE_MULTI_POSITION = "enableMultiPosition";
+   private static final String ACQ_OPTIMIZE_POSITION_ORDER = "optimizePositionOrder";
    private static final String ACQ_ENABLE_MULTI_FRAME = "enableMultiFrame";
    private static final String ACQ_ENABLE_MULTI_CHANNEL = "enableMultiChannels";
    private static final String ACQ_ORDER_MODE = "acqOrderMode";
@@ -500,9 +502,26 @@ public class AcqControlDlg extends MMFrame implements PropertyChangeListener,
       listButton_.setText("Edit position list...");
       listButton_.setMargin(new Insets(2, 5, 2, 5));
       listButton_.setFont(new Font("Dialog", Font.PLAIN, 10));
-      listButton_.setBounds(42, 25, 136, 26);
+      listButton_.setBounds(6, 25, 124, 26);
       positionsPanel_.add(listButton_);
 
+      optimizePositionOrderCheckBox_ = new JCheckBox();
+      optimizePositionOrderCheckBox_.setText("Short path");
+      optimizePositionOrderCheckBox_.setFont(new Font("Arial", Font.PLAIN, 10));
+      optimizePositionOrderCheckBox_.setToolTipText(TooltipTextMaker.addHTMLBreaksForTooltip(
+              "Visit the positions in the order that needs the least stage travel, "
+              + "instead of in the order of the position list"));
+      optimizePositionOrderCheckBox_.addActionListener(new ActionListener() {
+
+         @Override
+         public void actionPerformed(final ActionEvent e) {
+            applySettings();
+         }
+      });
+      optimizePositionOrderCheckBox_.setSelected(false);
+      optimizePositionOrderCheckBox_.setBounds(133, 27, 80, 22);
+      positionsPanel_.add(optimizePositionOrderCheckBox_);
+
       // Slices panel
 
       slicesPanel_.addActionListener(new ActionListener() {
@@ -1250,6 +1269,7 @@ public class AcqControlDlg extends MMFrame implements PropertyChangeListener,
       acqEng_.setSlices(bottom, top, step, zVals_ == 0 ? false : true);
       acqEng_.enableZSliceSetting(acqPrefs_.getBoolean(ACQ_ENABLE_SLICE_SETTINGS, acqEng_.isZSliceSettingEnabled()));
       acqEng_.enableMultiPosition(acqPrefs_.getBoolean(ACQ_ENABLE_MULTI_POSITION, acqEng_.isMultiPositionEnabled()));
+      acqEng_.enablePositionOrderOptimization(acqPrefs_.getBoolean(ACQ_OPTIMIZE_POSITION_ORDER, false));
       positionsPanel_.setSelected(acqEng_.isMultiPositionEnabled());
       positionsPanel_.repaint();
 
@@ -1344,6 +1364,7 @@ public class AcqControlDlg extends MMFrame implements PropertyChangeListener,
       acqPrefs_.putDouble(ACQ_ZSTEP, acqEng_.getSliceZStepUm());
       acqPrefs_.putBoolean(ACQ_ENABLE_SLICE_SETTINGS, acqEng_.isZSliceSettingEnabled());
       acqPrefs_.putBoolean(ACQ_ENABLE_MULTI_POSITION, acqEng_.isMultiPositionEnabled());
+      acqPrefs_.putBoolean(ACQ_OPTIMIZE_POSITION_ORDER, acqEng_.isPositionOrderOptimizationEnabled());
       acqPrefs_.putInt(ACQ_Z_VALUES, zVals_);
       acqPrefs_.putBoolean(ACQ_SAVE_FILES, savePanel_.isSelected());
       acqPrefs_.put(ACQ_DIR_NAME, nameField_.getText());
@@ -1804,6 +1825,7 @@ public class AcqControlDlg extends MMFrame implements PropertyChangeListener,
 
       zValCombo_.setSelectedIndex(zVals_);
       stackKeepShutterOpenCheckBox_.setSelected(acqEng_.isShutterOpenForStack());
+      optimizePositionOrderCheckBox_.setSelected(acqEng_.isPositionOrderOptimizationEnabled());
       chanKeepShutterOpenCheckBox_.setSelected(acqEng_.isShutterOpenForChannels());
 
       channelTable_.setAutoResizeMode(JTable.AUTO_RESIZE_ALL_COLUMNS);
@@ -1859,6 +1881,7 @@ public class AcqControlDlg extends MMFrame implements PropertyChangeListener,
          acqEng_.setSlices(NumberUtils.displayStringToDouble(zBottom_.getText()), NumberUtils.displayStringToDouble(zTop_.getText()), zStep, zVals_ == 0 ? false : true);
          acqEng_.enableZSliceSetting(slicesPanel_.isSelected());
          acqEng_.enableMultiPosition(positionsPanel_.isSelected());
+         acqEng_.enablePositionOrderOptimization(optimizePositionOrderCheckBox_.isSelected());
 
 
          acqEng_.setDisplayMode(((DisplayMode) displayModeCombo_.getSelectedItem()).getID());
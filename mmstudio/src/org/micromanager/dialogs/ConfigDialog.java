@@ -32,6 +32,7 @@ import javax.swing.border.BevelBorder;
 import javax.swing.table.TableColumn;
 import mmcorej.CMMCore;
 import mmcorej.Configuration;
+import org.micromanager.MMStudio;
 import org.micromanager.api.ScriptInterface;
 import org.micromanager.utils.*;
 
@@ -140,6 +141,9 @@ public class ConfigDialog extends MMDialog {
    }
 
    public void initializeData() {
+      if (gui_ instanceof MMStudio) {
+         data_.setPropertyState(((MMStudio) gui_).getPropertyState());
+      }
       data_.setGUI(gui_);
       data_.setShowUnused(showUnused_);
    }
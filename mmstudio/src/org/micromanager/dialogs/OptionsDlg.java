@@ -46,6 +46,7 @@ import org.micromanager.api.ScriptInterface;
 import org.micromanager.logging.LogFileManager;
 import org.micromanager.MMOptions;
 import org.micromanager.MMStudio;
+import org.micromanager.acquisition.TiffCompression;
 import org.micromanager.utils.GUIColors;
 import org.micromanager.utils.MMDialog;
 import org.micromanager.utils.NumberUtils;
@@ -329,6 +330,15 @@ public class OptionsDlg extends MMDialog {
          }
       });
   
+      final JComboBox compressionMPTiffCombo = new JComboBox(TiffCompression.NAMES);
+      compressionMPTiffCombo.setSelectedIndex(opts_.mpTiffCompression_);
+      compressionMPTiffCombo.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent arg0) {
+            opts_.mpTiffCompression_ = compressionMPTiffCombo.getSelectedIndex();
+         }
+      });
+  
       final JCheckBox syncExposureMainAndMDA = new JCheckBox();
       syncExposureMainAndMDA.setText("Sync exposure between Main and MDA windows");
       syncExposureMainAndMDA.setSelected(opts_.syncExposureMainAndMDA_);
@@ -380,6 +390,8 @@ public class OptionsDlg extends MMDialog {
 
       add(metadataFileWithMultipageTiffCheckBox, "wrap");
       add(separateFilesForPositionsMPTiffCheckBox, "wrap");
+      add(new JLabel("Image Stack File Compression:"), "split 2, gapright push");
+      add(compressionMPTiffCombo, "wrap");
 
       add(new JSeparator(), "wrap");
 
@@ -0,0 +1,199 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          CoreEventDispatcher.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package org.micromanager.events;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.micromanager.api.MMListenerInterface;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Delivers notifications from the core to MMListenerInterface listeners
+ * (among them the proxy that posts to the EventBus) on a thread of its own,
+ * so that the core's callback thread never waits for the GUI.
+ *
+ * Events are collected for one frame interval and then delivered together.
+ * An event replaces a pending event with the same key (e.g. a newer
+ * position of the same stage), so listeners only see the latest value.
+ * When more than a maximum number of distinct events is pending, new ones
+ * are dropped.
+ */
+public class CoreEventDispatcher {
+
+   /**
+    * A pending notification.  deliver() is called once for every listener.
+    */
+   public static abstract class CoreEvent {
+      /**
+       * Called on the dispatcher thread before the event is delivered.
+       * Return false to drop the event.
+       */
+      public boolean prepare() {
+         return true;
+      }
+
+      public abstract void deliver(MMListenerInterface listener);
+   }
+
+   public static final long DEFAULT_FRAME_INTERVAL_MS = 20;
+   public static final int DEFAULT_MAX_PENDING = 10000;
+
+   private final List<MMListenerInterface> listeners_ =
+         new CopyOnWriteArrayList<MMListenerInterface>();
+   // Guarded by this; insertion order is the delivery order
+   private LinkedHashMap<Object, CoreEvent> pending_ =
+         new LinkedHashMap<Object, CoreEvent>();
+   private final long frameIntervalMs_;
+   private final int maxPending_;
+   private final AtomicLong postedCount_ = new AtomicLong();
+   private final AtomicLong mergedCount_ = new AtomicLong();
+   private final AtomicLong droppedCount_ = new AtomicLong();
+   private final AtomicLong deliveredCount_ = new AtomicLong();
+   private final AtomicLong batchCount_ = new AtomicLong();
+   private final Thread thread_;
+
+   public CoreEventDispatcher() {
+      this(DEFAULT_FRAME_INTERVAL_MS, DEFAULT_MAX_PENDING);
+   }
+
+   public CoreEventDispatcher(long frameIntervalMs, int maxPending) {
+      frameIntervalMs_ = frameIntervalMs;
+      maxPending_ = maxPending;
+      thread_ = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            dispatchLoop();
+         }
+      }, "Core event dispatcher");
+      thread_.setDaemon(true);
+      thread_.start();
+   }
+
+   public void addListener(MMListenerInterface listener) {
+      listeners_.add(listener);
+   }
+
+   public void removeListener(MMListenerInterface listener) {
+      listeners_.remove(listener);
+   }
+
+   public boolean hasListener(MMListenerInterface listener) {
+      return listeners_.contains(listener);
+   }
+
+   /**
+    * Queues an event.  A pending event with an equal key is replaced and
+    * the new one moves to the end of the queue.  Returns immediately.
+    */
+   public void post(Object key, CoreEvent event) {
+      postedCount_.incrementAndGet();
+      synchronized (this) {
+         if (pending_.remove(key) != null) {
+            mergedCount_.incrementAndGet();
+         } else if (pending_.size() >= maxPending_) {
+            droppedCount_.incrementAndGet();
+            return;
+         }
+         pending_.put(key, event);
+         notifyAll();
+      }
+   }
+
+   /** Number of events handed to post() */
+   public long getPostedEventCount() {
+      return postedCount_.get();
+   }
+
+   /** Number of events that were replaced by a newer one with the same key */
+   public long getMergedEventCount() {
+      return mergedCount_.get();
+   }
+
+   /** Number of events that were discarded because the queue was full */
+   public long getDroppedEventCount() {
+      return droppedCount_.get();
+   }
+
+   /** Number of events that were delivered to the listeners */
+   public long getDeliveredEventCount() {
+      return deliveredCount_.get();
+   }
+
+   /** Number of batches delivered so far */
+   public long getBatchCount() {
+      return batchCount_.get();
+   }
+
+   private void dispatchLoop() {
+      long lastDelivery = 0;
+      while (true) {
+         LinkedHashMap<Object, CoreEvent> batch;
+         try {
+            synchronized (this) {
+               while (pending_.isEmpty()) {
+                  wait();
+               }
+            }
+            // Give updates that arrive in quick succession a chance to merge
+            long wait = lastDelivery + frameIntervalMs_ - System.currentTimeMillis();
+            if (wait > 0) {
+               Thread.sleep(wait);
+            }
+         } catch (InterruptedException e) {
+            return;
+         }
+         synchronized (this) {
+            batch = pending_;
+            pending_ = new LinkedHashMap<Object, CoreEvent>();
+         }
+         lastDelivery = System.currentTimeMillis();
+         deliver(batch);
+      }
+   }
+
+   private void deliver(LinkedHashMap<Object, CoreEvent> batch) {
+      List<CoreEvent> events = new ArrayList<CoreEvent>(batch.size());
+      for (CoreEvent event : batch.values()) {
+         try {
+            if (event.prepare()) {
+               events.add(event);
+            }
+         } catch (Exception e) {
+            ReportingUtils.logError(e, "Error handling core notification");
+         }
+      }
+      for (CoreEvent event : events) {
+         for (MMListenerInterface listener : listeners_) {
+            try {
+               event.deliver(listener);
+            } catch (Exception e) {
+               ReportingUtils.logError(e, "Error in core notification listener");
+            }
+         }
+      }
+      deliveredCount_.addAndGet(events.size());
+      batchCount_.incrementAndGet();
+   }
+}
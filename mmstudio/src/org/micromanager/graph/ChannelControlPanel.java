@@ -28,6 +28,7 @@ import ij.process.LUT;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.concurrent.Future;
 import java.util.prefs.Preferences;
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.JButton;
@@ -46,7 +47,6 @@ import org.micromanager.imagedisplay.VirtualAcquisitionDisplay;
 import org.micromanager.imagedisplay.MMCompositeImage;
 import org.micromanager.api.ImageCache;
 import org.micromanager.graph.HistogramPanel.CursorListener;
-import org.micromanager.utils.HistogramUtils;
 import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.JavaUtils;
 import org.micromanager.utils.MDUtils;
@@ -637,9 +637,38 @@ public class ChannelControlPanel extends JPanel implements CursorListener {
     * 
     */
    public void calcAndDisplayHistAndStats(boolean drawHist) {
-      if (img_ == null || img_.getProcessor() == null) {
+      ImageProcessor ip = getProcessorForStatistics();
+      if (ip == null) {
+         showHistAndStats(null, drawHist);
          return;
       }
+      showHistAndStats(HistogramStatistics.compute(ip, 0, getFractionToReject()),
+              drawHist);
+   }
+
+   /**
+    * Starts computing the histogram and statistics of this channel's
+    * current image on the histogram worker threads; large images are
+    * subsampled. Returns null if there is no image.  Pass the result to
+    * showHistAndStats().
+    */
+   public Future<HistogramStatistics> submitHistAndStats() {
+      ImageProcessor ip = getProcessorForStatistics();
+      if (ip == null) {
+         return null;
+      }
+      return HistogramStatistics.submit(ip, HistogramStatistics.DEFAULT_MAX_SAMPLES,
+              getFractionToReject());
+   }
+
+   private double getFractionToReject() {
+      return 0.01 * display_.getHistogramControlsState().percentToIgnore;
+   }
+
+   private ImageProcessor getProcessorForStatistics() {
+      if (img_ == null || img_.getProcessor() == null) {
+         return null;
+      }
       ImageProcessor ip;
       if (img_.getMode() == CompositeImage.COMPOSITE) {
          ip = img_.getProcessor(channelIndex_ + 1);
@@ -653,7 +682,21 @@ public class ChannelControlPanel extends JPanel implements CursorListener {
          ip = img_.getStack().getProcessor(flatIndex);
 
       }
+      return ip;
+   }
 
+   /**
+    * Shows histogram and statistics computed by submitHistAndStats() or
+    * calcAndDisplayHistAndStats(), and keeps the outlier cutoffs for
+    * autostretch.  Must be called on the EDT.
+    *
+    * @param stats - statistics of this channel's image, or null if there
+    * is none
+    */
+   public void showHistAndStats(HistogramStatistics stats, boolean drawHist) {
+      if (img_ == null || img_.getProcessor() == null) {
+         return;
+      }
       if (((MMCompositeImage) img_).getNChannelsUnverified() <= 7) {
          boolean active = img_.getActiveChannels()[channelIndex_];
          channelNameCheckbox_.setSelected(active);
@@ -667,67 +710,35 @@ public class ChannelControlPanel extends JPanel implements CursorListener {
          }
       }
       
-      if (ip == null ) {
+      if (stats == null) {
          return;
       }
 
-      int[] rawHistogram = ip.getHistogram();
-      int imgWidth = img_.getWidth();
-      int imgHeight = img_.getHeight();
-
-      if (rawHistogram[0] == imgWidth * imgHeight) {
+      if (stats.getCount(0) == stats.getPixelCount()) {
          return;  //Blank pixels 
       }
       if (display_.getHistogramControlsState().ignoreOutliers) {
          // todo handle negative values
-         maxAfterRejectingOutliers_ = rawHistogram.length;
-         // specified percent of pixels are ignored in the automatic contrast setting
-         int totalPoints = imgHeight * imgWidth;
-         HistogramUtils hu = new HistogramUtils(rawHistogram, totalPoints, 0.01*display_.getHistogramControlsState().percentToIgnore);
-         minAfterRejectingOutliers_ = hu.getMinAfterRejectingOutliers();
-         maxAfterRejectingOutliers_ = hu.getMaxAfterRejectingOutliers();
+         minAfterRejectingOutliers_ = stats.getMinAfterRejectingOutliers();
+         maxAfterRejectingOutliers_ = stats.getMaxAfterRejectingOutliers();
       }
       GraphData histogramData = new GraphData();
 
-      pixelMin_ = -1;
-      pixelMax_ = 0;
+      pixelMin_ = stats.getMin();
+      pixelMax_ = stats.getMax();
 
-      int numBins = (int) Math.min(rawHistogram.length / binSize_, NUM_BINS);
-      int[] histogram = new int[NUM_BINS];
+      int numBins = (int) Math.min(stats.getHistogramLength() / binSize_, NUM_BINS);
+      int[] histogram = stats.getBinnedHistogram(binSize_, NUM_BINS,
+              display_.getHistogramControlsState().logHist);
       int total = 0;
       for (int i = 0; i < numBins; i++) {
-         histogram[i] = 0;
-         for (int j = 0; j < binSize_; j++) {
-            int rawHistIndex = (int) (i * binSize_ + j);
-            int rawHistVal = rawHistogram[rawHistIndex];
-            histogram[i] += rawHistVal;
-            if (rawHistVal > 0) {
-               pixelMax_ = rawHistIndex;
-               if (pixelMin_ == -1) {
-                  pixelMin_ = rawHistIndex;
-               }
-            }
-         }
          total += histogram[i];
-         if (display_.getHistogramControlsState().logHist) {
-            histogram[i] = histogram[i] > 0 ? (int) (1000 * Math.log(histogram[i])) : 0;
-         }
-      }
-      //Make sure max has correct value is hist display mode isnt auto
-      if (histRangeComboBox_.getSelectedIndex() != -1) {
-         pixelMin_ = rawHistogram.length-1;
-         for (int i = rawHistogram.length-1; i > 0; i--) {
-            if (rawHistogram[i] > 0 && i > pixelMax_ ) {
-               pixelMax_ = i;
-            }
-            if (rawHistogram[i] > 0 && i < pixelMin_ ) {
-               pixelMin_ = i;
-            }
-         }
       }
 
       // work around what is apparently a bug in ImageJ
       if (total == 0) {
+         int imgWidth = img_.getWidth();
+         int imgHeight = img_.getHeight();
          if (img_.getProcessor().getMin() == 0) {
             histogram[0] = imgWidth * imgHeight;
          } else {
@@ -0,0 +1,393 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          HistogramStatistics.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package org.micromanager.graph;
+
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import javax.swing.SwingUtilities;
+import org.micromanager.utils.HistogramUtils;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * The histogram and statistics of an image (or of its ROI), computed in
+ * a single pass over the 8- or 16-bit pixels, split over several threads.
+ * Min, max, mean, standard deviation, percentiles and the outlier cutoffs
+ * for autostretch are all derived from the histogram.
+ *
+ * Instances are immutable, so they can be computed on a worker thread
+ * and handed to the EDT; see submit() and publish().
+ */
+public final class HistogramStatistics {
+
+   /**
+    * Receives the results of publish() on the EDT.
+    */
+   public interface Listener {
+      /**
+       * @param statistics in the order of the futures; an entry is null if
+       * its computation failed
+       */
+      void statisticsReady(List<HistogramStatistics> statistics);
+   }
+
+   // Frames with more pixels are subsampled when asked to
+   public static final int DEFAULT_MAX_SAMPLES = 1 << 22;
+   private static final int MIN_ROWS_PER_TASK = 32;
+
+   private static final int NUM_THREADS =
+         Math.max(1, Runtime.getRuntime().availableProcessors());
+   private static final ExecutorService workers_ =
+         Executors.newFixedThreadPool(NUM_THREADS,
+               makeThreadFactory("Histogram worker"));
+   // Runs submitted and published requests in order. The work of each
+   // request is split over the workers, which never wait themselves.
+   private static final ExecutorService coordinator_ =
+         Executors.newSingleThreadExecutor(
+               makeThreadFactory("Histogram coordinator"));
+
+   private final int[] histogram_;
+   private final long count_;
+   private final int min_;
+   private final int max_;
+   private final double mean_;
+   private final double stdDev_;
+   private final int sampleStep_;
+   private final int minAfterRejectingOutliers_;
+   private final int maxAfterRejectingOutliers_;
+
+   private HistogramStatistics(int[] histogram, int sampleStep,
+         double fractionToReject) {
+      histogram_ = histogram;
+      sampleStep_ = sampleStep;
+      long count = 0;
+      double sum = 0;
+      double sumOfSquares = 0;
+      int min = -1;
+      int max = 0;
+      for (int i = 0; i < histogram.length; i++) {
+         int n = histogram[i];
+         if (n > 0) {
+            if (min < 0) {
+               min = i;
+            }
+            max = i;
+            count += n;
+            sum += (double) n * i;
+            sumOfSquares += (double) n * i * i;
+         }
+      }
+      count_ = count;
+      min_ = Math.max(0, min);
+      max_ = max;
+      mean_ = count > 0 ? sum / count : 0;
+      stdDev_ = count > 1 ?
+            Math.sqrt(Math.max(0, (sumOfSquares - sum * mean_) / (count - 1))) : 0;
+      HistogramUtils hu = new HistogramUtils(histogram,
+            (int) Math.min(Integer.MAX_VALUE, count), fractionToReject);
+      minAfterRejectingOutliers_ = hu.getMinAfterRejectingOutliers();
+      maxAfterRejectingOutliers_ = hu.getMaxAfterRejectingOutliers();
+   }
+
+   /**
+    * Computes the statistics of the processor's pixels inside its ROI, on
+    * the worker threads, and waits for the result.
+    *
+    * @param ip the image
+    * @param maxSamples when the ROI holds more pixels, only every n-th
+    * pixel of every n-th row is used; 0 to always use all pixels
+    * @param fractionToReject fraction of the pixels ignored at either end
+    * for the outlier cutoffs
+    */
+   public static HistogramStatistics compute(ImageProcessor ip, int maxSamples,
+         double fractionToReject) {
+      return prepare(ip, maxSamples, fractionToReject).call();
+   }
+
+   /**
+    * Like compute(), but returns at once. The pixels and the ROI are taken
+    * from the processor now, so it may change afterwards (but the pixel
+    * array itself must not).
+    */
+   public static Future<HistogramStatistics> submit(ImageProcessor ip,
+         int maxSamples, double fractionToReject) {
+      return coordinator_.submit(prepare(ip, maxSamples, fractionToReject));
+   }
+
+   /**
+    * Hands the results of submitted computations to the listener on the
+    * EDT, once all of them are done. Null futures give null results.
+    */
+   public static void publish(final List<Future<HistogramStatistics>> futures,
+         final Listener listener) {
+      coordinator_.execute(new Runnable() {
+         @Override
+         public void run() {
+            final List<HistogramStatistics> results =
+                  new ArrayList<HistogramStatistics>(futures.size());
+            for (Future<HistogramStatistics> future : futures) {
+               results.add(getOrNull(future));
+            }
+            SwingUtilities.invokeLater(new Runnable() {
+               @Override
+               public void run() {
+                  listener.statisticsReady(results);
+               }
+            });
+         }
+      });
+   }
+
+   private static HistogramStatistics getOrNull(Future<HistogramStatistics> future) {
+      if (future == null) {
+         return null;
+      }
+      try {
+         return future.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+         ReportingUtils.logError(e.getCause(), "Histogram calculation failed");
+      }
+      return null;
+   }
+
+   private static abstract class Computation
+         implements Callable<HistogramStatistics> {
+      @Override
+      public abstract HistogramStatistics call();
+   }
+
+   private static Computation prepare(ImageProcessor ip,
+         int maxSamples, final double fractionToReject) {
+      final Object pixels = ip.getPixels();
+      final int width = ip.getWidth();
+      if (!(pixels instanceof byte[] || pixels instanceof short[])) {
+         // Leave other pixel types to ImageJ, on this thread
+         final int[] histogram = ip.getHistogram();
+         return new Computation() {
+            @Override
+            public HistogramStatistics call() {
+               return new HistogramStatistics(histogram, 1, fractionToReject);
+            }
+         };
+      }
+      Rectangle roi = ip.getRoi();
+      final Rectangle r = roi == null ?
+            new Rectangle(0, 0, width, ip.getHeight()) : new Rectangle(roi);
+      final byte[] mask = ip.getMask() == null ?
+            null : (byte[]) ip.getMask().getPixels();
+      final int step = getSampleStep((long) r.width * r.height, maxSamples);
+
+      return new Computation() {
+         @Override
+         public HistogramStatistics call() {
+            int[] histogram = new int[pixels instanceof byte[] ? 256 : 65536];
+            int rows = (r.height + step - 1) / step;
+            int numTasks = Math.max(1, Math.min(NUM_THREADS, rows / MIN_ROWS_PER_TASK));
+            if (numTasks == 1) {
+               countPixels(pixels, width, r, mask, step, 0, rows, histogram);
+            } else {
+               List<Future<int[]>> parts = new ArrayList<Future<int[]>>(numTasks);
+               for (int t = 0; t < numTasks; t++) {
+                  final int firstRow = (int) ((long) rows * t / numTasks);
+                  final int endRow = (int) ((long) rows * (t + 1) / numTasks);
+                  final int length = histogram.length;
+                  parts.add(workers_.submit(new Callable<int[]>() {
+                     @Override
+                     public int[] call() {
+                        int[] part = new int[length];
+                        countPixels(pixels, width, r, mask, step, firstRow, endRow, part);
+                        return part;
+                     }
+                  }));
+               }
+               for (Future<int[]> part : parts) {
+                  int[] counts;
+                  try {
+                     counts = part.get();
+                  } catch (InterruptedException e) {
+                     Thread.currentThread().interrupt();
+                     throw new RuntimeException(e);
+                  } catch (ExecutionException e) {
+                     throw new RuntimeException(e.getCause());
+                  }
+                  for (int i = 0; i < counts.length; i++) {
+                     histogram[i] += counts[i];
+                  }
+               }
+            }
+            return new HistogramStatistics(histogram, step, fractionToReject);
+         }
+      };
+   }
+
+   static int getSampleStep(long numPixels, int maxSamples) {
+      if (maxSamples <= 0 || numPixels <= maxSamples) {
+         return 1;
+      }
+      return (int) Math.ceil(Math.sqrt((double) numPixels / maxSamples));
+   }
+
+   /**
+    * Counts the pixels of rows firstRow to endRow (exclusive, counted in
+    * sampled rows) of the ROI.
+    */
+   private static void countPixels(Object pixels, int width, Rectangle r,
+         byte[] mask, int step, int firstRow, int endRow, int[] histogram) {
+      for (int row = firstRow; row < endRow; row++) {
+         int y = row * step;
+         int offset = (r.y + y) * width + r.x;
+         int maskOffset = y * r.width;
+         if (pixels instanceof byte[]) {
+            byte[] p = (byte[]) pixels;
+            for (int x = 0; x < r.width; x += step) {
+               if (mask == null || mask[maskOffset + x] != 0) {
+                  histogram[p[offset + x] & 0xff]++;
+               }
+            }
+         } else {
+            short[] p = (short[]) pixels;
+            for (int x = 0; x < r.width; x += step) {
+               if (mask == null || mask[maskOffset + x] != 0) {
+                  histogram[p[offset + x] & 0xffff]++;
+               }
+            }
+         }
+      }
+   }
+
+   private static ThreadFactory makeThreadFactory(final String name) {
+      return new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+         }
+      };
+   }
+
+   /**
+    * Returns the number of (sampled) pixels with the given value.
+    */
+   public int getCount(int value) {
+      return value >= 0 && value < histogram_.length ? histogram_[value] : 0;
+   }
+
+   /**
+    * Returns the number of values in the histogram: 256 or 65536.
+    */
+   public int getHistogramLength() {
+      return histogram_.length;
+   }
+
+   /**
+    * Returns a copy of the histogram, one entry per pixel value.
+    */
+   public int[] getHistogram() {
+      return histogram_.clone();
+   }
+
+   /**
+    * Sums the histogram into numBins bins of binSize values each.
+    *
+    * @param logScale return 1000 * ln(count) instead of the counts
+    */
+   public int[] getBinnedHistogram(double binSize, int numBins, boolean logScale) {
+      int[] binned = new int[numBins];
+      int usedBins = (int) Math.min(histogram_.length / binSize, numBins);
+      for (int i = 0; i < usedBins; i++) {
+         long sum = 0;
+         int end = (int) Math.min(histogram_.length, (i + 1) * binSize);
+         for (int j = (int) (i * binSize); j < end; j++) {
+            sum += histogram_[j];
+         }
+         if (logScale) {
+            binned[i] = sum > 0 ? (int) (1000 * Math.log(sum)) : 0;
+         } else {
+            binned[i] = (int) Math.min(Integer.MAX_VALUE, sum);
+         }
+      }
+      return binned;
+   }
+
+   /**
+    * Number of pixels that went into the histogram.
+    */
+   public long getPixelCount() {
+      return count_;
+   }
+
+   /**
+    * 1 if all pixels were used, otherwise the sampling distance in x and y.
+    */
+   public int getSampleStep() {
+      return sampleStep_;
+   }
+
+   public int getMin() {
+      return min_;
+   }
+
+   public int getMax() {
+      return max_;
+   }
+
+   public double getMean() {
+      return mean_;
+   }
+
+   public double getStdDev() {
+      return stdDev_;
+   }
+
+   public int getMinAfterRejectingOutliers() {
+      return minAfterRejectingOutliers_;
+   }
+
+   public int getMaxAfterRejectingOutliers() {
+      return maxAfterRejectingOutliers_;
+   }
+
+   /**
+    * Returns the smallest pixel value such that at least the given fraction
+    * of the pixels is at or below it.
+    */
+   public int getPercentile(double fraction) {
+      long target = (long) Math.ceil(fraction * count_);
+      long sum = 0;
+      for (int i = 0; i < histogram_.length; i++) {
+         sum += histogram_[i];
+         if (sum >= target && sum > 0) {
+            return i;
+         }
+      }
+      return max_;
+   }
+}
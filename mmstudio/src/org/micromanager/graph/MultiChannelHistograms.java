@@ -4,6 +4,8 @@ import ij.CompositeImage;
 import java.awt.Dimension;
 import java.awt.GridLayout;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
 import javax.swing.JPanel;
 import org.micromanager.MMStudio;
 import org.micromanager.imagedisplay.VirtualAcquisitionDisplay;
@@ -43,6 +45,9 @@ public final class MultiChannelHistograms extends JPanel implements Histograms {
    private ImageCache cache_;
    private CompositeImage img_;
    private boolean updatingCombos_ = false;
+   // Guarded by this; see updateInBackground()
+   private boolean backgroundUpdateRunning_ = false;
+   private boolean backgroundUpdateRequested_ = false;
 
    public MultiChannelHistograms(VirtualAcquisitionDisplay disp) {
       super();
@@ -200,6 +205,11 @@ public final class MultiChannelHistograms extends JPanel implements Histograms {
       updateActiveChannels();
       
       if (update) {
+         if (display_.acquisitionIsRunning() ||
+                 MMStudio.getInstance().isLiveModeOn()) {
+            updateInBackground();
+            return;
+         }
          for (ChannelControlPanel c : ccpList_) {
             c.calcAndDisplayHistAndStats(display_.isActiveDisplay());
             
@@ -210,6 +220,55 @@ public final class MultiChannelHistograms extends JPanel implements Histograms {
          }
       }
    }
+
+   /**
+    * While images are arriving, the histograms are computed on worker
+    * threads so that painting is not held up; the results (and autostretch)
+    * are applied on the EDT, followed by a redraw. Images arriving in the
+    * meantime are coalesced into one more update.
+    */
+   private void updateInBackground() {
+      synchronized (this) {
+         if (backgroundUpdateRunning_) {
+            backgroundUpdateRequested_ = true;
+            return;
+         }
+         backgroundUpdateRunning_ = true;
+      }
+      final List<ChannelControlPanel> panels =
+              new ArrayList<ChannelControlPanel>(ccpList_);
+      List<Future<HistogramStatistics>> futures =
+              new ArrayList<Future<HistogramStatistics>>(panels.size());
+      for (ChannelControlPanel c : panels) {
+         futures.add(c.submitHistAndStats());
+      }
+      HistogramStatistics.publish(futures, new HistogramStatistics.Listener() {
+         @Override
+         public void statisticsReady(List<HistogramStatistics> statistics) {
+            if (panels.equals(ccpList_) && img_.getWindow() != null) {
+               boolean drawHist = display_.isActiveDisplay();
+               for (int i = 0; i < panels.size(); i++) {
+                  ChannelControlPanel c = panels.get(i);
+                  c.showHistAndStats(statistics.get(i), drawHist);
+                  if (display_.getHistogramControlsState().autostretch) {
+                     c.autostretch();
+                  }
+                  c.applyChannelLUTToImage();
+               }
+               display_.drawWithoutUpdate();
+            }
+            boolean again;
+            synchronized (MultiChannelHistograms.this) {
+               backgroundUpdateRunning_ = false;
+               again = backgroundUpdateRequested_;
+               backgroundUpdateRequested_ = false;
+            }
+            if (again) {
+               updateInBackground();
+            }
+         }
+      });
+   }
    
    private void updateActiveChannels() {
       int currentChannel = img_.getChannel() - 1;
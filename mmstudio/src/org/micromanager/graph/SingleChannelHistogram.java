@@ -24,7 +24,6 @@ package org.micromanager.graph;
 import com.swtdesigner.SwingResourceManager;
 import ij.ImagePlus;
 import ij.process.ImageProcessor;
-import ij.process.ImageStatistics;
 import ij.process.LUT;
 import java.awt.BorderLayout;
 import java.awt.Color;
@@ -37,6 +36,9 @@ import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
@@ -49,7 +51,6 @@ import org.micromanager.internalinterfaces.Histograms;
 import org.micromanager.api.ImageCache;
 import org.micromanager.graph.HistogramPanel.CursorListener;
 import org.micromanager.utils.ContrastSettings;
-import org.micromanager.utils.HistogramUtils;
 import org.micromanager.utils.NumberUtils;
 
 /**
@@ -73,6 +74,10 @@ public class SingleChannelHistogram extends JPanel implements Histograms, Cursor
    private JLabel meanLabel_;
    private JLabel stdDevLabel_;
    private double gamma_ = 1.0;
+   // The LUT last made by applyLUTToImage, and what it was made from
+   private LUT lut_;
+   private int lutIndex_ = -1;
+   private double lutGamma_;
    private int histMax_;
    private int maxIntensity_;
    private int bitDepth_;
@@ -86,6 +91,9 @@ public class SingleChannelHistogram extends JPanel implements Histograms, Cursor
    private int contrastMax_;
    private double minAfterRejectingOutliers_;
    private double maxAfterRejectingOutliers_;
+   // Guarded by this; see updateInBackground()
+   private boolean backgroundUpdateRunning_ = false;
+   private boolean backgroundUpdateRequested_ = false;
    private VirtualAcquisitionDisplay display_;
    private ImagePlus img_;
    private ImageCache cache_;
@@ -402,6 +410,25 @@ public class SingleChannelHistogram extends JPanel implements Histograms, Cursor
          return;
       }
 
+      //apply gamma and contrast to image
+      ip.setColorModel(getLUT());    //doesnt explicitly redraw
+      ip.setMinAndMax(contrastMin_, contrastMax_);   //doesnt explicitly redraw
+
+      saveDisplaySettings();
+
+      updateHistogram();
+   }
+
+   /**
+    * Returns the LUT for the selected LUT type and gamma. It is only made
+    * again when one of these has changed, not on every contrast change.
+    */
+   private LUT getLUT() {
+      int lutIndex = lutComboBox_.getSelectedIndex();
+      if (lut_ != null && lutIndex == lutIndex_ && gamma_ == lutGamma_) {
+         return lut_;
+      }
+
       final double maxValue = 255.0;
       final int length = 256;
       byte[] r = new byte[length];
@@ -409,7 +436,7 @@ public class SingleChannelHistogram extends JPanel implements Histograms, Cursor
       byte[] b = new byte[length];
       
       // Gray scale and glow over/under
-      if (lutComboBox_.getSelectedIndex() < 2) {
+      if (lutIndex < 2) {
          for (int i = 0; i < length; i++) {
             double val = Math.pow((double) i / maxValue, gamma_) * maxValue;
             r[i] = (byte) val;
@@ -417,7 +444,7 @@ public class SingleChannelHistogram extends JPanel implements Histograms, Cursor
             b[i] = (byte) val;
          }
 
-         if (lutComboBox_.getSelectedIndex() == 1) {
+         if (lutIndex == 1) {
             // glow over/under LUT
             r[0] = (byte) 0;
             g[0] = (byte) 0;
@@ -429,7 +456,7 @@ public class SingleChannelHistogram extends JPanel implements Histograms, Cursor
       }
       
       // Fire
-      if (lutComboBox_.getSelectedIndex() == 2) {
+      if (lutIndex == 2) {
          for (int i = 0; i < length; i++) {
             double val = Math.pow((double) i / maxValue, gamma_) * maxValue;
             r[i] = fireLUT_[0][(int) val];
@@ -439,7 +466,7 @@ public class SingleChannelHistogram extends JPanel implements Histograms, Cursor
       }
       
       // redHot
-      if (lutComboBox_.getSelectedIndex() == 3) {
+      if (lutIndex == 3) {
          for (int i = 0; i < length; i++) {
             double val = Math.pow((double) i / maxValue, gamma_) * maxValue;
             r[i] = redHotLUT_[0][(int) val];
@@ -449,7 +476,7 @@ public class SingleChannelHistogram extends JPanel implements Histograms, Cursor
       }
       
       // Spectrum
-      if (lutComboBox_.getSelectedIndex() == 4) {
+      if (lutIndex == 4) {
          for (int i = 0; i < length; i++) {
             double val = Math.pow((double) i / maxValue, gamma_) * maxValue;
             r[i] = spectrumLUT_[0][(int) val];
@@ -458,13 +485,10 @@ public class SingleChannelHistogram extends JPanel implements Histograms, Cursor
          }
       }
       
-      //apply gamma and contrast to image
-      ip.setColorModel(new LUT(8, length, r, g, b));    //doesnt explicitly redraw
-      ip.setMinAndMax(contrastMin_, contrastMax_);   //doesnt explicitly redraw
-
-      saveDisplaySettings();
-
-      updateHistogram();
+      lut_ = new LUT(8, length, r, g, b);
+      lutIndex_ = lutIndex;
+      lutGamma_ = gamma_;
+      return lut_;
    }
    
    /**
@@ -676,6 +700,11 @@ public class SingleChannelHistogram extends JPanel implements Histograms, Cursor
         }
 
         if (update) {
+            if (display_.acquisitionIsRunning() ||
+                    MMStudio.getInstance().isLiveModeOn()) {
+                updateInBackground();
+                return;
+            }
             calcAndDisplayHistAndStats(display_.isActiveDisplay());
             if (display_.getHistogramControlsState().autostretch) {
                 autostretch();
@@ -686,43 +715,91 @@ public class SingleChannelHistogram extends JPanel implements Histograms, Cursor
 
    @Override
    public void calcAndDisplayHistAndStats(boolean drawHist) {
-       if (img_ == null || img_.getProcessor() == null) {
+      ImageProcessor ip = getProcessorForStatistics();
+      if (ip == null) {
          return;
       }
-      int[] rawHistogram = img_.getProcessor().getHistogram();
-     
-      int imgWidth = img_.getWidth();
-      int imgHeight = img_.getHeight();
+      showHistAndStats(HistogramStatistics.compute(ip, 0, getFractionToReject()),
+            drawHist);
+   }
+
+   private double getFractionToReject() {
+      return 0.01 * display_.getHistogramControlsState().percentToIgnore;
+   }
+
+   private ImageProcessor getProcessorForStatistics() {
+      if (img_ == null || img_.getProcessor() == null) {
+         return null;
+      }
+      ImageProcessor ip = img_.getProcessor();
+      ip.setRoi(img_.getRoi());
+      return ip;
+   }
+
+   /**
+    * While images are arriving, the histogram is computed on worker threads
+    * so that painting is not held up; the result (and autostretch) is
+    * applied on the EDT, followed by a redraw. Images arriving in the
+    * meantime are coalesced into one more update.
+    */
+   private void updateInBackground() {
+      synchronized (this) {
+         if (backgroundUpdateRunning_) {
+            backgroundUpdateRequested_ = true;
+            return;
+         }
+         backgroundUpdateRunning_ = true;
+      }
+      ImageProcessor ip = getProcessorForStatistics();
+      List<Future<HistogramStatistics>> futures =
+            new ArrayList<Future<HistogramStatistics>>(1);
+      futures.add(ip == null ? null : HistogramStatistics.submit(ip,
+            HistogramStatistics.DEFAULT_MAX_SAMPLES, getFractionToReject()));
+      HistogramStatistics.publish(futures, new HistogramStatistics.Listener() {
+         @Override
+         public void statisticsReady(List<HistogramStatistics> statistics) {
+            if (statistics.get(0) != null && img_.getWindow() != null) {
+               showHistAndStats(statistics.get(0), display_.isActiveDisplay());
+               if (display_.getHistogramControlsState().autostretch) {
+                  autostretch();
+               }
+               applyLUTToImage();
+               display_.drawWithoutUpdate();
+            }
+            boolean again;
+            synchronized (SingleChannelHistogram.this) {
+               backgroundUpdateRunning_ = false;
+               again = backgroundUpdateRequested_;
+               backgroundUpdateRequested_ = false;
+            }
+            if (again) {
+               updateInBackground();
+            }
+         }
+      });
+   }
+
+   private void showHistAndStats(HistogramStatistics stats, boolean drawHist) {
       if (display_.getHistogramControlsState().ignoreOutliers) {
          // todo handle negative values
-         maxAfterRejectingOutliers_ = rawHistogram.length;
-         // specified percent of pixels are ignored in the automatic contrast setting
-         int totalPoints = imgHeight * imgWidth;
-         HistogramUtils hu = new HistogramUtils(rawHistogram, totalPoints, 0.01*display_.getHistogramControlsState().percentToIgnore);
-         minAfterRejectingOutliers_ = hu.getMinAfterRejectingOutliers();
-         maxAfterRejectingOutliers_ = hu.getMaxAfterRejectingOutliers();
+         minAfterRejectingOutliers_ = stats.getMinAfterRejectingOutliers();
+         maxAfterRejectingOutliers_ = stats.getMaxAfterRejectingOutliers();
       }
       GraphData histogramData = new GraphData();
 
 
-      int numBins = (int) Math.min(rawHistogram.length / binSize_, HIST_BINS);
-      int[] histogram = new int[HIST_BINS];
+      int numBins = (int) Math.min(stats.getHistogramLength() / binSize_, HIST_BINS);
+      int[] histogram = stats.getBinnedHistogram(binSize_, HIST_BINS,
+            display_.getHistogramControlsState().logHist);
       int total = 0;
       for (int i = 0; i < numBins; i++) {
-         histogram[i] = 0;
-         for (int j = 0; j < binSize_; j++) {
-            int rawHistIndex = (int) (i * binSize_ + j);
-            int rawHistVal = rawHistogram[rawHistIndex];
-            histogram[i] += rawHistVal;
-         }
          total += histogram[i];
-         if (display_.getHistogramControlsState().logHist) {
-            histogram[i] = histogram[i] > 0 ? (int) (1000 * Math.log(histogram[i])) : 0;
-         }
       }
 
       // work around what is apparently a bug in ImageJ
       if (total == 0) {
+         int imgWidth = img_.getWidth();
+         int imgHeight = img_.getHeight();
          if (img_.getProcessor().getMin() == 0) {
             histogram[0] = imgWidth * imgHeight;
          } else {
@@ -733,11 +810,10 @@ public class SingleChannelHistogram extends JPanel implements Histograms, Cursor
       }
       if (drawHist) {
 
-         ImageStatistics stats = img_.getStatistics(ImageStatistics.MEAN | ImageStatistics.MIN_MAX | ImageStatistics.STD_DEV);
-         pixelMax_ = (int) stats.max;
-         pixelMin_ = (int) stats.min;
-         mean_ = stats.mean;
-         stdDev_ = stats.stdDev;
+         pixelMax_ = stats.getMax();
+         pixelMin_ = stats.getMin();
+         mean_ = stats.getMean();
+         stdDev_ = stats.getStdDev();
          
          //Draw histogram and stats
          histogramData.setData(histogram);
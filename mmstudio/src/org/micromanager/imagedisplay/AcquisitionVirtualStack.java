@@ -24,6 +24,7 @@ public class AcquisitionVirtualStack extends ij.VirtualStack {
    final protected int width_, height_, type_;
    private final int nSlices_;
    private int positionIndex_ = 0;
+   private final PlaneReadAhead readAhead_;
 
    public AcquisitionVirtualStack(int width, int height, int type,
            ColorModel cm, TaggedImageStorage imageCache, int nSlices,
@@ -36,6 +37,7 @@ public class AcquisitionVirtualStack extends ij.VirtualStack {
 
       acq_ = acq;
       type_ = type;
+      readAhead_ = new PlaneReadAhead(imageCache);
    }
 
    public void setPositionIndex(int pos) {
@@ -50,6 +52,25 @@ public class AcquisitionVirtualStack extends ij.VirtualStack {
       return acq_;
    }
 
+   /**
+    * Sets how much memory may be used for planes read ahead during
+    * playback, in bytes.
+    */
+   public void setReadAheadBudget(long bytes) {
+      readAhead_.setBudget(bytes);
+   }
+
+   public long getReadAheadBudget() {
+      return readAhead_.getBudget();
+   }
+
+   /**
+    * Releases the planes read ahead; call when the display is closed.
+    */
+   public void close() {
+      readAhead_.close();
+   }
+
    
    private TaggedImage getTaggedImage(int flatIndex) {
       int[] pos;
@@ -73,15 +94,26 @@ public class AcquisitionVirtualStack extends ij.VirtualStack {
    //used for display compared to the the underlying data
    protected TaggedImage getTaggedImage(int chanIndex, int slice, int frame) {
       int nSlices;
+      int nFrames;
       ImagePlus imagePlus = acq_.getImagePlus();
       if (imagePlus == null) {
          nSlices = 1;
+         nFrames = 1;
       } else {
          nSlices = imagePlus.getNSlices();
+         nFrames = imagePlus.getNFrames();
       }
       try {
          TaggedImage img;
-         img = imageCache_.getImage(chanIndex, slice, frame, positionIndex_);
+         // Only read ahead once the data no longer changes (e.g. not during
+         // acquisition or live mode)
+         if (imageCache_.isFinished()) {
+            int[] sizes = {nSlices, nFrames, getNumPositions()};
+            img = readAhead_.getImage(chanIndex, slice, frame, positionIndex_,
+                  sizes);
+         } else {
+            img = imageCache_.getImage(chanIndex, slice, frame, positionIndex_);
+         }
          int backIndex = slice - 1, forwardIndex = slice + 1;
          int frameSearchIndex = frame;
          //If some but not all channels have z stacks, find the closest slice for the given
@@ -124,6 +156,14 @@ public class AcquisitionVirtualStack extends ij.VirtualStack {
       }
    }
    
+   private int getNumPositions() {
+      try {
+         return Math.max(1, acq_.getNumPositions());
+      } catch (JSONException e) {
+         return 1;
+      }
+   }
+
    //this method is available so that image tags can be synchrnized with the pixels displayed in the viewer,
    //since alternate images are filled in when some are missing (for example, when a z stack is not collecte din one channel
    //or when frames are skipped)
@@ -0,0 +1,299 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          CompositeRenderer.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package org.micromanager.imagedisplay;
+
+import ij.process.LUT;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Renders the composite (overlay) view of a multichannel 8- or 16-bit
+ * image into a reused RGB image.
+ *
+ * Each channel goes through a table that maps raw pixel values straight
+ * to RGB, combining the display range and the channel's LUT (which holds
+ * the color and gamma); tables are only rebuilt when these change. The
+ * channels are added up with saturation, like ImageJ's composite mode.
+ * Only a given region (the part shown on screen) is rendered, split in
+ * bands of rows over several threads.
+ */
+class CompositeRenderer {
+
+   private static final int MIN_ROWS_PER_TASK = 16;
+   private static final int NUM_THREADS =
+         Math.max(1, Runtime.getRuntime().availableProcessors());
+   private static final ExecutorService workers_ =
+         Executors.newFixedThreadPool(NUM_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread thread = new Thread(r, "Composite renderer");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+
+   private BufferedImage image_;
+   private int[] rgb_;
+   private int width_;
+   private int height_;
+   // The inputs of the last render() call, for renderRegion()
+   private Object[] pixels_ = new Object[0];
+   private boolean[] active_ = new boolean[0];
+   // Per channel: raw value -> RGB, and what it was made from
+   private int[][] tables_ = new int[0][];
+   private byte[][] tableLuts_ = new byte[0][];
+   private double[] tableMins_ = new double[0];
+   private double[] tableMaxs_ = new double[0];
+   private final Rectangle rendered_ = new Rectangle();
+
+   /**
+    * Returns true if the pixels are of a type this renderer handles.
+    */
+   static boolean canRender(Object pixels) {
+      return pixels instanceof byte[] || pixels instanceof short[];
+   }
+
+   /**
+    * Renders a region of the composite of the channels. Returns the image,
+    * which is reused by following calls as long as the size is the same.
+    *
+    * @param pixels per channel, the byte[] or short[] pixels
+    * @param luts per channel, the LUT giving the colors
+    * @param mins per channel, the pixel value shown as the first LUT entry
+    * @param maxs per channel, the pixel value shown as the last LUT entry
+    * @param active per channel, whether it is shown
+    * @param region the part to render; null for all of it
+    */
+   synchronized BufferedImage render(int width, int height, Object[] pixels,
+         LUT[] luts, double[] mins, double[] maxs, boolean[] active,
+         Rectangle region) {
+      if (image_ == null || width != width_ || height != height_) {
+         width_ = width;
+         height_ = height;
+         image_ = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+         rgb_ = ((DataBufferInt) image_.getRaster().getDataBuffer()).getData();
+      }
+      int n = pixels.length;
+      if (tables_.length != n) {
+         tables_ = new int[n][];
+         tableLuts_ = new byte[n][];
+         tableMins_ = new double[n];
+         tableMaxs_ = new double[n];
+      }
+      for (int c = 0; c < n; c++) {
+         if (active[c]) {
+            updateTable(c, luts[c], mins[c], maxs[c],
+                  pixels[c] instanceof byte[] ? 256 : 65536);
+         }
+      }
+      pixels_ = pixels.clone();
+      active_ = active.clone();
+      rendered_.setBounds(0, 0, 0, 0);
+      return renderRegion(region);
+   }
+
+   /**
+    * Renders a further region of the image of the last render() call,
+    * e.g. after the view was scrolled.
+    */
+   synchronized BufferedImage renderRegion(Rectangle region) {
+      if (image_ == null) {
+         return null;
+      }
+      Rectangle r = new Rectangle(0, 0, width_, height_);
+      if (region != null) {
+         r = r.intersection(region);
+      }
+      if (r.isEmpty()) {
+         return image_;
+      }
+      int numTasks = Math.max(1, Math.min(NUM_THREADS, r.height / MIN_ROWS_PER_TASK));
+      if (numTasks == 1) {
+         renderRows(r, r.y, r.y + r.height);
+      } else {
+         List<Future<?>> bands = new ArrayList<Future<?>>(numTasks);
+         for (int t = 0; t < numTasks; t++) {
+            final Rectangle band = r;
+            final int firstRow = r.y + r.height * t / numTasks;
+            final int endRow = r.y + r.height * (t + 1) / numTasks;
+            bands.add(workers_.submit(new Runnable() {
+               @Override
+               public void run() {
+                  renderRows(band, firstRow, endRow);
+               }
+            }));
+         }
+         for (Future<?> band : bands) {
+            try {
+               band.get();
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               return image_;
+            } catch (ExecutionException e) {
+               throw new RuntimeException(e.getCause());
+            }
+         }
+      }
+      // Keeps track of one rectangle only; a scrolled view is rendered
+      // whole again
+      if (!rendered_.contains(r)) {
+         rendered_.setBounds(r);
+      }
+      return image_;
+   }
+
+   /**
+    * Returns true if the region was rendered by the last calls.
+    */
+   synchronized boolean hasRendered(Rectangle region) {
+      Rectangle r = new Rectangle(0, 0, width_, height_);
+      if (region != null) {
+         r = r.intersection(region);
+      }
+      return r.isEmpty() || rendered_.contains(r);
+   }
+
+   private void updateTable(int c, LUT lut, double min, double max,
+         int length) {
+      int size = Math.min(256, lut.getMapSize());
+      byte[] reds = new byte[256];
+      byte[] greens = new byte[256];
+      byte[] blues = new byte[256];
+      lut.getReds(reds);
+      lut.getGreens(greens);
+      lut.getBlues(blues);
+      byte[] lutBytes = new byte[768];
+      System.arraycopy(reds, 0, lutBytes, 0, 256);
+      System.arraycopy(greens, 0, lutBytes, 256, 256);
+      System.arraycopy(blues, 0, lutBytes, 512, 256);
+      if (tables_[c] != null && tables_[c].length == length
+            && tableMins_[c] == min && tableMaxs_[c] == max
+            && Arrays.equals(tableLuts_[c], lutBytes)) {
+         return;
+      }
+
+      int[] table = tables_[c] != null && tables_[c].length == length ?
+            tables_[c] : new int[length];
+      for (int v = 0; v < length; v++) {
+         int index = length == 256 ?
+               byteIndex(v, min, max) : shortIndex(v, min, max);
+         if (index > size - 1) {
+            index = size - 1;
+         }
+         table[v] = (reds[index] & 0xff) << 16 | (greens[index] & 0xff) << 8
+               | (blues[index] & 0xff);
+      }
+      tables_[c] = table;
+      tableLuts_[c] = lutBytes;
+      tableMins_[c] = min;
+      tableMaxs_[c] = max;
+   }
+
+   // The LUT index of a pixel value, as ImageJ's ByteProcessor applies the
+   // display range to its LUT
+   private static int byteIndex(int value, double min, double max) {
+      if (value < min) {
+         return 0;
+      }
+      if (value > max) {
+         return 255;
+      }
+      int index = (int) (256.0 * (value - min) / (max - min));
+      return Math.max(0, Math.min(255, index));
+   }
+
+   // The LUT index of a pixel value, as ImageJ's ShortProcessor scales to
+   // 8 bits
+   private static int shortIndex(int value, double min, double max) {
+      int min2 = (int) min;
+      int max2 = (int) max;
+      double scale = 256.0 / (max2 - min2 + 1);
+      int index = value - min2;
+      if (index < 0) {
+         index = 0;
+      }
+      index = (int) (index * scale + 0.5);
+      return index > 255 ? 255 : index;
+   }
+
+   private void renderRows(Rectangle r, int firstRow, int endRow) {
+      int[] rgb = rgb_;
+      boolean first = true;
+      for (int c = 0; c < pixels_.length; c++) {
+         if (!active_[c] || pixels_[c] == null) {
+            continue;
+         }
+         int[] table = tables_[c];
+         for (int y = firstRow; y < endRow; y++) {
+            int start = y * width_ + r.x;
+            int end = start + r.width;
+            if (pixels_[c] instanceof short[]) {
+               short[] p = (short[]) pixels_[c];
+               if (first) {
+                  for (int i = start; i < end; i++) {
+                     rgb[i] = table[p[i] & 0xffff];
+                  }
+               } else {
+                  for (int i = start; i < end; i++) {
+                     rgb[i] = addSaturated(rgb[i], table[p[i] & 0xffff]);
+                  }
+               }
+            } else {
+               byte[] p = (byte[]) pixels_[c];
+               if (first) {
+                  for (int i = start; i < end; i++) {
+                     rgb[i] = table[p[i] & 0xff];
+                  }
+               } else {
+                  for (int i = start; i < end; i++) {
+                     rgb[i] = addSaturated(rgb[i], table[p[i] & 0xff]);
+                  }
+               }
+            }
+         }
+         first = false;
+      }
+      if (first) {
+         // No channel shown
+         for (int y = firstRow; y < endRow; y++) {
+            int start = y * width_ + r.x;
+            Arrays.fill(rgb, start, start + r.width, 0);
+         }
+      }
+   }
+
+   private static int addSaturated(int a, int b) {
+      int red = ((a >> 16) & 0xff) + ((b >> 16) & 0xff);
+      int green = ((a >> 8) & 0xff) + ((b >> 8) & 0xff);
+      int blue = (a & 0xff) + (b & 0xff);
+      return (red > 255 ? 255 : red) << 16 | (green > 255 ? 255 : green) << 8
+            | (blue > 255 ? 255 : blue);
+   }
+}
@@ -4,9 +4,14 @@ import com.google.common.eventbus.EventBus;
 
 import ij.CompositeImage;
 import ij.ImagePlus;
+import ij.gui.ImageCanvas;
 import ij.plugin.frame.ContrastAdjuster;
+import ij.process.ImageProcessor;
 import ij.process.LUT;
 
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
 import java.lang.reflect.InvocationTargetException;
 
 import javax.swing.SwingUtilities;
@@ -20,6 +25,11 @@ public class MMCompositeImage extends CompositeImage implements IMMImagePlus {
    private ImagePlus hyperImage_;
    private String title_;
    private EventBus bus_;
+   private final CompositeRenderer renderer_ = new CompositeRenderer();
+   // True while img holds the renderer's image rather than ImageJ's
+   private volatile boolean rendered_ = false;
+   private int renderedSlice_ = -1;
+   private int renderedFrame_ = -1;
 
    MMCompositeImage(ImagePlus imgp, int type, String title, EventBus bus) {
       super(imgp, type);
@@ -119,7 +129,111 @@ public class MMCompositeImage extends CompositeImage implements IMMImagePlus {
 
    @Override
    public synchronized void updateImage() {
-        superUpdateImage();
+      updateImageInternal();
+   }
+
+   private void updateImageInternal() {
+      if (renderComposite()) {
+         return;
+      }
+      if (rendered_) {
+         // Let ImageJ put its own image back
+         img = null;
+         rendered_ = false;
+      }
+      superUpdateImage();
+   }
+
+   /*
+    * Renders the composite view ourselves instead of through ImageJ: only
+    * the part shown in the window, and with LUT tables that are reused as
+    * long as the contrast settings stay the same. Returns false, leaving it
+    * to ImageJ, for other display modes and pixel types.
+    */
+   private boolean renderComposite() {
+      int nChannels = getNChannels();
+      int bitDepth = getBitDepth();
+      boolean[] active = getActiveChannels();
+      if (getMode() != COMPOSITE || nChannels < 2
+            || (bitDepth != 8 && bitDepth != 16)
+            || active == null || active.length < nChannels) {
+         return false;
+      }
+      int slice = getSlice();
+      int frame = getFrame();
+      // As ImageJ does, take the channel pixels from the stack when the
+      // slice or frame has changed; otherwise they may have been set
+      // directly
+      boolean newPosition = slice != renderedSlice_ || frame != renderedFrame_;
+      Object[] pixels = new Object[nChannels];
+      LUT[] luts = new LUT[nChannels];
+      double[] mins = new double[nChannels];
+      double[] maxs = new double[nChannels];
+      for (int c = 0; c < nChannels; c++) {
+         ImageProcessor proc = getProcessor(c + 1);
+         if (proc == null || proc.getWidth() != getWidth()
+               || proc.getHeight() != getHeight()) {
+            return false;
+         }
+         if (newPosition) {
+            Object stackPixels = getImageStack().getPixels(
+                  getStackIndex(c + 1, slice, frame));
+            if (stackPixels != null) {
+               proc.setPixels(stackPixels);
+            }
+         }
+         pixels[c] = proc.getPixels();
+         luts[c] = getChannelLut(c + 1);
+         if (!CompositeRenderer.canRender(pixels[c]) || luts[c] == null) {
+            return false;
+         }
+         mins[c] = proc.getMin();
+         maxs[c] = proc.getMax();
+      }
+      renderedSlice_ = slice;
+      renderedFrame_ = frame;
+      img = renderer_.render(getWidth(), getHeight(), pixels, luts, mins, maxs,
+            active, getViewport());
+      rendered_ = true;
+      return true;
+   }
+
+   private Rectangle getViewport() {
+      ImageCanvas canvas = getCanvas();
+      return canvas == null ? null : canvas.getSrcRect();
+   }
+
+   /*
+    * Called when painting; renders what scrolled into view since the last
+    * update
+    */
+   @Override
+   public Image getImage() {
+      if (rendered_) {
+         Rectangle viewport = getViewport();
+         if (!renderer_.hasRendered(viewport)) {
+            img = renderer_.renderRegion(viewport);
+         }
+      }
+      return super.getImage();
+   }
+
+   @Override
+   public BufferedImage getBufferedImage() {
+      renderWholeImage();
+      return super.getBufferedImage();
+   }
+
+   @Override
+   public ImagePlus flatten() {
+      renderWholeImage();
+      return super.flatten();
+   }
+
+   private void renderWholeImage() {
+      if (rendered_) {
+         img = renderer_.renderRegion(null);
+      }
    }
 
    private void superUpdateImage() {
@@ -169,7 +283,7 @@ public class MMCompositeImage extends CompositeImage implements IMMImagePlus {
       }
       CanvasPaintPending.setPaintPending(super.getCanvas(), this);
       try {
-         superUpdateImage();
+         updateImageInternal();
       } catch (ArrayIndexOutOfBoundsException aex) {
          ReportingUtils.logError(aex);
          CanvasPaintPending.removePaintPending(super.getCanvas(), this);
@@ -0,0 +1,313 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          PlaneReadAhead.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package org.micromanager.imagedisplay;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import mmcorej.TaggedImage;
+
+import org.micromanager.api.TaggedImageStorage;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Keeps the planes around the one displayed in memory while the display is
+ * animated or scrolled, so that playback from disk does not wait for each
+ * plane to be read.
+ *
+ * The requests are watched to find the axis (slice, frame or position)
+ * that is moving, and in which direction and at what rate. The planes
+ * further along that axis are then read on background threads, as many as
+ * are shown in about a second at the current rate. Planes are kept, least
+ * recently used first out, up to a memory budget.
+ *
+ * Only meant for image storage whose contents no longer change.
+ */
+class PlaneReadAhead {
+
+   // How far ahead to read, in seconds of playback
+   private static final double LEAD_TIME_S = 1.0;
+   private static final int MIN_DEPTH = 2;
+   // A pause longer than this is not part of the playback rate
+   private static final long MAX_STEP_INTERVAL_NS = 2000000000L;
+   private static final int NUM_READERS = 2;
+
+   private static final ExecutorService readers_ =
+         Executors.newFixedThreadPool(NUM_READERS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread thread = new Thread(r, "Playback read-ahead");
+               thread.setDaemon(true);
+               thread.setPriority(Thread.NORM_PRIORITY - 1);
+               return thread;
+            }
+         });
+
+   /**
+    * Returns the default memory budget: an eighth of the maximum heap size,
+    * but no more than 512 MB.
+    */
+   static long getDefaultBudget() {
+      return Math.min(512L << 20, Runtime.getRuntime().maxMemory() / 8);
+   }
+
+   private final TaggedImageStorage storage_;
+   private long budgetBytes_ = getDefaultBudget();
+   private long usedBytes_ = 0;
+   private long planeBytes_ = 0;
+   private int numChannels_ = 1;
+   // In least recently used order
+   private final LinkedHashMap<Key, TaggedImage> planes_ =
+         new LinkedHashMap<Key, TaggedImage>(16, 0.75f, true);
+   private final Set<Key> pending_ = new HashSet<Key>();
+   private boolean closed_ = false;
+
+   // Slice, frame and position of the last plane shown, the axis along
+   // which the display moves (-1 if none), and the step per plane
+   private int[] last_;
+   private int axis_ = -1;
+   private int step_ = 0;
+   private long lastMoveNs_;
+   private double planesPerSec_ = 0;
+
+   PlaneReadAhead(TaggedImageStorage storage) {
+      storage_ = storage;
+   }
+
+   synchronized void setBudget(long bytes) {
+      budgetBytes_ = bytes;
+      evict(null);
+   }
+
+   synchronized long getBudget() {
+      return budgetBytes_;
+   }
+
+   /**
+    * Returns the plane from memory or, if it was not read ahead, from the
+    * storage. Also starts reading the planes expected next.
+    *
+    * @param sizes the number of slices, frames and positions
+    */
+   TaggedImage getImage(int channel, int slice, int frame, int position,
+         int[] sizes) {
+      Key key = new Key(channel, slice, frame, position);
+      TaggedImage image;
+      synchronized (this) {
+         numChannels_ = Math.max(numChannels_, channel + 1);
+         trackMove(new int[] {slice, frame, position}, sizes);
+         image = planes_.get(key);
+         readAhead(channel, sizes);
+      }
+      if (image == null) {
+         image = storage_.getImage(channel, slice, frame, position);
+         keep(key, image);
+      }
+      return image;
+   }
+
+   /**
+    * Drops all planes and stops reading ahead.
+    */
+   synchronized void close() {
+      closed_ = true;
+      planes_.clear();
+      pending_.clear();
+      usedBytes_ = 0;
+   }
+
+   private void trackMove(int[] coords, int[] sizes) {
+      long now = System.nanoTime();
+      if (last_ == null) {
+         last_ = coords;
+         lastMoveNs_ = now;
+         return;
+      }
+      int axis = -1;
+      int numChanged = 0;
+      for (int a = 0; a < coords.length; a++) {
+         if (coords[a] != last_[a]) {
+            axis = a;
+            numChanged++;
+         }
+      }
+      if (numChanged == 0) {
+         return; // Another channel of the same plane
+      }
+      if (numChanged == 1) {
+         int step = coords[axis] - last_[axis];
+         // Playback wraps around from the end to the start
+         int size = sizes[axis];
+         if (size > 0 && Math.abs(step) > size / 2) {
+            step -= Integer.signum(step) * size;
+         }
+         if (axis != axis_ || step != step_) {
+            pending_.clear(); // Queued reads that are no longer needed
+         }
+         axis_ = axis;
+         step_ = step;
+      } else {
+         axis_ = -1;
+         pending_.clear();
+      }
+
+      long interval = now - lastMoveNs_;
+      if (interval > 0 && interval < MAX_STEP_INTERVAL_NS) {
+         double rate = 1e9 / interval;
+         planesPerSec_ = planesPerSec_ == 0 ? rate :
+               0.7 * planesPerSec_ + 0.3 * rate;
+      } else {
+         planesPerSec_ = 0;
+      }
+      last_ = coords;
+      lastMoveNs_ = now;
+   }
+
+   private void readAhead(int channel, int[] sizes) {
+      if (axis_ < 0 || step_ == 0 || closed_) {
+         return;
+      }
+      int size = sizes[axis_];
+      int depth = Math.max(MIN_DEPTH,
+            (int) Math.ceil(planesPerSec_ * LEAD_TIME_S));
+      // Leave half of the budget for the planes already shown
+      if (planeBytes_ > 0) {
+         depth = (int) Math.min(depth,
+               budgetBytes_ / 2 / (planeBytes_ * numChannels_));
+      }
+      depth = Math.min(depth, size - 1);
+      for (int k = 1; k <= depth; k++) {
+         int[] coords = last_.clone();
+         coords[axis_] = ((coords[axis_] + k * step_) % size + size) % size;
+         final Key key = new Key(channel, coords[0], coords[1], coords[2]);
+         if (planes_.containsKey(key) || pending_.contains(key)) {
+            continue;
+         }
+         pending_.add(key);
+         readers_.submit(new Runnable() {
+            @Override
+            public void run() {
+               read(key);
+            }
+         });
+      }
+   }
+
+   private void read(Key key) {
+      synchronized (this) {
+         if (closed_ || !pending_.contains(key)) {
+            return;
+         }
+      }
+      TaggedImage image = null;
+      try {
+         image = storage_.getImage(key.channel_, key.slice_, key.frame_,
+               key.position_);
+      } catch (Exception e) {
+         ReportingUtils.logError(e, "Failed to read ahead " + key);
+      }
+      synchronized (this) {
+         pending_.remove(key);
+      }
+      keep(key, image);
+   }
+
+   private synchronized void keep(Key key, TaggedImage image) {
+      if (image == null || closed_ || planes_.containsKey(key)) {
+         return;
+      }
+      long bytes = getSize(image);
+      if (bytes > budgetBytes_) {
+         return;
+      }
+      planeBytes_ = bytes;
+      planes_.put(key, image);
+      usedBytes_ += bytes;
+      evict(key);
+   }
+
+   private void evict(Key keep) {
+      Iterator<Map.Entry<Key, TaggedImage>> it = planes_.entrySet().iterator();
+      while (usedBytes_ > budgetBytes_ && it.hasNext()) {
+         Map.Entry<Key, TaggedImage> entry = it.next();
+         if (entry.getKey().equals(keep)) {
+            continue;
+         }
+         usedBytes_ -= getSize(entry.getValue());
+         it.remove();
+      }
+   }
+
+   private static long getSize(TaggedImage image) {
+      Object pix = image.pix;
+      if (pix instanceof byte[]) {
+         return ((byte[]) pix).length;
+      } else if (pix instanceof short[]) {
+         return 2L * ((short[]) pix).length;
+      } else if (pix instanceof int[]) {
+         return 4L * ((int[]) pix).length;
+      } else if (pix instanceof float[]) {
+         return 4L * ((float[]) pix).length;
+      }
+      return 0;
+   }
+
+   private static class Key {
+      private final int channel_;
+      private final int slice_;
+      private final int frame_;
+      private final int position_;
+
+      Key(int channel, int slice, int frame, int position) {
+         channel_ = channel;
+         slice_ = slice;
+         frame_ = frame;
+         position_ = position;
+      }
+
+      @Override
+      public boolean equals(Object other) {
+         if (!(other instanceof Key)) {
+            return false;
+         }
+         Key key = (Key) other;
+         return channel_ == key.channel_ && slice_ == key.slice_
+               && frame_ == key.frame_ && position_ == key.position_;
+      }
+
+      @Override
+      public int hashCode() {
+         return ((channel_ * 31 + slice_) * 31 + frame_) * 31 + position_;
+      }
+
+      @Override
+      public String toString() {
+         return "channel " + channel_ + ", slice " + slice_ + ", frame "
+               + frame_ + ", position " + position_;
+      }
+   }
+}
@@ -1166,6 +1166,7 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
       CanvasPaintPending.removeAllPaintPending(hyperImage_.getCanvas());
       bus_.unregister(this);
       imageCache_.finished();
+      virtualStack_.close();
 
       removeFromAcquisitionManager(MMStudio.getInstance());
 
@@ -16,8 +16,11 @@ import org.micromanager.utils.ReportingUtils;
  * Utility class used to to assemble information about the plugin
  */
 public class PluginItem {
-   // raw class as input by caller
+   // raw class as input by caller; null until needed if only the name
+   // was given
    private Class<?> pluginClass_ = null; 
+   // fully qualified name of pluginClass_
+   private String pluginClassName_ = null;
    // MMBasePlugin instance generated in PluginItem
    private MMBasePlugin plugin_ = null;
    // Enum indicating the type of this plugin for when we need to treat
@@ -38,6 +41,7 @@ public class PluginItem {
          PluginType pluginType, String menuItem, String tooltip, 
          String directory, String msg) {
       pluginClass_ = pluginClass;
+      pluginClassName_ = pluginClass.getName();
       className_ = className;
       pluginType_ = pluginType;
       menuItem_ = menuItem;
@@ -46,8 +50,25 @@ public class PluginItem {
       msg_ = msg;
    }
    
+   /**
+    * Describes a plugin without loading its class; the class is loaded
+    * when the plugin is first instantiated.
+    */
+   public PluginItem(String pluginClassName, String className,
+         PluginType pluginType, String menuItem, String tooltip,
+         String directory, String msg) {
+      pluginClassName_ = pluginClassName;
+      className_ = className;
+      pluginType_ = pluginType;
+      menuItem_ = menuItem;
+      tooltip_ = tooltip;
+      directory_ = directory;
+      msg_ = msg;
+   }
+
    public PluginItem(PluginItem pio) {
       pluginClass_ = pio.pluginClass_;
+      pluginClassName_ = pio.pluginClassName_;
       className_ = pio.className_;
       pluginType_ = pio.pluginType_;
       menuItem_ = pio.menuItem_;
@@ -84,6 +105,9 @@ public class PluginItem {
    public void instantiate() {
       try {
          if (plugin_ == null) {
+            if (pluginClass_ == null) {
+               pluginClass_ = Class.forName(pluginClassName_);
+            }
             switch (pluginType_) {
                case PLUGIN_STANDARD:
                   plugin_ = (MMPlugin) pluginClass_.newInstance();
@@ -99,8 +123,12 @@ public class PluginItem {
          ReportingUtils.logError("Failed instantiating plugin: " + e);
       } catch (IllegalAccessException e) {
          ReportingUtils.logError("Failed instantiating plugin: " + e);
+      } catch (ClassNotFoundException e) {
+         ReportingUtils.logError("Failed instantiating plugin: " + e);
+      } catch (NoClassDefFoundError e) {
+         ReportingUtils.logError("Failed instantiating plugin: " + e);
       }
-      if (pluginType_ == PluginType.PLUGIN_STANDARD) {
+      if (pluginType_ == PluginType.PLUGIN_STANDARD && plugin_ != null) {
          ((MMPlugin) plugin_).setApp(MMStudio.getInstance());
       }
    }
@@ -34,6 +34,7 @@ import org.micromanager.api.DataProcessor;
 import org.micromanager.api.MMBasePlugin;
 import org.micromanager.api.MMPlugin;
 import org.micromanager.api.MMProcessorPlugin;
+import org.micromanager.utils.ClassFileInfo;
 import org.micromanager.utils.JavaUtils;
 import org.micromanager.utils.ReportingUtils;
 
@@ -127,6 +128,35 @@ class PluginLoader {
             msg);
    }
 
+   /**
+    * Makes a PluginItem for a standard plugin from its class file, without
+    * loading the class. Returns null if the class does not declare its menu
+    * name as a constant, in which case the class has to be loaded.
+    */
+   private PluginItem declarePlugin(ClassFileInfo info, String dir) {
+      String menuItem = info.getStringConstant("menuName");
+      if (menuItem == null) {
+         return null;
+      }
+      String className = info.getSimpleName();
+      for (PluginItem plugin : plugins_) {
+         if (plugin.getClassName().contentEquals(className)) {
+            return new PluginItem(info.getName(), "", 
+                  PluginType.PLUGIN_STANDARD, "", "", dir, 
+                  className + " already loaded");
+         }
+      }
+      String toolTipDescription = info.getStringConstant("tooltipDescription");
+      if (toolTipDescription == null) {
+         toolTipDescription = "Description not available";
+      }
+      PluginItem pi = new PluginItem(info.getName(), className, 
+            PluginType.PLUGIN_STANDARD, menuItem.replace("_", " "), 
+            toolTipDescription, dir, className + " module loaded.");
+      plugins_.add(pi);
+      return pi;
+   }
+
    private void addPluginToMenuLater(final PluginItem pi) {
       SwingUtilities.invokeLater(
               new Runnable() {
@@ -140,13 +170,18 @@ class PluginLoader {
    /**
     * Discovers Micro-Manager plugins and autofocus plugins at runtime 
     * Adds these to the plugins menu
+    *
+    * Plugins are found from their class files, without loading the classes
+    * in the plugin JARs. Standard plugins that declare their menuName as a
+    * constant are only loaded when first selected from the menu; processor
+    * plugins are loaded to register their processors.
     */
    public void loadPlugins() {
       File pluginRootDir = new File(System.getProperty("org.micromanager.plugin.path", MMPLUGINSDIR));
       File autofocusRootDir = new File(System.getProperty("org.micromanager.autofocus.path", MMAUTOFOCUSDIR));
 
-      ArrayList<Class<?>> autofocusClasses = new ArrayList<Class<?>>();
-      List<Class<?>> classes;
+      ArrayList<String> autofocusClasses = new ArrayList<String>();
+      List<ClassFileInfo> classes;
       ArrayList<PluginItem> pis = new ArrayList<PluginItem>();
       
       FilenameFilter dirFilter = new FilenameFilter() {
@@ -165,24 +200,32 @@ class PluginLoader {
       
       for (String dir : dirs) {
          try {
-            // Use recursion level of 0 for findAndLoadClasses, because we don't
+            // Use recursion level of 0 for findClasses, because we don't
             // want to redundantly search subdirectories here.
-            classes = JavaUtils.findAndLoadClasses(new File(pluginRootDir, dir), 0);
-            for (Class<?> clazz : classes) {
+            classes = JavaUtils.findClasses(new File(pluginRootDir, dir), 0);
+            for (ClassFileInfo info : classes) {
                PluginType pluginType = null;
-               for (Class<?> iface : clazz.getInterfaces()) {
-                  if (iface == MMPlugin.class) {
-                     pluginType = PluginType.PLUGIN_STANDARD;
-                  }
-                  else if (iface == MMProcessorPlugin.class) {
-                     pluginType = PluginType.PLUGIN_PROCESSOR;
-                  }
+               if (info.implementsInterface(MMPlugin.class)) {
+                  pluginType = PluginType.PLUGIN_STANDARD;
+               }
+               else if (info.implementsInterface(MMProcessorPlugin.class)) {
+                  pluginType = PluginType.PLUGIN_PROCESSOR;
                }
                if (pluginType != null) {
                   // This class implements a valid plugin type; make a
                   // PluginItem out of it.
                   try {
-                     ReportingUtils.logMessage("Installing plugin " + clazz.getName() + "...");
+                     ReportingUtils.logMessage("Installing plugin " + info.getName() + "...");
+                     if (pluginType == PluginType.PLUGIN_STANDARD) {
+                        PluginItem pi = declarePlugin(info, dir);
+                        if (pi != null) {
+                           if (!pi.getClassName().isEmpty()) {
+                              pis.add(pi);
+                           }
+                           continue;
+                        }
+                     }
+                     Class<?> clazz = Class.forName(info.getName());
                      PluginItem pi = declarePlugin(clazz, dir, pluginType);
                      if (pi == null) {
                         // Declaring the plugin failed.
@@ -202,7 +245,9 @@ class PluginLoader {
                         pis.add(pi);
                      }
                   } catch (Exception e) {
-                     ReportingUtils.logError(e, "Failed to install the \"" + clazz.getName() + "\" plugin.");
+                     ReportingUtils.logError(e, "Failed to install the \"" + info.getName() + "\" plugin.");
+                  } catch (LinkageError e) {
+                     ReportingUtils.logError(e, "Failed to install the \"" + info.getName() + "\" plugin.");
                   }
                }
             }
@@ -221,21 +266,19 @@ class PluginLoader {
 
 
       // Install Autofocus classes found in mmautofocus
-      classes = JavaUtils.findAndLoadClasses(autofocusRootDir, 2);
-      for (Class<?> clazz : classes) {
-         for (Class<?> iface : clazz.getInterfaces()) {
-            if (iface == Autofocus.class) {
-               autofocusClasses.add(clazz);
-            }
+      classes = JavaUtils.findClasses(autofocusRootDir, 2);
+      for (ClassFileInfo info : classes) {
+         if (info.implementsInterface(Autofocus.class)) {
+            autofocusClasses.add(info.getName());
          }
       }
 
-      for (Class<?> autofocus : autofocusClasses) {
+      for (String autofocus : autofocusClasses) {
          try {
-            ReportingUtils.logMessage("Attempting to install autofocus plugin " + autofocus.getName());
-            MMStudio.getInstance().installAutofocusPlugin(autofocus.getName());
+            ReportingUtils.logMessage("Attempting to install autofocus plugin " + autofocus);
+            MMStudio.getInstance().installAutofocusPlugin(autofocus);
          } catch (Exception e) {
-            ReportingUtils.logError("Failed to install the \"" + autofocus.getName() + "\" autofocus plugin.");
+            ReportingUtils.logError("Failed to install the \"" + autofocus + "\" autofocus plugin.");
          }
       }
 
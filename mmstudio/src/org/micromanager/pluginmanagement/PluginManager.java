@@ -108,6 +108,9 @@ public class PluginManager {
    private void displayPlugin(final PluginItem plugin) {
       ReportingUtils.logMessage("Plugin command: " + plugin.getMenuItem());
       plugin.instantiate();
+      if (plugin.getPlugin() == null) {
+         return; // Logged by instantiate()
+      }
       switch (plugin.getPluginType()) {
          case PLUGIN_STANDARD:
             // Standard plugin; create its UI.
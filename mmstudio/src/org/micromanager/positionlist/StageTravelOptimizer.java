@@ -0,0 +1,487 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          StageTravelOptimizer.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package org.micromanager.positionlist;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import mmcorej.CMMCore;
+import mmcorej.StrVector;
+
+import org.micromanager.api.MultiStagePosition;
+import org.micromanager.api.PositionList;
+import org.micromanager.api.StagePosition;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Finds an order in which to visit stage positions that keeps the total
+ * stage travel time short: a nearest-neighbour tour, improved with 2-opt
+ * moves until no move helps.
+ *
+ * The time to move between two positions is estimated per stage: an XY
+ * stage moves both axes at once (so the slower axis counts), a single-axis
+ * stage moves with the Z speed, and different stages move at the same time.
+ * Stages that only one of the two positions uses are ignored. Speeds
+ * default to 1, i.e. travel time is the distance; setSpeedsFromDevices()
+ * takes them from the stage devices where possible.
+ *
+ * The first position always stays first. A position whose AUTOFOCUS
+ * property is "incremental" starts from the focus found at the position
+ * before it, so it stays directly behind that position.
+ */
+public class StageTravelOptimizer {
+
+   private double xSpeed_ = 1.0;
+   private double ySpeed_ = 1.0;
+   private double zSpeed_ = 1.0;
+   private boolean closedTour_ = false;
+   private int maxPasses_ = 100;
+
+   /**
+    * Sets the speeds of the XY stage axes, in um/s. Only the ratios between
+    * the speeds affect the order.
+    */
+   public void setXYSpeed(double xSpeedUmPerS, double ySpeedUmPerS) {
+      xSpeed_ = xSpeedUmPerS;
+      ySpeed_ = ySpeedUmPerS;
+   }
+
+   /**
+    * Sets the speed of single-axis (focus) stages, in um/s.
+    */
+   public void setZSpeed(double zSpeedUmPerS) {
+      zSpeed_ = zSpeedUmPerS;
+   }
+
+   public double getXSpeed() {
+      return xSpeed_;
+   }
+
+   public double getYSpeed() {
+      return ySpeed_;
+   }
+
+   public double getZSpeed() {
+      return zSpeed_;
+   }
+
+   /**
+    * Takes the speeds from the given XY and focus stage devices, as far as
+    * they report the speed in a property whose name includes the unit, such
+    * as "SpeedX [mm/s]", "MotorSpeed-S(mm/s)" or "XYSpeed(um/s)". If only
+    * the XY speeds are known, they are scaled so that the faster axis has
+    * speed 1, the same as the default Z speed. Otherwise the defaults are
+    * kept.
+    * @param core - the core to read the properties from
+    * @param xyStage - XY stage device label, may be empty
+    * @param zStage - focus stage device label, may be empty
+    */
+   public void setSpeedsFromDevices(CMMCore core, String xyStage,
+         String zStage) {
+      double xSpeed = Double.NaN;
+      double ySpeed = Double.NaN;
+      double zSpeed = Double.NaN;
+      if (xyStage != null && xyStage.length() > 0) {
+         xSpeed = getDeviceSpeedUmPerS(core, xyStage, 'x');
+         ySpeed = getDeviceSpeedUmPerS(core, xyStage, 'y');
+      }
+      if (zStage != null && zStage.length() > 0) {
+         zSpeed = getDeviceSpeedUmPerS(core, zStage, 'z');
+      }
+      if (Double.isNaN(xSpeed) || Double.isNaN(ySpeed)) {
+         return;
+      }
+      if (Double.isNaN(zSpeed)) {
+         double fastest = Math.max(xSpeed, ySpeed);
+         setXYSpeed(xSpeed / fastest, ySpeed / fastest);
+      } else {
+         setXYSpeed(xSpeed, ySpeed);
+         setZSpeed(zSpeed);
+      }
+      ReportingUtils.logMessage("Stage travel optimization uses speeds X "
+            + xSpeed + ", Y " + ySpeed + ", Z " + zSpeed + " um/s");
+   }
+
+   /**
+    * Returns the speed of the given axis of a stage device in um/s, or NaN
+    * if the device has no suitable speed property. A property for the axis
+    * (e.g. "SpeedX [mm/s]") is preferred over one for all axes.
+    */
+   private static double getDeviceSpeedUmPerS(CMMCore core, String device,
+         char axis) {
+      double axisSpeed = Double.NaN;
+      double speed = Double.NaN;
+      try {
+         StrVector names = core.getDevicePropertyNames(device);
+         for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            char nameAxis = getSpeedPropertyAxis(name);
+            if (nameAxis != axis && nameAxis != ' ') {
+               continue;
+            }
+            double value = parseSpeedUmPerS(name,
+                  core.getProperty(device, name));
+            if (!Double.isNaN(value)) {
+               if (nameAxis == axis) {
+                  axisSpeed = value;
+               } else {
+                  speed = value;
+               }
+            }
+         }
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex, "Failed to read the speed of " + device);
+      }
+      return Double.isNaN(axisSpeed) ? speed : axisSpeed;
+   }
+
+   /**
+    * Returns the axis a speed property is for: 'x', 'y' or 'z', ' ' if it
+    * is for all axes, or 0 if the property is not a current speed.
+    */
+   static char getSpeedPropertyAxis(String propertyName) {
+      String name = propertyName.toLowerCase(Locale.US).replace(" ", "");
+      int unit = name.indexOf('(');
+      if (unit < 0) {
+         unit = name.indexOf('[');
+      }
+      if (unit >= 0) {
+         name = name.substring(0, unit);
+      }
+      if (name.contains("max") || name.contains("min")
+            || name.contains("joystick") || name.contains("acceleration")) {
+         return 0;
+      }
+      int keyword = name.indexOf("speed");
+      int keywordLength = 5;
+      if (keyword < 0) {
+         keyword = name.indexOf("velocity");
+         keywordLength = 8;
+      }
+      if (keyword < 0) {
+         return 0;
+      }
+      String prefix = name.substring(0, keyword);
+      String suffix = name.substring(keyword + keywordLength);
+      if (prefix.length() == 1 && "xyz".indexOf(prefix.charAt(0)) >= 0) {
+         return prefix.charAt(0);
+      }
+      if (suffix.length() > 0 && Character.isLetter(suffix.charAt(0))
+            && (suffix.length() == 1 || !Character.isLetter(suffix.charAt(1)))) {
+         // A single axis letter, which may be an axis other than X, Y, Z
+         return "xyz".indexOf(suffix.charAt(0)) >= 0 ? suffix.charAt(0) : 0;
+      }
+      return ' ';
+   }
+
+   /**
+    * Returns the value of a speed property in um/s, using the unit in the
+    * property name; NaN if there is no known unit or the value is not a
+    * positive number.
+    */
+   static double parseSpeedUmPerS(String propertyName, String value) {
+      String name = propertyName.toLowerCase(Locale.US).replace(" ", "");
+      double factor;
+      if (name.contains("mm/s")) {
+         factor = 1000;
+      } else if (name.contains("um/s") || name.contains("micron/s")
+            || name.contains("\u00b5m/s")) {
+         factor = 1;
+      } else {
+         return Double.NaN;
+      }
+      try {
+         double speed = Double.parseDouble(value.trim()) * factor;
+         return speed > 0 && !Double.isInfinite(speed) ? speed : Double.NaN;
+      } catch (NumberFormatException ex) {
+         return Double.NaN;
+      }
+   }
+
+   /**
+    * When true, the travel back from the last to the first position is
+    * counted too, as in a time lapse that visits the positions repeatedly.
+    */
+   public void setClosedTour(boolean closedTour) {
+      closedTour_ = closedTour;
+   }
+
+   public boolean isClosedTour() {
+      return closedTour_;
+   }
+
+   /**
+    * Limits the number of 2-opt improvement passes over the tour.
+    */
+   public void setMaxPasses(int maxPasses) {
+      maxPasses_ = maxPasses;
+   }
+
+   /**
+    * Returns the positions in travel-optimized order. The positions are not
+    * copied.
+    */
+   public MultiStagePosition[] optimize(MultiStagePosition[] positions) {
+      int[] order = computeOrder(positions);
+      MultiStagePosition[] result = new MultiStagePosition[order.length];
+      for (int i = 0; i < order.length; i++) {
+         result[i] = positions[order[i]];
+      }
+      return result;
+   }
+
+   /**
+    * Returns the indices of positions in travel-optimized order. If the
+    * thread is interrupted, the improvement stops early and the order found
+    * so far is returned; the interrupt status is kept.
+    */
+   public int[] computeOrder(MultiStagePosition[] positions) {
+      Coordinates coords = new Coordinates(positions);
+      List<int[]> chains = makeChains(positions);
+      int n = chains.size();
+      int[] first = new int[n];
+      int[] last = new int[n];
+      for (int i = 0; i < n; i++) {
+         int[] chain = chains.get(i);
+         first[i] = chain[0];
+         last[i] = chain[chain.length - 1];
+      }
+
+      int[] tour = nearestNeighbourTour(coords, first, last);
+      improveWithTwoOpt(coords, first, last, tour);
+
+      int[] order = new int[positions.length];
+      int k = 0;
+      for (int c : tour) {
+         for (int index : chains.get(c)) {
+            order[k++] = index;
+         }
+      }
+      return order;
+   }
+
+   /**
+    * Returns the estimated travel time, in s, when visiting the positions
+    * in the given order (e.g. {0, 1, 2, ...} for the list order).
+    */
+   public double getTravelTime(MultiStagePosition[] positions, int[] order) {
+      Coordinates coords = new Coordinates(positions);
+      double time = 0;
+      for (int i = 1; i < order.length; i++) {
+         time += coords.travelTime(order[i - 1], order[i]);
+      }
+      if (closedTour_ && order.length > 1) {
+         time += coords.travelTime(order[order.length - 1], order[0]);
+      }
+      return time;
+   }
+
+   /**
+    * Groups each position with the incremental-autofocus positions that
+    * directly follow it. Chains are visited as a whole.
+    */
+   private static List<int[]> makeChains(MultiStagePosition[] positions) {
+      List<int[]> chains = new ArrayList<int[]>();
+      int start = 0;
+      for (int i = 1; i <= positions.length; i++) {
+         if (i == positions.length || !isIncremental(positions[i])) {
+            int[] chain = new int[i - start];
+            for (int j = 0; j < chain.length; j++) {
+               chain[j] = start + j;
+            }
+            chains.add(chain);
+            start = i;
+         }
+      }
+      return chains;
+   }
+
+   private static boolean isIncremental(MultiStagePosition msp) {
+      return msp.hasProperty(PositionList.AF_KEY)
+            && PositionList.AF_VALUE_INCREMENTAL.equals(
+                  msp.getProperty(PositionList.AF_KEY));
+   }
+
+   private int[] nearestNeighbourTour(Coordinates coords, int[] first,
+         int[] last) {
+      int n = first.length;
+      int[] tour = new int[n];
+      boolean[] visited = new boolean[n];
+      if (n == 0) {
+         return tour;
+      }
+      visited[0] = true;
+      for (int i = 1; i < n; i++) {
+         int from = last[tour[i - 1]];
+         int best = -1;
+         double bestTime = Double.POSITIVE_INFINITY;
+         for (int c = 1; c < n; c++) {
+            if (!visited[c]) {
+               double time = coords.travelTime(from, first[c]);
+               if (time < bestTime) {
+                  bestTime = time;
+                  best = c;
+               }
+            }
+         }
+         tour[i] = best;
+         visited[best] = true;
+      }
+      return tour;
+   }
+
+   /**
+    * Reverses sections tour[i..j] (never the first entry) while that
+    * shortens the tour. A reversed section is traveled backwards, which for
+    * chains changes the edge times, so forward and backward edge times
+    * along the tour are kept as prefix sums.
+    */
+   private void improveWithTwoOpt(Coordinates coords, int[] first, int[] last,
+         int[] tour) {
+      int n = tour.length;
+      if (n < 3) {
+         return;
+      }
+      // forward[k]: time of edges tour[0]->...->tour[k] traveled as is;
+      // backward[k]: the same edges traveled in the opposite direction
+      double[] forward = new double[n];
+      double[] backward = new double[n];
+      for (int pass = 0; pass < maxPasses_; pass++) {
+         boolean improved = false;
+         for (int i = 1; i < n - 1; i++) {
+            if (Thread.currentThread().isInterrupted()) {
+               return;
+            }
+            sumEdges(coords, first, last, tour, forward, backward);
+            int a = tour[i - 1];
+            for (int j = i + 1; j < n; j++) {
+               int b = tour[j];
+               double before = coords.travelTime(last[a], first[tour[i]])
+                     + forward[j] - forward[i];
+               double after = coords.travelTime(last[a], first[b])
+                     + backward[j] - backward[i];
+               int next = -1;
+               if (j < n - 1) {
+                  next = tour[j + 1];
+               } else if (closedTour_) {
+                  next = tour[0];
+               }
+               if (next >= 0) {
+                  before += coords.travelTime(last[b], first[next]);
+                  after += coords.travelTime(last[tour[i]], first[next]);
+               }
+               if (after < before - 1e-9 * Math.max(1.0, before)) {
+                  reverse(tour, i, j);
+                  sumEdges(coords, first, last, tour, forward, backward);
+                  improved = true;
+               }
+            }
+         }
+         if (!improved) {
+            break;
+         }
+      }
+   }
+
+   private static void sumEdges(Coordinates coords, int[] first, int[] last,
+         int[] tour, double[] forward, double[] backward) {
+      forward[0] = 0;
+      backward[0] = 0;
+      for (int k = 1; k < tour.length; k++) {
+         forward[k] = forward[k - 1]
+               + coords.travelTime(last[tour[k - 1]], first[tour[k]]);
+         backward[k] = backward[k - 1]
+               + coords.travelTime(last[tour[k]], first[tour[k - 1]]);
+      }
+   }
+
+   private static void reverse(int[] tour, int i, int j) {
+      while (i < j) {
+         int tmp = tour[i];
+         tour[i] = tour[j];
+         tour[j] = tmp;
+         i++;
+         j--;
+      }
+   }
+
+   /**
+    * The stage coordinates of all positions, in arrays for quick access.
+    */
+   private class Coordinates {
+      // Per stage: 1 or 2 axes
+      private final int[] numAxes_;
+      // [position][stage] -> x, and y for XY stages; NaN if not set
+      private final double[][] x_;
+      private final double[][] y_;
+
+      Coordinates(MultiStagePosition[] positions) {
+         Map<String, Integer> stages = new LinkedHashMap<String, Integer>();
+         for (MultiStagePosition msp : positions) {
+            for (int i = 0; i < msp.size(); i++) {
+               StagePosition sp = msp.get(i);
+               if (!stages.containsKey(sp.stageName)) {
+                  stages.put(sp.stageName, sp.numAxes);
+               }
+            }
+         }
+         numAxes_ = new int[stages.size()];
+         int s = 0;
+         for (Integer axes : stages.values()) {
+            numAxes_[s++] = axes;
+         }
+         x_ = new double[positions.length][stages.size()];
+         y_ = new double[positions.length][stages.size()];
+         for (int p = 0; p < positions.length; p++) {
+            s = 0;
+            for (String stage : stages.keySet()) {
+               StagePosition sp = positions[p].get(stage);
+               x_[p][s] = sp == null ? Double.NaN : sp.x;
+               y_[p][s] = sp == null ? Double.NaN : sp.y;
+               s++;
+            }
+         }
+      }
+
+      double travelTime(int from, int to) {
+         double time = 0;
+         double[] x0 = x_[from];
+         double[] x1 = x_[to];
+         for (int s = 0; s < numAxes_.length; s++) {
+            if (Double.isNaN(x0[s]) || Double.isNaN(x1[s])) {
+               continue;
+            }
+            double t;
+            if (numAxes_[s] == 2) {
+               t = Math.max(Math.abs(x1[s] - x0[s]) / xSpeed_,
+                     Math.abs(y_[to][s] - y_[from][s]) / ySpeed_);
+            } else {
+               t = Math.abs(x1[s] - x0[s]) / zSpeed_;
+            }
+            time = Math.max(time, t);
+         }
+         return time;
+      }
+   }
+}
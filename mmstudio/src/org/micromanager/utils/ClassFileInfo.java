@@ -0,0 +1,201 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ClassFileInfo.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package org.micromanager.utils;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+
+/**
+ * What a class file says about its class, read from the class file bytes
+ * without loading the class: its name, the interfaces it implements
+ * directly, and the values of its static final String fields (such as a
+ * plugin's menuName).
+ */
+public class ClassFileInfo implements Serializable {
+   private static final long serialVersionUID = 1L;
+
+   private static final int MAGIC = 0xCAFEBABE;
+
+   private final String name_;
+   private final String[] interfaces_;
+   private final HashMap<String, String> stringConstants_;
+
+   private ClassFileInfo(String name, String[] interfaces,
+         HashMap<String, String> stringConstants) {
+      name_ = name;
+      interfaces_ = interfaces;
+      stringConstants_ = stringConstants;
+   }
+
+   /**
+    * Returns the fully qualified name, e.g. "org.micromanager.MMStudio".
+    */
+   public String getName() {
+      return name_;
+   }
+
+   public String getSimpleName() {
+      String name = name_.substring(name_.lastIndexOf('.') + 1);
+      return name.substring(name.lastIndexOf('$') + 1);
+   }
+
+   /**
+    * Returns the fully qualified names of the interfaces that the class
+    * implements directly (not through its superclasses), like
+    * Class.getInterfaces().
+    */
+   public String[] getInterfaces() {
+      return interfaces_.clone();
+   }
+
+   /**
+    * Returns true if the class directly implements the interface.
+    */
+   public boolean implementsInterface(Class<?> iface) {
+      for (String name : interfaces_) {
+         if (name.equals(iface.getName())) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Returns the value of a static final String field that is initialized
+    * with a constant, or null if there is no such field.
+    */
+   public String getStringConstant(String fieldName) {
+      return stringConstants_.get(fieldName);
+   }
+
+   /**
+    * Reads a class file.
+    *
+    * @throws IOException if the stream is not a valid class file
+    */
+   public static ClassFileInfo read(InputStream stream) throws IOException {
+      DataInputStream in = new DataInputStream(stream);
+      if (in.readInt() != MAGIC) {
+         throw new IOException("Not a class file");
+      }
+      in.readUnsignedShort(); // minor version
+      in.readUnsignedShort(); // major version
+
+      // Constant pool; we need the class names and strings
+      int count = in.readUnsignedShort();
+      String[] utf8 = new String[count];
+      int[] refs = new int[count];
+      for (int i = 1; i < count; i++) {
+         int tag = in.readUnsignedByte();
+         switch (tag) {
+            case 1: // Utf8
+               utf8[i] = in.readUTF();
+               break;
+            case 7: // Class
+            case 8: // String
+               refs[i] = in.readUnsignedShort();
+               break;
+            case 16: // MethodType
+            case 19: // Module
+            case 20: // Package
+               in.readUnsignedShort();
+               break;
+            case 15: // MethodHandle
+               in.readUnsignedByte();
+               in.readUnsignedShort();
+               break;
+            case 3: // Integer
+            case 4: // Float
+            case 9: // Fieldref
+            case 10: // Methodref
+            case 11: // InterfaceMethodref
+            case 12: // NameAndType
+            case 17: // Dynamic
+            case 18: // InvokeDynamic
+               in.readInt();
+               break;
+            case 5: // Long
+            case 6: // Double
+               in.readLong();
+               i++; // Takes two entries
+               break;
+            default:
+               throw new IOException("Unknown constant pool tag " + tag);
+         }
+      }
+
+      in.readUnsignedShort(); // access flags
+      String name = className(utf8, refs, in.readUnsignedShort());
+      in.readUnsignedShort(); // superclass
+      String[] interfaces = new String[in.readUnsignedShort()];
+      for (int i = 0; i < interfaces.length; i++) {
+         interfaces[i] = className(utf8, refs, in.readUnsignedShort());
+      }
+
+      HashMap<String, String> constants = new HashMap<String, String>();
+      int numFields = in.readUnsignedShort();
+      for (int f = 0; f < numFields; f++) {
+         int access = in.readUnsignedShort();
+         String fieldName = utf8[in.readUnsignedShort()];
+         String descriptor = utf8[in.readUnsignedShort()];
+         boolean isStringConstant = Modifier.isStatic(access)
+               && Modifier.isFinal(access)
+               && "Ljava/lang/String;".equals(descriptor);
+         int numAttributes = in.readUnsignedShort();
+         for (int a = 0; a < numAttributes; a++) {
+            String attribute = utf8[in.readUnsignedShort()];
+            int length = in.readInt();
+            if (isStringConstant && "ConstantValue".equals(attribute)
+                  && length == 2) {
+               constants.put(fieldName, utf8[refs[in.readUnsignedShort()]]);
+            } else {
+               skipFully(in, length);
+            }
+         }
+      }
+      // Methods and class attributes are not needed
+      return new ClassFileInfo(name, interfaces, constants);
+   }
+
+   private static String className(String[] utf8, int[] refs, int index) {
+      return utf8[refs[index]].replace('/', '.');
+   }
+
+   private static void skipFully(DataInputStream in, int length)
+         throws IOException {
+      while (length > 0) {
+         int skipped = in.skipBytes(length);
+         if (skipped <= 0) {
+            throw new IOException("Unexpected end of class file");
+         }
+         length -= skipped;
+      }
+   }
+
+   @Override
+   public String toString() {
+      return name_;
+   }
+}
@@ -0,0 +1,199 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ClassIndex.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package org.micromanager.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * An index of the classes in JAR files, as ClassFileInfo, saved between
+ * sessions so that JARs are only read again when they have changed (in
+ * path, size or modification time).
+ *
+ * Only classes that implement interfaces are indexed, since the index is
+ * used to find the classes that implement a given interface.
+ */
+public class ClassIndex {
+
+   private static final String INDEX_FILE_NAME = "ClassIndex.ser";
+
+   private static ClassIndex instance_;
+
+   /**
+    * Returns the index stored in the application data directory.
+    */
+   public static synchronized ClassIndex getInstance() {
+      if (instance_ == null) {
+         String dataPath = JavaUtils.getApplicationDataPath();
+         instance_ = new ClassIndex(dataPath == null ? null :
+               new File(dataPath, INDEX_FILE_NAME));
+      }
+      return instance_;
+   }
+
+   private static class JarContents implements Serializable {
+      private static final long serialVersionUID = 1L;
+      private final long size_;
+      private final long lastModified_;
+      private final ArrayList<ClassFileInfo> classes_;
+
+      JarContents(long size, long lastModified,
+            ArrayList<ClassFileInfo> classes) {
+         size_ = size;
+         lastModified_ = lastModified;
+         classes_ = classes;
+      }
+   }
+
+   private final File file_;
+   // Absolute JAR path -> contents
+   private HashMap<String, JarContents> jars_;
+   private boolean changed_ = false;
+
+   /**
+    * @param file where the index is kept; null to not keep it
+    */
+   public ClassIndex(File file) {
+      file_ = file;
+   }
+
+   /**
+    * Returns the classes in the JAR that implement interfaces, from the
+    * index if the JAR has not changed. Can be called from several threads
+    * at once.
+    */
+   public List<ClassFileInfo> getClasses(File jar) throws IOException {
+      String path = jar.getAbsolutePath();
+      long size = jar.length();
+      long lastModified = jar.lastModified();
+      synchronized (this) {
+         load();
+         JarContents contents = jars_.get(path);
+         if (contents != null && contents.size_ == size
+               && contents.lastModified_ == lastModified) {
+            return contents.classes_;
+         }
+      }
+
+      ArrayList<ClassFileInfo> classes = readJar(jar);
+      synchronized (this) {
+         jars_.put(path, new JarContents(size, lastModified, classes));
+         changed_ = true;
+      }
+      return classes;
+   }
+
+   private static ArrayList<ClassFileInfo> readJar(File jar) throws IOException {
+      ArrayList<ClassFileInfo> classes = new ArrayList<ClassFileInfo>();
+      JarFile jarFile = new JarFile(jar);
+      try {
+         Enumeration<JarEntry> entries = jarFile.entries();
+         while (entries.hasMoreElements()) {
+            JarEntry entry = entries.nextElement();
+            if (!entry.getName().endsWith(".class")) {
+               continue;
+            }
+            InputStream in = new BufferedInputStream(
+                  jarFile.getInputStream(entry));
+            try {
+               ClassFileInfo info = ClassFileInfo.read(in);
+               if (info.getInterfaces().length > 0) {
+                  classes.add(info);
+               }
+            } catch (IOException e) {
+               ReportingUtils.logError(e, "Failed to read class " +
+                     entry.getName() + " in " + jar.getAbsolutePath());
+            } finally {
+               in.close();
+            }
+         }
+      } finally {
+         jarFile.close();
+      }
+      return classes;
+   }
+
+   /**
+    * Writes the index to its file, if anything was added to it. Entries of
+    * JARs that no longer exist are dropped.
+    */
+   public synchronized void save() {
+      if (file_ == null || !changed_) {
+         return;
+      }
+      HashMap<String, JarContents> existing = new HashMap<String, JarContents>();
+      for (String path : jars_.keySet()) {
+         if (new File(path).exists()) {
+            existing.put(path, jars_.get(path));
+         }
+      }
+      try {
+         file_.getParentFile().mkdirs();
+         ObjectOutputStream out = new ObjectOutputStream(
+               new BufferedOutputStream(new FileOutputStream(file_)));
+         try {
+            out.writeObject(existing);
+         } finally {
+            out.close();
+         }
+         changed_ = false;
+      } catch (IOException e) {
+         ReportingUtils.logError(e, "Failed to save class index to " + file_);
+      }
+   }
+
+   @SuppressWarnings("unchecked")
+   private void load() {
+      if (jars_ != null) {
+         return;
+      }
+      jars_ = new HashMap<String, JarContents>();
+      if (file_ == null || !file_.exists()) {
+         return;
+      }
+      try {
+         ObjectInputStream in = new ObjectInputStream(
+               new BufferedInputStream(new FileInputStream(file_)));
+         try {
+            jars_ = (HashMap<String, JarContents>) in.readObject();
+         } finally {
+            in.close();
+         }
+      } catch (Exception e) {
+         // Written by another version; start over
+         ReportingUtils.logMessage("Ignoring class index " + file_ + ": " + e);
+      }
+   }
+}
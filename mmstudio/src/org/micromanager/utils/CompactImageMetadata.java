@@ -0,0 +1,447 @@
+package org.micromanager.utils;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Typed, fixed-layout form of the image tags that matter for program flow
+ * (image coordinates, size, pixel type, stage position, timing), together
+ * with the rest of the tags as JSON.
+ *
+ * A record serializes to a compact binary form: a fixed header holding the
+ * typed fields, followed by the JSON text.  Reading a record back only
+ * decodes the header; the JSON is parsed the first time getTags() is
+ * called.  A record made from tags keeps them as they are and only
+ * serializes them when the binary form is asked for, so code that only
+ * needs coordinates (image labels, frame counts, lookups) can avoid
+ * formatting and parsing JSON entirely.
+ *
+ * Missing integer fields are -1, missing floating point fields NaN.
+ */
+public class CompactImageMetadata {
+   public static final int MAGIC = 0x4d4d544d; // "MMTM"
+   public static final short VERSION = 1;
+
+   // Byte offsets in the serialized form
+   private static final int MAGIC_OFFSET = 0;
+   private static final int VERSION_OFFSET = 4;
+   private static final int PIXEL_TYPE_OFFSET = 6;
+   private static final int CHANNEL_OFFSET = 8;
+   private static final int SLICE_OFFSET = 12;
+   private static final int FRAME_OFFSET = 16;
+   private static final int POSITION_OFFSET = 20;
+   private static final int WIDTH_OFFSET = 24;
+   private static final int HEIGHT_OFFSET = 28;
+   private static final int IMAGE_NUMBER_OFFSET = 32;
+   private static final int ELAPSED_TIME_OFFSET = 40;
+   private static final int EXPOSURE_OFFSET = 48;
+   private static final int X_OFFSET = 56;
+   private static final int Y_OFFSET = 64;
+   private static final int Z_OFFSET = 72;
+   private static final int JSON_LENGTH_OFFSET = 80;
+   public static final int HEADER_SIZE = 84;
+
+   private static final String[] PIXEL_TYPES =
+         {"", "GRAY8", "GRAY16", "GRAY32", "RGB32", "RGB64"};
+
+   private int channel_ = -1;
+   private int slice_ = -1;
+   private int frame_ = -1;
+   private int position_ = -1;
+   private int width_ = -1;
+   private int height_ = -1;
+   private int pixelType_ = 0;
+   private long imageNumber_ = -1;
+   private double elapsedTimeMs_ = Double.NaN;
+   private double exposureMs_ = Double.NaN;
+   private double xPositionUm_ = Double.NaN;
+   private double yPositionUm_ = Double.NaN;
+   private double zPositionUm_ = Double.NaN;
+
+   // Either the parsed tags, or the undecoded JSON text (or both)
+   private JSONObject tags_ = null;
+   private ByteBuffer json_ = null;
+   // True when a typed field was changed after the tags were known
+   private boolean typedFieldsChanged_ = false;
+
+   public CompactImageMetadata() {
+   }
+
+   /**
+    * Extracts the typed fields from the given tags.  The tags are kept by
+    * reference, not copied.
+    */
+   public static CompactImageMetadata fromTags(JSONObject tags) {
+      CompactImageMetadata md = new CompactImageMetadata();
+      md.tags_ = tags;
+      try {
+         if (tags.has("ChannelIndex")) {
+            md.channel_ = MDUtils.getChannelIndex(tags);
+         }
+         if (tags.has("SliceIndex") || tags.has("Slice")) {
+            md.slice_ = MDUtils.getSliceIndex(tags);
+         }
+         if (tags.has("Frame") || tags.has("FrameIndex")) {
+            md.frame_ = MDUtils.getFrameIndex(tags);
+         }
+         if (tags.has("PositionIndex")) {
+            md.position_ = MDUtils.getPositionIndex(tags);
+         }
+         if (tags.has("Width")) {
+            md.width_ = MDUtils.getWidth(tags);
+         }
+         if (tags.has("Height")) {
+            md.height_ = MDUtils.getHeight(tags);
+         }
+         if (tags.has("PixelType")) {
+            md.pixelType_ = pixelTypeCode(tags.getString("PixelType"));
+         }
+         if (tags.has("ImageNumber")) {
+            md.imageNumber_ = MDUtils.getSequenceNumber(tags);
+         }
+         if (MDUtils.hasElapsedTimeMs(tags)) {
+            md.elapsedTimeMs_ = MDUtils.getElapsedTimeMs(tags);
+         }
+         if (MDUtils.hasExposureMs(tags)) {
+            md.exposureMs_ = MDUtils.getExposureMs(tags);
+         }
+         if (MDUtils.hasXPositionUm(tags)) {
+            md.xPositionUm_ = MDUtils.getXPositionUm(tags);
+         }
+         if (MDUtils.hasYPositionUm(tags)) {
+            md.yPositionUm_ = MDUtils.getYPositionUm(tags);
+         }
+         if (MDUtils.hasZPositionUm(tags)) {
+            md.zPositionUm_ = MDUtils.getZPositionUm(tags);
+         }
+      } catch (JSONException ex) {
+         ReportingUtils.logError(ex, "Malformed image tags");
+      }
+      return md;
+   }
+
+   /**
+    * Reads a record written by toBuffer() or write(), starting at the
+    * buffer's position.  The JSON part is not parsed here.  The buffer's
+    * position is left unchanged; its contents must not change as long as
+    * the tags of the record have not been asked for.
+    */
+   public static CompactImageMetadata fromBuffer(ByteBuffer buffer) {
+      int base = buffer.position();
+      checkMagic(buffer, base);
+      CompactImageMetadata md = new CompactImageMetadata();
+      md.pixelType_ = buffer.getShort(base + PIXEL_TYPE_OFFSET);
+      md.channel_ = buffer.getInt(base + CHANNEL_OFFSET);
+      md.slice_ = buffer.getInt(base + SLICE_OFFSET);
+      md.frame_ = buffer.getInt(base + FRAME_OFFSET);
+      md.position_ = buffer.getInt(base + POSITION_OFFSET);
+      md.width_ = buffer.getInt(base + WIDTH_OFFSET);
+      md.height_ = buffer.getInt(base + HEIGHT_OFFSET);
+      md.imageNumber_ = buffer.getLong(base + IMAGE_NUMBER_OFFSET);
+      md.elapsedTimeMs_ = buffer.getDouble(base + ELAPSED_TIME_OFFSET);
+      md.exposureMs_ = buffer.getDouble(base + EXPOSURE_OFFSET);
+      md.xPositionUm_ = buffer.getDouble(base + X_OFFSET);
+      md.yPositionUm_ = buffer.getDouble(base + Y_OFFSET);
+      md.zPositionUm_ = buffer.getDouble(base + Z_OFFSET);
+      int jsonLength = buffer.getInt(base + JSON_LENGTH_OFFSET);
+      ByteBuffer json = buffer.duplicate();
+      json.position(base + HEADER_SIZE);
+      json.limit(base + HEADER_SIZE + jsonLength);
+      md.json_ = json.slice();
+      return md;
+   }
+
+   /**
+    * Returns the number of bytes the record at the buffer's position
+    * occupies.
+    */
+   public static int getRecordSize(ByteBuffer buffer) {
+      int base = buffer.position();
+      checkMagic(buffer, base);
+      return HEADER_SIZE + buffer.getInt(base + JSON_LENGTH_OFFSET);
+   }
+
+   private static void checkMagic(ByteBuffer buffer, int base) {
+      if (buffer.getInt(base + MAGIC_OFFSET) != MAGIC) {
+         throw new IllegalArgumentException("Not a compact image metadata record");
+      }
+   }
+
+   /**
+    * Serializes the record into a new direct buffer, positioned at 0.
+    */
+   public ByteBuffer toBuffer() {
+      byte[] json = getJSONBytes();
+      ByteBuffer buffer = ByteBuffer.allocateDirect(HEADER_SIZE + json.length);
+      write(buffer, json);
+      buffer.rewind();
+      return buffer;
+   }
+
+   /**
+    * Appends the serialized record to the given buffer, advancing its
+    * position.
+    */
+   public void write(ByteBuffer buffer) {
+      write(buffer, getJSONBytes());
+   }
+
+   public int getSerializedSize() {
+      return HEADER_SIZE + getJSONBytes().length;
+   }
+
+   private void write(ByteBuffer buffer, byte[] json) {
+      int base = buffer.position();
+      buffer.putInt(base + MAGIC_OFFSET, MAGIC);
+      buffer.putShort(base + VERSION_OFFSET, VERSION);
+      buffer.putShort(base + PIXEL_TYPE_OFFSET, (short) pixelType_);
+      buffer.putInt(base + CHANNEL_OFFSET, channel_);
+      buffer.putInt(base + SLICE_OFFSET, slice_);
+      buffer.putInt(base + FRAME_OFFSET, frame_);
+      buffer.putInt(base + POSITION_OFFSET, position_);
+      buffer.putInt(base + WIDTH_OFFSET, width_);
+      buffer.putInt(base + HEIGHT_OFFSET, height_);
+      buffer.putLong(base + IMAGE_NUMBER_OFFSET, imageNumber_);
+      buffer.putDouble(base + ELAPSED_TIME_OFFSET, elapsedTimeMs_);
+      buffer.putDouble(base + EXPOSURE_OFFSET, exposureMs_);
+      buffer.putDouble(base + X_OFFSET, xPositionUm_);
+      buffer.putDouble(base + Y_OFFSET, yPositionUm_);
+      buffer.putDouble(base + Z_OFFSET, zPositionUm_);
+      buffer.putInt(base + JSON_LENGTH_OFFSET, json.length);
+      buffer.position(base + HEADER_SIZE);
+      buffer.put(json);
+   }
+
+   private byte[] getJSONBytes() {
+      if (json_ != null && !typedFieldsChanged_) {
+         // Unchanged since it was read: no need to go through JSONObject
+         return getJSONBytesFromBuffer();
+      }
+      try {
+         return getTags().toString().getBytes("UTF-8");
+      } catch (UnsupportedEncodingException ex) {
+         ReportingUtils.logError(ex);
+         return new byte[0];
+      }
+   }
+
+   /**
+    * Returns the full tags, parsing the JSON part if that has not happened
+    * yet.  Typed fields that were changed through the setters are written
+    * into the returned tags.
+    */
+   public synchronized JSONObject getTags() {
+      if (tags_ == null) {
+         try {
+            tags_ = json_ == null || json_.remaining() == 0 ? new JSONObject()
+                  : new JSONObject(new String(getJSONBytesFromBuffer(), "UTF-8"));
+         } catch (Exception ex) {
+            ReportingUtils.logError(ex, "Malformed image tags");
+            tags_ = new JSONObject();
+         }
+      }
+      if (typedFieldsChanged_) {
+         applyTypedFields(tags_);
+         typedFieldsChanged_ = false;
+         json_ = null;
+      }
+      return tags_;
+   }
+
+   private byte[] getJSONBytesFromBuffer() {
+      byte[] bytes = new byte[json_.remaining()];
+      json_.duplicate().get(bytes);
+      return bytes;
+   }
+
+   private void applyTypedFields(JSONObject tags) {
+      try {
+         if (channel_ >= 0) {
+            MDUtils.setChannelIndex(tags, channel_);
+         }
+         if (slice_ >= 0) {
+            MDUtils.setSliceIndex(tags, slice_);
+         }
+         if (frame_ >= 0) {
+            MDUtils.setFrameIndex(tags, frame_);
+         }
+         if (position_ >= 0) {
+            MDUtils.setPositionIndex(tags, position_);
+         }
+         if (width_ >= 0) {
+            MDUtils.setWidth(tags, width_);
+         }
+         if (height_ >= 0) {
+            MDUtils.setHeight(tags, height_);
+         }
+         if (pixelType_ > 0) {
+            MDUtils.setPixelTypeFromString(tags, PIXEL_TYPES[pixelType_]);
+         }
+         if (imageNumber_ >= 0) {
+            tags.put("ImageNumber", imageNumber_);
+         }
+         if (!Double.isNaN(elapsedTimeMs_)) {
+            MDUtils.setElapsedTimeMs(tags, elapsedTimeMs_);
+         }
+         if (!Double.isNaN(exposureMs_)) {
+            MDUtils.setExposureMs(tags, exposureMs_);
+         }
+         if (!Double.isNaN(xPositionUm_)) {
+            MDUtils.setXPositionUm(tags, xPositionUm_);
+         }
+         if (!Double.isNaN(yPositionUm_)) {
+            MDUtils.setYPositionUm(tags, yPositionUm_);
+         }
+         if (!Double.isNaN(zPositionUm_)) {
+            MDUtils.setZPositionUm(tags, zPositionUm_);
+         }
+      } catch (JSONException ex) {
+         ReportingUtils.logError(ex);
+      }
+   }
+
+   private static int pixelTypeCode(String pixelType) {
+      for (int i = 1; i < PIXEL_TYPES.length; i++) {
+         if (PIXEL_TYPES[i].equals(pixelType)) {
+            return i;
+         }
+      }
+      return 0;
+   }
+
+   public String getLabel() {
+      return MDUtils.generateLabel(channel_, slice_, frame_, position_);
+   }
+
+   /**
+    * Returns true if the channel, slice, frame and position indices are all
+    * known, i.e. if getLabel() identifies the image.
+    */
+   public boolean hasIndices() {
+      return channel_ >= 0 && slice_ >= 0 && frame_ >= 0 && position_ >= 0;
+   }
+
+   public int getChannelIndex() {
+      return channel_;
+   }
+
+   public synchronized void setChannelIndex(int channel) {
+      channel_ = channel;
+      typedFieldsChanged_ = true;
+   }
+
+   public int getSliceIndex() {
+      return slice_;
+   }
+
+   public synchronized void setSliceIndex(int slice) {
+      slice_ = slice;
+      typedFieldsChanged_ = true;
+   }
+
+   public int getFrameIndex() {
+      return frame_;
+   }
+
+   public synchronized void setFrameIndex(int frame) {
+      frame_ = frame;
+      typedFieldsChanged_ = true;
+   }
+
+   public int getPositionIndex() {
+      return position_;
+   }
+
+   public synchronized void setPositionIndex(int position) {
+      position_ = position;
+      typedFieldsChanged_ = true;
+   }
+
+   public int getWidth() {
+      return width_;
+   }
+
+   public synchronized void setWidth(int width) {
+      width_ = width;
+      typedFieldsChanged_ = true;
+   }
+
+   public int getHeight() {
+      return height_;
+   }
+
+   public synchronized void setHeight(int height) {
+      height_ = height;
+      typedFieldsChanged_ = true;
+   }
+
+   /**
+    * Returns the pixel type as in the "PixelType" tag, or an empty string
+    * if it is not known.
+    */
+   public String getPixelType() {
+      return PIXEL_TYPES[pixelType_];
+   }
+
+   public synchronized void setPixelType(String pixelType) {
+      pixelType_ = pixelTypeCode(pixelType);
+      typedFieldsChanged_ = true;
+   }
+
+   public long getImageNumber() {
+      return imageNumber_;
+   }
+
+   public synchronized void setImageNumber(long imageNumber) {
+      imageNumber_ = imageNumber;
+      typedFieldsChanged_ = true;
+   }
+
+   public double getElapsedTimeMs() {
+      return elapsedTimeMs_;
+   }
+
+   public synchronized void setElapsedTimeMs(double elapsedTimeMs) {
+      elapsedTimeMs_ = elapsedTimeMs;
+      typedFieldsChanged_ = true;
+   }
+
+   public double getExposureMs() {
+      return exposureMs_;
+   }
+
+   public synchronized void setExposureMs(double exposureMs) {
+      exposureMs_ = exposureMs;
+      typedFieldsChanged_ = true;
+   }
+
+   public double getXPositionUm() {
+      return xPositionUm_;
+   }
+
+   public synchronized void setXPositionUm(double xPositionUm) {
+      xPositionUm_ = xPositionUm;
+      typedFieldsChanged_ = true;
+   }
+
+   public double getYPositionUm() {
+      return yPositionUm_;
+   }
+
+   public synchronized void setYPositionUm(double yPositionUm) {
+      yPositionUm_ = yPositionUm;
+      typedFieldsChanged_ = true;
+   }
+
+   public double getZPositionUm() {
+      return zPositionUm_;
+   }
+
+   public synchronized void setZPositionUm(double zPositionUm) {
+      zPositionUm_ = zPositionUm;
+      typedFieldsChanged_ = true;
+   }
+}
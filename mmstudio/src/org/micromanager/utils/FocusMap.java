@@ -0,0 +1,428 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          FocusMap.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package org.micromanager.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A focus surface: Z as a function of stage X and Y, interpolated from
+ * reference points where the focus was measured.
+ *
+ * The reference points are kept in a 2-d tree, and Z at a position is
+ * computed from the nearest few points only, either by inverse distance
+ * weighting (Shepard interpolation) or by fitting a plane through them.
+ * With no more points than neighbors, this is the same as interpolating
+ * from all points.
+ *
+ * For many lookups, Z can be evaluated in advance on a regular grid with
+ * setGrid(); getZ() then interpolates between the grid nodes in constant
+ * time, and is exact on the nodes. Points added later only update the
+ * nodes whose neighbors they change.
+ */
+public class FocusMap {
+
+   public enum Method {
+      /** Inverse distance weighting of the neighbors' Z */
+      INVERSE_DISTANCE,
+      /**
+       * Z of a plane fitted to the neighbors, weighted by inverse distance;
+       * through three points, the plane through them
+       */
+      LOCAL_PLANE
+   }
+
+   public static final int DEFAULT_NEIGHBORS = 8;
+   public static final double DEFAULT_EXPONENT = 2.0;
+
+   // Positions closer than this to a point get its Z
+   private static final double EPSILON = 0.001;
+   // No subtree may hold more than this part of its parent's points once
+   // the tree is deeper than its size allows; see addPoint()
+   private static final double ALPHA = 0.6;
+
+   private final Method method_;
+   private final int neighbors_;
+   private final double exponent_;
+
+   private Node root_;
+   private int size_ = 0;
+
+   // The grid, if set
+   private double gridX_, gridY_, stepX_, stepY_;
+   private int numX_, numY_;
+   private double[] gridZ_;
+   // Squared distance from each node to its farthest neighbor
+   private double[] gridReach_;
+
+   private static class Node {
+      final double x, y, z;
+      Node left, right;
+
+      Node(double x, double y, double z) {
+         this.x = x;
+         this.y = y;
+         this.z = z;
+      }
+   }
+
+   public FocusMap(Method method) {
+      this(method, DEFAULT_NEIGHBORS, DEFAULT_EXPONENT);
+   }
+
+   /**
+    * @param neighbors number of nearest points to interpolate from
+    * @param exponent power of the distance that weights fall off with
+    */
+   public FocusMap(Method method, int neighbors, double exponent) {
+      if (neighbors < 1) {
+         throw new IllegalArgumentException("At least one neighbor is needed");
+      }
+      method_ = method;
+      neighbors_ = neighbors;
+      exponent_ = exponent;
+   }
+
+   public synchronized int getNumberOfPoints() {
+      return size_;
+   }
+
+   /**
+    * Adds a reference point. Grid nodes that have it among their nearest
+    * neighbors are evaluated again.
+    */
+   public synchronized void addPoint(double x, double y, double z) {
+      Node node = new Node(x, y, z);
+      size_++;
+      if (root_ == null) {
+         root_ = node;
+      } else {
+         List<Node> path = new ArrayList<Node>();
+         Node parent = root_;
+         while (true) {
+            path.add(parent);
+            boolean less = path.size() % 2 == 1 ? x < parent.x : y < parent.y;
+            Node child = less ? parent.left : parent.right;
+            if (child == null) {
+               if (less) {
+                  parent.left = node;
+               } else {
+                  parent.right = node;
+               }
+               break;
+            }
+            parent = child;
+         }
+         // Points often come in stage order, which would make the tree a
+         // list; rebuild part of it when it gets too deep (scapegoat tree)
+         if (path.size() + 1 > Math.log(size_) / Math.log(1 / ALPHA) + 1) {
+            rebalance(path, node);
+         }
+      }
+      if (gridZ_ != null) {
+         updateGrid(x, y);
+      }
+   }
+
+   /**
+    * Adds reference points, building a balanced tree. The arrays must have
+    * the same length.
+    */
+   public synchronized void addPoints(double[] x, double[] y, double[] z) {
+      if (x.length != y.length || x.length != z.length) {
+         throw new IllegalArgumentException("Point coordinates differ in number");
+      }
+      List<Node> nodes = new ArrayList<Node>(size_ + x.length);
+      collect(root_, nodes);
+      for (int i = 0; i < x.length; i++) {
+         nodes.add(new Node(x[i], y[i], z[i]));
+      }
+      build(nodes);
+      if (gridZ_ != null) {
+         evaluateGrid();
+      }
+   }
+
+   /**
+    * Returns Z at the position, from the grid when the position is inside
+    * it, otherwise computed from the nearest points.
+    *
+    * @throws IllegalStateException if there are no points
+    */
+   public synchronized double getZ(double x, double y) {
+      if (gridZ_ != null && root_ != null) {
+         double fx = (x - gridX_) / stepX_;
+         double fy = (y - gridY_) / stepY_;
+         if (fx >= 0 && fy >= 0 && fx <= numX_ - 1 && fy <= numY_ - 1) {
+            int ix = Math.min((int) fx, Math.max(numX_ - 2, 0));
+            int iy = Math.min((int) fy, Math.max(numY_ - 2, 0));
+            fx -= ix;
+            fy -= iy;
+            int ix1 = Math.min(ix + 1, numX_ - 1);
+            int iy1 = Math.min(iy + 1, numY_ - 1);
+            double top = gridZ_[iy * numX_ + ix] * (1 - fx) + gridZ_[iy * numX_ + ix1] * fx;
+            double bottom = gridZ_[iy1 * numX_ + ix] * (1 - fx) + gridZ_[iy1 * numX_ + ix1] * fx;
+            return top * (1 - fy) + bottom * fy;
+         }
+      }
+      return evaluate(x, y);
+   }
+
+   /**
+    * Returns Z at the position computed from the nearest points, without
+    * using the grid.
+    *
+    * @throws IllegalStateException if there are no points
+    */
+   public synchronized double evaluate(double x, double y) {
+      return evaluate(x, y, null, 0);
+   }
+
+   /**
+    * Evaluates Z on a grid of numX by numY nodes, starting at (x, y) in
+    * steps of stepX and stepY, for getZ() to interpolate from.
+    */
+   public synchronized void setGrid(double x, double y, double stepX,
+         double stepY, int numX, int numY) {
+      if (numX < 1 || numY < 1 || !(stepX > 0) || !(stepY > 0)) {
+         throw new IllegalArgumentException("Grid needs at least one node and positive steps");
+      }
+      gridX_ = x;
+      gridY_ = y;
+      stepX_ = stepX;
+      stepY_ = stepY;
+      numX_ = numX;
+      numY_ = numY;
+      gridZ_ = new double[numX * numY];
+      gridReach_ = new double[numX * numY];
+      evaluateGrid();
+   }
+
+   public synchronized void clearGrid() {
+      gridZ_ = null;
+      gridReach_ = null;
+   }
+
+   private void evaluateGrid() {
+      if (root_ == null) {
+         Arrays.fill(gridZ_, Double.NaN);
+         Arrays.fill(gridReach_, Double.POSITIVE_INFINITY);
+         return;
+      }
+      for (int iy = 0; iy < numY_; iy++) {
+         for (int ix = 0; ix < numX_; ix++) {
+            int i = iy * numX_ + ix;
+            gridZ_[i] = evaluate(gridX_ + ix * stepX_, gridY_ + iy * stepY_, gridReach_, i);
+         }
+      }
+   }
+
+   // Evaluates the nodes that the new point is a neighbor of
+   private void updateGrid(double x, double y) {
+      for (int iy = 0; iy < numY_; iy++) {
+         double dy = gridY_ + iy * stepY_ - y;
+         for (int ix = 0; ix < numX_; ix++) {
+            int i = iy * numX_ + ix;
+            double dx = gridX_ + ix * stepX_ - x;
+            if (dx * dx + dy * dy <= gridReach_[i]) {
+               gridZ_[i] = evaluate(gridX_ + ix * stepX_, gridY_ + iy * stepY_, gridReach_, i);
+            }
+         }
+      }
+   }
+
+   // reach, if not null, gets the squared distance to the farthest
+   // neighbor at reachIndex, or infinity if there are fewer than neighbors_
+   private double evaluate(double x, double y, double[] reach, int reachIndex) {
+      if (root_ == null) {
+         throw new IllegalStateException("Focus map has no points");
+      }
+      int k = Math.min(neighbors_, size_);
+      Node[] found = new Node[k];
+      double[] dist2 = new double[k];
+      Arrays.fill(dist2, Double.POSITIVE_INFINITY);
+      search(root_, 1, x, y, found, dist2);
+      if (reach != null) {
+         reach[reachIndex] = size_ < neighbors_ ? Double.POSITIVE_INFINITY : dist2[k - 1];
+      }
+      if (dist2[0] < EPSILON * EPSILON) {
+         return found[0].z;
+      }
+      double[] weights = new double[k];
+      for (int i = 0; i < k; i++) {
+         weights[i] = Math.pow(dist2[i], -exponent_ / 2);
+      }
+      if (method_ == Method.LOCAL_PLANE && k >= 3) {
+         double z = fitPlane(x, y, found, weights);
+         if (!Double.isNaN(z)) {
+            return z;
+         }
+      }
+      double numerator = 0;
+      double denominator = 0;
+      for (int i = 0; i < k; i++) {
+         numerator += weights[i] * found[i].z;
+         denominator += weights[i];
+      }
+      return numerator / denominator;
+   }
+
+   // Finds the nearest points, sorted by distance, into found and dist2
+   private static void search(Node node, int depth, double x, double y,
+         Node[] found, double[] dist2) {
+      if (node == null) {
+         return;
+      }
+      double dx = node.x - x;
+      double dy = node.y - y;
+      double d2 = dx * dx + dy * dy;
+      int k = found.length;
+      if (d2 < dist2[k - 1]) {
+         int i = k - 1;
+         while (i > 0 && dist2[i - 1] > d2) {
+            dist2[i] = dist2[i - 1];
+            found[i] = found[i - 1];
+            i--;
+         }
+         dist2[i] = d2;
+         found[i] = node;
+      }
+      double split = depth % 2 == 1 ? x - node.x : y - node.y;
+      Node near = split < 0 ? node.left : node.right;
+      Node far = split < 0 ? node.right : node.left;
+      search(near, depth + 1, x, y, found, dist2);
+      if (split * split < dist2[k - 1]) {
+         search(far, depth + 1, x, y, found, dist2);
+      }
+   }
+
+   // Weighted least squares fit of z = a + b dx + c dy, returning a; NaN if
+   // the points are (nearly) on a line
+   private static double fitPlane(double x, double y, Node[] points, double[] weights) {
+      double s = 0, sx = 0, sy = 0, sxx = 0, sxy = 0, syy = 0;
+      double sz = 0, sxz = 0, syz = 0;
+      for (int i = 0; i < points.length; i++) {
+         double w = weights[i];
+         double dx = points[i].x - x;
+         double dy = points[i].y - y;
+         double z = points[i].z;
+         s += w;
+         sx += w * dx;
+         sy += w * dy;
+         sxx += w * dx * dx;
+         sxy += w * dx * dy;
+         syy += w * dy * dy;
+         sz += w * z;
+         sxz += w * dx * z;
+         syz += w * dy * z;
+      }
+      double det = s * (sxx * syy - sxy * sxy) - sx * (sx * syy - sxy * sy)
+            + sy * (sx * sxy - sxx * sy);
+      if (Math.abs(det) <= 1e-9 * s * sxx * syy) {
+         return Double.NaN;
+      }
+      // Cramer's rule for a
+      double detA = sz * (sxx * syy - sxy * sxy) - sx * (sxz * syy - sxy * syz)
+            + sy * (sxz * sxy - sxx * syz);
+      return detA / det;
+   }
+
+   // Rebuilds the subtree of the lowest ancestor of the new node that has
+   // one side much bigger than the other
+   private void rebalance(List<Node> path, Node inserted) {
+      Node child = inserted;
+      int childSize = 1;
+      for (int i = path.size() - 1; i >= 0; i--) {
+         Node parent = path.get(i);
+         Node sibling = parent.left == child ? parent.right : parent.left;
+         int parentSize = childSize + count(sibling) + 1;
+         if (childSize > ALPHA * parentSize) {
+            List<Node> nodes = new ArrayList<Node>(parentSize);
+            collect(parent, nodes);
+            Node rebuilt = build(nodes.toArray(new Node[parentSize]), 0, parentSize, i + 1);
+            if (i == 0) {
+               root_ = rebuilt;
+            } else if (path.get(i - 1).left == parent) {
+               path.get(i - 1).left = rebuilt;
+            } else {
+               path.get(i - 1).right = rebuilt;
+            }
+            return;
+         }
+         child = parent;
+         childSize = parentSize;
+      }
+   }
+
+   private static int count(Node node) {
+      return node == null ? 0 : 1 + count(node.left) + count(node.right);
+   }
+
+   private static void collect(Node node, List<Node> nodes) {
+      if (node == null) {
+         return;
+      }
+      nodes.add(node);
+      collect(node.left, nodes);
+      collect(node.right, nodes);
+   }
+
+   private void build(List<Node> nodes) {
+      Node[] array = nodes.toArray(new Node[nodes.size()]);
+      size_ = array.length;
+      root_ = build(array, 0, array.length, 1);
+   }
+
+   private static final Comparator<Node> BY_X = new Comparator<Node>() {
+      @Override
+      public int compare(Node a, Node b) {
+         return Double.compare(a.x, b.x);
+      }
+   };
+
+   private static final Comparator<Node> BY_Y = new Comparator<Node>() {
+      @Override
+      public int compare(Node a, Node b) {
+         return Double.compare(a.y, b.y);
+      }
+   };
+
+   // Builds a balanced tree of the nodes, with its root at the depth
+   private static Node build(Node[] nodes, int from, int to, int depth) {
+      if (from >= to) {
+         return null;
+      }
+      Arrays.sort(nodes, from, to, depth % 2 == 1 ? BY_X : BY_Y);
+      int median = (from + to) / 2;
+      // Equal keys go right, as in addPoint
+      boolean byX = depth % 2 == 1;
+      while (median > from && (byX ? nodes[median - 1].x == nodes[median].x
+            : nodes[median - 1].y == nodes[median].y)) {
+         median--;
+      }
+      Node node = nodes[median];
+      node.left = build(nodes, from, median, depth + 1);
+      node.right = build(nodes, median + 1, to, depth + 1);
+      return node;
+   }
+}
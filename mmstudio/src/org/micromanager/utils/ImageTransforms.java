@@ -0,0 +1,311 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ImageTransforms.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package org.micromanager.utils;
+
+import java.awt.Rectangle;
+
+/**
+ * Crops, flips and rotates images held in byte, short, int or float pixel
+ * arrays, without going through ImageJ processors.
+ *
+ * Any combination of crop, mirror and quarter turns is done in a single pass
+ * over the pixels, straight into the output array; the output can be an
+ * array that the caller reuses. Rotations by a quarter turn work in tiles
+ * so that the rows being read and written both stay in cache.
+ */
+public class ImageTransforms {
+
+   // Tile size, in pixels, for transposing copies
+   private static final int BLOCK = 64;
+
+   /**
+    * One of the eight ways to mirror and rotate an image by quarter turns:
+    * an optional transpose (swapping x and y) followed by optional flips.
+    */
+   public static final class Orientation {
+      public static final Orientation IDENTITY =
+            new Orientation(false, false, false);
+      /** Mirror left to right, like ImageProcessor.flipHorizontal() */
+      public static final Orientation FLIP_HORIZONTAL =
+            new Orientation(false, true, false);
+      public static final Orientation FLIP_VERTICAL =
+            new Orientation(false, false, true);
+      /** A quarter turn clockwise, like ImageProcessor.rotateRight() */
+      public static final Orientation ROTATE_RIGHT =
+            new Orientation(true, true, false);
+      /** A quarter turn counterclockwise, like ImageProcessor.rotateLeft() */
+      public static final Orientation ROTATE_LEFT =
+            new Orientation(true, false, true);
+      public static final Orientation ROTATE_180 =
+            new Orientation(false, true, true);
+
+      private final boolean transpose_;
+      private final boolean flipH_;
+      private final boolean flipV_;
+
+      private Orientation(boolean transpose, boolean flipH, boolean flipV) {
+         transpose_ = transpose;
+         flipH_ = flipH;
+         flipV_ = flipV;
+      }
+
+      /**
+       * Returns the orientation that does this one and then next.
+       */
+      public Orientation then(Orientation next) {
+         // A flip done before a transpose is the other flip after it
+         boolean h = next.transpose_ ? flipV_ : flipH_;
+         boolean v = next.transpose_ ? flipH_ : flipV_;
+         return new Orientation(transpose_ ^ next.transpose_,
+               h ^ next.flipH_, v ^ next.flipV_);
+      }
+
+      /**
+       * Returns true if width and height trade places.
+       */
+      public boolean swapsAxes() {
+         return transpose_;
+      }
+
+      public boolean isIdentity() {
+         return !transpose_ && !flipH_ && !flipV_;
+      }
+
+      @Override
+      public boolean equals(Object other) {
+         if (!(other instanceof Orientation)) {
+            return false;
+         }
+         Orientation o = (Orientation) other;
+         return transpose_ == o.transpose_ && flipH_ == o.flipH_
+               && flipV_ == o.flipV_;
+      }
+
+      @Override
+      public int hashCode() {
+         return (transpose_ ? 4 : 0) + (flipH_ ? 2 : 0) + (flipV_ ? 1 : 0);
+      }
+   }
+
+   /**
+    * Copies the region out of the image.
+    *
+    * @param dst array to write to, or null to make one
+    * @return dst, or the new array
+    */
+   public static Object crop(Object src, int width, int height,
+         Rectangle region, Object dst) {
+      return transform(src, width, height, region, Orientation.IDENTITY, dst);
+   }
+
+   /**
+    * Mirrors and/or rotates the image.
+    *
+    * @param dst array to write to, or null to make one; must not be src
+    * @return dst, or the new array
+    */
+   public static Object transform(Object src, int width, int height,
+         Orientation orientation, Object dst) {
+      return transform(src, width, height, null, orientation, dst);
+   }
+
+   /**
+    * Copies the region out of the image, mirrored and/or rotated, in one
+    * pass. The result is region.height wide and region.width high if the
+    * orientation swaps the axes.
+    *
+    * @param src byte[], short[], int[] or float[] pixels, row by row
+    * @param region part of the image to use, or null for all of it
+    * @param dst array of the same type as src to write to, with room for
+    * the result, or null to make one; must not be src
+    * @return dst, or the new array
+    * @throws IllegalArgumentException if the pixel type is not supported,
+    * the region is not inside the image, or dst is too small
+    */
+   public static Object transform(Object src, int width, int height,
+         Rectangle region, Orientation orientation, Object dst) {
+      if (region == null) {
+         region = new Rectangle(0, 0, width, height);
+      }
+      if (region.x < 0 || region.y < 0 || region.width < 0
+            || region.height < 0 || region.x + region.width > width
+            || region.y + region.height > height) {
+         throw new IllegalArgumentException("Region " + region
+               + " is not inside the " + width + "x" + height + " image");
+      }
+      if (dst == src) {
+         throw new IllegalArgumentException("Can not transform in place");
+      }
+      boolean t = orientation.transpose_;
+      int outW = t ? region.height : region.width;
+      int outH = t ? region.width : region.height;
+
+      // Output pixel (ox, oy) comes from input index start + ox*sx + oy*sy
+      int x1 = orientation.flipH_ ? outW - 1 : 0;
+      int dx1 = orientation.flipH_ ? -1 : 1;
+      int y1 = orientation.flipV_ ? outH - 1 : 0;
+      int dy1 = orientation.flipV_ ? -1 : 1;
+      int start, sx, sy;
+      if (t) {
+         start = (region.y + x1) * width + region.x + y1;
+         sx = dx1 * width;
+         sy = dy1;
+      } else {
+         start = (region.y + y1) * width + region.x + x1;
+         sx = dx1;
+         sy = dy1 * width;
+      }
+
+      int size = outW * outH;
+      if (src instanceof byte[]) {
+         byte[] out = dst == null ? new byte[size] : (byte[]) dst;
+         checkSize(out.length, size);
+         copy((byte[]) src, out, outW, outH, start, sx, sy);
+         return out;
+      } else if (src instanceof short[]) {
+         short[] out = dst == null ? new short[size] : (short[]) dst;
+         checkSize(out.length, size);
+         copy((short[]) src, out, outW, outH, start, sx, sy);
+         return out;
+      } else if (src instanceof int[]) {
+         int[] out = dst == null ? new int[size] : (int[]) dst;
+         checkSize(out.length, size);
+         copy((int[]) src, out, outW, outH, start, sx, sy);
+         return out;
+      } else if (src instanceof float[]) {
+         float[] out = dst == null ? new float[size] : (float[]) dst;
+         checkSize(out.length, size);
+         copy((float[]) src, out, outW, outH, start, sx, sy);
+         return out;
+      }
+      throw new IllegalArgumentException("Unsupported pixel type: "
+            + (src == null ? null : src.getClass().getSimpleName()));
+   }
+
+   private static void checkSize(int length, int size) {
+      if (length < size) {
+         throw new IllegalArgumentException("Output array holds " + length
+               + " pixels; " + size + " are needed");
+      }
+   }
+
+   // The copy loops below are the same for each pixel type
+
+   private static void copy(byte[] src, byte[] dst, int outW, int outH,
+         int start, int sx, int sy) {
+      if (sx == 1) {
+         for (int oy = 0; oy < outH; oy++) {
+            System.arraycopy(src, start + oy * sy, dst, oy * outW, outW);
+         }
+         return;
+      }
+      int bw = sx == -1 ? outW : BLOCK;
+      for (int by = 0; by < outH; by += BLOCK) {
+         int ey = Math.min(by + BLOCK, outH);
+         for (int bx = 0; bx < outW; bx += bw) {
+            int ex = Math.min(bx + bw, outW);
+            for (int oy = by; oy < ey; oy++) {
+               int i = start + oy * sy + bx * sx;
+               int o = oy * outW + bx;
+               for (int ox = bx; ox < ex; ox++) {
+                  dst[o++] = src[i];
+                  i += sx;
+               }
+            }
+         }
+      }
+   }
+
+   private static void copy(short[] src, short[] dst, int outW, int outH,
+         int start, int sx, int sy) {
+      if (sx == 1) {
+         for (int oy = 0; oy < outH; oy++) {
+            System.arraycopy(src, start + oy * sy, dst, oy * outW, outW);
+         }
+         return;
+      }
+      int bw = sx == -1 ? outW : BLOCK;
+      for (int by = 0; by < outH; by += BLOCK) {
+         int ey = Math.min(by + BLOCK, outH);
+         for (int bx = 0; bx < outW; bx += bw) {
+            int ex = Math.min(bx + bw, outW);
+            for (int oy = by; oy < ey; oy++) {
+               int i = start + oy * sy + bx * sx;
+               int o = oy * outW + bx;
+               for (int ox = bx; ox < ex; ox++) {
+                  dst[o++] = src[i];
+                  i += sx;
+               }
+            }
+         }
+      }
+   }
+
+   private static void copy(int[] src, int[] dst, int outW, int outH,
+         int start, int sx, int sy) {
+      if (sx == 1) {
+         for (int oy = 0; oy < outH; oy++) {
+            System.arraycopy(src, start + oy * sy, dst, oy * outW, outW);
+         }
+         return;
+      }
+      int bw = sx == -1 ? outW : BLOCK;
+      for (int by = 0; by < outH; by += BLOCK) {
+         int ey = Math.min(by + BLOCK, outH);
+         for (int bx = 0; bx < outW; bx += bw) {
+            int ex = Math.min(bx + bw, outW);
+            for (int oy = by; oy < ey; oy++) {
+               int i = start + oy * sy + bx * sx;
+               int o = oy * outW + bx;
+               for (int ox = bx; ox < ex; ox++) {
+                  dst[o++] = src[i];
+                  i += sx;
+               }
+            }
+         }
+      }
+   }
+
+   private static void copy(float[] src, float[] dst, int outW, int outH,
+         int start, int sx, int sy) {
+      if (sx == 1) {
+         for (int oy = 0; oy < outH; oy++) {
+            System.arraycopy(src, start + oy * sy, dst, oy * outW, outW);
+         }
+         return;
+      }
+      int bw = sx == -1 ? outW : BLOCK;
+      for (int by = 0; by < outH; by += BLOCK) {
+         int ey = Math.min(by + BLOCK, outH);
+         for (int bx = 0; bx < outW; bx += bw) {
+            int ex = Math.min(bx + bw, outW);
+            for (int oy = by; oy < ey; oy++) {
+               int i = start + oy * sy + bx * sx;
+               int o = oy * outW + bx;
+               for (int ox = bx; ox < ex; ox++) {
+                  dst[o++] = src[i];
+                  i += sx;
+               }
+            }
+         }
+      }
+   }
+}
@@ -14,8 +14,6 @@ import java.awt.Point;
 import mmcorej.CMMCore;
 import mmcorej.TaggedImage;
 
-import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 
 import org.micromanager.acquisition.TaggedImageStorageDiskDefault;
@@ -675,18 +673,7 @@ public class ImageUtils {
     * so that changes elsewhere in the program won't affect this one.
     */
    public static TaggedImage copyMetadata(TaggedImage image) {
-      JSONArray names = image.tags.names();
-      String[] keys = new String[names.length()];
-      try {
-         for (int j = 0; j < names.length(); ++j) {
-            keys[j] = names.getString(j);
-         }
-         return new TaggedImage(image.pix, new JSONObject(image.tags, keys));
-      }
-      catch (JSONException e) {
-         ReportingUtils.logError(e, "Unable to duplicate image metadata");
-         return null;
-      }
+      return new TaggedImage(image.pix, image.tags.copy());
    }
    
    /*
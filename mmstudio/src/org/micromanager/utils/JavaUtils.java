@@ -4,6 +4,7 @@ import java.awt.Dimension;
 import java.awt.GraphicsDevice;
 import java.awt.GraphicsEnvironment;
 import java.awt.Rectangle;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
@@ -13,6 +14,7 @@ import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
@@ -26,6 +28,11 @@ import java.net.URLClassLoader;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
 import java.util.prefs.Preferences;
@@ -129,6 +136,102 @@ public class JavaUtils {
       return classes;
    }
 
+   /**
+    * Add directories and JARs to the classpath, like findAndLoadClasses(),
+    * and return information on the classes found without loading them.
+    *
+    * Classes are read from their class files, so that finding e.g. the
+    * plugins among them does not load and link every class in every JAR.
+    * JARs are read in parallel, and the classes found in them are kept in
+    * the ClassIndex so that unchanged JARs are not read again in later
+    * sessions. Only classes that implement interfaces are returned.
+    *
+    * @param directory The directory to search for classes
+    * @param recursionLevel Nesting level for searching subdirectories
+    * @return The discovered classes
+    */
+   public static List<ClassFileInfo> findClasses(File directory, int recursionLevel) {
+      List<File> jars = new ArrayList<File>();
+      List<ClassFileInfo> classes = new ArrayList<ClassFileInfo>();
+      addToClassPath(directory, recursionLevel, jars, classes);
+      if (jars.isEmpty()) {
+         return classes;
+      }
+
+      final ClassIndex index = ClassIndex.getInstance();
+      int numThreads = Math.min(jars.size(),
+            Runtime.getRuntime().availableProcessors());
+      ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+      List<Future<List<ClassFileInfo>>> results =
+            new ArrayList<Future<List<ClassFileInfo>>>();
+      for (final File jar : jars) {
+         results.add(executor.submit(new Callable<List<ClassFileInfo>>() {
+            @Override
+            public List<ClassFileInfo> call() throws Exception {
+               return index.getClasses(jar);
+            }
+         }));
+      }
+      executor.shutdown();
+      for (int i = 0; i < jars.size(); i++) {
+         try {
+            classes.addAll(results.get(i).get());
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+         } catch (ExecutionException e) {
+            ReportingUtils.logError(e.getCause(), "Failed to search for classes in " +
+                  jars.get(i).getAbsolutePath());
+         }
+      }
+      index.save();
+      return classes;
+   }
+
+   // Adds the directory and its JARs to the class path, collecting the JARs
+   // and reading the class files found directly in directories
+   private static void addToClassPath(File directory, int recursionLevel,
+         List<File> jars, List<ClassFileInfo> classes) {
+      if (!directory.exists()) {
+         return;
+      }
+      try {
+         addURL(directory.toURI().toURL());
+      }
+      catch (IOException ignore) {
+         // Logged by addURL()
+      }
+
+      File[] files = directory.listFiles();
+      for (File file : files) {
+         final String fileName = file.getName();
+         if (file.isDirectory() && recursionLevel > 0) {
+            addToClassPath(file, recursionLevel - 1, jars, classes);
+         } else if (fileName.endsWith(".class")) {
+            try {
+               InputStream in = new BufferedInputStream(new FileInputStream(file));
+               try {
+                  ClassFileInfo info = ClassFileInfo.read(in);
+                  if (info.getInterfaces().length > 0) {
+                     classes.add(info);
+                  }
+               } finally {
+                  in.close();
+               }
+            } catch (IOException e) {
+               ReportingUtils.logError(e, "Failed to read class file " + file);
+            }
+         } else if (fileName.endsWith(".jar")) {
+            try {
+               addURL(new URL("jar:file:" + file.getAbsolutePath() + "!/"));
+               jars.add(file);
+            } catch (IOException e) {
+               ReportingUtils.logError(e);
+            }
+         }
+      }
+   }
+
    private static String stripFilenameExtension(String filename) {
       int i = filename.lastIndexOf('.');
       if (i > 0) {
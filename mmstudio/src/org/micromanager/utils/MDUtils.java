@@ -40,12 +40,12 @@ public class MDUtils {
       return (map.has(key) && !map.isNull(key));
    }
 
+   /**
+    * Copies the tags, including nested objects and arrays, without going
+    * through a string; see JSONObject.copy().
+    */
    public static JSONObject copy(JSONObject map) {
-      try {
-         return new JSONObject(map.toString());
-      } catch (JSONException e) {
-         return null;
-      }
+      return map.copy();
    }
    
    public static int getPositionIndex(JSONObject map) throws JSONException {
@@ -0,0 +1,273 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          PropertySnapshot.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package org.micromanager.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import mmcorej.CMMCore;
+import mmcorej.DeviceType;
+import mmcorej.StrVector;
+
+/**
+ * The properties of all loaded devices, with their values, at one moment.
+ * Snapshots never change; a change in the system makes a new snapshot with
+ * a higher version. Made by the PropertyStateService.
+ */
+public final class PropertySnapshot {
+
+   static final PropertySnapshot EMPTY = new PropertySnapshot(0, 0,
+         new LinkedHashMap<String, Device>());
+
+   private final long version_;
+   private final long structureVersion_;
+   // Device label -> device, in the core's order
+   private final Map<String, Device> devices_;
+
+   private PropertySnapshot(long version, long structureVersion,
+         Map<String, Device> devices) {
+      version_ = version;
+      structureVersion_ = structureVersion;
+      devices_ = devices;
+   }
+
+   /**
+    * Returns the version; 0 before the properties were first read.
+    */
+   public long getVersion() {
+      return version_;
+   }
+
+   /**
+    * Returns a number that changes when devices or properties come or go,
+    * or when their type, limits, allowed values or read-only state change,
+    * but not when only values change.
+    */
+   public long getStructureVersion() {
+      return structureVersion_;
+   }
+
+   public List<String> getDevices() {
+      return Collections.unmodifiableList(new ArrayList<String>(devices_.keySet()));
+   }
+
+   /**
+    * Returns the type of the device, or null if it is not loaded.
+    */
+   public DeviceType getDeviceType(String device) {
+      Device dev = devices_.get(device);
+      return dev == null ? null : dev.type_;
+   }
+
+   public List<String> getPropertyNames(String device) {
+      Device dev = devices_.get(device);
+      if (dev == null) {
+         return Collections.emptyList();
+      }
+      return Collections.unmodifiableList(new ArrayList<String>(dev.properties_.keySet()));
+   }
+
+   /**
+    * Returns the value, as the core reports it, or null if there is no such
+    * property.
+    */
+   public String getValue(String device, String property) {
+      Entry entry = getEntry(device, property);
+      return entry == null ? null : entry.value_;
+   }
+
+   /**
+    * Returns a new PropertyItem describing the property, with its value in
+    * display format, or null if there is no such property. The item is the
+    * caller's to change.
+    */
+   public PropertyItem getPropertyItem(String device, String property) {
+      Entry entry = getEntry(device, property);
+      if (entry == null) {
+         return null;
+      }
+      PropertyItem meta = entry.meta_;
+      PropertyItem item = new PropertyItem();
+      item.device = device;
+      item.name = property;
+      item.readOnly = meta.readOnly;
+      item.preInit = meta.preInit;
+      item.hasRange = meta.hasRange;
+      item.lowerLimit = meta.lowerLimit;
+      item.upperLimit = meta.upperLimit;
+      item.type = meta.type;
+      item.allowed = meta.allowed.clone();
+      item.setValueFromCoreString(entry.value_);
+      return item;
+   }
+
+   private Entry getEntry(String device, String property) {
+      Device dev = devices_.get(device);
+      return dev == null ? null : dev.properties_.get(property);
+   }
+
+   /**
+    * Returns a snapshot with one value changed, or this one if the
+    * property is unknown or already has the value.
+    */
+   PropertySnapshot withValue(String device, String property, String value) {
+      Device dev = devices_.get(device);
+      Entry entry = dev == null ? null : dev.properties_.get(property);
+      if (entry == null || value == null || value.equals(entry.value_)) {
+         return this;
+      }
+      // Only the changed device is copied; the others are shared
+      LinkedHashMap<String, Entry> properties =
+            new LinkedHashMap<String, Entry>(dev.properties_);
+      properties.put(property, new Entry(entry.meta_, value));
+      LinkedHashMap<String, Device> devices =
+            new LinkedHashMap<String, Device>(devices_);
+      devices.put(device, new Device(dev.type_, properties));
+      return new PropertySnapshot(version_ + 1, structureVersion_, devices);
+   }
+
+   /**
+    * Reads all properties from the core's system state cache; does not talk
+    * to the devices. The result has no version of its own until it is made
+    * to follow a snapshot with succeed().
+    *
+    * @param previous snapshot whose unchanged descriptions are reused
+    */
+   static PropertySnapshot read(CMMCore core, PropertySnapshot previous) {
+      LinkedHashMap<String, Device> devices = new LinkedHashMap<String, Device>();
+      StrVector labels = core.getLoadedDevices();
+      for (int i = 0; i < labels.size(); i++) {
+         String label = labels.get(i);
+         try {
+            Device old = previous.devices_.get(label);
+            devices.put(label, readDevice(core, label, old));
+         } catch (Exception e) {
+            ReportingUtils.logError(e, "Failed to read properties of " + label);
+         }
+      }
+      return new PropertySnapshot(-1, -1, devices);
+   }
+
+   /**
+    * Returns this snapshot's properties as the version after current, or
+    * current itself if they are the same.
+    */
+   PropertySnapshot succeed(PropertySnapshot current) {
+      boolean sameStructure = devices_.keySet().equals(current.devices_.keySet());
+      boolean sameValues = sameStructure;
+      for (Map.Entry<String, Device> device : devices_.entrySet()) {
+         if (!sameStructure) {
+            break;
+         }
+         Device old = current.devices_.get(device.getKey());
+         sameStructure = device.getValue().hasSameStructure(old);
+         sameValues = sameValues && device.getValue().hasSameValues(old);
+      }
+      if (sameStructure && sameValues) {
+         return current;
+      }
+      return new PropertySnapshot(current.version_ + 1,
+            current.structureVersion_ + (sameStructure ? 0 : 1), devices_);
+   }
+
+   private static Device readDevice(CMMCore core, String label, Device old)
+         throws Exception {
+      DeviceType type = core.getDeviceType(label);
+      LinkedHashMap<String, Entry> properties = new LinkedHashMap<String, Entry>();
+      StrVector names = core.getDevicePropertyNames(label);
+      for (int j = 0; j < names.size(); j++) {
+         String name = names.get(j);
+         PropertyItem meta = new PropertyItem();
+         meta.readFromCore(core, label, name, true);
+         Entry entry = new Entry(meta, core.getPropertyFromCache(label, name));
+         // Keep the old description when it did not change, so that
+         // unchanged entries are shared between snapshots
+         Entry oldEntry = old == null ? null : old.properties_.get(name);
+         if (oldEntry != null && oldEntry.hasSameMetadata(entry)) {
+            entry = new Entry(oldEntry.meta_, entry.value_);
+         }
+         properties.put(name, entry);
+      }
+      return new Device(type, properties);
+   }
+
+   private static class Device {
+      private final DeviceType type_;
+      private final Map<String, Entry> properties_;
+
+      Device(DeviceType type, Map<String, Entry> properties) {
+         type_ = type;
+         properties_ = properties;
+      }
+
+      boolean hasSameStructure(Device other) {
+         if (other == null || type_ != other.type_
+               || !properties_.keySet().equals(other.properties_.keySet())) {
+            return false;
+         }
+         for (Map.Entry<String, Entry> entry : properties_.entrySet()) {
+            if (!entry.getValue().hasSameMetadata(
+                  other.properties_.get(entry.getKey()))) {
+               return false;
+            }
+         }
+         return true;
+      }
+
+      boolean hasSameValues(Device other) {
+         for (Map.Entry<String, Entry> entry : properties_.entrySet()) {
+            Entry otherEntry = other.properties_.get(entry.getKey());
+            if (otherEntry == null
+                  || !entry.getValue().value_.equals(otherEntry.value_)) {
+               return false;
+            }
+         }
+         return true;
+      }
+   }
+
+   private static class Entry {
+      // Everything but the value; never changed once in an Entry
+      private final PropertyItem meta_;
+      private final String value_;
+
+      Entry(PropertyItem meta, String value) {
+         meta_ = meta;
+         value_ = value == null ? "" : value;
+      }
+
+      boolean hasSameMetadata(Entry other) {
+         if (other == null) {
+            return false;
+         }
+         PropertyItem a = meta_;
+         PropertyItem b = other.meta_;
+         return a == b || (a.readOnly == b.readOnly && a.preInit == b.preInit
+               && a.hasRange == b.hasRange && a.lowerLimit == b.lowerLimit
+               && a.upperLimit == b.upperLimit && a.type == b.type
+               && Arrays.equals(a.allowed, b.allowed));
+      }
+   }
+}
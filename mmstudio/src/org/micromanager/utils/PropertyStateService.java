@@ -0,0 +1,226 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          PropertyStateService.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package org.micromanager.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+
+import mmcorej.CMMCore;
+
+/**
+ * Keeps a PropertySnapshot of all device properties up to date, so that the
+ * GUI can show properties without talking to the core or the devices.
+ *
+ * Refreshes are done on a worker thread of their own. Requests made while
+ * one is waiting to start are merged into it. Single property changes
+ * reported by the core are applied to the snapshot directly.
+ *
+ * Listeners are told about new snapshots on the EDT; when snapshots follow
+ * each other quickly, only the latest one is passed on.
+ */
+public class PropertyStateService {
+
+   public interface Listener {
+      public void snapshotChanged(PropertySnapshot snapshot);
+   }
+
+   private final CMMCore core_;
+   private final ThreadPoolExecutor worker_;
+   private final List<Listener> listeners_ = new CopyOnWriteArrayList<Listener>();
+
+   private final Object lock_ = new Object();
+   // The fields below are guarded by lock_
+   private PropertySnapshot snapshot_ = PropertySnapshot.EMPTY;
+   private Refresh pending_;
+   // Changes made while a refresh reads the cache, to apply to its result
+   private List<String[]> changesDuringRefresh_;
+   private boolean notifyPending_ = false;
+
+   public PropertyStateService(CMMCore core) {
+      core_ = core;
+      worker_ = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+               @Override
+               public Thread newThread(Runnable r) {
+                  Thread thread = new Thread(r, "Property state refresh");
+                  thread.setDaemon(true);
+                  return thread;
+               }
+            });
+      worker_.allowCoreThreadTimeOut(true);
+   }
+
+   public void addListener(Listener listener) {
+      listeners_.add(listener);
+   }
+
+   public void removeListener(Listener listener) {
+      listeners_.remove(listener);
+   }
+
+   /**
+    * Returns the latest snapshot; empty (version 0) until the first refresh
+    * has finished.
+    */
+   public PropertySnapshot getSnapshot() {
+      synchronized (lock_) {
+         return snapshot_;
+      }
+   }
+
+   /**
+    * Asks for the snapshot to be read again on the worker thread.
+    *
+    * @param readDevices true to have the core read all devices first
+    * (updateSystemStateCache); false to only read the core's cache
+    * @param then run on the EDT when the refresh is done, or null. A
+    * Runnable that is already waiting for the refresh is not added again.
+    * @return the new snapshot, to come
+    */
+   public Future<PropertySnapshot> requestRefresh(boolean readDevices,
+         Runnable then) {
+      synchronized (lock_) {
+         if (pending_ == null) {
+            pending_ = new Refresh();
+            worker_.execute(pending_.task_);
+         }
+         pending_.readDevices_ |= readDevices;
+         if (then != null && !pending_.then_.contains(then)) {
+            pending_.then_.add(then);
+         }
+         return pending_.task_;
+      }
+   }
+
+   /**
+    * Records a property value reported by the core.
+    *
+    * @param value the value as the core reports it
+    */
+   public void applyChange(String device, String property, String value) {
+      synchronized (lock_) {
+         if (changesDuringRefresh_ != null) {
+            changesDuringRefresh_.add(new String[] {device, property, value});
+         }
+         PropertySnapshot next = snapshot_.withValue(device, property, value);
+         if (next == snapshot_) {
+            return;
+         }
+         snapshot_ = next;
+      }
+      notifyListeners();
+   }
+
+   private PropertySnapshot refresh(boolean readDevices) {
+      if (readDevices) {
+         core_.updateSystemStateCache();
+      }
+      PropertySnapshot previous;
+      synchronized (lock_) {
+         previous = snapshot_;
+         changesDuringRefresh_ = new ArrayList<String[]>();
+      }
+      PropertySnapshot read;
+      try {
+         read = PropertySnapshot.read(core_, previous);
+      } catch (Exception e) {
+         ReportingUtils.logError(e, "Failed to read device properties");
+         read = null;
+      }
+      PropertySnapshot next;
+      synchronized (lock_) {
+         if (read != null) {
+            // The cache may have been read before these changes reached it
+            for (String[] change : changesDuringRefresh_) {
+               read = read.withValue(change[0], change[1], change[2]);
+            }
+         }
+         changesDuringRefresh_ = null;
+         next = read == null ? snapshot_ : read.succeed(snapshot_);
+         if (next == snapshot_) {
+            return next;
+         }
+         snapshot_ = next;
+      }
+      notifyListeners();
+      return next;
+   }
+
+   private void notifyListeners() {
+      synchronized (lock_) {
+         if (notifyPending_) {
+            return;
+         }
+         notifyPending_ = true;
+      }
+      SwingUtilities.invokeLater(new Runnable() {
+         @Override
+         public void run() {
+            PropertySnapshot snapshot;
+            synchronized (lock_) {
+               notifyPending_ = false;
+               snapshot = snapshot_;
+            }
+            for (Listener listener : listeners_) {
+               try {
+                  listener.snapshotChanged(snapshot);
+               } catch (Exception e) {
+                  ReportingUtils.logError(e);
+               }
+            }
+         }
+      });
+   }
+
+   private class Refresh implements Callable<PropertySnapshot> {
+      private final FutureTask<PropertySnapshot> task_ =
+            new FutureTask<PropertySnapshot>(this);
+      private boolean readDevices_ = false;
+      private final List<Runnable> then_ = new ArrayList<Runnable>();
+
+      @Override
+      public PropertySnapshot call() {
+         boolean readDevices;
+         synchronized (lock_) {
+            // Requests from now on need a refresh of their own
+            pending_ = null;
+            readDevices = readDevices_;
+         }
+         try {
+            return refresh(readDevices);
+         } finally {
+            for (Runnable then : then_) {
+               SwingUtilities.invokeLater(then);
+            }
+         }
+      }
+   }
+}
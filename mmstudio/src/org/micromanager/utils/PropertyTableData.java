@@ -14,6 +14,9 @@ import org.micromanager.api.ScriptInterface;
 
 /**
  * Property table data model, representing MMCore data
+ *
+ * The properties are taken from the snapshots of a PropertyStateService,
+ * so that filling the table does not talk to the devices.
  */
 public class PropertyTableData extends AbstractTableModel implements MMPropertyTableModel {
 
@@ -37,6 +40,18 @@ public class PropertyTableData extends AbstractTableModel implements MMPropertyT
    private String[] presetNames_;
    private volatile boolean updating_;
    private boolean groupOnly_;
+   private PropertyStateService propertyState_;
+   // Structure version of the snapshot the rows were made from
+   private long structureVersion_ = -1;
+   // Fills the table once the first snapshot has been read
+   private final Runnable fillWhenRead_ = new Runnable() {
+      @Override
+      public void run() {
+         if (getPropertyState().getSnapshot().getVersion() > 0) {
+            refresh(true);
+         }
+      }
+   };
 
    /**
     * PropertyTableData constructor
@@ -60,6 +75,34 @@ public class PropertyTableData extends AbstractTableModel implements MMPropertyT
       groupOnly_ = groupOnly;
    }
 
+   /**
+    * Sets where the properties come from. Without it, the table keeps a
+    * PropertyStateService of its own.
+    */
+   public void setPropertyState(PropertyStateService propertyState) {
+      propertyState_ = propertyState;
+   }
+
+   public PropertyStateService getPropertyState() {
+      if (propertyState_ == null) {
+         propertyState_ = new PropertyStateService(core_);
+      }
+      return propertyState_;
+   }
+
+   /**
+    * Returns the latest snapshot without waiting. Until the first one has
+    * been read this is the empty snapshot; the table is then filled again
+    * on the EDT as soon as the first one is there.
+    */
+   protected PropertySnapshot getSnapshot() {
+      PropertySnapshot snapshot = getPropertyState().getSnapshot();
+      if (snapshot.getVersion() == 0) {
+         getPropertyState().requestRefresh(false, fillWhenRead_);
+      }
+      return snapshot;
+   }
+
    public ArrayList<PropertyItem> getProperties() {
       return propList_;
    }
@@ -160,12 +203,31 @@ public class PropertyTableData extends AbstractTableModel implements MMPropertyT
          }
          item.value = value.toString();
          core_.waitForDevice(item.device);
+         getPropertyState().applyChange(item.device, item.name,
+               item.getValueInCoreFormat());
       } catch (Exception e) {
          handleException(e);
       }
 
    }
 
+   /**
+    * Has the other properties, which may have changed along with one that
+    * was set, read again in the background; then updates the table and the
+    * rest of the GUI.
+    */
+   protected void refreshAfterSet() {
+      getPropertyState().requestRefresh(true, new Runnable() {
+         @Override
+         public void run() {
+            refresh(true);
+            if (gui_ != null) {
+               gui_.refreshGUIFromCache();
+            }
+         }
+      });
+   }
+
    @Override
    public void setValueAt(Object value, int row, int col) {
       PropertyItem item = propListVisible_.get(row);
@@ -173,9 +235,7 @@ public class PropertyTableData extends AbstractTableModel implements MMPropertyT
       if (col == PropertyValueColumn_) {
          if (item.confInclude) {
             setValueInCore(item, value);
-            core_.updateSystemStateCache();
-            refresh(true);
-            gui_.refreshGUIFromCache();
+            refreshAfterSet();
          }
       } else if (col == PropertyUsedColumn_) {
          item.confInclude = ((Boolean) value).booleanValue();
@@ -229,35 +289,34 @@ public class PropertyTableData extends AbstractTableModel implements MMPropertyT
       showReadOnly_ = showReadOnly;
    }
 
+   /**
+    * Rebuilds the rows from the latest snapshot, without waiting for one to
+    * be read (see getSnapshot()). The devices are not read, whatever
+    * fromCache says.
+    */
    public void update(ShowFlags flags, String groupName, String presetName,
            boolean fromCache) {
       try {
-         StrVector devices = core_.getLoadedDevices();
+         PropertySnapshot snapshot = getSnapshot();
          propList_.clear();
 
-         Configuration cfg = core_.getConfigGroupState(groupName);
-
-         boolean liveMode = gui_.isLiveModeOn();
-         gui_.enableLiveMode(false);
+         Configuration cfg = core_.getConfigGroupStateFromCache(groupName);
 
          setUpdating(true);
 
-         for (int i = 0; i < devices.size(); i++) {
+         for (String device : snapshot.getDevices()) {
 
-            if (showDevice(flags, devices.get(i))) {
+            if (showDevice(flags, device)) {
 
-               StrVector properties = core_.getDevicePropertyNames(devices.get(i));
-               for (int j = 0; j < properties.size(); j++) {
-                  PropertyItem item = new PropertyItem();
-                  if (!groupOnly_ || cfg.isPropertyIncluded(devices.get(i), properties.get(j))) {
-                     item.readFromCore(core_, devices.get(i), properties.get(j), false);
+               for (String property : snapshot.getPropertyNames(device)) {
+                  if (!groupOnly_ || cfg.isPropertyIncluded(device, property)) {
+                     PropertyItem item = snapshot.getPropertyItem(device, property);
                      if ((!item.readOnly || showReadOnly_) && !item.preInit) {
                         if (cfg.isPropertyIncluded(item.device, item.name)) {
                            item.confInclude = true;
                            item.setValueFromCoreString(cfg.getSetting(item.device, item.name).getPropertyValue());
                         } else {
                            item.confInclude = false;
-                           item.setValueFromCoreString(core_.getProperty(devices.get(i), properties.get(j)));
                         }
                         propList_.add(item);
                      }
@@ -266,19 +325,54 @@ public class PropertyTableData extends AbstractTableModel implements MMPropertyT
 
             }
          }
+         structureVersion_ = snapshot.getStructureVersion();
 
          setUpdating(false);
 
          updateRowVisibility(flags);
-
-         gui_.enableLiveMode(liveMode);
       } catch (Exception e) {
+         setUpdating(false);
          handleException(e);
       }
       this.fireTableStructureChanged();
 
    }
 
+   /**
+    * Brings the table up to date with a new snapshot. When only values
+    * changed, the rows are kept and only those with a new value are
+    * redrawn; otherwise the rows are rebuilt.
+    */
+   public void update(PropertySnapshot snapshot) {
+      if (snapshot.getStructureVersion() != structureVersion_) {
+         refresh(true);
+         return;
+      }
+      for (int row = 0; row < propListVisible_.size(); row++) {
+         if (updateValue(propListVisible_.get(row), snapshot)) {
+            fireTableRowsUpdated(row, row);
+         }
+      }
+      for (PropertyItem item : propList_) {
+         updateValue(item, snapshot);
+      }
+   }
+
+   private boolean updateValue(PropertyItem item, PropertySnapshot snapshot) {
+      String value = snapshot.getValue(item.device, item.name);
+      // Values of properties in the preset come from the preset
+      if (value == null || item.confInclude) {
+         return false;
+      }
+      String oldValue = item.value;
+      item.setValueFromCoreString(value);
+      return !item.value.equals(oldValue);
+   }
+
+   protected void setStructureVersion(long structureVersion) {
+      structureVersion_ = structureVersion;
+   }
+
    public void updateRowVisibility(ShowFlags flags) {
       propListVisible_.clear();
 
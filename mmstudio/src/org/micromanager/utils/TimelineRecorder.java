@@ -0,0 +1,240 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          TimelineRecorder.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package org.micromanager.utils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import mmcorej.TaggedImage;
+
+import org.json.JSONObject;
+
+/**
+ * Records how long each step of an acquisition takes (stage moves,
+ * exposures, image processing, saving, ...) as timed spans, so that the
+ * time of a slow acquisition can be attributed and overlaps and stalls
+ * become visible.
+ *
+ * The spans of the last acquisition can be written in the Chrome trace
+ * event format, which can be opened in chrome://tracing or Perfetto. When
+ * recording is enabled, this is done at the end of each acquisition, to
+ * timeline.json in the data set's directory (see DefaultTaggedImageSink).
+ *
+ * Recording is off unless enabled (or the Java system property
+ * org.micromanager.timeline is set to true). Recording never blocks: each
+ * span claims a slot in a fixed-size ring buffer with one atomic
+ * increment, and when the buffer is full the oldest spans are overwritten.
+ */
+public class TimelineRecorder {
+
+   public static final int DEFAULT_CAPACITY = 1 << 16;
+
+   private static final TimelineRecorder instance_ =
+         new TimelineRecorder(DEFAULT_CAPACITY);
+
+   public static TimelineRecorder getInstance() {
+      return instance_;
+   }
+
+   private volatile boolean enabled_ =
+         Boolean.getBoolean("org.micromanager.timeline");
+   private volatile long acquisitionStartNs_ = System.nanoTime();
+
+   private final int mask_;
+   private final AtomicLong next_ = new AtomicLong();
+   // Number of the span held by each slot; -1 while it is being written
+   private final AtomicLongArray spanNumbers_;
+   private final long[] startNs_;
+   private final long[] endNs_;
+   private final long[] threadIds_;
+   private final String[] categories_;
+   private final String[] names_;
+   private final String[] details_;
+   private final Map<Long, String> threadNames_ =
+         new ConcurrentHashMap<Long, String>();
+
+   /**
+    * @param capacity number of spans kept; rounded up to a power of two
+    */
+   public TimelineRecorder(int capacity) {
+      int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+      mask_ = size - 1;
+      spanNumbers_ = new AtomicLongArray(size);
+      for (int i = 0; i < size; i++) {
+         spanNumbers_.set(i, -1);
+      }
+      startNs_ = new long[size];
+      endNs_ = new long[size];
+      threadIds_ = new long[size];
+      categories_ = new String[size];
+      names_ = new String[size];
+      details_ = new String[size];
+   }
+
+   public boolean isEnabled() {
+      return enabled_;
+   }
+
+   public void setEnabled(boolean enabled) {
+      enabled_ = enabled;
+   }
+
+   /**
+    * Returns the start time to pass to end().
+    */
+   public long begin() {
+      return System.nanoTime();
+   }
+
+   /**
+    * Records a span from startNs (as returned by begin()) until now.
+    * Does nothing while recording is disabled.
+    *
+    * @param category the part of the system, e.g. "engine" or "storage"
+    * @param name what was done
+    * @param detail further information, e.g. the image label; may be null
+    */
+   public void end(String category, String name, long startNs, String detail) {
+      if (enabled_) {
+         record(category, name, startNs, System.nanoTime(), detail);
+      }
+   }
+
+   public void record(String category, String name, long startNs, long endNs,
+         String detail) {
+      Thread thread = Thread.currentThread();
+      long threadId = thread.getId();
+      if (!threadNames_.containsKey(threadId)) {
+         threadNames_.put(threadId, thread.getName());
+      }
+
+      long number = next_.getAndIncrement();
+      int slot = (int) (number & mask_);
+      spanNumbers_.set(slot, -1);
+      startNs_[slot] = startNs;
+      endNs_[slot] = endNs;
+      threadIds_[slot] = threadId;
+      categories_[slot] = category;
+      names_[slot] = name;
+      details_[slot] = detail;
+      spanNumbers_.set(slot, number);
+   }
+
+   /**
+    * Marks the start of an acquisition; writeChromeTrace(File) writes the
+    * spans recorded since the last call.
+    */
+   public void markAcquisitionStart() {
+      acquisitionStartNs_ = System.nanoTime();
+   }
+
+   public void clear() {
+      for (int i = 0; i <= mask_; i++) {
+         spanNumbers_.set(i, -1);
+      }
+   }
+
+   /**
+    * Writes the spans recorded since markAcquisitionStart() to file as a
+    * Chrome trace (JSON).
+    */
+   public void writeChromeTrace(File file) throws IOException {
+      writeChromeTrace(file, acquisitionStartNs_);
+   }
+
+   public void writeChromeTrace(File file, long sinceNs) throws IOException {
+      Writer writer = new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(file), "UTF-8"));
+      try {
+         writeChromeTrace(writer, sinceNs);
+      } finally {
+         writer.close();
+      }
+   }
+
+   public void writeChromeTrace(Writer writer, long sinceNs) throws IOException {
+      writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+      boolean first = true;
+      for (Map.Entry<Long, String> thread : threadNames_.entrySet()) {
+         writer.write(first ? "\n" : ",\n");
+         first = false;
+         writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":"
+               + thread.getKey() + ",\"args\":{\"name\":"
+               + JSONObject.quote(thread.getValue()) + "}}");
+      }
+
+      long last = next_.get();
+      for (long number = Math.max(0, last - mask_ - 1); number < last; number++) {
+         int slot = (int) (number & mask_);
+         if (spanNumbers_.get(slot) != number) {
+            continue; // Being written, or already overwritten
+         }
+         long startNs = startNs_[slot];
+         long endNs = endNs_[slot];
+         long threadId = threadIds_[slot];
+         String category = categories_[slot];
+         String name = names_[slot];
+         String detail = details_[slot];
+         if (spanNumbers_.get(slot) != number || startNs - sinceNs < 0) {
+            continue;
+         }
+
+         writer.write(first ? "\n" : ",\n");
+         first = false;
+         writer.write("{\"name\":" + JSONObject.quote(name)
+               + ",\"cat\":" + JSONObject.quote(category)
+               + ",\"ph\":\"X\",\"pid\":1,\"tid\":" + threadId
+               + ",\"ts\":" + toMicroseconds(startNs - sinceNs)
+               + ",\"dur\":" + toMicroseconds(endNs - startNs));
+         if (detail != null) {
+            writer.write(",\"args\":{\"detail\":" + JSONObject.quote(detail) + "}");
+         }
+         writer.write("}");
+      }
+      writer.write("\n]}\n");
+   }
+
+   private static String toMicroseconds(long ns) {
+      return String.valueOf(ns / 1000) + "." + String.format("%03d", ns % 1000);
+   }
+
+   /**
+    * Describes an image for a span's detail by its label, or returns null.
+    */
+   public static String describe(Object image) {
+      if (image instanceof TaggedImage && ((TaggedImage) image).tags != null) {
+         try {
+            return MDUtils.getLabel(((TaggedImage) image).tags);
+         } catch (Exception e) {
+            // Not an acquisition image, e.g. the end-of-acquisition marker
+         }
+      }
+      return null;
+   }
+}
@@ -0,0 +1,126 @@
+package org.micromanager.acquisition;
+
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.Opener;
+import ij.io.TiffDecoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import mmcorej.TaggedImage;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.micromanager.utils.MDUtils;
+import org.micromanager.utils.MMException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class MultipageTiffWriterTest {
+   // Big enough for several strips per plane
+   private static final int WIDTH = 517;
+   private static final int HEIGHT = 389;
+   private static final int SLICES = 3;
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   private static JSONObject makeSummary() throws JSONException {
+      JSONObject summary = new JSONObject();
+      MDUtils.setWidth(summary, WIDTH);
+      MDUtils.setHeight(summary, HEIGHT);
+      MDUtils.setPixelTypeFromString(summary, "GRAY16");
+      summary.put("Channels", 1);
+      summary.put("Slices", SLICES);
+      summary.put("Frames", 1);
+      summary.put("Positions", 1);
+      summary.put("Prefix", "test");
+      return summary;
+   }
+
+   private static TaggedImage makeImage(int slice) throws JSONException {
+      Random random = new Random(slice);
+      short[] pixels = new short[WIDTH * HEIGHT];
+      for (int y = 0; y < HEIGHT; y++) {
+         for (int x = 0; x < WIDTH; x++) {
+            pixels[y * WIDTH + x] = (short) (1000 * slice + 60 * x + 90 * y
+                  + random.nextInt(100));
+         }
+      }
+      JSONObject tags = new JSONObject();
+      MDUtils.setWidth(tags, WIDTH);
+      MDUtils.setHeight(tags, HEIGHT);
+      MDUtils.setPixelTypeFromString(tags, "GRAY16");
+      MDUtils.setChannelIndex(tags, 0);
+      MDUtils.setSliceIndex(tags, slice);
+      MDUtils.setFrameIndex(tags, 0);
+      MDUtils.setPositionIndex(tags, 0);
+      return new TaggedImage(pixels, tags);
+   }
+
+   private File write(int compression, boolean fastStorage)
+         throws IOException, JSONException, MMException {
+      File dir = new File(folder.getRoot(), "set" + compression + fastStorage);
+      TaggedImageStorageMultipageTiff storage = new TaggedImageStorageMultipageTiff(
+            dir.getPath(), true, makeSummary(), false, false, fastStorage,
+            compression);
+      for (int slice = 0; slice < SLICES; slice++) {
+         storage.putImage(makeImage(slice));
+      }
+      storage.finished();
+      storage.close();
+      return dir;
+   }
+
+   private static void assertReadsBack(File dir, boolean compressed)
+         throws IOException, JSONException {
+      TaggedImageStorageMultipageTiff storage = new TaggedImageStorageMultipageTiff(
+            dir.getPath(), false, null, false, false, false);
+      for (int slice = 0; slice < SLICES; slice++) {
+         TaggedImage image = storage.getImage(0, slice, 0, 0);
+         assertNotNull(image);
+         assertArrayEquals((short[]) makeImage(slice).pix, (short[]) image.pix);
+      }
+      storage.close();
+
+      // ImageJ finds the strips of compressed planes from the StripOffsets
+      // and StripByteCounts arrays on its own
+      File tiff = null;
+      for (File file : dir.listFiles()) {
+         if (file.getName().endsWith(".tif")) {
+            tiff = file;
+         }
+      }
+      FileInfo[] info = new TiffDecoder(dir.getPath(), tiff.getName()).getTiffInfo();
+      if (compressed) {
+         assertTrue(info[0].stripOffsets.length > 1);
+      }
+      assertEquals(info[0].stripOffsets.length, info[0].stripLengths.length);
+      ImagePlus imp = new Opener().openImage(tiff.getPath());
+      assertNotNull(imp);
+      assertEquals(SLICES, imp.getStackSize());
+      for (int slice = 0; slice < SLICES; slice++) {
+         assertArrayEquals((short[]) makeImage(slice).pix,
+               (short[]) imp.getStack().getPixels(slice + 1));
+      }
+   }
+
+   @Test
+   public void uncompressedPlanesReadBack() throws Exception {
+      assertReadsBack(write(TiffCompression.NONE, false), false);
+      assertReadsBack(write(TiffCompression.NONE, true), false);
+   }
+
+   @Test
+   public void compressedStripsReadBack() throws Exception {
+      for (int compression : new int[] {TiffCompression.LZW,
+            TiffCompression.DEFLATE, TiffCompression.LZW_PREDICTOR}) {
+         assertReadsBack(write(compression, false), true);
+         assertReadsBack(write(compression, true), true);
+      }
+   }
+}
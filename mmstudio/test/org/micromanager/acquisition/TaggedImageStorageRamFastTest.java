@@ -0,0 +1,58 @@
+package org.micromanager.acquisition;
+
+import mmcorej.TaggedImage;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.micromanager.utils.MDUtils;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TaggedImageStorageRamFastTest {
+   private static TaggedImage makeImage(int frame) throws JSONException {
+      short[] pixels = new short[64 * 32];
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = (short) (frame * 100 + i);
+      }
+      JSONObject tags = new JSONObject();
+      MDUtils.setWidth(tags, 64);
+      MDUtils.setHeight(tags, 32);
+      MDUtils.setPixelTypeFromString(tags, "GRAY16");
+      MDUtils.setChannelIndex(tags, 0);
+      MDUtils.setSliceIndex(tags, 0);
+      MDUtils.setFrameIndex(tags, frame);
+      MDUtils.setPositionIndex(tags, 0);
+      tags.put("Camera", "Cam" + frame);
+      return new TaggedImage(pixels, tags);
+   }
+
+   @Test
+   public void imagesReadBackAfterLeavingTheCache() throws Exception {
+      TaggedImageStorageRamFast storage = new TaggedImageStorageRamFast(null);
+      int frames = 30;
+      for (int frame = 0; frame < frames; frame++) {
+         storage.putImage(makeImage(frame));
+      }
+      assertEquals(frames, storage.imageKeys().size());
+      assertEquals(frames - 1, storage.lastAcquiredFrame());
+
+      // The first frames are no longer in the cache of recent images
+      TaggedImage image = storage.getImage(0, 0, 3, 0);
+      TaggedImage expected = makeImage(3);
+      assertArrayEquals((short[]) expected.pix, (short[]) image.pix);
+      assertEquals(expected.tags.toString(), image.tags.toString());
+
+      // Changing the tags that were read does not change the stored ones
+      image.tags.put("Camera", "changed");
+      assertEquals("Cam3", storage.getImage(0, 0, 3, 0).tags.getString("Camera"));
+   }
+
+   @Test
+   public void imagesWithoutIndicesAreNotStored() throws Exception {
+      TaggedImageStorageRamFast storage = new TaggedImageStorageRamFast(null);
+      TaggedImage image = makeImage(0);
+      image.tags.remove("PositionIndex");
+      storage.putImage(image);
+      assertTrue(storage.imageKeys().isEmpty());
+   }
+}
@@ -0,0 +1,142 @@
+package org.micromanager.acquisition;
+
+import ij.io.FileInfo;
+import ij.io.ImageReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TiffCompressionTest {
+   private static final int WIDTH = 301;
+   private static final int HEIGHT = 203;
+
+   // A smooth gradient with some noise, like a camera image
+   private static short[] makeImage(long seed) {
+      Random random = new Random(seed);
+      short[] pixels = new short[WIDTH * HEIGHT];
+      for (int y = 0; y < HEIGHT; y++) {
+         for (int x = 0; x < WIDTH; x++) {
+            pixels[y * WIDTH + x] = (short) (20000 + 100 * x + 50 * y
+                  + random.nextInt(64));
+         }
+      }
+      return pixels;
+   }
+
+   private static byte[] toBytes(short[] pixels, ByteOrder order) {
+      ByteBuffer buffer = ByteBuffer.allocate(2 * pixels.length).order(order);
+      buffer.asShortBuffer().put(pixels);
+      return buffer.array();
+   }
+
+   private static byte[] randomBytes(int length, long seed) {
+      byte[] data = new byte[length];
+      new Random(seed).nextBytes(data);
+      return data;
+   }
+
+   private static void assertRoundTrip(char compression, byte[] data)
+         throws IOException {
+      byte[] compressed = TiffCompression.compress(compression, data.clone());
+      assertTrue(compressed.length
+            <= TiffCompression.maxCompressedLength(data.length));
+      assertArrayEquals(data,
+            TiffCompression.decompress(compression, compressed, data.length));
+   }
+
+   private static Object readWithImageJ(byte[] compressed, int compression,
+         int fileType) throws IOException {
+      FileInfo fi = new FileInfo();
+      fi.width = WIDTH;
+      fi.height = HEIGHT;
+      fi.fileType = fileType;
+      fi.intelByteOrder = true;
+      fi.compression = compression;
+      fi.stripOffsets = new int[] {0};
+      fi.stripLengths = new int[] {compressed.length};
+      return new ImageReader(fi).readPixels(new ByteArrayInputStream(compressed));
+   }
+
+   @Test
+   public void stripsSurviveARoundTrip() throws IOException {
+      byte[][] strips = {
+         new byte[0],
+         new byte[] {42},
+         new byte[100000], // constant: the LZW table fills and is cleared
+         randomBytes(100000, 1), // incompressible
+         toBytes(makeImage(2), ByteOrder.LITTLE_ENDIAN)
+      };
+      for (byte[] strip : strips) {
+         assertRoundTrip(TiffCompression.TIFF_LZW, strip);
+         assertRoundTrip(TiffCompression.TIFF_DEFLATE, strip);
+         assertRoundTrip(TiffCompression.TIFF_NONE, strip);
+      }
+   }
+
+   @Test
+   public void predictorIsReversible() {
+      for (ByteOrder order : new ByteOrder[] {ByteOrder.BIG_ENDIAN,
+            ByteOrder.LITTLE_ENDIAN}) {
+         byte[] data = toBytes(makeImage(3), order);
+         byte[] predicted = data.clone();
+         TiffCompression.applyPredictor(predicted, 2 * WIDTH, 1, 2, order);
+         assertFalse(Arrays.equals(data, predicted));
+         TiffCompression.undoPredictor(predicted, 2 * WIDTH, 1, 2, order);
+         assertArrayEquals(data, predicted);
+      }
+      // 8 bit RGB
+      byte[] data = randomBytes(3 * WIDTH * HEIGHT, 4);
+      byte[] predicted = data.clone();
+      TiffCompression.applyPredictor(predicted, 3 * WIDTH, 3, 1, ByteOrder.BIG_ENDIAN);
+      TiffCompression.undoPredictor(predicted, 3 * WIDTH, 3, 1, ByteOrder.BIG_ENDIAN);
+      assertArrayEquals(data, predicted);
+   }
+
+   @Test
+   public void predictorMakesSmoothImagesSmaller() throws IOException {
+      byte[] data = toBytes(makeImage(5), ByteOrder.LITTLE_ENDIAN);
+      byte[] predicted = data.clone();
+      TiffCompression.applyPredictor(predicted, 2 * WIDTH, 1, 2,
+            ByteOrder.LITTLE_ENDIAN);
+      assertTrue(TiffCompression.compress(TiffCompression.TIFF_LZW, predicted).length
+            < TiffCompression.compress(TiffCompression.TIFF_LZW, data).length);
+   }
+
+   @Test
+   public void imageJReadsCompressedStrips() throws IOException {
+      short[] pixels = makeImage(6);
+      byte[] data = toBytes(pixels, ByteOrder.LITTLE_ENDIAN);
+
+      byte[] lzw = TiffCompression.compress(TiffCompression.TIFF_LZW, data.clone());
+      assertArrayEquals(pixels, (short[]) readWithImageJ(lzw, FileInfo.LZW,
+            FileInfo.GRAY16_UNSIGNED));
+
+      byte[] zip = TiffCompression.compress(TiffCompression.TIFF_DEFLATE, data.clone());
+      assertArrayEquals(pixels, (short[]) readWithImageJ(zip, FileInfo.ZIP,
+            FileInfo.GRAY16_UNSIGNED));
+
+      byte[] predicted = data.clone();
+      TiffCompression.applyPredictor(predicted, 2 * WIDTH, 1, 2,
+            ByteOrder.LITTLE_ENDIAN);
+      byte[] lzwPredicted = TiffCompression.compress(TiffCompression.TIFF_LZW, predicted);
+      assertArrayEquals(pixels, (short[]) readWithImageJ(lzwPredicted,
+            FileInfo.LZW_WITH_DIFFERENCING, FileInfo.GRAY16_UNSIGNED));
+
+      byte[] bytes = randomBytes(WIDTH * HEIGHT, 7);
+      assertArrayEquals(bytes, (byte[]) readWithImageJ(
+            TiffCompression.compress(TiffCompression.TIFF_LZW, bytes.clone()),
+            FileInfo.LZW, FileInfo.GRAY8));
+   }
+
+   @Test(expected = IOException.class)
+   public void unknownCompressionIsRejected() throws IOException {
+      TiffCompression.compress((char) 7, new byte[10]);
+   }
+}
@@ -0,0 +1,104 @@
+package org.micromanager.graph;
+
+import ij.gui.OvalRoi;
+import ij.measure.Measurements;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ImageStatistics;
+import ij.process.ShortProcessor;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class HistogramStatisticsTest {
+   private static ShortProcessor makeShortImage(int width, int height) {
+      Random random = new Random(3);
+      short[] pixels = new short[width * height];
+      for (int i = 0; i < pixels.length; i++) {
+         // Include values above 32767 to catch sign errors
+         pixels[i] = (short) (1000 + random.nextInt(200) * random.nextInt(300));
+      }
+      return new ShortProcessor(width, height, pixels, null);
+   }
+
+   private static ByteProcessor makeByteImage(int width, int height) {
+      Random random = new Random(4);
+      byte[] pixels = new byte[width * height];
+      random.nextBytes(pixels);
+      return new ByteProcessor(width, height, pixels, null);
+   }
+
+   private static void assertMatchesImageJ(ImageProcessor ip) {
+      HistogramStatistics stats = HistogramStatistics.compute(ip, 0, 0.001);
+      assertArrayEquals(ip.getHistogram(), stats.getHistogram());
+
+      ImageStatistics ijStats = ImageStatistics.getStatistics(ip,
+            Measurements.MIN_MAX | Measurements.MEAN | Measurements.STD_DEV,
+            null);
+      assertEquals(ijStats.pixelCount, stats.getPixelCount());
+      assertEquals(ijStats.min, stats.getMin(), 0);
+      assertEquals(ijStats.max, stats.getMax(), 0);
+      assertEquals(ijStats.mean, stats.getMean(), 1e-9 * ijStats.mean);
+      assertEquals(ijStats.stdDev, stats.getStdDev(), 1e-6 * ijStats.stdDev);
+   }
+
+   @Test
+   public void shortImageMatchesImageJ() {
+      assertMatchesImageJ(makeShortImage(700, 600));
+   }
+
+   @Test
+   public void byteImageMatchesImageJ() {
+      assertMatchesImageJ(makeByteImage(700, 600));
+   }
+
+   @Test
+   public void roiAndMaskMatchImageJ() {
+      ShortProcessor sp = makeShortImage(700, 600);
+      sp.setRoi(new OvalRoi(50, 70, 400, 300));
+      assertMatchesImageJ(sp);
+
+      ByteProcessor bp = makeByteImage(700, 600);
+      bp.setRoi(new OvalRoi(10, 20, 333, 444));
+      assertMatchesImageJ(bp);
+   }
+
+   @Test
+   public void largeImagesAreSubsampled() {
+      ShortProcessor sp = makeShortImage(1000, 900);
+      int maxSamples = 100000;
+      HistogramStatistics stats = HistogramStatistics.compute(sp, maxSamples, 0);
+      int step = stats.getSampleStep();
+      assertEquals(3, step);
+      long expected = (long) ((1000 + step - 1) / step) * ((900 + step - 1) / step);
+      assertEquals(expected, stats.getPixelCount());
+      assertEquals(sp.getStatistics().mean, stats.getMean(),
+            0.01 * sp.getStatistics().mean);
+   }
+
+   @Test
+   public void percentilesAndBinsFollowTheHistogram() {
+      short[] pixels = new short[100];
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = (short) (i + 1); // 1 .. 100
+      }
+      HistogramStatistics stats = HistogramStatistics.compute(
+            new ShortProcessor(10, 10, pixels, null), 0, 0);
+      assertEquals(1, stats.getMin());
+      assertEquals(100, stats.getMax());
+      assertEquals(50.5, stats.getMean(), 1e-9);
+      assertEquals(1, stats.getPercentile(0.01));
+      assertEquals(50, stats.getPercentile(0.5));
+      assertEquals(100, stats.getPercentile(1.0));
+
+      int[] binned = stats.getBinnedHistogram(16, 8, false);
+      int[] expected = new int[8];
+      expected[0] = 15; // 1 .. 15
+      Arrays.fill(expected, 1, 6, 16); // 16 .. 95
+      expected[6] = 5; // 96 .. 100
+      assertArrayEquals(expected, binned);
+   }
+}
@@ -0,0 +1,156 @@
+package org.micromanager.positionlist;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.micromanager.api.MultiStagePosition;
+import org.micromanager.api.PositionList;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class StageTravelOptimizerTest {
+   private static MultiStagePosition position(double x, double y, double z) {
+      return new MultiStagePosition("XY", x, y, "Z", z);
+   }
+
+   private static MultiStagePosition[] randomPositions(int n, long seed) {
+      Random random = new Random(seed);
+      MultiStagePosition[] positions = new MultiStagePosition[n];
+      for (int i = 0; i < n; i++) {
+         positions[i] = position(random.nextDouble() * 1000,
+               random.nextDouble() * 1000, random.nextDouble() * 10);
+      }
+      return positions;
+   }
+
+   private static int[] identity(int n) {
+      int[] order = new int[n];
+      for (int i = 0; i < n; i++) {
+         order[i] = i;
+      }
+      return order;
+   }
+
+   private static void assertIsPermutation(int[] order) {
+      int[] sorted = order.clone();
+      Arrays.sort(sorted);
+      assertArrayEquals(identity(order.length), sorted);
+   }
+
+   // Shortest travel time over all orders that start with position 0
+   private static double bruteForceTime(StageTravelOptimizer optimizer,
+         MultiStagePosition[] positions, int[] order, int k) {
+      if (k == order.length) {
+         return optimizer.getTravelTime(positions, order);
+      }
+      double best = Double.POSITIVE_INFINITY;
+      for (int i = k; i < order.length; i++) {
+         int[] next = order.clone();
+         next[k] = order[i];
+         next[i] = order[k];
+         best = Math.min(best, bruteForceTime(optimizer, positions, next, k + 1));
+      }
+      return best;
+   }
+
+   @Test
+   public void orderIsNoLongerThanListOrder() {
+      StageTravelOptimizer optimizer = new StageTravelOptimizer();
+      for (long seed = 0; seed < 10; seed++) {
+         MultiStagePosition[] positions = randomPositions(50, seed);
+         int[] order = optimizer.computeOrder(positions);
+         assertIsPermutation(order);
+         assertEquals(0, order[0]);
+         assertTrue(optimizer.getTravelTime(positions, order)
+               <= optimizer.getTravelTime(positions, identity(positions.length)));
+      }
+   }
+
+   @Test
+   public void orderIsCloseToShortest() {
+      StageTravelOptimizer optimizer = new StageTravelOptimizer();
+      for (long seed = 0; seed < 10; seed++) {
+         MultiStagePosition[] positions = randomPositions(8, seed);
+         double time = optimizer.getTravelTime(positions,
+               optimizer.computeOrder(positions));
+         double shortest = bruteForceTime(optimizer, positions,
+               identity(positions.length), 1);
+         assertTrue(time <= 1.1 * shortest + 1e-9);
+      }
+   }
+
+   @Test
+   public void interruptedThreadStillGetsAnOrder() {
+      MultiStagePosition[] positions = randomPositions(200, 3);
+      Thread.currentThread().interrupt();
+      int[] order;
+      try {
+         order = new StageTravelOptimizer().computeOrder(positions);
+         assertTrue(Thread.currentThread().isInterrupted());
+      } finally {
+         Thread.interrupted();
+      }
+      assertIsPermutation(order);
+      assertEquals(0, order[0]);
+   }
+
+   @Test
+   public void incrementalAutofocusPositionsStayBehindTheirPredecessor() {
+      MultiStagePosition[] positions = randomPositions(20, 42);
+      positions[7].setProperty(PositionList.AF_KEY,
+            PositionList.AF_VALUE_INCREMENTAL);
+      positions[8].setProperty(PositionList.AF_KEY,
+            PositionList.AF_VALUE_INCREMENTAL);
+      int[] order = new StageTravelOptimizer().computeOrder(positions);
+      assertIsPermutation(order);
+      int at = -1;
+      for (int i = 0; i < order.length; i++) {
+         if (order[i] == 6) {
+            at = i;
+         }
+      }
+      assertEquals(7, order[at + 1]);
+      assertEquals(8, order[at + 2]);
+   }
+
+   @Test
+   public void slowAxisIsMovedLeast() {
+      // 5 x 5 grid, listed column by column
+      MultiStagePosition[] positions = new MultiStagePosition[25];
+      for (int i = 0; i < positions.length; i++) {
+         positions[i] = position(100 * (i / 5), 100 * (i % 5), 0);
+      }
+      StageTravelOptimizer optimizer = new StageTravelOptimizer();
+      optimizer.setXYSpeed(1000, 10);
+      int[] order = optimizer.computeOrder(positions);
+      int yChanges = 0;
+      for (int i = 1; i < order.length; i++) {
+         if (positions[order[i]].getY() != positions[order[i - 1]].getY()) {
+            yChanges++;
+         }
+      }
+      // Row by row
+      assertEquals(4, yChanges);
+   }
+
+   @Test
+   public void speedPropertiesAreRecognized() {
+      assertEquals('x', StageTravelOptimizer.getSpeedPropertyAxis("SpeedX [mm/s]"));
+      assertEquals('y', StageTravelOptimizer.getSpeedPropertyAxis("Speed Y [mm/s]"));
+      assertEquals('x', StageTravelOptimizer.getSpeedPropertyAxis("MotorSpeedX-S(mm/s)"));
+      assertEquals('z', StageTravelOptimizer.getSpeedPropertyAxis("ZSpeed(um/s)"));
+      assertEquals(' ', StageTravelOptimizer.getSpeedPropertyAxis("XYSpeed(um/s)"));
+      assertEquals(' ', StageTravelOptimizer.getSpeedPropertyAxis("MotorSpeed-S(mm/s)"));
+      assertEquals(' ', StageTravelOptimizer.getSpeedPropertyAxis("Velocity (micron/s)"));
+      assertEquals(0, StageTravelOptimizer.getSpeedPropertyAxis("SpeedA [mm/s]"));
+      assertEquals(0, StageTravelOptimizer.getSpeedPropertyAxis("MotorSpeedMaximumX(mm/s)"));
+      assertEquals(0, StageTravelOptimizer.getSpeedPropertyAxis("JoyStick Fast Speed"));
+      assertEquals(0, StageTravelOptimizer.getSpeedPropertyAxis("Exposure"));
+
+      assertEquals(2500, StageTravelOptimizer.parseSpeedUmPerS("SpeedX [mm/s]", "2.5"), 0);
+      assertEquals(800, StageTravelOptimizer.parseSpeedUmPerS("XYSpeed(um/s)", " 800 "), 0);
+      assertTrue(Double.isNaN(StageTravelOptimizer.parseSpeedUmPerS("Speed", "5")));
+      assertTrue(Double.isNaN(StageTravelOptimizer.parseSpeedUmPerS("Speed [mm/s]", "0")));
+      assertTrue(Double.isNaN(StageTravelOptimizer.parseSpeedUmPerS("Speed [mm/s]", "fast")));
+   }
+}
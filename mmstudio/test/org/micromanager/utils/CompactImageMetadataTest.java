@@ -0,0 +1,143 @@
+package org.micromanager.utils;
+
+import java.nio.ByteBuffer;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CompactImageMetadataTest {
+   private static JSONObject makeTags() throws JSONException {
+      JSONObject tags = new JSONObject();
+      MDUtils.setChannelIndex(tags, 1);
+      MDUtils.setSliceIndex(tags, 2);
+      MDUtils.setFrameIndex(tags, 3);
+      MDUtils.setPositionIndex(tags, 4);
+      MDUtils.setWidth(tags, 512);
+      MDUtils.setHeight(tags, 256);
+      MDUtils.setPixelTypeFromString(tags, "GRAY16");
+      tags.put("ImageNumber", 17L);
+      MDUtils.setElapsedTimeMs(tags, 1234.5);
+      MDUtils.setExposureMs(tags, 10.0);
+      MDUtils.setXPositionUm(tags, -100.25);
+      MDUtils.setYPositionUm(tags, 200.5);
+      MDUtils.setZPositionUm(tags, 3.75);
+      tags.put("Camera", "Cam\u00e9ra");
+      tags.put("Summary", new JSONObject().put("Prefix", "acq"));
+      return tags;
+   }
+
+   private static void assertSameFields(CompactImageMetadata expected,
+         CompactImageMetadata actual) {
+      assertEquals(expected.getChannelIndex(), actual.getChannelIndex());
+      assertEquals(expected.getSliceIndex(), actual.getSliceIndex());
+      assertEquals(expected.getFrameIndex(), actual.getFrameIndex());
+      assertEquals(expected.getPositionIndex(), actual.getPositionIndex());
+      assertEquals(expected.getWidth(), actual.getWidth());
+      assertEquals(expected.getHeight(), actual.getHeight());
+      assertEquals(expected.getPixelType(), actual.getPixelType());
+      assertEquals(expected.getImageNumber(), actual.getImageNumber());
+      assertEquals(expected.getElapsedTimeMs(), actual.getElapsedTimeMs(), 0);
+      assertEquals(expected.getExposureMs(), actual.getExposureMs(), 0);
+      assertEquals(expected.getXPositionUm(), actual.getXPositionUm(), 0);
+      assertEquals(expected.getYPositionUm(), actual.getYPositionUm(), 0);
+      assertEquals(expected.getZPositionUm(), actual.getZPositionUm(), 0);
+   }
+
+   @Test
+   public void fromTagsReadsTypedFields() throws JSONException {
+      CompactImageMetadata md = CompactImageMetadata.fromTags(makeTags());
+      assertEquals(1, md.getChannelIndex());
+      assertEquals(2, md.getSliceIndex());
+      assertEquals(3, md.getFrameIndex());
+      assertEquals(4, md.getPositionIndex());
+      assertEquals(512, md.getWidth());
+      assertEquals(256, md.getHeight());
+      assertEquals("GRAY16", md.getPixelType());
+      assertEquals(17, md.getImageNumber());
+      assertEquals(1234.5, md.getElapsedTimeMs(), 0);
+      assertEquals(10.0, md.getExposureMs(), 0);
+      assertEquals(-100.25, md.getXPositionUm(), 0);
+      assertEquals(200.5, md.getYPositionUm(), 0);
+      assertEquals(3.75, md.getZPositionUm(), 0);
+      assertEquals("1_2_3_4", md.getLabel());
+      assertTrue(md.hasIndices());
+   }
+
+   @Test
+   public void bufferRoundTripKeepsAllTags() throws JSONException {
+      JSONObject tags = makeTags();
+      CompactImageMetadata md = CompactImageMetadata.fromTags(tags);
+      ByteBuffer buffer = md.toBuffer();
+      assertEquals(md.getSerializedSize(), buffer.remaining());
+      assertEquals(buffer.remaining(), CompactImageMetadata.getRecordSize(buffer));
+
+      CompactImageMetadata read = CompactImageMetadata.fromBuffer(buffer);
+      assertEquals("1_2_3_4", read.getLabel());
+      assertSameFields(md, read);
+      assertEquals(tags.toString(), read.getTags().toString());
+
+      // Writing an unchanged record again gives the same bytes
+      assertEquals(buffer, read.toBuffer());
+   }
+
+   @Test
+   public void changedFieldsAreWrittenToTags() throws JSONException {
+      CompactImageMetadata read = CompactImageMetadata.fromBuffer(
+            CompactImageMetadata.fromTags(makeTags()).toBuffer());
+      read.setChannelIndex(5);
+      read.setZPositionUm(-1.5);
+
+      CompactImageMetadata again = CompactImageMetadata.fromBuffer(read.toBuffer());
+      assertSameFields(read, again);
+      JSONObject tags = again.getTags();
+      assertEquals(5, MDUtils.getChannelIndex(tags));
+      assertEquals(-1.5, MDUtils.getZPositionUm(tags), 0);
+      assertEquals("Cam\u00e9ra", tags.getString("Camera"));
+   }
+
+   @Test
+   public void recordsCanBeWrittenBackToBack() throws JSONException {
+      CompactImageMetadata[] records = new CompactImageMetadata[3];
+      int size = 0;
+      for (int i = 0; i < records.length; ++i) {
+         JSONObject tags = makeTags();
+         MDUtils.setFrameIndex(tags, i);
+         records[i] = CompactImageMetadata.fromTags(tags);
+         size += records[i].getSerializedSize();
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(size);
+      for (CompactImageMetadata record : records) {
+         record.write(buffer);
+      }
+      assertFalse(buffer.hasRemaining());
+
+      buffer.rewind();
+      for (int i = 0; i < records.length; ++i) {
+         CompactImageMetadata read = CompactImageMetadata.fromBuffer(buffer);
+         assertEquals(i, read.getFrameIndex());
+         assertSameFields(records[i], read);
+         buffer.position(buffer.position() + CompactImageMetadata.getRecordSize(buffer));
+      }
+   }
+
+   @Test
+   public void missingFieldsAreUnset() throws JSONException {
+      JSONObject tags = new JSONObject();
+      MDUtils.setChannelIndex(tags, 0);
+      CompactImageMetadata md = CompactImageMetadata.fromBuffer(
+            CompactImageMetadata.fromTags(tags).toBuffer());
+      assertEquals(0, md.getChannelIndex());
+      assertEquals(-1, md.getFrameIndex());
+      assertEquals(-1, md.getWidth());
+      assertTrue(Double.isNaN(md.getZPositionUm()));
+      assertFalse(md.hasIndices());
+      assertFalse(md.getTags().has("FrameIndex"));
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void otherDataIsRejected() {
+      CompactImageMetadata.fromBuffer(ByteBuffer.allocate(CompactImageMetadata.HEADER_SIZE));
+   }
+}
@@ -0,0 +1,166 @@
+package org.micromanager.utils;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FocusMapTest {
+   private static double[][] randomPoints(int n, long seed) {
+      Random random = new Random(seed);
+      double[][] points = new double[3][n];
+      for (int i = 0; i < n; i++) {
+         points[0][i] = random.nextDouble() * 10000;
+         points[1][i] = random.nextDouble() * 10000;
+         points[2][i] = random.nextDouble() * 50;
+      }
+      return points;
+   }
+
+   // Positions of a 20 x 20 grid, slightly jittered so that no two distances
+   // tie, listed row by row as a stage would visit them
+   private static double[][] stageOrderPoints() {
+      Random random = new Random(11);
+      int n = 400;
+      double[][] points = new double[3][n];
+      for (int i = 0; i < n; i++) {
+         points[0][i] = 500 * (i % 20) + random.nextDouble();
+         points[1][i] = 500 * (i / 20) + random.nextDouble();
+         points[2][i] = random.nextDouble() * 50;
+      }
+      return points;
+   }
+
+   // Inverse distance weighting of the k nearest points, found by sorting
+   private static double bruteForce(final double[][] points, final double x,
+         final double y, int k, double exponent) {
+      int n = points[0].length;
+      Integer[] order = new Integer[n];
+      for (int i = 0; i < n; i++) {
+         order[i] = i;
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+         @Override
+         public int compare(Integer a, Integer b) {
+            return Double.compare(dist2(points, a, x, y), dist2(points, b, x, y));
+         }
+      });
+      double numerator = 0;
+      double denominator = 0;
+      for (int i = 0; i < Math.min(k, n); i++) {
+         double w = Math.pow(dist2(points, order[i], x, y), -exponent / 2);
+         numerator += w * points[2][order[i]];
+         denominator += w;
+      }
+      return numerator / denominator;
+   }
+
+   private static double dist2(double[][] points, int i, double x, double y) {
+      double dx = points[0][i] - x;
+      double dy = points[1][i] - y;
+      return dx * dx + dy * dy;
+   }
+
+   private static FocusMap addOneByOne(FocusMap map, double[][] points) {
+      for (int i = 0; i < points[0].length; i++) {
+         map.addPoint(points[0][i], points[1][i], points[2][i]);
+      }
+      return map;
+   }
+
+   private static void assertMatchesBruteForce(FocusMap map, double[][] points,
+         int k, double exponent, long seed) {
+      Random random = new Random(seed);
+      for (int i = 0; i < 500; i++) {
+         double x = random.nextDouble() * 11000 - 500;
+         double y = random.nextDouble() * 11000 - 500;
+         double expected = bruteForce(points, x, y, k, exponent);
+         assertEquals(expected, map.evaluate(x, y), 1e-9 * Math.abs(expected));
+      }
+   }
+
+   @Test
+   public void nearestNeighborsMatchBruteForce() {
+      for (long seed = 0; seed < 5; seed++) {
+         double[][] points = randomPoints(300, seed);
+         assertMatchesBruteForce(addOneByOne(new FocusMap(
+               FocusMap.Method.INVERSE_DISTANCE), points),
+               points, FocusMap.DEFAULT_NEIGHBORS, FocusMap.DEFAULT_EXPONENT, seed);
+
+         FocusMap map = new FocusMap(FocusMap.Method.INVERSE_DISTANCE, 5, 3.0);
+         map.addPoints(points[0], points[1], points[2]);
+         assertMatchesBruteForce(map, points, 5, 3.0, seed);
+      }
+   }
+
+   @Test
+   public void pointsInStageOrderMatchBruteForce() {
+      double[][] points = stageOrderPoints();
+      FocusMap map = addOneByOne(new FocusMap(FocusMap.Method.INVERSE_DISTANCE),
+            points);
+      assertEquals(points[0].length, map.getNumberOfPoints());
+      assertMatchesBruteForce(map, points, FocusMap.DEFAULT_NEIGHBORS,
+            FocusMap.DEFAULT_EXPONENT, 1);
+   }
+
+   @Test
+   public void fewPointsUseAllOfThem() {
+      double[][] points = randomPoints(3, 9);
+      FocusMap map = addOneByOne(new FocusMap(FocusMap.Method.INVERSE_DISTANCE),
+            points);
+      assertMatchesBruteForce(map, points, 3, FocusMap.DEFAULT_EXPONENT, 9);
+   }
+
+   @Test
+   public void referencePointsKeepTheirZ() {
+      double[][] points = randomPoints(50, 5);
+      FocusMap map = addOneByOne(new FocusMap(FocusMap.Method.LOCAL_PLANE),
+            points);
+      for (int i = 0; i < points[0].length; i++) {
+         assertEquals(points[2][i], map.evaluate(points[0][i], points[1][i]), 0);
+      }
+   }
+
+   @Test
+   public void localPlaneReproducesAPlane() {
+      double[][] points = randomPoints(100, 6);
+      for (int i = 0; i < points[0].length; i++) {
+         points[2][i] = 12.5 + 0.002 * points[0][i] - 0.001 * points[1][i];
+      }
+      FocusMap map = addOneByOne(new FocusMap(FocusMap.Method.LOCAL_PLANE),
+            points);
+      Random random = new Random(6);
+      for (int i = 0; i < 200; i++) {
+         double x = random.nextDouble() * 12000 - 1000;
+         double y = random.nextDouble() * 12000 - 1000;
+         assertEquals(12.5 + 0.002 * x - 0.001 * y, map.evaluate(x, y), 1e-6);
+      }
+   }
+
+   @Test
+   public void gridFollowsAddedPoints() {
+      double[][] points = randomPoints(60, 8);
+      FocusMap map = new FocusMap(FocusMap.Method.INVERSE_DISTANCE);
+      map.setGrid(0, 0, 250, 250, 41, 41);
+      addOneByOne(map, points);
+
+      FocusMap reference = new FocusMap(FocusMap.Method.INVERSE_DISTANCE);
+      reference.addPoints(points[0], points[1], points[2]);
+      for (int iy = 0; iy < 41; iy++) {
+         for (int ix = 0; ix < 41; ix++) {
+            double expected = reference.evaluate(250 * ix, 250 * iy);
+            assertEquals(expected, map.getZ(250 * ix, 250 * iy),
+                  1e-9 * Math.abs(expected));
+         }
+      }
+      // Outside the grid, Z is computed from the points
+      assertEquals(reference.evaluate(-100, 5000), map.getZ(-100, 5000), 0);
+   }
+
+   @Test(expected = IllegalStateException.class)
+   public void emptyMapHasNoZ() {
+      new FocusMap(FocusMap.Method.INVERSE_DISTANCE).getZ(0, 0);
+   }
+}
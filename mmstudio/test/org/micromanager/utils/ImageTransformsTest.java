@@ -0,0 +1,171 @@
+package org.micromanager.utils;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.Rectangle;
+import java.util.Random;
+
+import org.micromanager.utils.ImageTransforms.Orientation;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ImageTransformsTest {
+   // Not multiples of the tile size, and not square
+   private static final int WIDTH = 150;
+   private static final int HEIGHT = 97;
+
+   private static final Orientation[] BASIC = {
+      Orientation.IDENTITY, Orientation.FLIP_HORIZONTAL,
+      Orientation.FLIP_VERTICAL, Orientation.ROTATE_RIGHT,
+      Orientation.ROTATE_LEFT, Orientation.ROTATE_180
+   };
+
+   private static ImageProcessor[] makeImages() {
+      Random random = new Random(7);
+      int n = WIDTH * HEIGHT;
+      byte[] bytes = new byte[n];
+      short[] shorts = new short[n];
+      int[] ints = new int[n];
+      float[] floats = new float[n];
+      random.nextBytes(bytes);
+      for (int i = 0; i < n; i++) {
+         shorts[i] = (short) random.nextInt(65536);
+         ints[i] = random.nextInt();
+         floats[i] = random.nextFloat();
+      }
+      return new ImageProcessor[] {
+         new ByteProcessor(WIDTH, HEIGHT, bytes, null),
+         new ShortProcessor(WIDTH, HEIGHT, shorts, null),
+         new ColorProcessor(WIDTH, HEIGHT, ints),
+         new FloatProcessor(WIDTH, HEIGHT, floats, null)
+      };
+   }
+
+   // Applies a basic orientation the way ImageJ does it
+   private static ImageProcessor applyWithImageJ(ImageProcessor ip,
+         Orientation orientation) {
+      ImageProcessor result = ip.duplicate();
+      if (orientation.equals(Orientation.FLIP_HORIZONTAL)) {
+         result.flipHorizontal();
+      } else if (orientation.equals(Orientation.FLIP_VERTICAL)) {
+         result.flipVertical();
+      } else if (orientation.equals(Orientation.ROTATE_RIGHT)) {
+         result = result.rotateRight();
+      } else if (orientation.equals(Orientation.ROTATE_LEFT)) {
+         result = result.rotateLeft();
+      } else if (orientation.equals(Orientation.ROTATE_180)) {
+         result.flipHorizontal();
+         result.flipVertical();
+      }
+      return result;
+   }
+
+   private static void assertSamePixels(ImageProcessor expected, Object pixels,
+         int width, int height) {
+      assertEquals(expected.getWidth(), width);
+      assertEquals(expected.getHeight(), height);
+      Object e = expected.getPixels();
+      if (e instanceof byte[]) {
+         assertArrayEquals((byte[]) e, (byte[]) pixels);
+      } else if (e instanceof short[]) {
+         assertArrayEquals((short[]) e, (short[]) pixels);
+      } else if (e instanceof int[]) {
+         assertArrayEquals((int[]) e, (int[]) pixels);
+      } else {
+         assertArrayEquals((float[]) e, (float[]) pixels, 0);
+      }
+   }
+
+   private static void assertTransformMatches(ImageProcessor ip,
+         Rectangle region, Orientation first, Orientation second) {
+      ImageProcessor expected = ip.duplicate();
+      if (region != null) {
+         expected.setRoi(region);
+         expected = expected.crop();
+      }
+      expected = applyWithImageJ(applyWithImageJ(expected, first), second);
+
+      Orientation combined = first.then(second);
+      Object pixels = ImageTransforms.transform(ip.getPixels(), WIDTH, HEIGHT,
+            region, combined, null);
+      int w = region == null ? WIDTH : region.width;
+      int h = region == null ? HEIGHT : region.height;
+      if (combined.swapsAxes()) {
+         int tmp = w;
+         w = h;
+         h = tmp;
+      }
+      assertSamePixels(expected, pixels, w, h);
+   }
+
+   @Test
+   public void basicOrientationsMatchImageJ() {
+      for (ImageProcessor ip : makeImages()) {
+         for (Orientation o : BASIC) {
+            assertTransformMatches(ip, null, o, Orientation.IDENTITY);
+         }
+      }
+   }
+
+   @Test
+   public void compositionsMatchImageJ() {
+      for (ImageProcessor ip : makeImages()) {
+         for (Orientation first : BASIC) {
+            for (Orientation second : BASIC) {
+               assertTransformMatches(ip, null, first, second);
+            }
+         }
+      }
+   }
+
+   @Test
+   public void croppedCompositionsMatchImageJ() {
+      Rectangle region = new Rectangle(13, 5, 101, 70);
+      for (ImageProcessor ip : makeImages()) {
+         for (Orientation first : BASIC) {
+            for (Orientation second : BASIC) {
+               assertTransformMatches(ip, region, first, second);
+            }
+         }
+      }
+   }
+
+   @Test
+   public void compositionFollowsGroupRules() {
+      Orientation r = Orientation.ROTATE_RIGHT;
+      assertEquals(Orientation.ROTATE_180, r.then(r));
+      assertTrue(r.then(Orientation.ROTATE_LEFT).isIdentity());
+      assertTrue(r.then(r).then(r).then(r).isIdentity());
+      assertTrue(Orientation.FLIP_HORIZONTAL.then(Orientation.FLIP_HORIZONTAL).isIdentity());
+      assertEquals(Orientation.ROTATE_180,
+            Orientation.FLIP_HORIZONTAL.then(Orientation.FLIP_VERTICAL));
+      assertFalse(r.then(Orientation.FLIP_HORIZONTAL).equals(
+            Orientation.FLIP_HORIZONTAL.then(r)));
+   }
+
+   @Test
+   public void outputArrayIsReused() {
+      short[] src = (short[]) makeImages()[1].getPixels();
+      short[] dst = new short[WIDTH * HEIGHT];
+      assertSame(dst, ImageTransforms.transform(src, WIDTH, HEIGHT,
+            Orientation.ROTATE_LEFT, dst));
+      assertSame(dst, ImageTransforms.crop(src, WIDTH, HEIGHT,
+            new Rectangle(0, 0, 10, 10), dst));
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void regionOutsideImageIsRejected() {
+      ImageTransforms.crop(new byte[WIDTH * HEIGHT], WIDTH, HEIGHT,
+            new Rectangle(100, 0, 51, 10), null);
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void tooSmallOutputIsRejected() {
+      ImageTransforms.transform(new byte[WIDTH * HEIGHT], WIDTH, HEIGHT,
+            Orientation.ROTATE_RIGHT, new byte[WIDTH * HEIGHT - 1]);
+   }
+}
@@ -0,0 +1,89 @@
+package org.micromanager.utils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MDUtilsTest {
+   // Tags similar to those of an image from a typical configuration
+   private static JSONObject makeTags() throws JSONException {
+      JSONObject summary = new JSONObject();
+      summary.put("Prefix", "acq");
+      summary.put("Channels", 2);
+      summary.put("ChNames", new JSONArray().put("DAPI").put("FITC"));
+      JSONObject tags = new JSONObject();
+      for (int i = 0; i < 150; ++i) {
+         tags.put("Device" + (i / 5) + "-Property" + i, "Value " + i);
+      }
+      tags.put("Summary", summary);
+      tags.put("Width", 512);
+      tags.put("Height", 512);
+      tags.put("ChannelIndex", 0);
+      tags.put("FrameIndex", 0);
+      tags.put("ElapsedTime-ms", 12.5);
+      return tags;
+   }
+
+   @Test
+   public void copyIsIndependentOfOriginal() throws JSONException {
+      JSONObject tags = makeTags();
+      JSONObject copy = MDUtils.copy(tags);
+      MDUtils.setChannelIndex(copy, 1);
+      assertEquals(0, MDUtils.getChannelIndex(tags));
+      assertEquals(1, MDUtils.getChannelIndex(copy));
+
+      MDUtils.setFrameIndex(tags, 3);
+      assertEquals(0, MDUtils.getFrameIndex(copy));
+
+      copy.remove("Width");
+      assertTrue(tags.has("Width"));
+   }
+
+   @Test
+   public void copyIsIndependentOfOriginalWhenNested() throws JSONException {
+      JSONObject tags = makeTags();
+      JSONObject copy = MDUtils.copy(tags);
+      copy.getJSONObject("Summary").put("Prefix", "changed");
+      copy.getJSONObject("Summary").getJSONArray("ChNames").put(0, "Cy5");
+      assertEquals("acq", tags.getJSONObject("Summary").getString("Prefix"));
+      assertEquals("DAPI", tags.getJSONObject("Summary").getJSONArray("ChNames").getString(0));
+
+      JSONObject copy2 = MDUtils.copy(tags);
+      tags.getJSONObject("Summary").put("Prefix", "changed");
+      assertEquals("acq", copy2.getJSONObject("Summary").getString("Prefix"));
+   }
+
+   @Test
+   public void copyIsIndependentOfNestedValuesRetrievedBefore()
+         throws JSONException {
+      JSONObject tags = makeTags();
+      JSONObject summary = tags.getJSONObject("Summary");
+      JSONObject copy = MDUtils.copy(tags);
+      summary.put("Prefix", "changed");
+      summary.getJSONArray("ChNames").put(0, "Cy5");
+      assertEquals("acq", copy.getJSONObject("Summary").getString("Prefix"));
+      assertEquals("DAPI", copy.getJSONObject("Summary").getJSONArray("ChNames").getString(0));
+   }
+
+   @Test
+   public void copySerializesLikeOriginal() throws JSONException {
+      JSONObject tags = makeTags();
+      JSONObject copy = MDUtils.copy(tags);
+      assertEquals(tags.toString(), copy.toString());
+      assertEquals(tags.length(), copy.length());
+   }
+
+   @Test
+   public void changedCopyMatchesParsedCopy() throws JSONException {
+      JSONObject tags = makeTags();
+      final String original = tags.toString();
+      JSONObject parseCopy = new JSONObject(tags.toString());
+      MDUtils.setChannelIndex(parseCopy, 1);
+      JSONObject copy = MDUtils.copy(tags);
+      MDUtils.setChannelIndex(copy, 1);
+      assertEquals(original, tags.toString());
+      assertEquals(parseCopy.toString(), copy.toString());
+   }
+}
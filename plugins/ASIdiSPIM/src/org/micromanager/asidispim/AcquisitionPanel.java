@@ -48,6 +48,7 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
 import java.text.ParseException;
+import java.util.LinkedList;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -127,6 +128,10 @@ import org.micromanager.asidispim.api.ASIdiSPIMException;
 @SuppressWarnings("serial")
 public class AcquisitionPanel extends ListeningJPanel implements DevicesListenerInterface {
 
+   // maximum number of images taken from the circular buffer at once
+   private static final int IMAGE_BATCH_SIZE = 32;
+   // longest wait for the next image before checking for cancellation, in ms
+   private static final int IMAGE_WAIT_MS = 20;
    private final Devices devices_;
    private final Properties props_;
    private final Cameras cameras_;
@@ -2180,10 +2185,9 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
                         long now = start;
                         long timeout;  // wait 5 seconds for first image to come
                         timeout = Math.max(5000, Math.round(1.2*volumeDuration));
-                        while (core_.getRemainingImageCount() == 0 && (now - start < timeout)
+                        while (!core_.waitForImage(IMAGE_WAIT_MS) && (now - start < timeout)
                               && !cancelAcquisition_.get()) {
                            now = System.currentTimeMillis();
-                           Thread.sleep(5);
                         }
                         if (now - start >= timeout) {
                            throw new Exception("Camera did not send first image within a reasonable time");
@@ -2198,14 +2202,21 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
                         timeout2 = Math.max(2000, Math.round(5*sliceDuration));
                         start = System.currentTimeMillis();
                         long last = start;
+                        // images taken from the circular buffer but not yet handled
+                        LinkedList<TaggedImage> popped = new LinkedList<TaggedImage>();
                         try {
-                           while ((core_.getRemainingImageCount() > 0
+                           while ((!popped.isEmpty()
+                                 || core_.getRemainingImageCount() > 0
                                  || core_.isSequenceRunning(firstCamera)
                                  || (twoSided && core_.isSequenceRunning(secondCamera)))
                                  && !done) {
                               now = System.currentTimeMillis();
-                              if (core_.getRemainingImageCount() > 0) {  // we have an image to grab
-                                 TaggedImage timg = core_.popNextTaggedImage();
+                              if (popped.isEmpty() && core_.getRemainingImageCount() > 0) {
+                                 // take all available images with one call into the core
+                                 popped.addAll(core_.popNextTaggedImages(IMAGE_BATCH_SIZE));
+                              }
+                              if (!popped.isEmpty()) {  // we have an image to grab
+                                 TaggedImage timg = popped.removeFirst();
                                  String camera = (String) timg.tags.get("Camera");
 
                                  // figure out which channel index the acquisition is using
@@ -2272,7 +2283,7 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
 
                               } else {  // no image ready yet
                                  done = cancelAcquisition_.get();
-                                 Thread.sleep(1);
+                                 core_.waitForImage(IMAGE_WAIT_MS);
                                  if (now - last >= timeout2) {
                                     ReportingUtils.logError("Camera did not send all expected images within" +
                                           " a reasonable period for timepoint " + (timePoint+1) + ".  Continuing anyway.");
@@ -7,6 +7,7 @@
 package org.micromanager.acquiremultipleregions;
 
 import org.micromanager.api.ScriptInterface;
+import org.micromanager.utils.FocusMap;
 
 /**
  *
@@ -26,6 +27,8 @@ public class AcquireMultipleRegions  implements org.micromanager.api.MMPlugin {
      *
      */
        public static double shepardExponent = 2; 
+       //Number of nearest points that Shepard interpolation uses
+       public static int shepardNeighbors = FocusMap.DEFAULT_NEIGHBORS;
    
     @Override
     public void dispose() {
@@ -149,6 +149,8 @@ class Region {
         numYImages = this.getNumYTiles(yStepSize);        
         //update maxX to cover an integer number of fields
         maxX = minX + (numXImages-1) * xStepSize;
+        //all tile positions are on this grid
+        zGen.prepareGrid(minX, minY, xStepSize, yStepSize, numXImages, numYImages);
   
         MSP0 =  positions.getPosition(0); 
         
@@ -30,4 +30,11 @@ interface ZGenerator {
     }
     
     public abstract double getZ (double X, double Y, String axis);    
+
+    /**
+     * Called before getZ is asked for the positions of a grid, so that they
+     * can be computed all at once
+     */
+    public abstract void prepareGrid (double X, double Y, double stepX, double stepY,
+            int numX, int numY);
 }
\ No newline at end of file
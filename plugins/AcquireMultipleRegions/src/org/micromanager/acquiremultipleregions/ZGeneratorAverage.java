@@ -55,4 +55,10 @@ class ZGeneratorAverage implements ZGenerator {
         return averageZPositions_.get(axis);
     }
 
+    @Override
+    public void prepareGrid(double X, double Y, double stepX, double stepY,
+            int numX, int numY) {
+        //Z is the same everywhere
+    }
+
 }
\ No newline at end of file
@@ -12,16 +12,18 @@ import java.util.Map;
 import org.micromanager.api.MultiStagePosition;
 import org.micromanager.api.PositionList;
 import org.micromanager.api.StagePosition;
+import org.micromanager.utils.FocusMap;
 
 /**
  *
  * Allows construction of Z positions by interpolation using Shepard Interpolation
+ * of the nearest positions
  * 
  * @author kthorn
  */
 class ZGeneratorShepard implements ZGenerator {
     ZGeneratorType type_;
-    Map <String, ShepardInterpolator> interpolators_;
+    Map <String, FocusMap> interpolators_;
 
     /**
      *
@@ -50,7 +52,7 @@ class ZGeneratorShepard implements ZGenerator {
         y = new double[nPositions];
 
         
-        interpolators_ = new HashMap<String, ShepardInterpolator>(5);
+        interpolators_ = new HashMap<String, FocusMap>(5);
         //Loop over all positions and extract X and Y values
         for (int p=0; p<nPositions; p++){
              MSP = PL.getPosition(p);
@@ -67,7 +69,10 @@ class ZGeneratorShepard implements ZGenerator {
               for (int p=0; p<nPositions; p++){
                   z[p] = PL.getPosition(p).get(a).x;                
               }              
-              interpolators_.put(SP.stageName, new ShepardInterpolator(x, y, z, exp)); //store the interpolator for this axis
+              FocusMap interpolator = new FocusMap(FocusMap.Method.INVERSE_DISTANCE,
+                      AcquireMultipleRegions.shepardNeighbors, exp);
+              interpolator.addPoints(x, y, z);
+              interpolators_.put(SP.stageName, interpolator); //store the interpolator for this axis
            }
        }        
     }
@@ -81,8 +86,19 @@ class ZGeneratorShepard implements ZGenerator {
      */
     @Override
     public double getZ(double X, double Y, String axis) {
-        ShepardInterpolator interpolator;
+        FocusMap interpolator;
         interpolator = interpolators_.get(axis);
-        return interpolator.interpolate(X, Y);
+        return interpolator.getZ(X, Y);
+    }
+
+    @Override
+    public void prepareGrid(double X, double Y, double stepX, double stepY,
+            int numX, int numY) {
+        if (stepX <= 0 || stepY <= 0) {
+            return;
+        }
+        for (FocusMap interpolator : interpolators_.values()) {
+            interpolator.setGrid(X, Y, stepX, stepY, numX, numY);
+        }
     }
 }
\ No newline at end of file
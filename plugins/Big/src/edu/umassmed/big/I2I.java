@@ -13,11 +13,19 @@ package edu.umassmed.big;
 import java.io.*;
 import java.lang.System;
 import java.lang.Integer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 
 import edu.umassmed.big.Utils;
 
 public class I2I {
 
+	private static final int HEADER_SIZE = 1024;
+	// plane buffers are pooled per thread and shared by all I2I files, so
+	// streaming to many files does not hold a buffer for each of them
+	private static final ThreadLocal<ByteBuffer> planeBuffer = new ThreadLocal<ByteBuffer>();
+
 	private String history[] = new String[15];
 	private String i2i_fileName;
 	private short min, max, xOrg, yOrg;
@@ -183,11 +191,10 @@ public class I2I {
 					data = new short[data_size];
 		
 					System.out.println(i2i_fileName + " Data Size: " + data_size);
-					for (int x = 0; x < data_size; x++) {
-						if (file_endian == 'B')
-							data[x] = in.readShort();
-						else
-							data[x] = swap(in.readShort());
+					int plane = getX() * getY();
+					ByteOrder order = (file_endian == 'L') ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+					for (int z = 0; z < getZ(); z++) {
+						readShorts(in.getChannel(), data, z * plane, plane, HEADER_SIZE + (long) z * plane * 2, order);
 					}
 				}
 			}
@@ -253,16 +260,18 @@ public class I2I {
 		try {
 			i2i_fileName = new String(file);
 			out = null;
-			out = new RandomAccessFile(i2i_fileName,"w");
+			out = new RandomAccessFile(i2i_fileName,"rw");
 			
 			try {	
+				out.setLength(0);
 				// write header
 				System.out.println("Writing Header");
 				writeHeader(out);
 				System.out.println("Writing Image Data");
-				// write data
-				for (int x = 0; x < data_size; x++) {
-					out.writeShort(data[x]);
+				// write data, one plane at a time
+				int plane = getX() * getY();
+				for (int z = 0; z < data_size / plane; z++) {
+					writeShorts(out.getChannel(), data, z * plane, plane, HEADER_SIZE + (long) z * plane * 2);
 				}
 				
 			} finally {
@@ -445,6 +454,60 @@ public class I2I {
 		
 		return;
 	}
+	/**
+	 * Writes a 2D image straight to the file opened by I2I(file, x, y, z), without copying it into the buffer first.
+	 * 
+	 * @param image
+	 * @param z location of the image in the file
+	 * @throws IOException
+	 */
+	public void writeImage2D(short[] image, int z) throws IOException {
+		if (out == null) throw new IOException(i2i_fileName + " is not open for writing");
+		writeShorts(out.getChannel(), image, 0, image_size, HEADER_SIZE + (long) image_size * z * 2);
+	}
+	/**
+	 * Reads a 2D image back from the file opened by I2I(file, x, y, z)
+	 * 
+	 * @param z location of the image in the file
+	 * @return
+	 * @throws IOException
+	 */
+	public short[] readImage2D(int z) throws IOException {
+		if (out == null) throw new IOException(i2i_fileName + " is not open");
+		short[] image = new short[image_size];
+		readShorts(out.getChannel(), image, 0, image_size, HEADER_SIZE + (long) image_size * z * 2, ByteOrder.BIG_ENDIAN);
+		return (image);
+	}
+	/**
+	 * Reads a single 2D image from an I2I file, without loading the rest of the file
+	 * 
+	 * @param file
+	 * @param z location of the image in the file
+	 * @return
+	 * @throws IOException
+	 */
+	public static short[] readImage2D(String file, int z) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			byte[] header = new byte[21];
+			in.readFully(header);
+			if (header[0] != 'I') throw new IOException(file + " is not an I2I file");
+			int x = Integer.parseInt(new String(header, 1, 6).trim());
+			int y = Integer.parseInt(new String(header, 7, 6).trim());
+			ByteOrder order = (header[20] == 'L') ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+			short[] image = new short[x * y];
+			readShorts(in.getChannel(), image, 0, x * y, HEADER_SIZE + (long) x * y * z * 2, order);
+			return (image);
+		} finally {
+			in.close();
+		}
+	}
+	/**
+	 * Rewrites the header of the file opened by I2I(file, x, y, z), after the number of Z or T has changed.
+	 */
+	public void updateHeader() {
+		writeHeader(out);
+	}
 	public static short swap(short value) {
 		int b1 = value & 0xff;
 		int b2 = (value >> 8) & 0xff;
@@ -530,14 +593,48 @@ public class I2I {
 	private void writeImage(RandomAccessFile out, short[] image, int z) {
 		try {
 			if (out != null) {
-				out.seek((image_size.intValue() * z * 2) + 1024);
-				for (int x = 0; x < image_size; x++) {
-					out.writeShort(image[x]);
-				}
+				writeShorts(out.getChannel(), image, 0, image_size, HEADER_SIZE + (long) image_size * z * 2);
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 	
+	private static ByteBuffer getPlaneBuffer(int bytes, ByteOrder order) {
+		ByteBuffer buffer = planeBuffer.get();
+		if (buffer == null || buffer.capacity() < bytes) {
+			buffer = ByteBuffer.allocateDirect(bytes);
+			planeBuffer.set(buffer);
+		}
+		buffer.clear();
+		buffer.limit(bytes);
+		buffer.order(order);
+		return buffer;
+	}
+	
+	/**
+	 * Writes length shorts as a single big endian block at position in the file
+	 */
+	private static void writeShorts(FileChannel channel, short[] image, int offset, int length, long position) throws IOException {
+		ByteBuffer buffer = getPlaneBuffer(length * 2, ByteOrder.BIG_ENDIAN);
+		buffer.asShortBuffer().put(image, offset, length);
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+	
+	/**
+	 * Reads length shorts stored in the given byte order at position in the file
+	 */
+	private static void readShorts(FileChannel channel, short[] image, int offset, int length, long position, ByteOrder order) throws IOException {
+		ByteBuffer buffer = getPlaneBuffer(length * 2, order);
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) throw new EOFException("Unexpected end of I2I file");
+			position += read;
+		}
+		buffer.flip();
+		buffer.asShortBuffer().get(image, offset, length);
+	}
+	
 }
@@ -0,0 +1,272 @@
+package edu.umassmed.big;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeMap;
+
+import mmcorej.TaggedImage;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.micromanager.api.TaggedImageStorage;
+import org.micromanager.utils.ImageLabelComparator;
+import org.micromanager.utils.JavaUtils;
+import org.micromanager.utils.MDUtils;
+import org.micromanager.utils.MMException;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Stores acquisitions directly as I2I files, so no export is needed once the
+ * acquisition is done. Every position and channel gets its own I2I file, with
+ * all slices of the first frame followed by all slices of the next one, and the
+ * image metadata is kept in metadata.txt next to it. Only 8 and 16 bit images
+ * can be stored.
+ *
+ * To stream acquisitions to I2I files, run this from a script:
+ * org.micromanager.utils.ImageUtils.setImageStorageClass(edu.umassmed.big.I2IImageStorage.class);
+ */
+public class I2IImageStorage implements TaggedImageStorage {
+
+	private static final String METADATA_FILE = "metadata.txt";
+	private static final String DISPLAY_FILE = "display_and_comments.txt";
+
+	private final String dir;
+	private boolean newDataSet;
+	private JSONObject summaryMetadata;
+	private JSONObject displayAndComments = new JSONObject();
+	private final TreeMap<String, JSONObject> tags = new TreeMap<String, JSONObject>(new ImageLabelComparator());
+	// files being written, by position and channel index
+	private final HashMap<String, I2I> files = new HashMap<String, I2I>();
+	private int numSlices = 1;
+	private int lastFrame = -1;
+	private long bytesWritten = 0;
+
+	public I2IImageStorage(String dir, Boolean newDataSet, JSONObject summaryMetadata) throws Exception {
+		this.dir = dir;
+		this.newDataSet = newDataSet;
+		setSummaryMetadata(summaryMetadata);
+		if (!newDataSet) {
+			openExistingDataSet();
+		}
+	}
+
+	public synchronized void putImage(TaggedImage taggedImage) throws MMException, IOException {
+		if (!newDataSet) {
+			throw new MMException("This I2I data set is read-only.");
+		}
+		JSONObject md = taggedImage.tags;
+		try {
+			int slice = MDUtils.getSliceIndex(md);
+			int frame = MDUtils.getFrameIndex(md);
+			if (slice >= numSlices) {
+				throw new MMException("Slice " + slice + " is outside of the " + numSlices + " slices given in the summary metadata");
+			}
+			short[] pixels;
+			if (taggedImage.pix instanceof short[]) {
+				pixels = (short[]) taggedImage.pix;
+			} else if (taggedImage.pix instanceof byte[]) {
+				byte[] bytes = (byte[]) taggedImage.pix;
+				pixels = new short[bytes.length];
+				for (int i = 0; i < bytes.length; i++) {
+					pixels[i] = (short) (bytes[i] & 0xff);
+				}
+			} else {
+				throw new MMException("I2I files can only hold 8 and 16 bit images");
+			}
+			I2I file = getFile(md);
+			file.writeImage2D(pixels, frame * numSlices + slice);
+			bytesWritten += 2L * pixels.length;
+			tags.put(MDUtils.getLabel(md), md);
+			lastFrame = Math.max(lastFrame, frame);
+		} catch (JSONException e) {
+			throw new MMException("I2I storage: " + e.getMessage());
+		}
+	}
+
+	private I2I getFile(JSONObject md) throws JSONException, IOException {
+		String key = MDUtils.getPositionIndex(md) + "_" + MDUtils.getChannelIndex(md);
+		String fileName = createFileName(md);
+		MDUtils.setFileName(md, fileName);
+		I2I file = files.get(key);
+		if (file == null) {
+			try {
+				JavaUtils.createDirectory(dir);
+			} catch (Exception e) {
+				throw new IOException("Failed to create " + dir + ": " + e.getMessage());
+			}
+			int frames = 1;
+			if (summaryMetadata != null && summaryMetadata.has("Frames")) {
+				frames = Math.max(1, MDUtils.getNumFrames(summaryMetadata));
+			}
+			file = new I2I(new File(dir, fileName).getPath(), MDUtils.getWidth(md), MDUtils.getHeight(md), numSlices * frames);
+			files.put(key, file);
+			bytesWritten += 1024;
+		}
+		return file;
+	}
+
+	private String createFileName(JSONObject md) throws JSONException {
+		String name = new File(dir).getName();
+		String position = md.has("PositionName") ? MDUtils.getPositionName(md) : null;
+		if (position == null || position.length() == 0 || position.equals("null")) {
+			position = "Pos" + MDUtils.getPositionIndex(md);
+		}
+		String channel = md.has("Channel") ? MDUtils.getChannelName(md) : null;
+		if (channel == null || channel.length() == 0) {
+			channel = "Ch" + MDUtils.getChannelIndex(md);
+		}
+		return (name + "_" + position + "_" + channel).replaceAll("[^\\w.-]", "_") + ".i2i";
+	}
+
+	public synchronized TaggedImage getImage(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
+		JSONObject md = tags.get(MDUtils.generateLabel(channelIndex, sliceIndex, frameIndex, positionIndex));
+		if (md == null) {
+			return null;
+		}
+		try {
+			int z = frameIndex * numSlices + sliceIndex;
+			I2I file = files.get(positionIndex + "_" + channelIndex);
+			short[] pixels;
+			if (file != null) {
+				pixels = file.readImage2D(z);
+			} else {
+				pixels = I2I.readImage2D(new File(dir, MDUtils.getFileName(md)).getPath(), z);
+			}
+			if (MDUtils.isGRAY8(md)) {
+				byte[] bytes = new byte[pixels.length];
+				for (int i = 0; i < pixels.length; i++) {
+					bytes[i] = (byte) pixels[i];
+				}
+				return new TaggedImage(bytes, md);
+			}
+			return new TaggedImage(pixels, md);
+		} catch (Exception e) {
+			ReportingUtils.logError(e);
+			return null;
+		}
+	}
+
+	public synchronized JSONObject getImageTags(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
+		return tags.get(MDUtils.generateLabel(channelIndex, sliceIndex, frameIndex, positionIndex));
+	}
+
+	public synchronized Set<String> imageKeys() {
+		return tags.keySet();
+	}
+
+	/**
+	 * Sets the final number of planes in the I2I headers, closes the files and
+	 * writes the metadata.
+	 */
+	public synchronized void finished() {
+		if (!newDataSet) {
+			return;
+		}
+		for (I2I file : files.values()) {
+			file.setZ((lastFrame + 1) * numSlices);
+			file.setT(lastFrame + 1);
+			file.updateHeader();
+			file.close();
+		}
+		files.clear();
+		writeMetadata();
+		writeDisplaySettings();
+		newDataSet = false;
+	}
+
+	public synchronized boolean isFinished() {
+		return !newDataSet;
+	}
+
+	public synchronized void setSummaryMetadata(JSONObject md) {
+		summaryMetadata = md;
+		numSlices = 1;
+		if (md != null && md.has("Slices")) {
+			try {
+				numSlices = Math.max(1, MDUtils.getNumSlices(md));
+			} catch (JSONException e) {
+				ReportingUtils.logError(e);
+			}
+		}
+	}
+
+	public synchronized JSONObject getSummaryMetadata() {
+		return summaryMetadata;
+	}
+
+	public synchronized void setDisplayAndComments(JSONObject settings) {
+		displayAndComments = settings;
+	}
+
+	public synchronized JSONObject getDisplayAndComments() {
+		return displayAndComments;
+	}
+
+	public synchronized void close() {
+		for (I2I file : files.values()) {
+			file.close();
+		}
+		files.clear();
+	}
+
+	public String getDiskLocation() {
+		return dir;
+	}
+
+	public synchronized int lastAcquiredFrame() {
+		return lastFrame;
+	}
+
+	public synchronized long getDataSetSize() {
+		return bytesWritten;
+	}
+
+	public synchronized void writeDisplaySettings() {
+		if (displayAndComments == null || !new File(dir).exists()) {
+			return;
+		}
+		try {
+			JavaUtils.writeTextFile(new File(dir, DISPLAY_FILE).getPath(), displayAndComments.toString(2));
+		} catch (JSONException e) {
+			ReportingUtils.logError(e);
+		}
+	}
+
+	private void writeMetadata() {
+		if (!new File(dir).exists()) {
+			return;
+		}
+		try {
+			JSONObject metadata = new JSONObject();
+			metadata.put("Summary", summaryMetadata);
+			for (String label : tags.keySet()) {
+				metadata.put(label, tags.get(label));
+			}
+			JavaUtils.writeTextFile(new File(dir, METADATA_FILE).getPath(), metadata.toString(2));
+		} catch (JSONException e) {
+			ReportingUtils.logError(e);
+		}
+	}
+
+	private void openExistingDataSet() throws Exception {
+		JSONObject metadata = new JSONObject(JavaUtils.readTextFile(new File(dir, METADATA_FILE).getPath()));
+		setSummaryMetadata(metadata.getJSONObject("Summary"));
+		Iterator<?> keys = metadata.keys();
+		while (keys.hasNext()) {
+			String label = (String) keys.next();
+			if (!label.equals("Summary")) {
+				JSONObject md = metadata.getJSONObject(label);
+				tags.put(label, md);
+				lastFrame = Math.max(lastFrame, MDUtils.getFrameIndex(md));
+				bytesWritten += 2L * MDUtils.getWidth(md) * MDUtils.getHeight(md);
+			}
+		}
+		File display = new File(dir, DISPLAY_FILE);
+		if (display.exists()) {
+			displayAndComments = new JSONObject(JavaUtils.readTextFile(display.getPath()));
+		}
+	}
+}
@@ -556,17 +556,16 @@ public class PlatePanel extends JPanel {
          return;
       
       PositionList plist = gui_.getThreePointList();
-      if (plist == null || plist.getNumberOfPositions() != 3) {
+      if (plist == null || plist.getNumberOfPositions() < 3) {
          return;
       }
       
-      Point pt1 = scaleDeviceToPixel(plist.getPosition(0).getX(), plist.getPosition(0).getY());
-      Point pt2 = scaleDeviceToPixel(plist.getPosition(1).getX(), plist.getPosition(1).getY());
-      Point pt3 = scaleDeviceToPixel(plist.getPosition(2).getX(), plist.getPosition(2).getY());
-      
-      g.drawLine(pt1.x, pt1.y, pt2.x, pt2.y);
-      g.drawLine(pt2.x, pt2.y, pt3.x, pt3.y);
-      g.drawLine(pt3.x, pt3.y, pt1.x, pt1.y);
+      int n = plist.getNumberOfPositions();
+      for (int i = 0; i < n; i++) {
+         Point pt1 = scaleDeviceToPixel(plist.getPosition(i).getX(), plist.getPosition(i).getY());
+         Point pt2 = scaleDeviceToPixel(plist.getPosition((i + 1) % n).getX(), plist.getPosition((i + 1) % n).getY());
+         g.drawLine(pt1.x, pt1.y, pt2.x, pt2.y);
+      }
       
    }
    
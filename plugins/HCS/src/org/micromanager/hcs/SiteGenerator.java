@@ -20,6 +20,7 @@ import org.micromanager.api.MultiStagePosition;
 import org.micromanager.api.PositionList;
 import org.micromanager.api.ScriptInterface;
 import org.micromanager.api.StagePosition;
+import org.micromanager.utils.FocusMap;
 import org.micromanager.utils.MMFrame;
 import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.TextUtils;
@@ -68,7 +69,7 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
    private String stageWell_;
    private String cursorWell_;
    PositionList threePtList_;
-   AFPlane focusPlane_;
+   FocusMap focusPlane_;
    private final String PLATE_FORMAT_ID = "plate_format_id";
    private final String SITE_SPACING_X  = "site_spacing"; //keep string for backward compatibility
    private final String SITE_SPACING_Y  = "site_spacing_y";
@@ -544,6 +545,9 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
 
    private void setPositionList() {
       WellPositionList[] wpl = platePanel_.getSelectedWellPositions();
+      if (useThreePtAF() && focusPlane_ != null) {
+         prepareFocusGrid();
+      }
       PositionList platePl = new PositionList();
       for (WellPositionList wpl1 : wpl) {
          PositionList pl = PositionList.newInstance(wpl1.getSitePositions());
@@ -565,13 +569,13 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
             // add Z position if 3-point focus is enabled
             if (useThreePtAF()) {
                if (focusPlane_ == null) {
-                  displayError("3-point AF is seleced but 3 points are not defined.");
+                  displayError("3-point AF is seleced but the points are not defined.");
                   return;
                }
-               // add z position from the 3-point plane estimate
+               // add z position from the focus plane estimate
                StagePosition sp = new StagePosition();
                sp.numAxes = 1;
-               sp.x = focusPlane_.getZPos(mpl.getX(), mpl.getY());
+               sp.x = focusPlane_.getZ(mpl.getX(), mpl.getY());
                sp.stageName = mpl.getDefaultZStage();
                mpl.add(sp);
             }
@@ -599,13 +603,13 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
    private void setThreePoint() {
       try {
          PositionList plist = app_.getPositionList();
-         if (plist.getNumberOfPositions() != 3) {
-            displayError("We need exactly three positions to fit AF plane. Please create XY list with 3 positions.");
+         if (plist.getNumberOfPositions() < 3) {
+            displayError("We need at least three positions to fit AF plane. Please create XY list with 3 or more positions.");
             return;
          }
 
          threePtList_ = PositionList.newInstance(plist);
-         focusPlane_ = new AFPlane(threePtList_.getPositions());
+         focusPlane_ = createFocusPlane(threePtList_);
          chckbxThreePt_.setSelected(true);
          platePanel_.repaint();
 
@@ -614,6 +618,41 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
       }
    }
 
+   /**
+    * Makes the focus surface through the positions: the plane through three
+    * positions, or planes fitted to the nearest positions when there are more
+    */
+   private FocusMap createFocusPlane(PositionList plist) {
+      int n = plist.getNumberOfPositions();
+      double[] x = new double[n];
+      double[] y = new double[n];
+      double[] z = new double[n];
+      for (int i = 0; i < n; i++) {
+         MultiStagePosition mps = plist.getPosition(i);
+         x[i] = mps.getX();
+         y[i] = mps.getY();
+         z[i] = mps.getZ();
+      }
+      FocusMap focusMap = new FocusMap(FocusMap.Method.LOCAL_PLANE);
+      focusMap.addPoints(x, y, z);
+      return focusMap;
+   }
+
+   /**
+    * Evaluates the focus surface at every half well spacing over the plate,
+    * so that the Z of each site is looked up rather than computed
+    */
+   private void prepareFocusGrid() {
+      double stepX = plate_.getWellSpacingX() / 2.0;
+      double stepY = plate_.getWellSpacingY() / 2.0;
+      if (stepX <= 0.0 || stepY <= 0.0) {
+         focusPlane_.clearGrid();
+         return;
+      }
+      focusPlane_.setGrid(plate_.getTopLeftX(), plate_.getTopLeftY(), stepX, stepY,
+              2 * plate_.getNumColumns() + 1, 2 * plate_.getNumRows() + 1);
+   }
+
    private PositionList generateSites(int rows, int cols, double spacingX,  double spacingY) {
       PositionList sites = new PositionList();
       System.out.println("# Rows : " + rows + ", # Cols : " + cols + " ,spacingX = " + spacingX + " ,spacingY = " + spacingY);
@@ -676,7 +715,7 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
       }
 
       String statusTxt = "Cursor: X=" + TextUtils.FMT2.format(cursorPos_.x) + "um, Y=" + TextUtils.FMT2.format(cursorPos_.y) + "um, " + cursorWell_
-              + ((useThreePtAF() && focusPlane_ != null) ? ", Z->" + TextUtils.FMT2.format(focusPlane_.getZPos(cursorPos_.x, cursorPos_.y)) + "um" : "")
+              + ((useThreePtAF() && focusPlane_ != null) ? ", Z->" + TextUtils.FMT2.format(focusPlane_.getZ(cursorPos_.x, cursorPos_.y)) + "um" : "")
               + " -- Stage: X=" + TextUtils.FMT2.format(xyStagePos_.x) + "um, Y=" + TextUtils.FMT2.format(xyStagePos_.y) + "um, Z=" + TextUtils.FMT2.format(zStagePos_) + "um, "
               + stageWell_;
       statusLabel_.setText(statusTxt);
@@ -794,6 +833,6 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
          return null;
       }
 
-      return focusPlane_.getZPos(x, y);
+      return focusPlane_.getZ(x, y);
    }
 }
@@ -0,0 +1,24 @@
+package org.micromanager.intelligentacquisition;
+
+import java.util.List;
+import mmcorej.TaggedImage;
+
+/**
+ * Analysis stage of the PipelinedAcquisition.
+ * Every exploration image is handed to analyze() as soon as it is
+ * acquired, while the microscope goes on with the next position.
+ * Calls are made one at a time from a single background thread.
+ *
+ * @see MacroAnalyzer
+ */
+public interface ImageAnalyzer {
+
+   /**
+    * Looks for objects worth imaging at high resolution
+    *
+    * @param image - exploration image, must not be modified
+    * @return targets found in this image, in pixel coordinates; may be empty
+    * @throws Exception
+    */
+   public List<Target> analyze(TaggedImage image) throws Exception;
+}
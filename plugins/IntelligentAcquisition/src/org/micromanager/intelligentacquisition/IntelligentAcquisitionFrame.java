@@ -44,13 +44,12 @@ import ij.text.TextWindow;
 import java.awt.Frame;
 import java.awt.event.KeyListener;
 import java.awt.event.MouseListener;
-import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
-import org.micromanager.MMStudio;
 import org.micromanager.api.MMWindow;
-import org.micromanager.utils.JavaUtils;
 
 /**
  *
@@ -93,6 +92,7 @@ public class IntelligentAcquisitionFrame extends javax.swing.JFrame {
    private String xyStage_ = "";
    
    private final AtomicBoolean stop_;
+   private volatile PipelinedAcquisition pipeline_;
 
 
     /** 
@@ -578,23 +578,8 @@ public class IntelligentAcquisitionFrame extends javax.swing.JFrame {
             double imageWidthMicronX = pixelWidthMicron_ * core_.getImageWidth();
             double imageWidthMicronY = pixelWidthMicron_ * core_.getImageHeight();
 
-            long imageIndex = 0;
-
             xyStage_ = core_.getXYStageDevice();
 
-            // read settings needed to relate stage movement to camera movement
-
-            
-            AffineTransform af = null;
-            try {
-               af = (AffineTransform) JavaUtils.getObjectFromPrefs
-                    (Preferences.userNodeForPackage(MMStudio.class), "affine_transform_" + core_.getCurrentPixelSizeConfig(), null);
-            } catch (Exception ex) {
-            }
-            if (af == null) {
-               ReportingUtils.logError("No pixel calibration data found, please run the Pixel Calibrator");
-            }
-            
             /*
             boolean transposeMirorX = false;
             boolean transposeMirorY = false;
@@ -648,89 +633,36 @@ public class IntelligentAcquisitionFrame extends javax.swing.JFrame {
                ReportingUtils.showError("Failed to parse Number of fields in Y");
             }
 
-            while (!stop_.get()) {
-               // run exploration acquisition
-               String expAcq;
-               try {
-                  expAcq = gui_.runAcquisition();
-               } catch (MMScriptException e) {
-                  ReportingUtils.showError(e, "Exploration acquisition failed");
-                  break;
-               }
-
-               try {
-                  // get x and y coordinates, not sure why
-                  double xPos = core_.getXPosition(xyStage_);
-                  double yPos = core_.getYPosition(xyStage_);
-
-               } catch (Exception ex) {
-                  ReportingUtils.showError(ex, "Failed to read XY stage position");
-               }
-
-               scriptFileName_ = scriptTextField_.getText();
-               ij.IJ.runMacroFile(scriptFileName_);
-
-               ResultsTable res = ij.measure.ResultsTable.getResultsTable();
-               if (res.getCounter() > 0) {
-                  try {
-                     // X and Y coordinates of object found in microns
-                     double xPos = res.getValue("X", 0);
-                     double yPos = res.getValue("Y", 0);
-                     
-                     
-                     if (af != null) {
-                        
-                        // TODO: testing!!!
-                        Point2D newStagePos = af.inverseTransform(new Point2D.Double(xPos, yPos), null);
-                        core_.setRelativeXYPosition(xyStage_, newStagePos.getX(),
-                                newStagePos.getY() );
-                        core_.setROI((int) (core_.getImageWidth() / 2 - roiWidthX_ / 2),
-                                (int) (core_.getImageHeight() / 2 - roiWidthY_ / 2),
-                                (int) roiWidthX_, (int) roiWidthY_);
-                     }
-                     ReportingUtils.showMessage("Imaging interesting cell at position: "
-                             + xPos + ", " + yPos);
-
-                     gui_.loadAcquisition(acqFileNameB_);
-                     String goodStuff = gui_.runAcquisition();
-                     gui_.closeAcquisitionWindow(goodStuff);
-                     if (af != null) {
-                        core_.setRelativeXYPosition(xyStage_, -xPos * pixelWidthMicron_, -yPos * pixelWidthMicron_);
-                        core_.clearROI();
-                     }
-                     // org.micromanager.utils.JavaUtils.sleep(200);
-                  } catch (Exception ex) {
-                     ReportingUtils.showError(ex, "Imaging acquisition failed...");
+            // explore a serpentine grid starting at the current position
+            List<Point2D.Double> positions = new ArrayList<Point2D.Double>();
+            try {
+               double x0 = core_.getXPosition(xyStage_);
+               double y0 = core_.getYPosition(xyStage_);
+               for (int row = 0; row < explorationY_; row++) {
+                  for (int i = 0; i < explorationX_; i++) {
+                     int col = (row % 2 == 0) ? i : explorationX_ - 1 - i;
+                     positions.add(new Point2D.Double(x0 + col * imageWidthMicronX,
+                             y0 + row * imageWidthMicronY));
                   }
                }
-               try {
-                  // need sleep to ensure that data have been written to disk
-                  //gui_.sleep(100);
-                  gui_.closeAcquisitionWindow(expAcq);
-               } catch (MMScriptException ex) {
-                  ReportingUtils.showError(ex, "Failed to close acquisition window");
-               }
-
-               imageIndex++;
-               int xDirection = 1;
-
-               if (((imageIndex % explorationX_) % 2) == 1) {
-                  xDirection = -1;
-               }
+            } catch (Exception ex) {
+               ReportingUtils.showError(ex, "Failed to read XY stage position");
+               return;
+            }
 
-               try {
-                  if ((imageIndex % explorationX_) == 0) {
-                     core_.setRelativeXYPosition(xyStage_, 0, imageWidthMicronY);
-                  } else {
-                     core_.setRelativeXYPosition(xyStage_, xDirection * imageWidthMicronX, 0);
-                  }
-               } catch (Exception ex) {
-                  ReportingUtils.showError(ex, "Problem moving XY Stage");
-                  // what to do now???
+            try {
+               scriptFileName_ = scriptTextField_.getText();
+               PipelinedAcquisition acq = new PipelinedAcquisition(gui_,
+                       new MacroAnalyzer(scriptFileName_), acqFileNameA_, acqFileNameB_);
+               acq.setROI(roiWidthX_, roiWidthY_);
+               pipeline_ = acq;
+               if (!stop_.get()) {
+                  acq.run(positions);
                }
-               
-               if (imageIndex >= (explorationX_ * explorationY_) )
-                  stop_.set(true);
+            } catch (Exception ex) {
+               ReportingUtils.showError(ex, "Intelligent acquisition failed");
+            } finally {
+               pipeline_ = null;
             }
          }
 
@@ -742,6 +674,10 @@ public class IntelligentAcquisitionFrame extends javax.swing.JFrame {
 
    private void stopButton_ActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_stopButton_ActionPerformed
       stop_.set(true);
+      PipelinedAcquisition acq = pipeline_;
+      if (acq != null) {
+         acq.stop();
+      }
       // try to stop ongoing acquisitions here
       gui_.getAcquisitionEngine2010().stop();
    }//GEN-LAST:event_stopButton_ActionPerformed
@@ -0,0 +1,49 @@
+package org.micromanager.intelligentacquisition;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.macro.Interpreter;
+import ij.measure.ResultsTable;
+import ij.process.ImageProcessor;
+import java.util.ArrayList;
+import java.util.List;
+import mmcorej.TaggedImage;
+import org.micromanager.utils.ImageUtils;
+import org.micromanager.utils.MMException;
+
+/**
+ * ImageAnalyzer that runs an ImageJ macro on each exploration image.
+ * The macro runs in batch mode on an uncalibrated copy of the image and
+ * should leave the objects it found in the ImageJ Results table, with their
+ * position in pixels in the "X" and "Y" columns (as the Centroid measurement
+ * does). An optional "Score" column sets the order in which they are imaged.
+ */
+public class MacroAnalyzer implements ImageAnalyzer {
+   private final String macro_;
+
+   public MacroAnalyzer(String macroFile) throws MMException {
+      macro_ = IJ.openAsString(macroFile);
+      if (macro_ == null || macro_.startsWith("Error:")) {
+         throw new MMException("Failed to read analysis macro " + macroFile);
+      }
+   }
+
+   @Override
+   public List<Target> analyze(TaggedImage image) throws Exception {
+      List<Target> targets = new ArrayList<Target>();
+      ImageProcessor proc = ImageUtils.makeProcessor(image);
+      if (proc == null) {
+         return targets;
+      }
+      ResultsTable.getResultsTable().reset();
+      new Interpreter().runBatchMacro(macro_, new ImagePlus("Exploration", proc));
+
+      ResultsTable res = ResultsTable.getResultsTable();
+      boolean hasScore = res.columnExists(res.getColumnIndex(Terms.SCORE));
+      for (int i = 0; i < res.getCounter(); i++) {
+         targets.add(new Target(res.getValue(Terms.X, i), res.getValue(Terms.Y, i),
+                 hasScore ? res.getValue(Terms.SCORE, i) : 0.0));
+      }
+      return targets;
+   }
+}
@@ -0,0 +1,268 @@
+package org.micromanager.intelligentacquisition;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.prefs.Preferences;
+import mmcorej.CMMCore;
+import mmcorej.TaggedImage;
+import org.micromanager.MMStudio;
+import org.micromanager.acquisition.TaggedImageQueue;
+import org.micromanager.api.DataProcessor;
+import org.micromanager.api.ScriptInterface;
+import org.micromanager.utils.JavaUtils;
+import org.micromanager.utils.MDUtils;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Explores a list of stage positions and images the objects found there at
+ * high resolution, without stopping the microscope for the analysis.
+ *
+ * Exploration images are taken from the image processing pipeline as they
+ * are acquired and handed, in memory, to the ImageAnalyzer on a background
+ * thread while the microscope moves on. Targets are queued by score. After
+ * each exploration position up to targetsPerField of the queued targets are
+ * imaged before the next position is explored, and whatever is still queued
+ * is imaged once exploration is done.
+ */
+public class PipelinedAcquisition {
+   // Longest wait for the last exploration images to leave the pipeline
+   private static final long PIPELINE_TIMEOUT_S = 10;
+
+   private final ScriptInterface gui_;
+   private final CMMCore core_;
+   private final ImageAnalyzer analyzer_;
+   private final String explorationSettings_;
+   private final String imagingSettings_;
+   private final PriorityBlockingQueue<Target> targets_;
+   private final AtomicInteger pendingAnalyses_;
+   private final AtomicBoolean stop_;
+   private volatile Exploration exploration_;
+   private ExecutorService analysisExecutor_;
+   private AffineTransform pixelToStage_;
+   private String xyStage_;
+   private int targetsPerField_ = Integer.MAX_VALUE;
+   private long roiWidthX_ = 0;
+   private long roiWidthY_ = 0;
+
+   /**
+    * @param gui - Reference to MM script interface
+    * @param analyzer - finds targets in the exploration images
+    * @param explorationSettings - acquisition settings file used at each exploration position
+    * @param imagingSettings - acquisition settings file used at each target
+    */
+   public PipelinedAcquisition(ScriptInterface gui, ImageAnalyzer analyzer,
+           String explorationSettings, String imagingSettings) {
+      gui_ = gui;
+      core_ = gui.getMMCore();
+      analyzer_ = analyzer;
+      explorationSettings_ = explorationSettings;
+      imagingSettings_ = imagingSettings;
+      targets_ = new PriorityBlockingQueue<Target>();
+      pendingAnalyses_ = new AtomicInteger();
+      stop_ = new AtomicBoolean();
+   }
+
+   /**
+    * Number of targets imaged after each exploration position before moving
+    * on to the next one. 0 images all targets after exploration is done.
+    */
+   public void setTargetsPerField(int targetsPerField) {
+      targetsPerField_ = targetsPerField;
+   }
+
+   /**
+    * Camera ROI, centered on the target, used for the high resolution
+    * acquisitions. 0 uses the full camera.
+    */
+   public void setROI(long roiWidthX, long roiWidthY) {
+      roiWidthX_ = roiWidthX;
+      roiWidthY_ = roiWidthY;
+   }
+
+   public void stop() {
+      stop_.set(true);
+   }
+
+   /**
+    * Runs the acquisition. Returns once all positions have been explored and
+    * all targets imaged, or after stop() was called.
+    *
+    * @param positions - XY stage positions to explore, in order
+    * @throws Exception
+    */
+   public void run(List<Point2D.Double> positions) throws Exception {
+      targets_.clear();
+      xyStage_ = core_.getXYStageDevice();
+      pixelToStage_ = getPixelToStage();
+      analysisExecutor_ = Executors.newSingleThreadExecutor(new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Intelligent Acquisition analysis");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      AnalysisTap tap = new AnalysisTap();
+      gui_.addImageProcessor(tap);
+      try {
+         int next = 0;
+         int imaged = 0;
+         while (!stop_.get()) {
+            Target target = null;
+            if (next >= positions.size() || imaged < targetsPerField_) {
+               target = targets_.poll();
+            }
+            if (target != null) {
+               image(target);
+               imaged++;
+            } else if (next < positions.size()) {
+               explore(positions.get(next++));
+               imaged = 0;
+            } else if (pendingAnalyses_.get() > 0 || !targets_.isEmpty()) {
+               // exploration is done, but the analysis is not
+               target = targets_.poll(100, TimeUnit.MILLISECONDS);
+               if (target != null) {
+                  image(target);
+               }
+            } else {
+               break;
+            }
+         }
+      } finally {
+         gui_.removeImageProcessor(tap);
+         analysisExecutor_.shutdownNow();
+         exploration_ = null;
+      }
+   }
+
+   private void explore(Point2D.Double field) throws Exception {
+      core_.setXYPosition(xyStage_, field.x, field.y);
+      core_.waitForDevice(xyStage_);
+      gui_.loadAcquisition(explorationSettings_);
+      Exploration exploration = new Exploration(field);
+      exploration_ = exploration;
+      String acq;
+      try {
+         acq = gui_.runAcquisition();
+         // the last images may still be on their way through the pipeline
+         if (!exploration.done_.await(PIPELINE_TIMEOUT_S, TimeUnit.SECONDS)) {
+            ReportingUtils.logMessage("Intelligent Acquisition: timed out waiting for exploration images");
+         }
+      } finally {
+         exploration_ = null;
+      }
+      gui_.closeAcquisitionWindow(acq);
+   }
+
+   private void image(Target target) throws Exception {
+      core_.setXYPosition(xyStage_, target.getStageX(), target.getStageY());
+      core_.waitForDevice(xyStage_);
+      long width = core_.getImageWidth();
+      long height = core_.getImageHeight();
+      if (roiWidthX_ > 0 && roiWidthY_ > 0 && (roiWidthX_ < width || roiWidthY_ < height)) {
+         core_.setROI((int) (width / 2 - roiWidthX_ / 2), (int) (height / 2 - roiWidthY_ / 2),
+                 (int) roiWidthX_, (int) roiWidthY_);
+      }
+      try {
+         gui_.loadAcquisition(imagingSettings_);
+         String acq = gui_.runAcquisition();
+         gui_.closeAcquisitionWindow(acq);
+      } finally {
+         core_.clearROI();
+      }
+   }
+
+   /**
+    * Queues analysis of an exploration image taken at the given stage position
+    */
+   private void analyze(final Point2D.Double field, final TaggedImage image) {
+      pendingAnalyses_.incrementAndGet();
+      analysisExecutor_.execute(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               List<Target> found = analyzer_.analyze(image);
+               double centerX = MDUtils.getWidth(image.tags) / 2.0;
+               double centerY = MDUtils.getHeight(image.tags) / 2.0;
+               for (Target target : found) {
+                  Point2D offset = pixelToStage_.deltaTransform(new Point2D.Double(
+                          target.getX() - centerX, target.getY() - centerY), null);
+                  target.setStagePosition(field.x + offset.getX(), field.y + offset.getY());
+                  targets_.add(target);
+               }
+            } catch (Exception ex) {
+               ReportingUtils.logError(ex, "Intelligent Acquisition: image analysis failed");
+            } finally {
+               pendingAnalyses_.decrementAndGet();
+            }
+         }
+      });
+   }
+
+   /**
+    * Relates pixels to stage movement, from the Pixel Calibrator if it was
+    * run for the current pixel size configuration
+    */
+   private AffineTransform getPixelToStage() throws Exception {
+      AffineTransform af = null;
+      try {
+         af = (AffineTransform) JavaUtils.getObjectFromPrefs(
+                 Preferences.userNodeForPackage(MMStudio.class),
+                 "affine_transform_" + core_.getCurrentPixelSizeConfig(), null);
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex);
+      }
+      if (af == null) {
+         ReportingUtils.logError("No pixel calibration data found, please run the Pixel Calibrator");
+         double pixelSize = core_.getPixelSizeUm();
+         af = AffineTransform.getScaleInstance(pixelSize, pixelSize);
+      }
+      return af;
+   }
+
+   private static class Exploration {
+      private final Point2D.Double field_;
+      private final CountDownLatch done_ = new CountDownLatch(1);
+      private int images_ = 0;
+
+      Exploration(Point2D.Double field) {
+         field_ = field;
+      }
+   }
+
+   /**
+    * Passes all images on unchanged, and hands a reference to those of the
+    * running exploration to the analysis
+    */
+   private class AnalysisTap extends DataProcessor<TaggedImage> {
+      @Override
+      protected void process() {
+         TaggedImage image = poll();
+         if (image == null) {
+            return;
+         }
+         Exploration exploration = exploration_;
+         if (exploration != null) {
+            if (TaggedImageQueue.isPoison(image)) {
+               // ignore the end of an earlier acquisition
+               if (exploration.images_ > 0) {
+                  exploration.done_.countDown();
+               }
+            } else {
+               exploration.images_++;
+               analyze(exploration.field_, image);
+            }
+         }
+         produce(image);
+      }
+   }
+}
@@ -0,0 +1,69 @@
+package org.micromanager.intelligentacquisition;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Object found by an ImageAnalyzer in an exploration image, to be imaged
+ * by the high resolution acquisition.
+ * Targets with a higher score are imaged first, targets with equal scores
+ * in the order in which they were found.
+ */
+public class Target implements Comparable<Target> {
+   private static final AtomicLong COUNTER = new AtomicLong();
+
+   private final double x_;
+   private final double y_;
+   private final double score_;
+   private final long sequence_;
+   private double stageX_;
+   private double stageY_;
+
+   /**
+    * @param x - x position in the exploration image, in pixels
+    * @param y - y position in the exploration image, in pixels
+    * @param score - priority of this target, higher is imaged earlier
+    */
+   public Target(double x, double y, double score) {
+      x_ = x;
+      y_ = y;
+      score_ = score;
+      sequence_ = COUNTER.getAndIncrement();
+   }
+
+   public double getX() {
+      return x_;
+   }
+
+   public double getY() {
+      return y_;
+   }
+
+   public double getScore() {
+      return score_;
+   }
+
+   /**
+    * XY stage position that centers this target in the field of view,
+    * only known once the target has been queued
+    */
+   public double getStageX() {
+      return stageX_;
+   }
+
+   public double getStageY() {
+      return stageY_;
+   }
+
+   void setStagePosition(double x, double y) {
+      stageX_ = x;
+      stageY_ = y;
+   }
+
+   @Override
+   public int compareTo(Target other) {
+      if (score_ != other.score_) {
+         return score_ > other.score_ ? -1 : 1;
+      }
+      return sequence_ < other.sequence_ ? -1 : (sequence_ == other.sequence_ ? 0 : 1);
+   }
+}
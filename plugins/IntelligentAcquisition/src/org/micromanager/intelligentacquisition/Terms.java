@@ -15,6 +15,7 @@ public class Terms {
    public static final String SLICE = "Slice";
    public static final String X = "X";
    public static final String Y = "Y";
+   public static final String SCORE = "Score";
    public static final String RESULTTABLENAME = "IA Test Results";
    
    
@@ -20,15 +20,14 @@
 //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
 package org.micromanager.newimageflipper;
 
-import ij.ImagePlus;
-import ij.process.ImageProcessor;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.MMStudio;
 import org.micromanager.acquisition.TaggedImageQueue;
 import org.micromanager.api.DataProcessor;
-import org.micromanager.utils.ImageUtils;
+import org.micromanager.utils.ImageTransforms;
+import org.micromanager.utils.ImageTransforms.Orientation;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
@@ -89,6 +88,7 @@ public class NewImageFlippingProcessor extends DataProcessor<TaggedImage> {
    /**
     * Executes image transformation
     * First mirror the image if requested, than rotate as requested
+    * Both are done in a single pass into a new pixel array
     * 
     * @param nextImage - TaggedImage to be transformed
     * @param mirror - Whether or not to mirror
@@ -112,45 +112,37 @@ public class NewImageFlippingProcessor extends DataProcessor<TaggedImage> {
       }
       
       
-      String type = MDUtils.getPixelType(nextImage.tags);
-      int ijType = ImagePlus.GRAY8;
-      if (type.equals("GRAY16")) {
-         ijType = ImagePlus.GRAY16;
-      }
-
-      ImageProcessor proc = ImageUtils.makeProcessor(ijType, width, height, nextImage.pix);
-
+      Orientation orientation = Orientation.IDENTITY;
       if (mirror) {
-         proc.flipHorizontal();
+         orientation = orientation.then(Orientation.FLIP_HORIZONTAL);
       }
       int rotationTag = 0;
       if (rotation == Rotation.R90) {
-         proc = proc.rotateRight();
+         orientation = orientation.then(Orientation.ROTATE_RIGHT);
          rotationTag = 90;
       }
       if (rotation == Rotation.R180) {
-         proc = proc.rotateRight();
-         proc = proc.rotateRight();
+         orientation = orientation.then(Orientation.ROTATE_180);
          rotationTag = 180;
       }
       if (rotation == Rotation.R270) {
-         proc = proc.rotateLeft();
+         orientation = orientation.then(Orientation.ROTATE_LEFT);
          rotationTag = 270;
       }
+      Object pixels = nextImage.pix;
+      if (!orientation.isIdentity()) {
+         try {
+            pixels = ImageTransforms.transform(nextImage.pix, width, height,
+                    orientation, null);
+         } catch (IllegalArgumentException e) {
+            throw new MMScriptException("NewImageFlipper: " + e.getMessage());
+         }
+      }
       JSONObject newTags = nextImage.tags;
       newTags.put("ImageFlipper-Rotation", rotationTag);
       newTags.put("ImageFlipper-Mirror", mirror ? "On" : "Off");
       
-      // make sure that the produced image has the same width and height as the 
-      // original.
-      if ( (width != proc.getWidth()) || (height != proc.getHeight()) ) { 
-         throw new MMScriptException("NewImageFlipper: Flipping would produce"
-                 + " image of different size which can not be handled by Micro-Manager");
-      }
-      MDUtils.setWidth(newTags, proc.getWidth()); 
-      MDUtils.setHeight(newTags, proc.getHeight());
-
-      return new TaggedImage(proc.getPixels(), newTags);
+      return new TaggedImage(pixels, newTags);
    }
 
    /**
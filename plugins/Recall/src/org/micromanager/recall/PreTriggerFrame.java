@@ -0,0 +1,143 @@
+/**
+ * Copyright University of California
+ *
+ * LICENSE:      This file is distributed under the BSD license.
+ *               License text is included with the source distribution.
+ *
+ *               This file is distributed in the hope that it will be useful,
+ *               but WITHOUT ANY WARRANTY; without even the implied warranty
+ *               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ *               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+ */
+
+package org.micromanager.recall;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.prefs.Preferences;
+import javax.swing.JButton;
+import javax.swing.JFileChooser;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JSpinner;
+import javax.swing.JTextField;
+import javax.swing.SpinnerNumberModel;
+import org.micromanager.api.ScriptInterface;
+import org.micromanager.utils.ReportingUtils;
+
+
+class PreTriggerFrame extends JFrame {
+   private static final long serialVersionUID = 1L;
+   private static final String SECONDS = "Seconds";
+   private static final String ROOT = "Root";
+   private static final String PREFIX = "Prefix";
+
+   private final RingCapture capture_;
+   private final Preferences prefs_;
+   private final JSpinner secondsSpinner_;
+   private final JTextField rootField_;
+   private final JTextField prefixField_;
+   private final JButton startButton_;
+   private final JButton saveButton_;
+   private final JLabel statusLabel_;
+
+   PreTriggerFrame(ScriptInterface app) {
+      super("Pre-trigger Capture");
+      setLocationRelativeTo(null);
+
+      capture_ = new RingCapture(app);
+      prefs_ = Preferences.userNodeForPackage(getClass());
+
+      secondsSpinner_ = new JSpinner(new SpinnerNumberModel(
+              prefs_.getDouble(SECONDS, 10.0), 0.1, 3600.0, 1.0));
+      rootField_ = new JTextField(prefs_.get(ROOT, System.getProperty("user.home")), 20);
+      prefixField_ = new JTextField(prefs_.get(PREFIX, "PreTrigger"), 10);
+
+      JButton browseButton = new JButton("...");
+      browseButton.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent e) {
+            JFileChooser chooser = new JFileChooser(rootField_.getText());
+            chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+            if (chooser.showDialog(PreTriggerFrame.this, "Select") == JFileChooser.APPROVE_OPTION) {
+               rootField_.setText(chooser.getSelectedFile().getPath());
+            }
+         }
+      });
+
+      startButton_ = new JButton("Start");
+      startButton_.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent e) {
+            if (capture_.isRunning()) {
+               capture_.stop();
+               statusLabel_.setText("Stopped");
+            } else {
+               double seconds = (Double) secondsSpinner_.getValue();
+               prefs_.putDouble(SECONDS, seconds);
+               try {
+                  double held = capture_.start(seconds);
+                  statusLabel_.setText(String.format("Keeping the last %.1f s", held));
+               } catch (Exception ex) {
+                  ReportingUtils.showError(ex, "Failed to start pre-trigger capture");
+               }
+            }
+            startButton_.setText(capture_.isRunning() ? "Stop" : "Start");
+         }
+      });
+
+      saveButton_ = new JButton("Save");
+      saveButton_.setToolTipText("Writes the images now in the ring to disk and opens them");
+      saveButton_.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent e) {
+            prefs_.put(ROOT, rootField_.getText());
+            prefs_.put(PREFIX, prefixField_.getText());
+            if (capture_.save(rootField_.getText(), prefixField_.getText())) {
+               statusLabel_.setText("Saving...");
+            } else {
+               statusLabel_.setText("No images to save");
+            }
+         }
+      });
+
+      statusLabel_ = new JLabel("Stopped");
+
+      setLayout(new net.miginfocom.swing.MigLayout(
+               "insets dialog",
+               "[][grow, fill][]",
+               "[]related[]related[]unrelated[]"));
+      add(new JLabel("Keep last:"));
+      add(secondsSpinner_, "split 2");
+      add(new JLabel("s"), "wrap");
+      add(new JLabel("Save in:"));
+      add(rootField_);
+      add(browseButton, "wrap");
+      add(new JLabel("Prefix:"));
+      add(prefixField_, "wrap");
+      add(startButton_, "span 3, split 3");
+      add(saveButton_);
+      add(statusLabel_, "gapleft unrelated");
+
+      pack();
+      setMinimumSize(getPreferredSize());
+
+      addWindowListener(new java.awt.event.WindowAdapter() {
+         @Override
+         public void windowClosing(java.awt.event.WindowEvent e) {
+            capture_.stop();
+            startButton_.setText("Start");
+            statusLabel_.setText("Stopped");
+         }
+      });
+   }
+
+   @Override
+   public void dispose() {
+      capture_.dispose();
+      super.dispose();
+   }
+}
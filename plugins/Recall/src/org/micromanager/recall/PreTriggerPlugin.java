@@ -0,0 +1,78 @@
+/**
+ * Micro-Manager "Pre-trigger Capture"
+ *
+ * Runs the camera continuously while keeping only the last few seconds of
+ * images in memory. When something interesting happens, those images are
+ * written straight to disk at the full frame rate and opened for viewing.
+ *
+ * Copyright University of California
+ *
+ * LICENSE:      This file is distributed under the BSD license.
+ *               License text is included with the source distribution.
+ *
+ *               This file is distributed in the hope that it will be useful,
+ *               but WITHOUT ANY WARRANTY; without even the implied warranty
+ *               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ *               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+ */
+
+package org.micromanager.recall;
+
+import org.micromanager.api.MMPlugin;
+import org.micromanager.api.ScriptInterface;
+
+
+public class PreTriggerPlugin implements MMPlugin {
+   public static final String menuName = "Pre-trigger Capture";
+   public static final String tooltipDescription =
+      "Keeps the last seconds of camera images and saves them on request";
+
+   private ScriptInterface app_;
+   private PreTriggerFrame frame_;
+
+   @Override
+   public void setApp(ScriptInterface app) {
+      app_ = app;
+   }
+
+   @Override
+   public void dispose() {
+      if (frame_ != null) {
+         frame_.dispose();
+         frame_ = null;
+      }
+   }
+
+   @Override
+   public void show() {
+      if (frame_ == null) {
+         frame_ = new PreTriggerFrame(app_);
+      }
+      frame_.setVisible(true);
+      frame_.toFront();
+   }
+
+   @Override
+   public String getInfo () {
+      return "Runs a continuous sequence acquisition and keeps the last seconds of images in a ring in memory. "
+            + "Save writes them to a multipage TIFF data set at full frame rate and opens it.";
+   }
+
+   @Override
+   public String getDescription() {
+      return tooltipDescription;
+   }
+
+   @Override
+   public String getVersion() {
+      return "First version";
+   }
+
+   @Override
+   public String getCopyright() {
+      return "University of California, 2014";
+   }
+}
@@ -37,6 +37,7 @@ import java.util.concurrent.LinkedBlockingQueue;
 import mmcorej.CMMCore;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
+import org.json.JSONObject;
 import org.micromanager.api.MMPlugin;
 import org.micromanager.api.ScriptInterface;
 import org.micromanager.MMStudio;
@@ -155,18 +156,10 @@ public class RecallPlugin implements MMPlugin {
    }
 
    
-   private void normalizeTags(TaggedImage ti, int frameIndex) {
+   static void normalizeTags(TaggedImage ti, int frameIndex) {
       if (ti != TaggedImageQueue.POISON) {
-         int channel = 0;
          try {
-            if (ti.tags.has("Multi Camera-CameraChannelIndex")) {
-               channel = ti.tags.getInt("Multi Camera-CameraChannelIndex");
-            } else if (ti.tags.has("CameraChannelIndex")) {
-               channel = ti.tags.getInt("CameraChannelIndex");
-            } else if (ti.tags.has("ChannelIndex")) {
-               channel = MDUtils.getChannelIndex(ti.tags);
-            }
-            ti.tags.put(MMTags.Image.CHANNEL_INDEX, channel);
+            ti.tags.put(MMTags.Image.CHANNEL_INDEX, getCameraChannelIndex(ti.tags));
             ti.tags.put(MMTags.Image.POS_INDEX, 0);
             ti.tags.put(MMTags.Image.SLICE_INDEX, 0);          
             ti.tags.put(MMTags.Image.FRAME, frameIndex);
@@ -177,6 +170,21 @@ public class RecallPlugin implements MMPlugin {
       }
    }
    
+   /**
+    * Finds the index of the camera channel an image came from (0 for a
+    * single camera).
+    */
+   static int getCameraChannelIndex(JSONObject tags) throws JSONException {
+      if (tags.has("Multi Camera-CameraChannelIndex")) {
+         return tags.getInt("Multi Camera-CameraChannelIndex");
+      } else if (tags.has("CameraChannelIndex")) {
+         return tags.getInt("CameraChannelIndex");
+      } else if (tags.has("ChannelIndex")) {
+         return MDUtils.getChannelIndex(tags);
+      }
+      return 0;
+   }
+
    public void configurationChanged() {
    }
 
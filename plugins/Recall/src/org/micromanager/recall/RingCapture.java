@@ -0,0 +1,297 @@
+/**
+ * Micro-Manager "Pre-trigger Capture"
+ *
+ * Keeps a continuous sequence acquisition running and holds on to the most
+ * recent images in a ring, so that the last seconds before a trigger can be
+ * saved at the full camera frame rate.
+ *
+ * Copyright University of California
+ *
+ * LICENSE:      This file is distributed under the BSD license.
+ *               License text is included with the source distribution.
+ *
+ *               This file is distributed in the hope that it will be useful,
+ *               but WITHOUT ANY WARRANTY; without even the implied warranty
+ *               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ *               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+ */
+
+package org.micromanager.recall;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import mmcorej.CMMCore;
+import mmcorej.TaggedImage;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.micromanager.acquisition.TaggedImageStorageMultipageTiff;
+import org.micromanager.api.ScriptInterface;
+import org.micromanager.utils.MDUtils;
+import org.micromanager.utils.MMException;
+import org.micromanager.utils.ReportingUtils;
+
+
+class RingCapture {
+   // Most images popped from the core in one go
+   private static final int BATCH_SIZE = 64;
+   // Part of the free heap the ring may take up; capture goes on while a
+   // saved ring is written, so up to twice this can be in use
+   private static final double MAX_HEAP_FRACTION = 0.4;
+
+   private final ScriptInterface app_;
+   private final CMMCore core_;
+   private final Object ringLock_ = new Object();
+   private TaggedImage[] ring_;
+   private int next_;
+   private int count_;
+   private volatile boolean running_ = false;
+   private Thread drainThread_;
+   private final ExecutorService writer_;
+
+   // camera settings, fixed while capturing
+   private int width_;
+   private int height_;
+   private int bytesPerPixel_;
+   private int bitDepth_;
+   private int numComponents_;
+   private String[] channelNames_;
+   private double intervalMs_;
+
+   RingCapture(ScriptInterface app) {
+      app_ = app;
+      core_ = app.getMMCore();
+      writer_ = Executors.newSingleThreadExecutor(new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Pre-trigger capture writer");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   }
+
+   boolean isRunning() {
+      return running_;
+   }
+
+   /**
+    * Starts a continuous sequence acquisition and keeps the images of the last
+    * given number of seconds. The ring is sized from the exposure time and is
+    * limited by the available memory.
+    * @return the number of seconds the ring can actually hold
+    */
+   synchronized double start(double seconds) throws Exception {
+      if (running_) {
+         return ring_.length * intervalMs_ / channelNames_.length / 1000.0;
+      }
+      // clean up after a capture that stopped on an error
+      stop();
+      if (app_.isLiveModeOn()) {
+         app_.enableLiveMode(false);
+      }
+      if (core_.isSequenceRunning()) {
+         throw new MMException("Another sequence acquisition is running");
+      }
+      width_ = (int) core_.getImageWidth();
+      height_ = (int) core_.getImageHeight();
+      bytesPerPixel_ = (int) core_.getBytesPerPixel();
+      bitDepth_ = (int) core_.getImageBitDepth();
+      numComponents_ = (int) core_.getNumberOfComponents();
+      int numChannels = Math.max(1, (int) core_.getNumberOfCameraChannels());
+      channelNames_ = new String[numChannels];
+      for (int i = 0; i < numChannels; i++) {
+         channelNames_[i] = core_.getCameraChannelName(i);
+      }
+      intervalMs_ = Math.max(core_.getExposure(), 0.1);
+
+      long imageBytes = (long) width_ * height_ * bytesPerPixel_;
+      Runtime rt = Runtime.getRuntime();
+      long freeBytes = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+      int maxImages = (int) Math.min(Integer.MAX_VALUE,
+              (long) (freeBytes * MAX_HEAP_FRACTION / imageBytes));
+      int wanted = (int) Math.ceil(seconds * 1000.0 / intervalMs_) * numChannels;
+      int size = Math.max(numChannels, Math.min(wanted, maxImages));
+      if (size < wanted) {
+         ReportingUtils.logMessage("Pre-trigger capture: memory limits the ring to "
+                 + size + " of " + wanted + " images");
+      }
+
+      synchronized (ringLock_) {
+         ring_ = new TaggedImage[size];
+         next_ = 0;
+         count_ = 0;
+      }
+      core_.clearCircularBuffer();
+      core_.startContinuousSequenceAcquisition(0);
+      running_ = true;
+      drainThread_ = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            drain();
+         }
+      }, "Pre-trigger capture");
+      drainThread_.start();
+      return size * intervalMs_ / numChannels / 1000.0;
+   }
+
+   /**
+    * Stops the sequence acquisition. Images already in the ring can still be
+    * saved.
+    */
+   synchronized void stop() {
+      if (drainThread_ == null) {
+         return;
+      }
+      running_ = false;
+      try {
+         drainThread_.join();
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+      }
+      drainThread_ = null;
+      try {
+         core_.stopSequenceAcquisition();
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex, "Pre-trigger capture");
+      }
+   }
+
+   /**
+    * Moves images from the core circular buffer into the ring, a batch per
+    * call into the core and per take of the ring lock.
+    */
+   private void drain() {
+      // elements are cleared once moved to the ring, so pixel arrays are
+      // never reused while the ring still holds them
+      TaggedImage[] batch = new TaggedImage[BATCH_SIZE];
+      while (running_) {
+         try {
+            int n = core_.popNextTaggedImages(0, batch);
+            if (n == 0) {
+               Thread.sleep(1);
+               continue;
+            }
+            synchronized (ringLock_) {
+               for (int i = 0; i < n; i++) {
+                  ring_[next_] = batch[i];
+                  batch[i] = null;
+                  next_ = (next_ + 1) % ring_.length;
+               }
+               count_ = Math.min(count_ + n, ring_.length);
+            }
+         } catch (InterruptedException ex) {
+            return;
+         } catch (Exception ex) {
+            ReportingUtils.logError(ex, "Pre-trigger capture stopped");
+            running_ = false;
+         }
+      }
+   }
+
+   /**
+    * Takes the images currently in the ring and writes them to a new
+    * multipage TIFF data set under root on a background thread, then opens
+    * it. Capture goes on into the emptied ring.
+    * @return false when there was nothing to save
+    */
+   boolean save(final String root, final String prefix) {
+      final List<TaggedImage> images;
+      synchronized (ringLock_) {
+         if (ring_ == null || count_ == 0) {
+            return false;
+         }
+         images = new ArrayList<TaggedImage>(count_);
+         int index = (next_ - count_ + ring_.length) % ring_.length;
+         for (int i = 0; i < count_; i++) {
+            images.add(ring_[index]);
+            ring_[index] = null;
+            index = (index + 1) % ring_.length;
+         }
+         count_ = 0;
+      }
+      writer_.execute(new Runnable() {
+         @Override
+         public void run() {
+            write(uniqueDirectory(root, prefix), images);
+         }
+      });
+      return true;
+   }
+
+   private void write(String dir, List<TaggedImage> images) {
+      try {
+         int numChannels = channelNames_.length;
+         int[] frames = new int[numChannels];
+         String pixelType = (numComponents_ == 1 ? "GRAY" : "RGB") + (8 * bytesPerPixel_);
+         for (TaggedImage image : images) {
+            int channel = RecallPlugin.getCameraChannelIndex(image.tags);
+            if (channel < 0 || channel >= numChannels) {
+               channel = 0;
+            }
+            RecallPlugin.normalizeTags(image, frames[channel]++);
+            MDUtils.setChannelIndex(image.tags, channel);
+            MDUtils.setChannelName(image.tags, channelNames_[channel]);
+            MDUtils.setWidth(image.tags, width_);
+            MDUtils.setHeight(image.tags, height_);
+            image.tags.put("PixelType", pixelType);
+         }
+         int numFrames = 0;
+         for (int f : frames) {
+            numFrames = Math.max(numFrames, f);
+         }
+
+         JSONObject summary = new JSONObject();
+         summary.put("Prefix", new File(dir).getName());
+         summary.put("Channels", numChannels);
+         summary.put("ChNames", new JSONArray(Arrays.asList(channelNames_)));
+         summary.put("Slices", 1);
+         summary.put("Frames", numFrames);
+         summary.put("Positions", 1);
+         summary.put("Width", width_);
+         summary.put("Height", height_);
+         summary.put("PixelType", pixelType);
+         summary.put("BitDepth", bitDepth_);
+         summary.put("Interval_ms", intervalMs_);
+         summary.put("PixelSize_um", core_.getPixelSizeUm());
+         summary.put("Source", "Micro-Manager");
+         summary.put("StartTime", MDUtils.getCurrentTime());
+
+         TaggedImageStorageMultipageTiff storage =
+                 new TaggedImageStorageMultipageTiff(dir, true, summary, false, true, true);
+         for (int i = 0; i < images.size(); i++) {
+            storage.putImage(images.get(i));
+            // let the pixels go as soon as they are handed to the writer
+            images.set(i, null);
+         }
+         storage.finished();
+         storage.close();
+         app_.openAcquisitionData(dir, false);
+      } catch (Exception ex) {
+         ReportingUtils.showError(ex, "Failed to save pre-trigger images to " + dir);
+      }
+   }
+
+   private static String uniqueDirectory(String root, String prefix) {
+      int index = 1;
+      File dir = new File(root, prefix + "_" + index);
+      while (dir.exists()) {
+         index++;
+         dir = new File(root, prefix + "_" + index);
+      }
+      return dir.getPath();
+   }
+
+   void dispose() {
+      stop();
+      writer_.shutdown();
+   }
+}
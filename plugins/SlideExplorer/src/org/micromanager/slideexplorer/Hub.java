@@ -87,6 +87,12 @@ public class Hub {
       tileDimensions_ = controller_.getTileDimensions();
 
       cache_ = new MultiTileCache(numZoomLevels_, tileDimensions_);
+      // Lower zoom levels are filled in by background workers
+      cache_.setTileListener(new MultiTileCache.TileListener() {
+         public void tileUpdated(Point3D idx) {
+            SwingUtilities.invokeLater(new GUIUpdater(idx));
+         }
+      });
 
       blackImg_ = ImageUtils.makeProcessor(type, tileDimensions_.width, tileDimensions_.height);
 
@@ -261,7 +267,7 @@ public class Hub {
    }
 
    public void updateView() {
-      SwingUtilities.invokeLater(new GUIUpdater(null));
+      SwingUtilities.invokeLater(new GUIUpdater());
    }
 
    protected void finalize() throws Throwable {
@@ -542,12 +548,17 @@ public class Hub {
    class GUIUpdater implements Runnable {
 
       private Point tileIndex_ = null;
+      private Point3D multiTileIndex_ = null;
       private boolean regenerate_ = true;
 
       GUIUpdater(Point tileIndex) {
          tileIndex_ = tileIndex;
       }
 
+      GUIUpdater(Point3D multiTileIndex) {
+         multiTileIndex_ = multiTileIndex;
+      }
+
       GUIUpdater() {
          tileIndex_ = null;
       }
@@ -557,6 +568,15 @@ public class Hub {
       }
 
       public void run() {
+         if (multiTileIndex_ != null) {
+            // Only redraw if the tile belongs to the current view
+            if (coords_.getMultiTilesOnScreen().contains(multiTileIndex_)
+                    || coords_.getMultiTilesOffScreen().contains(multiTileIndex_)) {
+               drawMultiTile(multiTileIndex_);
+               display_.updateAndDraw();
+            }
+            return;
+         }
          if (tileIndex_ == null) {
             if (regenerate_) {
                regenerateView();
@@ -1,14 +1,11 @@
 package org.micromanager.slideexplorer;
 
 import java.awt.Point;
-import java.io.File;
-import java.util.Random;
+import java.io.IOException;
 
-import ij.IJ;
-import ij.ImagePlus;
-import ij.io.FileSaver;
 import ij.process.ImageProcessor;
 import org.micromanager.utils.ImageUtils;
+import org.micromanager.utils.ReportingUtils;
 
 public class MultiTile {
 
@@ -16,14 +13,19 @@ public class MultiTile {
     int type_;
     int width_;
     int height_;
-    String fileName_ = null;
     boolean cached_ = false;
-    String tmpDirectory_ = "/tmp";
+    final Point3D index_;
+    final MultiTileCache cache_;
+    final TileFile tileFile_;
 
-    MultiTile(int type, int width, int height) {
+    MultiTile(int type, int width, int height, Point3D index,
+            MultiTileCache cache, TileFile tileFile) {
         type_ = type;
         width_ = width;
         height_ = height;
+        index_ = index;
+        cache_ = cache;
+        tileFile_ = tileFile;
     }
 
     public synchronized ImageProcessor getImage() {
@@ -32,30 +34,45 @@ public class MultiTile {
     }
 
     public synchronized void getImageReady() {
+        boolean loaded = false;
         if (proc_ == null) {
             if (cached_ == false) {
                 createCleanImage();
             } else {
                 loadFromCache();
             }
+            loaded = true;
         }
         proc_.setInterpolationMethod(ImageProcessor.BILINEAR);
+        if (loaded) {
+            cache_.tileLoaded(this);
+        }
     }
 
     public synchronized void setImage(ImageProcessor proc) {
         getImageReady();
         proc_.insert(proc, 0, 0);
+        cached_ = false;
     }
 
     private void createCleanImage() {
         proc_ = ImageUtils.makeProcessor(type_, width_, height_);
     }
 
-    public synchronized void insertQuadrantImage(Point quad, ImageProcessor inProc) {
-        // TODO: rewrite this as a fast algorithm. Should require only a single copy.
+    /*
+     * Copies a half-size version of the child tile into one quadrant of this
+     * tile.  The child is read while this tile's lock is held, so that the
+     * last of several concurrent updates always sees the newest child.
+     * Locks are only ever taken from parent to child (lower to higher zoom
+     * level), which rules out deadlocks between propagation workers.
+     */
+    public synchronized void insertQuadrantImage(Point quad, MultiTile child) {
+        ImageProcessor inProcSmall;
+        synchronized (child) {
+            ImageProcessor inProc = child.getImage();
+            inProcSmall = inProc.resize(width_ / 2, height_ / 2);
+        }
         getImageReady();
-        inProc.setInterpolationMethod(ImageProcessor.BILINEAR);
-        ImageProcessor inProcSmall = inProc.resize(width_ / 2, height_ / 2);
         proc_.insert(inProcSmall, quad.x * width_ / 2, quad.y * height_ / 2);
         cached_ = false;
     }
@@ -65,50 +82,38 @@ public class MultiTile {
             cacheOnDisk();
         }
 
-        proc_ = null;
+        if (cached_) {
+            proc_ = null;
+        }
     }
 
     private void cacheOnDisk() {
         if (proc_ != null) {
-            ImagePlus imgp = new ImagePlus("", proc_);
-            FileSaver fs = new FileSaver(imgp);
-            if (fileName_ == null) {
-                fileName_ = tmpDirectory_ + "/" + Math.abs(randLong()) + ".tif";
+            try {
+                tileFile_.write(index_, proc_);
+                cached_ = true;
+            } catch (IOException e) {
+                // Keep the pixels in memory rather than lose them
+                ReportingUtils.logError(e, "Failed to write tile " + index_);
             }
-            fs.saveAsTiff(fileName_);
-            cached_ = true;
         }
     }
 
     private void loadFromCache() {
-        ImagePlus imgp = IJ.openImage(fileName_);
-        if (imgp != null) {
-            proc_ = imgp.getProcessor();
-        } else { // Somehow the image got lost.
-            proc_ = null;
+        proc_ = ImageUtils.makeProcessor(type_, width_, height_);
+        boolean found = false;
+        try {
+            found = tileFile_.read(index_, proc_);
+        } catch (IOException e) {
+            ReportingUtils.logError(e, "Failed to read tile " + index_);
+        }
+        if (!found) { // Somehow the image got lost.
             cached_ = false;
-            getImageReady();
+            createCleanImage();
         }
     }
 
     public String toString() {
         return "Tile";
     }
-    private static Random rand = null;
-
-    public static long randLong() {
-        if (rand == null) {
-            rand = new Random();
-        }
-        return rand.nextLong();
-    }
-
-    public void wipeFromDisk() {
-        if (fileName_ != null) {
-            File file = new File(fileName_);
-            if (file.exists()) {
-                file.delete();
-            }
-        }
-    }
 }
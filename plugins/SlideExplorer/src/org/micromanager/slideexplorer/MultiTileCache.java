@@ -1,120 +1,241 @@
 package org.micromanager.slideexplorer;
 
+import ij.ImagePlus;
 import ij.process.ImageProcessor;
 
 import java.awt.Dimension;
 import java.awt.Point;
-import java.io.File;
-import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.micromanager.utils.ImageUtils;
+import org.micromanager.utils.ReportingUtils;
 
+/*
+ * Pyramid of tiles.  Level 0 holds the acquired tiles, each lower level
+ * holds the tiles of the level above at half resolution.
+ *
+ * Tiles are kept in memory in least-recently-used order up to a byte
+ * budget; tiles beyond the budget are written to a single scratch file
+ * (see TileFile) and read back when they are needed again.  Lower levels
+ * of the pyramid are rebuilt on background workers after each addImage().
+ */
 public class MultiTileCache {
-	
+
+	public interface TileListener {
+		/*
+		 * Called on a propagation worker after the tile at idx was updated.
+		 */
+		void tileUpdated(Point3D idx);
+	}
+
+	public static final long DEFAULT_MEMORY_BUDGET = 256L * 1024 * 1024;
+
 	protected int minZoomLevel_;
 	protected int width_ = 0;
 	protected int height_ = 0;
-	private int type_ = -1;
-	
-	protected Hashtable<Point3D,MultiTile> allTiles_ = new Hashtable<Point3D,MultiTile>();
-	protected Hashtable<Integer,Point3D> currentTiles_ = new Hashtable<Integer, Point3D>();
-	
+	private volatile int type_ = -1;
+
+	protected final Map<Point3D,MultiTile> allTiles_ = new ConcurrentHashMap<Point3D,MultiTile>();
+	// Tiles whose pixels are (probably) in memory, least recently used first
+	private final LinkedHashMap<Point3D,MultiTile> residentTiles_ =
+			new LinkedHashMap<Point3D,MultiTile>(16, 0.75f, true);
+	private final long memoryBudget_;
+	private final TileFile tileFile_ = new TileFile();
+	private final Queue<MultiTile> evictedTiles_ = new ConcurrentLinkedQueue<MultiTile>();
+	private final ExecutorService propagator_;
+	private volatile TileListener listener_ = null;
+	// Incremented by clear() so that stale propagation tasks can bail out
+	private volatile int generation_ = 0;
+
 	public MultiTileCache(int zoomLevels, Dimension tileDimensions) {
+		this(zoomLevels, tileDimensions, Math.min(DEFAULT_MEMORY_BUDGET,
+				Runtime.getRuntime().maxMemory() / 4));
+	}
+
+	public MultiTileCache(int zoomLevels, Dimension tileDimensions, long memoryBudgetBytes) {
 		minZoomLevel_ = -zoomLevels+1;
 		width_ = tileDimensions.width;
 		height_ = tileDimensions.height;
+		memoryBudget_ = memoryBudgetBytes;
+
+		int nThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		propagator_ = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+			private int count_ = 0;
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "SlideExplorer tile propagation " + count_++);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
 
-        File tmpDir = new File("/tmp");
-        if(!tmpDir.exists())
-                tmpDir.mkdir();
+	public void setTileListener(TileListener listener) {
+		listener_ = listener;
 	}
-	
+
 	public void addImage(Point idx, ImageProcessor proc) {
 		if (type_ == -1) {
 			type_ = ImageUtils.getImageProcessorType(proc);
 		}
-		
-		MultiTile tile = getTile(idx);
+
+		final Point3D idx3D = new Point3D(idx, 0);
+		MultiTile tile = getMultiTile(idx3D);
 		tile.setImage(proc);
-		propagateTile(idx, tile);
+		notifyUpdated(idx3D);
+
+		final int generation = generation_;
+		propagator_.submit(new Runnable() {
+			public void run() {
+				try {
+					propagateTile(idx3D, generation);
+				} catch (Throwable t) {
+					ReportingUtils.logError(t, "Failed to propagate tile " + idx3D);
+				}
+			}
+		});
 	}
-	
+
 	public ImageProcessor getImage(Point3D multiTileIndex) {
 		return getMultiTile(multiTileIndex).getImage();
 	}
-	
+
 	public boolean hasImage(Point p) {
 		return allTiles_.containsKey(new Point3D(p,0));
 	}
-	
+
 	public boolean hasImage(Point3D p) {
 		return allTiles_.containsKey(p);
 	}
-		
-	protected void propagateTile(Point idx, MultiTile multiTile) {
-		propagateTile(new Point3D(idx, 0), multiTile);
-	}
-	
-	protected void propagateTile(Point3D idx, MultiTile multiTile) {
-		if (idx.k>minZoomLevel_) {
+
+	protected void propagateTile(Point3D idx, int generation) {
+		while (idx.k>minZoomLevel_ && generation == generation_) {
 			Point3D pidx = getParentIndex(idx);
 			Point pquad = getParentQuadrant(idx);
 			MultiTile parentTile = getMultiTile(pidx);
-			
-			ImageProcessor proc = multiTile.getImage();
-			parentTile.insertQuadrantImage(pquad, proc);
-			propagateTile(pidx, parentTile);
+			MultiTile multiTile = getMultiTile(idx);
+
+			parentTile.insertQuadrantImage(pquad, multiTile);
+			notifyUpdated(pidx);
+			idx = pidx;
 		}
 	}
-		
+
+	private void notifyUpdated(Point3D idx) {
+		TileListener listener = listener_;
+		if (listener != null) {
+			listener.tileUpdated(idx);
+		}
+	}
+
 	protected MultiTile getMultiTile(int i, int j, int z) {
 		return getMultiTile(new Point3D(i,j,z));
 	}
-	
+
 	protected MultiTile getTile(Point idx) {
 		return getMultiTile(new Point3D(idx.x, idx.y, 0));
 	}
-	
+
+	/*
+	 * Returns the tile at idx, creating it if needed, and marks it as most
+	 * recently used.
+	 */
 	protected synchronized MultiTile getMultiTile(Point3D idx) {
+		MultiTile tile = allTiles_.get(idx);
+		if (tile == null) {
+			tile = new MultiTile(type_, width_, height_, idx, this, tileFile_);
+			allTiles_.put(idx, tile);
+		} else {
+			residentTiles_.get(idx); // refresh access order
+		}
+		return tile;
+	}
 
-		if (currentTiles_.containsKey(idx.k)) {
-			Point3D currentTile = currentTiles_.get(idx.k);
-			if (!currentTile.equals(idx)) {
-				allTiles_.get(currentTile).dropFromMemory();
-				currentTiles_.remove(currentTile.k);
+	/*
+	 * Called by a tile when its pixels were created or read back into
+	 * memory.  Tiles pushed over the memory budget are written out by a
+	 * worker rather than here, because the caller holds the lock of the
+	 * loaded tile and may well be the EDT.
+	 */
+	synchronized void tileLoaded(MultiTile tile) {
+		if (residentTiles_.put(tile.index_, tile) != null) {
+			return;
+		}
+		long tileBytes = getTileBytes();
+		long overBudget = (long) residentTiles_.size() * tileBytes - memoryBudget_;
+		Iterator<Map.Entry<Point3D,MultiTile>> it = residentTiles_.entrySet().iterator();
+		// Keep at least the tile that was just loaded
+		while (overBudget > 0 && residentTiles_.size() > 1 && it.hasNext()) {
+			Map.Entry<Point3D,MultiTile> eldest = it.next();
+			if (eldest.getValue() == tile) {
+				continue;
 			}
+			evictedTiles_.add(eldest.getValue());
+			it.remove();
+			overBudget -= tileBytes;
+		}
+		if (!evictedTiles_.isEmpty()) {
+			propagator_.submit(dropEvictedTiles_);
 		}
+	}
 
-		currentTiles_.put(idx.k, idx);
-		if (! allTiles_.containsKey(idx)) {
-			MultiTile tile = new MultiTile(type_, width_, height_);
-			allTiles_.put(idx, tile);
-			return tile;
-		} else {
-			return allTiles_.get(idx);
+	/*
+	 * Writes out the tiles queued by tileLoaded().
+	 */
+	private final Runnable dropEvictedTiles_ = new Runnable() {
+		public void run() {
+			MultiTile tile;
+			while ((tile = evictedTiles_.poll()) != null) {
+				synchronized (MultiTileCache.this) {
+					if (residentTiles_.containsKey(tile.index_)) {
+						continue; // used again in the meantime
+					}
+				}
+				tile.dropFromMemory();
+			}
+		}
+	};
+
+	private long getTileBytes() {
+		int bytesPerPixel;
+		switch (type_) {
+			case ImagePlus.GRAY8:
+				bytesPerPixel = 1;
+				break;
+			case ImagePlus.GRAY16:
+				bytesPerPixel = 2;
+				break;
+			default:
+				bytesPerPixel = 4;
 		}
+		return (long) width_ * height_ * bytesPerPixel;
 	}
-		
+
 	protected Point3D getParentIndex(Point3D idx) {
 		return new Point3D(idx.i>>1, idx.j>>1, idx.k-1);
 	}
-	
+
 	protected Point getParentQuadrant(Point3D idx) {
 		return new Point(idx.i & 1, idx.j & 1);
 	}
-	
+
 	protected Point3D newPoint3D(int i, int j, int k) {
 		return new Point3D(i,j,k);
 	}
 
-	public void clear() {
-		for (MultiTile multiTile:allTiles_.values()) {
-			multiTile.wipeFromDisk();
-		}
-        currentTiles_.clear();
-        allTiles_.clear();
+	public synchronized void clear() {
+		generation_++;
+		evictedTiles_.clear();
+		residentTiles_.clear();
+		allTiles_.clear();
+		tileFile_.clear();
 	}
-	
-	
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,178 @@
+package org.micromanager.slideexplorer;
+
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+import org.micromanager.utils.ReportingUtils;
+
+/*
+ * Single scratch file holding the pixels of all tiles that have been
+ * evicted from memory.  Each tile gets a slot the first time it is written;
+ * later writes of the same tile overwrite that slot.  The index lives in
+ * memory only: the file is deleted on clear() and when the JVM exits.
+ *
+ * Reads and writes use positional FileChannel access and may be issued
+ * from several threads at once.
+ */
+public class TileFile {
+
+    private static class Slot {
+        final long offset;
+        final int length;
+
+        Slot(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final HashMap<Point3D, Slot> index_ = new HashMap<Point3D, Slot>();
+    private final ThreadLocal<ByteBuffer> buffers_ = new ThreadLocal<ByteBuffer>();
+    private File file_ = null;
+    private RandomAccessFile raf_ = null;
+    private FileChannel channel_ = null;
+    private long end_ = 0;
+
+    public synchronized boolean contains(Point3D idx) {
+        return index_.containsKey(idx);
+    }
+
+    /*
+     * Stores the pixels of proc under the given index.
+     */
+    public void write(Point3D idx, ImageProcessor proc) throws IOException {
+        ByteBuffer buffer = toBuffer(proc.getPixels());
+        FileChannel channel;
+        Slot slot;
+        synchronized (this) {
+            channel = getChannel();
+            slot = index_.get(idx);
+            if (slot == null || slot.length < buffer.remaining()) {
+                slot = new Slot(end_, buffer.remaining());
+                end_ += slot.length;
+                index_.put(idx, slot);
+            }
+        }
+        long position = slot.offset;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /*
+     * Fills the pixels of proc with the data stored under the given index.
+     * Returns false if nothing was stored for this index.
+     */
+    public boolean read(Point3D idx, ImageProcessor proc) throws IOException {
+        FileChannel channel;
+        Slot slot;
+        synchronized (this) {
+            slot = index_.get(idx);
+            channel = channel_;
+        }
+        if (slot == null || channel == null) {
+            return false;
+        }
+        ByteBuffer buffer = getBuffer(slot.length);
+        long position = slot.offset;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                return false;
+            }
+            position += n;
+        }
+        buffer.flip();
+        fromBuffer(buffer, proc.getPixels());
+        return true;
+    }
+
+    /*
+     * Forgets all tiles and deletes the file.
+     */
+    public synchronized void clear() {
+        index_.clear();
+        end_ = 0;
+        if (raf_ != null) {
+            try {
+                raf_.close();
+            } catch (IOException e) {
+                ReportingUtils.logError(e);
+            }
+            file_.delete();
+        }
+        raf_ = null;
+        channel_ = null;
+        file_ = null;
+    }
+
+    private FileChannel getChannel() throws IOException {
+        if (channel_ == null) {
+            file_ = File.createTempFile("SlideExplorerTiles", ".bin");
+            file_.deleteOnExit();
+            raf_ = new RandomAccessFile(file_, "rw");
+            channel_ = raf_.getChannel();
+        }
+        return channel_;
+    }
+
+    private ByteBuffer getBuffer(int size) {
+        ByteBuffer buffer = buffers_.get();
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+            buffers_.set(buffer);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    private ByteBuffer toBuffer(Object pixels) {
+        ByteBuffer buffer;
+        if (pixels instanceof byte[]) {
+            byte[] pix = (byte[]) pixels;
+            buffer = getBuffer(pix.length);
+            buffer.put(pix);
+        } else if (pixels instanceof short[]) {
+            short[] pix = (short[]) pixels;
+            buffer = getBuffer(2 * pix.length);
+            buffer.asShortBuffer().put(pix);
+            buffer.position(2 * pix.length);
+        } else if (pixels instanceof int[]) {
+            int[] pix = (int[]) pixels;
+            buffer = getBuffer(4 * pix.length);
+            buffer.asIntBuffer().put(pix);
+            buffer.position(4 * pix.length);
+        } else if (pixels instanceof float[]) {
+            float[] pix = (float[]) pixels;
+            buffer = getBuffer(4 * pix.length);
+            buffer.asFloatBuffer().put(pix);
+            buffer.position(4 * pix.length);
+        } else {
+            throw new IllegalArgumentException("Unsupported pixel type");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void fromBuffer(ByteBuffer buffer, Object pixels) {
+        if (pixels instanceof byte[]) {
+            buffer.get((byte[]) pixels);
+        } else if (pixels instanceof short[]) {
+            buffer.asShortBuffer().get((short[]) pixels);
+        } else if (pixels instanceof int[]) {
+            buffer.asIntBuffer().get((int[]) pixels);
+        } else if (pixels instanceof float[]) {
+            buffer.asFloatBuffer().get((float[]) pixels);
+        } else {
+            throw new IllegalArgumentException("Unsupported pixel type");
+        }
+    }
+}
@@ -28,13 +28,10 @@ package org.micromanager.splitview;
 
 import com.swtdesigner.SwingResourceManager;
 
-import ij.process.ByteProcessor;
-import ij.process.ImageProcessor;
-import ij.process.ShortProcessor;
-
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Font;
+import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 
@@ -52,6 +49,7 @@ import org.json.JSONException;
 import org.micromanager.MMStudio;
 import org.micromanager.api.MMTags;
 import org.micromanager.api.ScriptInterface;
+import org.micromanager.utils.ImageTransforms;
 import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
 
@@ -263,19 +261,13 @@ public class SplitViewFrame extends javax.swing.JFrame {
 
    private void addSnapToImage() {
      TaggedImage img;
-      ImageProcessor tmpImg;
       try {
          core_.snapImage();
          img = core_.getTaggedImage();
-         if (imgDepth_ == 1) {
-            tmpImg = new ByteProcessor(width_, height_);
-         } else if (imgDepth_ == 2) {
-            tmpImg = new ShortProcessor(width_, height_);
-         } else // TODO throw error
+         if (imgDepth_ != 1 && imgDepth_ != 2) // TODO throw error
          {
             return;
          }
-         tmpImg.setPixels(img.pix);
 
          if (!gui_.acquisitionExists(ACQNAME)) {
             enableLiveMode(false);
@@ -288,20 +280,21 @@ public class SplitViewFrame extends javax.swing.JFrame {
             openAcq();
          }
 
-         tmpImg.setRoi(0, 0, newWidth_, newHeight_);
          // first channel
-         TaggedImage firstChannel = new TaggedImage(tmpImg.crop().getPixels(), img.tags);
+         TaggedImage firstChannel = new TaggedImage(ImageTransforms.crop(
+               img.pix, width_, height_,
+               new Rectangle(0, 0, newWidth_, newHeight_), null), img.tags);
          firstChannel.tags.put(MMTags.Image.WIDTH, newWidth_);
          firstChannel.tags.put(MMTags.Image.HEIGHT, newHeight_);
          gui_.addImageToAcquisition(ACQNAME, 0, 0, 0, 0, firstChannel);
          
          // second channel
+         Rectangle secondRoi = new Rectangle(0, newHeight_, newWidth_, newHeight_);
          if (orientation_.equals(LR)) {
-            tmpImg.setRoi(newWidth_, 0, newWidth_, height_);
-         } else if (orientation_.equals(TB)) {
-            tmpImg.setRoi(0, newHeight_, newWidth_, newHeight_);
+            secondRoi = new Rectangle(newWidth_, 0, newWidth_, height_);
          }
-         TaggedImage secondChannel = new TaggedImage(tmpImg.crop().getPixels(), img.tags);
+         TaggedImage secondChannel = new TaggedImage(ImageTransforms.crop(
+               img.pix, width_, height_, secondRoi, null), img.tags);
          secondChannel.tags.put(MMTags.Image.WIDTH, newWidth_);
          secondChannel.tags.put(MMTags.Image.HEIGHT, newHeight_);
          gui_.addImageToAcquisition(ACQNAME, 0, 1, 0, 0, secondChannel);
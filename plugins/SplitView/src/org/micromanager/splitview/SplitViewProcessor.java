@@ -25,16 +25,15 @@ package org.micromanager.splitview;
 
 import com.google.common.eventbus.Subscribe;
 
-import ij.process.ByteProcessor;
-import ij.process.ImageProcessor;
-import ij.process.ShortProcessor;
+import java.awt.Rectangle;
+
 import mmcorej.TaggedImage;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.acquisition.TaggedImageQueue;
 import org.micromanager.api.DataProcessor;
-import org.micromanager.api.ScriptInterface;
+import org.micromanager.utils.ImageTransforms;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
@@ -110,58 +109,51 @@ public class SplitViewProcessor extends DataProcessor<TaggedImage> {
          }
 
          if (taggedImage != null && taggedImage.tags != null) {
-            ImageProcessor tmpImg;
             int imgDepth = MDUtils.getDepth(taggedImage.tags);
-            int width = MDUtils.getWidth(taggedImage.tags);
-            int height = MDUtils.getHeight(taggedImage.tags);
+            int fullWidth = MDUtils.getWidth(taggedImage.tags);
+            int fullHeight = MDUtils.getHeight(taggedImage.tags);
             int channelIndex = MDUtils.getChannelIndex(taggedImage.tags);
 
             //System.out.println("Processed one");
 
-            if (imgDepth == 1) {
-               tmpImg = new ByteProcessor(width, height);
-            } else if (imgDepth == 2) {
-               tmpImg = new ShortProcessor(width, height);
-            } else // TODO throw error
+            if (imgDepth != 1 && imgDepth != 2) // TODO throw error
             {
                produce(taggedImage);
                return;
             }
 
-            tmpImg.setPixels(taggedImage.pix);
-
-            height = calculateHeight(height);
-            width = calculateWidth(width);
-
-            tmpImg.setRoi(0, 0, width, height);
+            int height = calculateHeight(fullHeight);
+            int width = calculateWidth(fullWidth);
             
             
             // first channel
 
-            // Weird way of copying a JSONObject
-            JSONObject tags = new JSONObject(taggedImage.tags.toString());
+            JSONObject tags = taggedImage.tags.copy();
             MDUtils.setWidth(tags, width);
             MDUtils.setHeight(tags, height);
             MDUtils.setChannelIndex(tags, channelIndex * 2);
 
             tags.put("Channel", MDUtils.getChannelName(taggedImage.tags) + getChannelSuffix(channelIndex*2));
             
-            TaggedImage firstIm = new TaggedImage(tmpImg.crop().getPixels(), tags);
+            TaggedImage firstIm = new TaggedImage(ImageTransforms.crop(
+                  taggedImage.pix, fullWidth, fullHeight,
+                  new Rectangle(0, 0, width, height), null), tags);
 
             // second channel
-            JSONObject tags2 = new JSONObject(tags.toString());
+            JSONObject tags2 = tags.copy();
             tags2.put("Channel", MDUtils.getChannelName(taggedImage.tags)  + getChannelSuffix(channelIndex*2+1));
 
+            Rectangle secondRoi = new Rectangle(0, height, width, height);
             if (orientation_.equals(SplitViewFrame.LR)) {
-               tmpImg.setRoi(width, 0, width, height);
-            } else if (orientation_.equals(SplitViewFrame.TB)) {
-               tmpImg.setRoi(0, height, width, height);
+               secondRoi = new Rectangle(width, 0, width, height);
             }
             MDUtils.setWidth(tags2, width);
             MDUtils.setHeight(tags2, height);
             MDUtils.setChannelIndex(tags2, channelIndex * 2 + 1);
 
-            TaggedImage secondIm = new TaggedImage(tmpImg.crop().getPixels(), tags2);
+            TaggedImage secondIm = new TaggedImage(ImageTransforms.crop(
+                  taggedImage.pix, fullWidth, fullHeight, secondRoi, null),
+                  tags2);
 
             produce(secondIm);
             produce(firstIm);
@@ -0,0 +1,163 @@
+/*
+ * In-place radix-2 complex FFT for the Tracker plugin
+ * Copyright UCSF, BSD license
+ */
+package com.imaging100x.tracker;
+
+/**
+ * Two-dimensional, in-place, radix-2 complex FFT of fixed size.
+ *
+ * Twiddle factors, bit-reversal tables and the column scratch buffers are
+ * computed once in the constructor, so that transforming a frame does not
+ * allocate.  Instances are not thread safe: use one instance per thread.
+ *
+ * Data are stored row-major in separate real and imaginary arrays of
+ * length width * height.
+ */
+public class FFT2D {
+   private final int width_;
+   private final int height_;
+   private final Radix2 rowFFT_;
+   private final Radix2 colFFT_;
+   private final double[] colRe_;
+   private final double[] colIm_;
+
+   /**
+    * @param width - number of columns, must be a power of 2
+    * @param height - number of rows, must be a power of 2
+    */
+   public FFT2D(int width, int height) {
+      if (!isPowerOf2(width) || !isPowerOf2(height)) {
+         throw new IllegalArgumentException(
+                 "FFT dimensions must be powers of 2, got " + width + "x" + height);
+      }
+      width_ = width;
+      height_ = height;
+      rowFFT_ = new Radix2(width);
+      colFFT_ = (height == width) ? rowFFT_ : new Radix2(height);
+      colRe_ = new double[height];
+      colIm_ = new double[height];
+   }
+
+   public int getWidth() {
+      return width_;
+   }
+
+   public int getHeight() {
+      return height_;
+   }
+
+   /**
+    * Forward transform (no scaling)
+    */
+   public void forward(double[] re, double[] im) {
+      transform(re, im, false);
+   }
+
+   /**
+    * Inverse transform, scaled by 1 / (width * height)
+    */
+   public void inverse(double[] re, double[] im) {
+      transform(re, im, true);
+      final double scale = 1.0 / (width_ * height_);
+      for (int i = 0; i < re.length; i++) {
+         re[i] *= scale;
+         im[i] *= scale;
+      }
+   }
+
+   private void transform(double[] re, double[] im, boolean inverse) {
+      for (int row = 0; row < height_; row++) {
+         rowFFT_.transform(re, im, row * width_, 1, inverse);
+      }
+      // Columns are copied to contiguous scratch arrays, which is much
+      // more cache friendly than striding through the full image
+      for (int col = 0; col < width_; col++) {
+         for (int row = 0, i = col; row < height_; row++, i += width_) {
+            colRe_[row] = re[i];
+            colIm_[row] = im[i];
+         }
+         colFFT_.transform(colRe_, colIm_, 0, 1, inverse);
+         for (int row = 0, i = col; row < height_; row++, i += width_) {
+            re[i] = colRe_[row];
+            im[i] = colIm_[row];
+         }
+      }
+   }
+
+   public static boolean isPowerOf2(int n) {
+      return n > 0 && (n & (n - 1)) == 0;
+   }
+
+   /**
+    * @return smallest power of 2 that is >= n
+    */
+   public static int nextPowerOf2(int n) {
+      int p = 1;
+      while (p < n) {
+         p <<= 1;
+      }
+      return p;
+   }
+
+   /**
+    * One-dimensional iterative Cooley-Tukey transform with precomputed tables
+    */
+   private static class Radix2 {
+      private final int n_;
+      private final int[] bitReverse_;
+      private final double[] cos_;
+      private final double[] sin_;
+
+      Radix2(int n) {
+         n_ = n;
+         bitReverse_ = new int[n];
+         int bits = Integer.numberOfTrailingZeros(n);
+         for (int i = 0; i < n; i++) {
+            bitReverse_[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+         }
+         cos_ = new double[n / 2];
+         sin_ = new double[n / 2];
+         for (int i = 0; i < n / 2; i++) {
+            cos_[i] = Math.cos(2 * Math.PI * i / n);
+            sin_[i] = Math.sin(2 * Math.PI * i / n);
+         }
+      }
+
+      void transform(double[] re, double[] im, int offset, int stride,
+              boolean inverse) {
+         for (int i = 0; i < n_; i++) {
+            int j = bitReverse_[i];
+            if (j > i) {
+               int a = offset + i * stride;
+               int b = offset + j * stride;
+               double t = re[a];
+               re[a] = re[b];
+               re[b] = t;
+               t = im[a];
+               im[a] = im[b];
+               im[b] = t;
+            }
+         }
+         final double sign = inverse ? 1.0 : -1.0;
+         for (int size = 2; size <= n_; size <<= 1) {
+            int half = size >> 1;
+            int step = n_ / size;
+            for (int start = 0; start < n_; start += size) {
+               for (int k = 0; k < half; k++) {
+                  double wr = cos_[k * step];
+                  double wi = sign * sin_[k * step];
+                  int a = offset + (start + k) * stride;
+                  int b = a + half * stride;
+                  double tr = wr * re[b] - wi * im[b];
+                  double ti = wr * im[b] + wi * re[b];
+                  re[b] = re[a] - tr;
+                  im[b] = im[a] - ti;
+                  re[a] += tr;
+                  im[a] += ti;
+               }
+            }
+         }
+      }
+   }
+}
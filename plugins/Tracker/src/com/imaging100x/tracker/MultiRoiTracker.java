@@ -0,0 +1,115 @@
+/*
+ * Tracks several ROIs in parallel using phase correlation
+ * Copyright UCSF, BSD license
+ */
+package com.imaging100x.tracker;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs one PhaseCorrelator per ROI on a small thread pool, so that the
+ * shifts of all tracked regions in a frame are computed concurrently.
+ *
+ * Call shutdown() when tracking ends to release the worker threads.
+ */
+public class MultiRoiTracker {
+   private final List<PhaseCorrelator> correlators_;
+   private final ExecutorService executor_;
+
+   public MultiRoiTracker(List<Rectangle> rois, int maxShift) {
+      if (rois.isEmpty()) {
+         throw new IllegalArgumentException("At least one ROI is needed for tracking");
+      }
+      correlators_ = new ArrayList<PhaseCorrelator>(rois.size());
+      for (Rectangle roi : rois) {
+         correlators_.add(new PhaseCorrelator(roi, maxShift));
+      }
+      int nThreads = Math.min(rois.size(),
+              Runtime.getRuntime().availableProcessors());
+      executor_ = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+         private int count_ = 0;
+         @Override
+         public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Tracker correlation " + count_++);
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   }
+
+   public int getRoiCount() {
+      return correlators_.size();
+   }
+
+   public PhaseCorrelator getCorrelator(int index) {
+      return correlators_.get(index);
+   }
+
+   /**
+    * Determines the shift of every ROI between two frames.  Blocks until
+    * all ROIs are done.
+    *
+    * @return one shift per ROI, in the order the ROIs were given
+    */
+   public List<PhaseCorrelator.Shift> track(final float[] previous,
+           final float[] current, final int imageWidth, final int imageHeight)
+           throws InterruptedException, ExecutionException {
+      if (correlators_.size() == 1) {
+         List<PhaseCorrelator.Shift> result = new ArrayList<PhaseCorrelator.Shift>(1);
+         result.add(correlators_.get(0).correlate(previous, current,
+                 imageWidth, imageHeight));
+         return result;
+      }
+      List<Future<PhaseCorrelator.Shift>> futures =
+              new ArrayList<Future<PhaseCorrelator.Shift>>(correlators_.size());
+      for (final PhaseCorrelator correlator : correlators_) {
+         futures.add(executor_.submit(new Callable<PhaseCorrelator.Shift>() {
+            @Override
+            public PhaseCorrelator.Shift call() {
+               return correlator.correlate(previous, current,
+                       imageWidth, imageHeight);
+            }
+         }));
+      }
+      List<PhaseCorrelator.Shift> result =
+              new ArrayList<PhaseCorrelator.Shift>(futures.size());
+      for (Future<PhaseCorrelator.Shift> future : futures) {
+         result.add(future.get());
+      }
+      return result;
+   }
+
+   /**
+    * Combines the shifts of all ROIs into one, weighting each by the height
+    * of its correlation peak
+    */
+   public static PhaseCorrelator.Shift combine(List<PhaseCorrelator.Shift> shifts) {
+      double dx = 0.0;
+      double dy = 0.0;
+      double weight = 0.0;
+      double peak = 0.0;
+      for (PhaseCorrelator.Shift s : shifts) {
+         double w = Math.max(s.peak, 0.0);
+         dx += w * s.dx;
+         dy += w * s.dy;
+         weight += w;
+         peak = Math.max(peak, s.peak);
+      }
+      if (weight <= 0.0) {
+         return new PhaseCorrelator.Shift(0.0, 0.0, peak);
+      }
+      return new PhaseCorrelator.Shift(dx / weight, dy / weight, peak);
+   }
+
+   public void shutdown() {
+      executor_.shutdownNow();
+   }
+}
@@ -0,0 +1,263 @@
+/*
+ * FFT based phase correlation for the Tracker plugin
+ * Copyright UCSF, BSD license
+ */
+package com.imaging100x.tracker;
+
+import java.awt.Rectangle;
+
+/**
+ * Estimates the translation of a rectangular region between two frames by
+ * phase correlation.
+ *
+ * The region that is correlated is the ROI grown by the maximum expected
+ * shift on every side, padded to power-of-2 dimensions.  The normalized
+ * cross-power spectrum of the two windows is transformed back and the
+ * position of its peak (within +/- maxShift) is refined to sub-pixel accuracy
+ * with a parabolic fit through the neighbouring values.
+ *
+ * All transform buffers are allocated once.  When the "previous" frame
+ * passed to correlate() is the same array that was passed as "current" in
+ * the preceding call (the usual frame-to-frame tracking case), its spectrum
+ * is reused so that only one forward and one inverse transform are needed
+ * per frame.
+ *
+ * Instances are not thread safe; MultiRoiTracker uses one per ROI.
+ */
+public class PhaseCorrelator {
+   private static final double EPSILON = 1e-12;
+
+   private final int maxShift_;
+   private final int regionWidth_;
+   private final int regionHeight_;
+   private final FFT2D fft_;
+   private final double[] hann_;
+   private Rectangle roi_;
+
+   // Spectrum of the reference ("previous") window
+   private double[] refRe_;
+   private double[] refIm_;
+   // Spectrum of the current window; swapped with the reference after use
+   private double[] curRe_;
+   private double[] curIm_;
+   // Cross-power spectrum / correlation surface
+   private final double[] corRe_;
+   private final double[] corIm_;
+
+   private float[] cachedReference_ = null;
+   private boolean referenceValid_ = false;
+
+   /**
+    * Result of a single correlation
+    */
+   public static class Shift {
+      /** shift in pixels along x of the current frame relative to the previous */
+      public final double dx;
+      /** shift in pixels along y of the current frame relative to the previous */
+      public final double dy;
+      /** height of the correlation peak, 1.0 for a perfect match */
+      public final double peak;
+
+      public Shift(double dx, double dy, double peak) {
+         this.dx = dx;
+         this.dy = dy;
+         this.peak = peak;
+      }
+   }
+
+   /**
+    * @param roi - region to be tracked
+    * @param maxShift - largest shift (in pixels) that will be searched for
+    */
+   public PhaseCorrelator(Rectangle roi, int maxShift) {
+      if (maxShift < 1) {
+         throw new IllegalArgumentException("Maximum shift must be at least 1 pixel");
+      }
+      roi_ = new Rectangle(roi);
+      maxShift_ = maxShift;
+      regionWidth_ = roi.width + 2 * maxShift;
+      regionHeight_ = roi.height + 2 * maxShift;
+      int fftWidth = FFT2D.nextPowerOf2(regionWidth_);
+      int fftHeight = FFT2D.nextPowerOf2(regionHeight_);
+      fft_ = new FFT2D(fftWidth, fftHeight);
+
+      int size = fftWidth * fftHeight;
+      refRe_ = new double[size];
+      refIm_ = new double[size];
+      curRe_ = new double[size];
+      curIm_ = new double[size];
+      corRe_ = new double[size];
+      corIm_ = new double[size];
+
+      // Separable Hann window over the (unpadded) region suppresses the
+      // edge discontinuities that would otherwise dominate the spectrum
+      hann_ = new double[regionWidth_ * regionHeight_];
+      for (int y = 0; y < regionHeight_; y++) {
+         double wy = 0.5 - 0.5 * Math.cos(2 * Math.PI * (y + 0.5) / regionHeight_);
+         for (int x = 0; x < regionWidth_; x++) {
+            double wx = 0.5 - 0.5 * Math.cos(2 * Math.PI * (x + 0.5) / regionWidth_);
+            hann_[y * regionWidth_ + x] = wx * wy;
+         }
+      }
+   }
+
+   public Rectangle getRoi() {
+      return new Rectangle(roi_);
+   }
+
+   /**
+    * Moves the tracked region.  The size of the region can not be changed.
+    * The cached reference spectrum is invalidated.
+    */
+   public void setLocation(int x, int y) {
+      roi_.setLocation(x, y);
+      referenceValid_ = false;
+   }
+
+   public int getMaxShift() {
+      return maxShift_;
+   }
+
+   /**
+    * Determines the shift of the tracked region between two frames
+    *
+    * @param previous - pixels of the earlier frame
+    * @param current - pixels of the later frame
+    * @param imageWidth - width of both frames
+    * @param imageHeight - height of both frames
+    * @return shift of the image content in current relative to previous
+    */
+   public Shift correlate(float[] previous, float[] current,
+           int imageWidth, int imageHeight) {
+      if (!referenceValid_ || previous != cachedReference_) {
+         loadWindow(previous, imageWidth, imageHeight, refRe_, refIm_);
+      }
+      loadWindow(current, imageWidth, imageHeight, curRe_, curIm_);
+
+      // Normalized cross-power spectrum: F(cur) * conj(F(prev)) / |...|
+      for (int i = 0; i < corRe_.length; i++) {
+         double re = curRe_[i] * refRe_[i] + curIm_[i] * refIm_[i];
+         double im = curIm_[i] * refRe_[i] - curRe_[i] * refIm_[i];
+         double mag = Math.sqrt(re * re + im * im);
+         if (mag > EPSILON) {
+            corRe_[i] = re / mag;
+            corIm_[i] = im / mag;
+         } else {
+            corRe_[i] = 0.0;
+            corIm_[i] = 0.0;
+         }
+      }
+      fft_.inverse(corRe_, corIm_);
+
+      // The current spectrum becomes the reference for the next frame
+      double[] tmp = refRe_;
+      refRe_ = curRe_;
+      curRe_ = tmp;
+      tmp = refIm_;
+      refIm_ = curIm_;
+      curIm_ = tmp;
+      cachedReference_ = current;
+      referenceValid_ = true;
+
+      return findPeak();
+   }
+
+   /**
+    * Copies the correlation surface of the last call to correlate() into
+    * out, arranged as a (2 * maxShift) x (2 * maxShift) image with zero
+    * shift at (maxShift, maxShift)
+    */
+   public void getCorrelationMap(float[] out) {
+      int size = 2 * maxShift_;
+      if (out.length < size * size) {
+         throw new IllegalArgumentException("Output array is too small");
+      }
+      for (int k = -maxShift_; k < maxShift_; k++) {
+         for (int l = -maxShift_; l < maxShift_; l++) {
+            out[(k + maxShift_) * size + (l + maxShift_)] =
+                    (float) corRe_[wrapIndex(l, k)];
+         }
+      }
+   }
+
+   private Shift findPeak() {
+      int bestL = 0;
+      int bestK = 0;
+      double best = Double.NEGATIVE_INFINITY;
+      for (int k = -maxShift_; k <= maxShift_; k++) {
+         for (int l = -maxShift_; l <= maxShift_; l++) {
+            double v = corRe_[wrapIndex(l, k)];
+            if (v > best) {
+               best = v;
+               bestL = l;
+               bestK = k;
+            }
+         }
+      }
+      double dx = bestL + parabolicOffset(corRe_[wrapIndex(bestL - 1, bestK)],
+              best, corRe_[wrapIndex(bestL + 1, bestK)]);
+      double dy = bestK + parabolicOffset(corRe_[wrapIndex(bestL, bestK - 1)],
+              best, corRe_[wrapIndex(bestL, bestK + 1)]);
+      return new Shift(dx, dy, best);
+   }
+
+   /**
+    * Vertex of the parabola through (-1, left), (0, center), (1, right)
+    */
+   private static double parabolicOffset(double left, double center, double right) {
+      double denominator = left - 2 * center + right;
+      if (denominator >= 0) {
+         return 0.0; // not a maximum
+      }
+      double offset = 0.5 * (left - right) / denominator;
+      return Math.max(-0.5, Math.min(0.5, offset));
+   }
+
+   private int wrapIndex(int x, int y) {
+      int w = fft_.getWidth();
+      int h = fft_.getHeight();
+      x = ((x % w) + w) % w;
+      y = ((y % h) + h) % h;
+      return y * w + x;
+   }
+
+   /**
+    * Copies the grown ROI into the transform buffers, subtracts the mean,
+    * applies the window function and transforms.  Pixels outside the image
+    * and in the padding are set to zero (i.e. to the mean).
+    */
+   private void loadWindow(float[] pixels, int imageWidth, int imageHeight,
+           double[] re, double[] im) {
+      int x0 = roi_.x - maxShift_;
+      int y0 = roi_.y - maxShift_;
+
+      double sum = 0.0;
+      int count = 0;
+      for (int y = Math.max(0, y0); y < Math.min(imageHeight, y0 + regionHeight_); y++) {
+         for (int x = Math.max(0, x0); x < Math.min(imageWidth, x0 + regionWidth_); x++) {
+            sum += pixels[y * imageWidth + x];
+            count++;
+         }
+      }
+      double mean = count > 0 ? sum / count : 0.0;
+
+      java.util.Arrays.fill(re, 0.0);
+      java.util.Arrays.fill(im, 0.0);
+      int fftWidth = fft_.getWidth();
+      for (int y = 0; y < regionHeight_; y++) {
+         int imY = y0 + y;
+         if (imY < 0 || imY >= imageHeight) {
+            continue;
+         }
+         for (int x = 0; x < regionWidth_; x++) {
+            int imX = x0 + x;
+            if (imX < 0 || imX >= imageWidth) {
+               continue;
+            }
+            re[y * fftWidth + x] = (pixels[imY * imageWidth + imX] - mean)
+                    * hann_[y * regionWidth_ + x];
+         }
+      }
+      fft_.forward(re, im);
+   }
+}
@@ -28,6 +28,7 @@ import ij.ImagePlus;
 import ij.ImageStack;
 import ij.gui.ImageWindow;
 import ij.gui.Roi;
+import ij.plugin.frame.RoiManager;
 import ij.process.ImageProcessor;
 
 import java.awt.Rectangle;
@@ -37,7 +38,9 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.Insets;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.GregorianCalendar;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.prefs.Preferences;
 
@@ -71,21 +74,21 @@ public class TrackerControl extends MMFrame implements MMPlugin {
    private JTextField rootField_;
    private final ButtonGroup buttonGroup = new ButtonGroup();
    private static final long serialVersionUID = 1L;
-   private JTextField resField_;
    private JTextField offsetField_;
    private JTextField pixelSizeField_;
    private JTextField intervalField_;
    private ScriptInterface app_;
    private int intervalMs_ = 1000;
    private double pixelSizeUm_ = 1.0;
-   private int resolutionPix_ = 5;
    private int offsetPix_ = 100;
    private Timer timer_;
    private float[] pixelsPrev_ = null;
    private float[] pixelsCur_ = null;
    private int imWidth_ = 0;
+   private int imHeight_ = 0;
    private String stage_ = "XYStage";
    private Roi roi_;
+   private MultiRoiTracker tracker_;
    private ImageStack corrStack_;
    private ImagePlus corrImplus_;
    private boolean mirrorX_ = false;
@@ -100,7 +103,6 @@ public class TrackerControl extends MMFrame implements MMPlugin {
    private String acqName_;
    private XYSeries xySeries_;
 
-   private static final String RESOLUTION_PIX = "resolution_pix";
    private static final String OFFSET_PIX = "offset_pix";
    private static final String INTERVAL_MS = "interval_pix";
    private static final String DISK_RECORDING = "disk_recording";
@@ -190,14 +192,12 @@ public class TrackerControl extends MMFrame implements MMPlugin {
       addWindowListener(new WindowAdapter() {
          @Override
          public void windowOpened(WindowEvent e) {
-            resolutionPix_ = prefs_.getInt(RESOLUTION_PIX, resolutionPix_);
             offsetPix_ = prefs_.getInt(OFFSET_PIX, offsetPix_);
             intervalMs_ = prefs_.getInt(INTERVAL_MS, intervalMs_);
             diskRadioButton_.setSelected(prefs_.getBoolean(DISK_RECORDING, diskRadioButton_.isSelected()));
             rootField_.setText(prefs_.get(ROOT, ""));
             nameField_.setText(prefs_.get(NAME, ""));
 
-            resField_.setText(Integer.toString(resolutionPix_));
             offsetField_.setText(Integer.toString(offsetPix_));
             pixelSizeField_.setText(Double.toString(pixelSizeUm_));
             intervalField_.setText(Integer.toString(intervalMs_));
@@ -205,7 +205,6 @@ public class TrackerControl extends MMFrame implements MMPlugin {
 
          @Override
          public void windowClosing(final WindowEvent e) {
-            prefs_.putInt(RESOLUTION_PIX, resolutionPix_);
             prefs_.putInt(OFFSET_PIX, offsetPix_);
             prefs_.putInt(INTERVAL_MS, intervalMs_);
             prefs_.putBoolean(DISK_RECORDING, diskRadioButton_.isSelected());
@@ -235,7 +234,6 @@ public class TrackerControl extends MMFrame implements MMPlugin {
             intervalMs_ = Integer.parseInt(intervalField_.getText());
             pixelSizeUm_ = Double.parseDouble(pixelSizeField_.getText());
             offsetPix_ = Integer.parseInt(offsetField_.getText());
-            resolutionPix_ = Integer.parseInt(resField_.getText());
             pixelsPrev_ = null;
             pixelsCur_ = null;
             timer_.setDelay(intervalMs_);
@@ -264,15 +262,6 @@ public class TrackerControl extends MMFrame implements MMPlugin {
       offsetField_.setBounds(140, 30, 93, 19);
       getContentPane().add(offsetField_);
 
-      final JLabel resolutionpixelsLabel = new JLabel();
-      resolutionpixelsLabel.setText("Resolution [pixels]");
-      resolutionpixelsLabel.setBounds(140, 55, 129, 14);
-      getContentPane().add(resolutionpixelsLabel);
-
-      resField_ = new JTextField();
-      resField_.setBounds(140, 75, 93, 19);
-      getContentPane().add(resField_);
-
       final JButton stopButton = new JButton();
       stopButton.addActionListener(new ActionListener() {
          @Override
@@ -434,15 +423,36 @@ public class TrackerControl extends MMFrame implements MMPlugin {
          return;
       }
 
+      // Rectangles in the ROI Manager are all tracked, otherwise the ROI
+      // of the Snap/Live window is used
+      List<Rectangle> rects = new ArrayList<Rectangle>();
+      RoiManager roiManager = RoiManager.getInstance();
+      if (roiManager != null) {
+         for (Roi roi : roiManager.getRoisAsArray()) {
+            if (roi.getType() == Roi.RECTANGLE) {
+               rects.add(roi.getBounds());
+            }
+         }
+      }
       roi_ = implus.getRoi();
-      if (roi_ == null || roi_.getType() != Roi.RECTANGLE) {
-         app_.showError("Rectangular roi required.", this);
-         return;
+      if (rects.isEmpty()) {
+         if (roi_ == null || roi_.getType() != Roi.RECTANGLE) {
+            app_.showError("Rectangular roi required.", this);
+            return;
+         }
+         rects.add(roi_.getBounds());
+      } else if (roi_ == null || roi_.getType() != Roi.RECTANGLE) {
+         roi_ = new Roi(rects.get(0));
       }
 
+      if (tracker_ != null) {
+         tracker_.shutdown();
+      }
+      tracker_ = new MultiRoiTracker(rects, offsetPix_);
+
       // Set up new ImageJ window to display the correlation image
-      int kCount = 2 * offsetPix_ / resolutionPix_;
-      int lCount = 2 * offsetPix_ / resolutionPix_;
+      int kCount = 2 * offsetPix_;
+      int lCount = 2 * offsetPix_;
       corrStack_ = new ij.ImageStack(lCount, kCount);
       ImageProcessor corrImproc = new ij.process.FloatProcessor(lCount, kCount);
       corrStack_.addSlice(corrImproc);
@@ -475,6 +485,10 @@ public class TrackerControl extends MMFrame implements MMPlugin {
       app_.logMessage("Tracking stopped at " + GregorianCalendar.getInstance().getTime());
       timer_.stop();
       roi_ = null;
+      if (tracker_ != null) {
+         tracker_.shutdown();
+         tracker_ = null;
+      }
    }
 
    private TaggedImage snapSingleImage() {
@@ -492,18 +506,19 @@ public class TrackerControl extends MMFrame implements MMPlugin {
                pixelsCur_ = new float[size];
                byte[] pixels = (byte[])img.pix;
                for (int i = 0; i < size; i++)
-                  pixelsCur_[i] = pixels[i];
+                  pixelsCur_[i] = pixels[i] & 0xff;
             }
             if (ip instanceof ij.process.ShortProcessor) {
                pixelsCur_ = new float[size];
                short[] pixels = (short[])img.pix;
                for (int i = 0; i < size; i++)
-                  pixelsCur_[i] = pixels[i];
+                  pixelsCur_[i] = pixels[i] & 0xffff;
             }
             if (ip instanceof ij.process.FloatProcessor) {
                pixelsCur_ = java.util.Arrays.copyOf((float[])img.pix, size);
             }
             imWidth_ = ip.getWidth();
+            imHeight_ = ip.getHeight();
          }
          return img;
       } catch (Exception e) {
@@ -522,14 +537,10 @@ public class TrackerControl extends MMFrame implements MMPlugin {
          return;
       }
 
-      int kCount = 2 * offsetPix_ / resolutionPix_;
-      int lCount = 2 * offsetPix_ / resolutionPix_;
-      ImageProcessor corrImproc = new ij.process.FloatProcessor(lCount, kCount);
-      corrStack_.addSlice(corrImproc);
-
-      // position of correlation maximum
-      int kMax = 0;
-      int lMax = 0;
+      MultiRoiTracker tracker = tracker_;
+      if (tracker == null) {
+         return;
+      }
 
       Rectangle r = roi_.getBounds();
       try {
@@ -538,47 +549,24 @@ public class TrackerControl extends MMFrame implements MMPlugin {
       } catch (MMScriptException mex) {
          app_.showError("Failed to set new ROI", this);
       }
-      //IJ.write("ROI pos: " + r.x + "," + r.y);
-
-      int width = r.width, height = r.height;
-      double corScale = width * height;
-
-      double maxCor = 0;
-      for (int k=-offsetPix_; k<offsetPix_; k += resolutionPix_) {
-         for (int l=-offsetPix_; l<offsetPix_; l += resolutionPix_) {
-
-            // calculate correlation
-            double sum = 0.0;
-            double meanPrev = 0.0;
-            double meanCur = 0.0;
-            for (int i = 0; i < height; i++) {
-               for (int j = 0; j < width; j++) {
-                  int row = r.y + i;
-                  int col = r.x + j;
-                  double pixPrev = pixelsPrev_[row * imWidth_ + col];
-                  double pixCur = pixelsCur_[(row + k) * imWidth_ + (col + l)];
-                  sum += pixPrev * pixCur;
-                  meanPrev += pixPrev;
-                  meanCur += pixCur;
-               }
-            }
-            sum /= corScale;
-            meanPrev /= corScale;
-            meanCur /= corScale;
-            sum /= meanPrev*meanCur;
-
-            int x = (l + offsetPix_) / resolutionPix_;
-            int y = (k + offsetPix_) / resolutionPix_;
-            corrImproc.setf(x + lCount * y, (float) sum);
-
-            // check for max value
-            if (sum > maxCor) {
-               maxCor = sum;
-               kMax = k;
-               lMax = l;
-            }
-         }
+
+      // shift of the image content, in pixels
+      List<PhaseCorrelator.Shift> shifts;
+      try {
+         shifts = tracker.track(pixelsPrev_, pixelsCur_, imWidth_, imHeight_);
+      } catch (Exception ex) {
+         app_.showError(ex, "Problem while tracking", this);
+         timer_.stop();
+         return;
       }
+      PhaseCorrelator.Shift shift = MultiRoiTracker.combine(shifts);
+      double lMax = shift.dx;
+      double kMax = shift.dy;
+
+      int corrSize = 2 * offsetPix_;
+      ImageProcessor corrImproc = new ij.process.FloatProcessor(corrSize, corrSize);
+      tracker.getCorrelator(0).getCorrelationMap((float[]) corrImproc.getPixels());
+      corrStack_.addSlice(corrImproc);
 
       if (corrImplus_ == null) {
          corrImplus_ = new ij.ImagePlus("Cross Correlation", corrStack_);
@@ -589,7 +577,6 @@ public class TrackerControl extends MMFrame implements MMPlugin {
          corrImplus_.updateAndRepaintWindow();
       }
 
-      //IJ.write("maxc=" + maxCor + ", offset=(" + lMax + "," + kMax + ")");
       pixelsPrev_ = pixelsCur_;
 
       // offset in um
@@ -653,8 +640,15 @@ public class TrackerControl extends MMFrame implements MMPlugin {
             timer_.stop();
          } // relative motion
       } else {
-         // move the roi
-         roi_.setLocation(r.x + lMax, r.y + kMax);
+         // move the rois
+         roi_.setLocation(r.x + (int) Math.round(lMax),
+                 r.y + (int) Math.round(kMax));
+         for (int i = 0; i < tracker.getRoiCount(); i++) {
+            PhaseCorrelator correlator = tracker.getCorrelator(i);
+            Rectangle cr = correlator.getRoi();
+            correlator.setLocation(cr.x + (int) Math.round(shifts.get(i).dx),
+                    cr.y + (int) Math.round(shifts.get(i).dy));
+         }
 
          try {
             app_.getAcquisition(acqName_).getAcquisitionWindow().
@@ -232,7 +232,7 @@ public class AcquisitionWrapperEngineAdapter extends AcquisitionWrapperEngine {
                     //So that display doesnt show a position scrollbar when imaging finished
                     JSONObject newTags = null;
                     try {
-                        newTags = new JSONObject(super.getLastImageTags().toString());
+                        newTags = super.getLastImageTags().copy();
                         MDUtils.setPositionIndex(newTags, 0);
                     } catch (JSONException ex) {
                         ReportingUtils.showError("Unexpected JSON Error");
@@ -477,7 +477,7 @@ public class DisplayPlus implements ImageCacheListener {
     public void imageReceived(TaggedImage taggedImage) {
         try {
             //duplicate so image storage doesnt see incorrect tags
-            JSONObject newTags = new JSONObject(taggedImage.tags.toString());
+            JSONObject newTags = taggedImage.tags.copy();
             MDUtils.setPositionIndex(newTags, 0);
             taggedImage = new TaggedImage(taggedImage.pix, newTags);
         } catch (JSONException ex) {
@@ -38,11 +38,7 @@ public class DynamicStitchingImageStorage {
       xOverlap_ = SettingsDialog.getXOverlap();
       yOverlap_ = SettingsDialog.getYOverlap();
       imageKeys_ = new TreeSet<String>();
-      try {
-         summaryMetadata_ = new JSONObject(summaryMetadata.toString());
-      } catch (JSONException ex) {
-         ReportingUtils.showError("Couldn't copy summary MD");
-      }
+      summaryMetadata_ = summaryMetadata.copy();
 
       try {
          if (savingDir == null) {
@@ -149,7 +145,7 @@ public class DynamicStitchingImageStorage {
       try {
          if (storage_ instanceof TaggedImageStorageRam) {
             //make copy so original image tags are unaffected
-            tags = new JSONObject(tags.toString()); 
+            tags = tags.copy(); 
          }
          tags.put("Width", width_);
          tags.put("Height", height_);
@@ -14,20 +14,18 @@ import ij.gui.TextRoi;
 import java.awt.Color;
 import java.awt.Font;
 import java.awt.Point;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.ArrayList;
 import java.util.LinkedList;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import javax.swing.JOptionPane;
+import java.util.concurrent.atomic.AtomicBoolean;
 import mmcorej.MMCoreJ;
 import mmcorej.TaggedImage;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.MMStudio;
+import org.micromanager.acquisition.TaggedImageStorageMultipageTiff;
 import org.micromanager.imagedisplay.VirtualAcquisitionDisplay;
 import org.micromanager.api.ImageCache;
+import org.micromanager.api.ImageCacheListener;
 import org.micromanager.utils.GUIUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
@@ -49,14 +47,10 @@ public class AcquisitionStitcher {
    private ImageWindow imageWindow_;
 
    private boolean invertX_, invertY_, swapXandY_;
-   private boolean drawPosNames_, showGrid_;
-   private int numCols_, numRows_;
+   private boolean drawPosNames_, showGrid_, blend_;
    private int oldImageWidth_, oldImageHeight_, newImageWidth_ = -1, newImageHeight_ = -1;
-   private double pixelSize_ = 0;
-   private Comparator gridSorter_;
    private double stitchedWindowZoom_ = 1;
    private Point stitchedWindowLocation_ = null;
-   private JSONArray posList_;
 
    
     public AcquisitionStitcher() {
@@ -71,9 +65,11 @@ public class AcquisitionStitcher {
        }
     }
 
-   public void setStitchParameters(boolean drawPosNames, boolean showGrid, VirtualAcquisitionDisplay display) {
+   public void setStitchParameters(boolean drawPosNames, boolean showGrid, boolean blend,
+           VirtualAcquisitionDisplay display) {
       drawPosNames_ = drawPosNames;
       showGrid_ = showGrid;
+      blend_ = blend;
       display_ = display;
       cache_ = display_.getImageCache();
    }
@@ -102,75 +98,89 @@ public class AcquisitionStitcher {
          }
          gui_.openAcquisition(ACQ_NAME, "", 1, cache_.getNumDisplayChannels(), display_.getNumSlices(), true, false);
 
-
-         for (int slice = 0; slice < display_.getNumSlices(); slice++) {
-            for (int channel = 0; channel < cache_.getNumDisplayChannels(); channel++) {
-               LinkedList<TaggedImage> batch = new LinkedList<TaggedImage>();
-               for (int position = 0; position < display_.getNumPositions(); position++) {
-                  batch.add(cache_.getImage(channel, slice, frameIndex, position));
+         TileStitcher stitcher;
+         try {
+            stitcher = createStitcher(cache_.getSummaryMetadata(), new TileStitcher.Sink() {
+               @Override
+               public void planeStitched(TaggedImage plane) throws Exception {
+                  gui_.getAcquisition(ACQ_NAME).insertImage(plane.pix, 0,
+                          MDUtils.getChannelIndex(plane.tags), MDUtils.getSliceIndex(plane.tags));
                }
-               if (channel == 0 && slice == 0) {
-                  try {
-                     calcGridDimensions(batch, cache_.getSummaryMetadata());
+            });
+         } catch (JSONException ex) {
+            ReportingUtils.showError("Couldn't calc grid dimensions");
+            return;
+         }
+         newImageWidth_ = stitcher.getWidth();
+         newImageHeight_ = stitcher.getHeight();
+         Object pix = cache_.getImage(0, 0, frameIndex, 0).pix;
+         int byteDepth = pix instanceof short[] ? 2 : (pix instanceof int[] ? 4 : 1);
 
-                     gui_.initializeAcquisition(ACQ_NAME, newImageWidth_, newImageHeight_, 1,8);
-                     gui_.getAcquisition(ACQ_NAME).getAcquisitionWindow().promptToSave(false);
-                     imageWindow_ = gui_.getAcquisition(ACQ_NAME).getAcquisitionWindow().getHyperImage().getWindow();
+         gui_.initializeAcquisition(ACQ_NAME, newImageWidth_, newImageHeight_, byteDepth, cache_.getBitDepth());
+         gui_.getAcquisition(ACQ_NAME).getAcquisitionWindow().promptToSave(false);
+         imageWindow_ = gui_.getAcquisition(ACQ_NAME).getAcquisitionWindow().getHyperImage().getWindow();
 
 
-                     //add windowclosing listener to record zoom and position
-                     if (stitchedWindowLocation_ == null) { //only need to add this listener once
-                        gui_.getAcquisition(ACQ_NAME).getAcquisitionWindow().getImagePlus().addImageListener(new ImageListener() {
+         //add windowclosing listener to record zoom and position
+         if (stitchedWindowLocation_ == null) { //only need to add this listener once
+            gui_.getAcquisition(ACQ_NAME).getAcquisitionWindow().getImagePlus().addImageListener(new ImageListener() {
 
-                           public void imageOpened(ImagePlus ip) {
-                           }
+               public void imageOpened(ImagePlus ip) {
+               }
 
-                           public void imageUpdated(ImagePlus ip) {
-                           }
+               public void imageUpdated(ImagePlus ip) {
+               }
 
-                           public void imageClosed(ImagePlus ip) {
-                              stitchedWindowLocation_ = imageWindow_.getLocation();
-                              stitchedWindowZoom_ = imageWindow_.getCanvas().getMagnification();
+               public void imageClosed(ImagePlus ip) {
+                  stitchedWindowLocation_ = imageWindow_.getLocation();
+                  stitchedWindowZoom_ = imageWindow_.getCanvas().getMagnification();
 
-                           }
-                        });
-                     }
+               }
+            });
+         }
 
 
-                     try {
+         try {
 
-                        if (stitchedWindowLocation_ != null) {
-                           ImageWindow win = gui_.getAcquisition(ACQ_NAME).getAcquisitionWindow().getImagePlus().getWindow();
-                           win.setLocation(stitchedWindowLocation_);
+            if (stitchedWindowLocation_ != null) {
+               ImageWindow win = gui_.getAcquisition(ACQ_NAME).getAcquisitionWindow().getImagePlus().getWindow();
+               win.setLocation(stitchedWindowLocation_);
 
-                           //Apply same 
-                           ImageCanvas canvas = win.getCanvas();
-                           if (stitchedWindowZoom_ < canvas.getMagnification()) {
-                              while (stitchedWindowZoom_ < canvas.getMagnification()) {
-                                 canvas.zoomOut(canvas.getWidth() / 2, canvas.getHeight() / 2);
-                              }
-                           } else if (stitchedWindowZoom_ > canvas.getMagnification()) {
-                              while (stitchedWindowZoom_ > canvas.getMagnification()) {
-                                 canvas.zoomIn(canvas.getWidth() / 2, canvas.getHeight() / 2);
-                              }
-                           }
-                        }
+               //Apply same 
+               ImageCanvas canvas = win.getCanvas();
+               if (stitchedWindowZoom_ < canvas.getMagnification()) {
+                  while (stitchedWindowZoom_ < canvas.getMagnification()) {
+                     canvas.zoomOut(canvas.getWidth() / 2, canvas.getHeight() / 2);
+                  }
+               } else if (stitchedWindowZoom_ > canvas.getMagnification()) {
+                  while (stitchedWindowZoom_ > canvas.getMagnification()) {
+                     canvas.zoomIn(canvas.getWidth() / 2, canvas.getHeight() / 2);
+                  }
+               }
+            }
 
 
-                     } catch (Exception e) {
-                        ReportingUtils.showError("Couldnt re use stitched window settings");
-                     }
+         } catch (Exception e) {
+            ReportingUtils.showError("Couldnt re use stitched window settings");
+         }
 
-                  } catch (JSONException ex) {
-                     ReportingUtils.showError("Couldn't calc grid dimensions");
+         //all channels and slices are stitched in parallel
+         LinkedList<TaggedImage> firstPlaneTiles = new LinkedList<TaggedImage>();
+         for (int slice = 0; slice < display_.getNumSlices(); slice++) {
+            for (int channel = 0; channel < cache_.getNumDisplayChannels(); channel++) {
+               for (int position = 0; position < display_.getNumPositions(); position++) {
+                  TaggedImage tile = cache_.getImage(channel, slice, frameIndex, position);
+                  stitcher.addTile(tile);
+                  if (channel == 0 && slice == 0 && tile != null) {
+                     firstPlaneTiles.add(tile);
                   }
                }
-               gui_.getAcquisition(ACQ_NAME).insertImage(stitchBatch(batch), 0, channel, slice);
-               //Add overlay
-               addPositionNameAndGridOverlay(batch);
-
             }
          }
+         stitcher.finish();
+         //Add overlay
+         addPositionNameAndGridOverlay(stitcher, firstPlaneTiles);
+
          GUIUtils.invokeAndWait(new Runnable() {
 
             @Override
@@ -194,20 +204,80 @@ public class AcquisitionStitcher {
 
    }
 
-   private Object stitchBatch(LinkedList<TaggedImage> batch) {
-      if (gridSorter_ == null) {
-         gridSorter_ = makeGridSorter();
+   /**
+    * Stitches every time point of the acquisition into a new data set in dir,
+    * writing each stitched plane to disk as soon as its tiles are in. If the
+    * acquisition is still running, tiles are stitched as they arrive and the
+    * data set is closed and opened when the acquisition ends.
+    */
+   public void stitchToDisk(String dir) {
+      final ImageCache cache = cache_;
+      final AtomicBoolean finished = new AtomicBoolean(false);
+      final TiffSink sink = new TiffSink(dir, cache.getSummaryMetadata());
+      final TileStitcher stitcher;
+      try {
+         stitcher = createStitcher(cache.getSummaryMetadata(), sink);
+      } catch (JSONException ex) {
+         ReportingUtils.showError("Couldn't calc grid dimensions");
+         return;
+      }
+      ImageCacheListener listener = new ImageCacheListener() {
+         @Override
+         public void imageReceived(TaggedImage taggedImage) {
+            stitcher.addTile(taggedImage);
+         }
+
+         @Override
+         public void imagingFinished(String path) {
+            cache.removeImageCacheListener(this);
+            new Thread(new Runnable() {
+               @Override
+               public void run() {
+                  finishStitchToDisk(stitcher, sink, finished);
+               }
+            }, "Stitch to disk").start();
+         }
+      };
+      //listen first, so that no tile is missed; tiles added twice are ignored
+      boolean acquiring = !cache.isFinished();
+      if (acquiring) {
+         cache.addImageCacheListener(listener);
+      }
+      for (String label : new ArrayList<String>(cache.imageKeys())) {
+         int[] indices = MDUtils.getIndices(label);
+         stitcher.addTile(cache.getImage(indices[0], indices[1], indices[2], indices[3]));
+      }
+      if (!acquiring) {
+         finishStitchToDisk(stitcher, sink, finished);
+      }
+   }
+
+   private void finishStitchToDisk(TileStitcher stitcher, TiffSink sink, AtomicBoolean finished) {
+      if (finished.getAndSet(true)) {
+         return;
       }
-      Collections.sort(batch, gridSorter_);
-      if (batch.getFirst().pix instanceof short[]) {
-         JOptionPane.showMessageDialog(null, "Henry hasn't added support for stitching of images with more than "
-                 + "8 bits per pixel because no one has needed it yet. Go talk to him and he will add this");
+      stitcher.finish();
+      if (sink.close()) {
+         try {
+            gui_.openAcquisitionData(sink.getDirectory(), false);
+         } catch (MMScriptException ex) {
+            ReportingUtils.showError(ex, "Couldn't open stitched data");
+         }
       }
+   }
 
-      return stitchPixelsNoOverlap(batch);
+   private TileStitcher createStitcher(JSONObject summaryMD, TileStitcher.Sink sink) throws JSONException {
+      oldImageWidth_ = MDUtils.getWidth(summaryMD);
+      oldImageHeight_ = MDUtils.getHeight(summaryMD);
+      //overlaps are recorded by AcquisitionWrapperEngineAdapter
+      int xOverlap = summaryMD.has("GridPixelOverlapX") ? summaryMD.getInt("GridPixelOverlapX") : 0;
+      int yOverlap = summaryMD.has("GridPixelOverlapY") ? summaryMD.getInt("GridPixelOverlapY") : 0;
+      return new TileStitcher(summaryMD.getJSONArray("InitialPositionList"), oldImageWidth_,
+              oldImageHeight_, xOverlap, yOverlap, blend_, sink);
    }
 
-   private void addPositionNameAndGridOverlay(LinkedList<TaggedImage> batch) throws MMScriptException, JSONException {
+   private void addPositionNameAndGridOverlay(TileStitcher stitcher, LinkedList<TaggedImage> tiles)
+           throws MMScriptException, JSONException {
       if (!drawPosNames_ && !showGrid_) {
          return;
       }
@@ -215,25 +285,26 @@ public class AcquisitionStitcher {
       if (drawPosNames_) {
          TextRoi.setFont(Font.SANS_SERIF, 30, Font.BOLD);
          TextRoi.setColor(Color.white);
-         for (int x = 0; x < numCols_; x++) {
-            for (int y = 0; y < numRows_; y++) {
-               String posName = batch.get(x + y * numCols_).tags.getString("PositionName");
-               TextRoi text = new TextRoi(newImageWidth_ / numCols_ * x + 0.4 * oldImageWidth_,
-                       newImageHeight_ / numRows_ * y + 0.45 * oldImageHeight_, posName);
-               overlay.add(text);
-            }
+         for (TaggedImage tile : tiles) {
+            int position = MDUtils.getPositionIndex(tile.tags);
+            String posName = tile.tags.getString("PositionName");
+            TextRoi text = new TextRoi(stitcher.getTileX(stitcher.getColumn(position)) + 0.4 * oldImageWidth_,
+                    stitcher.getTileY(stitcher.getRow(position)) + 0.45 * oldImageHeight_, posName);
+            overlay.add(text);
          }
       }
 
       if (showGrid_) {
-         //draw vertical lines
-         for (int i = 1; i < numCols_; i++) {
-            Line l = new Line(oldImageWidth_ * i, 0, oldImageWidth_ * i, newImageHeight_);
+         //draw vertical lines, in the middle of the overlaps
+         for (int i = 1; i < stitcher.getNumColumns(); i++) {
+            int x = (stitcher.getTileX(i - 1) + oldImageWidth_ + stitcher.getTileX(i)) / 2;
+            Line l = new Line(x, 0, x, newImageHeight_);
             overlay.add(l);
          }
          //draw horizontal lines
-         for (int i = 1; i < numRows_; i++) {
-            Line l = new Line(0, oldImageHeight_ * i, newImageWidth_, oldImageHeight_ * i);
+         for (int i = 1; i < stitcher.getNumRows(); i++) {
+            int y = (stitcher.getTileY(i - 1) + oldImageHeight_ + stitcher.getTileY(i)) / 2;
+            Line l = new Line(0, y, newImageWidth_, y);
             overlay.add(l);
          }
 
@@ -242,80 +313,47 @@ public class AcquisitionStitcher {
 
    }
 
-   private byte[] stitchPixelsNoOverlap(LinkedList<TaggedImage> batch) {
-      byte[] newPixels = new byte[oldImageHeight_ * oldImageWidth_ * numCols_ * numRows_];
-      for (int line = 0; line < (numCols_ * numRows_) * (oldImageHeight_); line++) {
-         int gridX = line % numCols_;
-         int gridY = (line / numCols_) / oldImageHeight_;
-         int oldImageLineNumber = (line / numCols_) % oldImageHeight_;
-         int tileIndex = gridY * numCols_ + gridX;
-         if (batch.get(tileIndex).pix == null) {
-            return null;
+   /**
+    * Writes stitched planes to a multipage TIFF data set, which is made when
+    * the first plane comes in.
+    */
+   static class TiffSink implements TileStitcher.Sink {
+
+      private final String dir_;
+      private final JSONObject summaryMD_;
+      private TaggedImageStorageMultipageTiff storage_;
+
+      TiffSink(String dir, JSONObject summaryMD) {
+         dir_ = dir;
+         summaryMD_ = summaryMD;
+      }
+
+      @Override
+      public void planeStitched(TaggedImage plane) throws Exception {
+         if (storage_ == null) {
+            JSONObject summary = summaryMD_.copy();
+            summary.put("Positions", 1);
+            summary.put("Width", MDUtils.getWidth(plane.tags));
+            summary.put("Height", MDUtils.getHeight(plane.tags));
+            storage_ = new TaggedImageStorageMultipageTiff(dir_, true, summary, false, true, false);
          }
-         System.arraycopy(batch.get(tileIndex).pix, oldImageLineNumber * oldImageWidth_,
-                 newPixels, line * oldImageWidth_, oldImageWidth_);
+         storage_.putImage(plane);
       }
-      return newPixels;
-   }
 
-    private void calcGridDimensions(LinkedList<TaggedImage> batch, JSONObject summaryMD) throws JSONException {
-        numCols_ = 0;
-        numRows_ = 0;
-        oldImageWidth_ = MDUtils.getWidth(batch.getFirst().tags);
-        oldImageHeight_ = MDUtils.getHeight(batch.getFirst().tags);
-        pixelSize_ = batch.getFirst().tags.getDouble("PixelSizeUm");
-        try {
-            posList_ = summaryMD.getJSONArray("InitialPositionList");
-           //get grid parameters
-           for (int i = 0; i < posList_.length(); i++) {
-              long colInd = posList_.getJSONObject(i).getLong("GridColumnIndex");
-              long rowInd = posList_.getJSONObject(i).getLong("GridRowIndex");
-              if (colInd >= numCols_) {
-                 numCols_ = (int) (colInd + 1);
-              }
-              if (rowInd >= numRows_) {
-                 numRows_ = (int) (rowInd + 1);
-              }
-           }
-            
-//            if (swapXandY_) {
-//                int temp = numRows_;
-//                numRows_ = numCols_;
-//                numCols_ = temp;
-//            }
-        } catch (Exception ex) {
-            ReportingUtils.showError("Couldn't get grid size position list");
-        }
-        newImageWidth_ = numCols_ * oldImageWidth_;
-        newImageHeight_ = numRows_ * oldImageHeight_;
-    }
+      String getDirectory() {
+         return dir_;
+      }
 
-    //sort left to right, top to bottom
-    private Comparator<TaggedImage> makeGridSorter() {
-        return new Comparator<TaggedImage>() {
-            @Override
-            public int compare(TaggedImage img1, TaggedImage img2) {
-                try {
-                    int pos1 = MDUtils.getPositionIndex(img1.tags);
-                    int pos2 = MDUtils.getPositionIndex(img2.tags);
-
-                    int row1 = (int) posList_.getJSONObject(pos1).getLong("GridRowIndex");
-                    int row2 = (int) posList_.getJSONObject(pos2).getLong("GridRowIndex");
-                    int col1 = (int) posList_.getJSONObject(pos1).getLong("GridColumnIndex");
-                    int col2 = (int) posList_.getJSONObject(pos2).getLong("GridColumnIndex");
-
-                    if (row1 != row2) {
-                        return row1 - row2;
-                    }
-                    return col1 - col2;
-
-                } catch (JSONException ex) {
-                    ReportingUtils.showError("couldnt sort tile coordinates");
-                    return 0;
-                }
-            }
-        };
-    }
+      //returns false if nothing was written
+      boolean close() {
+         if (storage_ == null) {
+            return false;
+         }
+         storage_.finished();
+         storage_.close();
+         return true;
+      }
+   }
 
     
 //    private Comparator<TaggedImage> makeGridSorter() {
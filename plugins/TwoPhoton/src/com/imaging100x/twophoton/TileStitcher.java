@@ -0,0 +1,429 @@
+package com.imaging100x.twophoton;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import mmcorej.TaggedImage;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.micromanager.utils.MDUtils;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Stitches the tiles of a multi-position grid into one image per channel,
+ * slice and frame, placing each tile as soon as it is added. Tiles of
+ * different planes are placed in parallel; a plane is passed to the sink,
+ * and forgotten, as soon as all of its tiles are in.
+ *
+ * Neighbouring tiles overlap by a fixed number of pixels. Without blending,
+ * each tile covers half of every overlap it shares; with blending, the tiles
+ * are faded linearly into each other across the overlap. Blending is done
+ * for 8- and 16-bit images only.
+ */
+public class TileStitcher {
+
+   /**
+    * Receives the stitched planes. Calls are never made at the same time.
+    */
+   public interface Sink {
+      public void planeStitched(TaggedImage plane) throws Exception;
+   }
+
+   private final int tileWidth_, tileHeight_;
+   private final int xOverlap_, yOverlap_;
+   private final boolean blend_;
+   private final int numCols_, numRows_;
+   private final int width_, height_;
+   //grid column and row of each position index
+   private final int[] tileCols_, tileRows_;
+   private final boolean[][] occupied_;
+   private final Sink sink_;
+   private final ExecutorService executor_;
+   //planes with tiles still to come, and labels of those already written
+   private final Map<String, Plane> planes_ = new HashMap<String, Plane>();
+   private final Set<String> written_ = new HashSet<String>();
+   private boolean finished_ = false;
+
+   /**
+    * @param positionList the "InitialPositionList" of the summary metadata,
+    * with the grid column and row of every position
+    * @param xOverlap pixels shared by horizontally neighbouring tiles
+    * @param yOverlap pixels shared by vertically neighbouring tiles
+    * @param blend true to fade tiles into each other across the overlaps
+    */
+   public TileStitcher(JSONArray positionList, int tileWidth, int tileHeight,
+           int xOverlap, int yOverlap, boolean blend, Sink sink) throws JSONException {
+      if (xOverlap < 0 || yOverlap < 0 || 2 * xOverlap > tileWidth || 2 * yOverlap > tileHeight) {
+         throw new IllegalArgumentException("Overlap of " + xOverlap + "x" + yOverlap
+                 + " pixels does not fit " + tileWidth + "x" + tileHeight + " tiles");
+      }
+      tileWidth_ = tileWidth;
+      tileHeight_ = tileHeight;
+      xOverlap_ = xOverlap;
+      yOverlap_ = yOverlap;
+      blend_ = blend && (xOverlap > 0 || yOverlap > 0);
+      sink_ = sink;
+
+      int numPositions = positionList.length();
+      tileCols_ = new int[numPositions];
+      tileRows_ = new int[numPositions];
+      int cols = 0, rows = 0;
+      for (int i = 0; i < numPositions; i++) {
+         tileCols_[i] = (int) positionList.getJSONObject(i).getLong("GridColumnIndex");
+         tileRows_[i] = (int) positionList.getJSONObject(i).getLong("GridRowIndex");
+         cols = Math.max(cols, tileCols_[i] + 1);
+         rows = Math.max(rows, tileRows_[i] + 1);
+      }
+      numCols_ = cols;
+      numRows_ = rows;
+      occupied_ = new boolean[numCols_][numRows_];
+      for (int i = 0; i < numPositions; i++) {
+         occupied_[tileCols_[i]][tileRows_[i]] = true;
+      }
+      width_ = numCols_ * (tileWidth_ - xOverlap_) + xOverlap_;
+      height_ = numRows_ * (tileHeight_ - yOverlap_) + yOverlap_;
+
+      executor_ = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+              new ThreadFactory() {
+                 @Override
+                 public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Tile stitcher");
+                    thread.setDaemon(true);
+                    return thread;
+                 }
+              });
+   }
+
+   public int getWidth() {
+      return width_;
+   }
+
+   public int getHeight() {
+      return height_;
+   }
+
+   public int getNumColumns() {
+      return numCols_;
+   }
+
+   public int getNumRows() {
+      return numRows_;
+   }
+
+   /**
+    * Returns the x coordinate of the left edge of tiles in the column.
+    */
+   public int getTileX(int column) {
+      return column * (tileWidth_ - xOverlap_);
+   }
+
+   /**
+    * Returns the y coordinate of the top edge of tiles in the row.
+    */
+   public int getTileY(int row) {
+      return row * (tileHeight_ - yOverlap_);
+   }
+
+   public int getColumn(int positionIndex) {
+      return tileCols_[positionIndex];
+   }
+
+   public int getRow(int positionIndex) {
+      return tileRows_[positionIndex];
+   }
+
+   /**
+    * Queues the tile to be placed in its plane. Tiles that were already
+    * added, or whose plane was already written, are ignored. Does not wait.
+    */
+   public void addTile(final TaggedImage tile) {
+      if (tile == null || tile.pix == null || tile.tags == null) {
+         return;
+      }
+      final int position;
+      String label;
+      try {
+         position = MDUtils.getPositionIndex(tile.tags);
+         label = MDUtils.generateLabel(MDUtils.getChannelIndex(tile.tags),
+                 MDUtils.getSliceIndex(tile.tags), MDUtils.getFrameIndex(tile.tags), 0);
+      } catch (JSONException ex) {
+         ReportingUtils.logError(ex, "Tile indices missing from image tags");
+         return;
+      }
+      if (position < 0 || position >= tileCols_.length) {
+         ReportingUtils.logError("Tile has position index " + position
+                 + ", which is not in the grid");
+         return;
+      }
+      synchronized (planes_) {
+         if (finished_ || written_.contains(label)) {
+            return;
+         }
+         Plane p = planes_.get(label);
+         if (p == null) {
+            p = new Plane(label);
+            planes_.put(label, p);
+         }
+         final Plane plane = p;
+         executor_.execute(new Runnable() {
+            @Override
+            public void run() {
+               place(plane, tile, position);
+            }
+         });
+      }
+   }
+
+   /**
+    * Waits for the added tiles to be placed, then writes the planes that are
+    * still missing tiles; their missing tiles are left black. No tiles can be
+    * added afterwards.
+    */
+   public void finish() {
+      synchronized (planes_) {
+         finished_ = true;
+      }
+      executor_.shutdown();
+      try {
+         executor_.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         return;
+      }
+      List<Plane> rest;
+      synchronized (planes_) {
+         rest = new ArrayList<Plane>(planes_.values());
+      }
+      //write in acquisition order
+      Collections.sort(rest, new Comparator<Plane>() {
+         @Override
+         public int compare(Plane p1, Plane p2) {
+            for (int i = 2; i >= 0; i--) {
+               if (p1.indices_[i] != p2.indices_[i]) {
+                  return p1.indices_[i] - p2.indices_[i];
+               }
+            }
+            return 0;
+         }
+      });
+      for (Plane plane : rest) {
+         TaggedImage stitched;
+         synchronized (plane) {
+            stitched = plane.done_ ? null : plane.finish();
+         }
+         if (stitched != null) {
+            write(plane, stitched);
+         }
+      }
+   }
+
+   private void place(Plane plane, TaggedImage tile, int position) {
+      TaggedImage stitched = null;
+      synchronized (plane) {
+         if (plane.done_ || plane.placed_[position]) {
+            return;
+         }
+         try {
+            plane.place(tile, position);
+         } catch (Exception ex) {
+            ReportingUtils.logError(ex, "Couldn't place tile " + position + " in " + plane.label_);
+            return;
+         }
+         if (plane.count_ == tileCols_.length) {
+            stitched = plane.finish();
+         }
+      }
+      if (stitched != null) {
+         write(plane, stitched);
+      }
+   }
+
+   private void write(Plane plane, TaggedImage stitched) {
+      synchronized (planes_) {
+         planes_.remove(plane.label_);
+         written_.add(plane.label_);
+      }
+      synchronized (sink_) {
+         try {
+            sink_.planeStitched(stitched);
+         } catch (Exception ex) {
+            ReportingUtils.logError(ex, "Couldn't write stitched image " + plane.label_);
+         }
+      }
+   }
+
+   private class Plane {
+      private final String label_;
+      //channel, slice, frame
+      private final int[] indices_;
+      private final boolean[] placed_ = new boolean[tileCols_.length];
+      private int count_ = 0;
+      private boolean done_ = false;
+      private Object pixels_;
+      //weighted sums of the tiles in the overlaps, when blending
+      private float[] sums_;
+      private JSONObject tags_;
+
+      Plane(String label) {
+         label_ = label;
+         indices_ = MDUtils.getIndices(label);
+      }
+
+      void place(TaggedImage tile, int position) {
+         if (pixels_ == null) {
+            pixels_ = Array.newInstance(tile.pix.getClass().getComponentType(), width_ * height_);
+            if (blend_ && (tile.pix instanceof byte[] || tile.pix instanceof short[])) {
+               sums_ = new float[width_ * height_];
+            }
+            tags_ = tile.tags;
+         }
+         if (tile.pix.getClass() != pixels_.getClass()
+                 || Array.getLength(tile.pix) != tileWidth_ * tileHeight_) {
+            throw new IllegalArgumentException("Tile is not a " + tileWidth_ + "x"
+                    + tileHeight_ + " " + pixels_.getClass().getComponentType() + " image");
+         }
+         int col = tileCols_[position];
+         int row = tileRows_[position];
+         boolean left = col > 0 && occupied_[col - 1][row];
+         boolean right = col < numCols_ - 1 && occupied_[col + 1][row];
+         boolean top = row > 0 && occupied_[col][row - 1];
+         boolean bottom = row < numRows_ - 1 && occupied_[col][row + 1];
+         int offset = getTileY(row) * width_ + getTileX(col);
+
+         if (sums_ == null) {
+            //each tile covers half of each overlap
+            int x0 = left ? xOverlap_ / 2 : 0;
+            int x1 = right ? tileWidth_ - (xOverlap_ + 1) / 2 : tileWidth_;
+            int y0 = top ? yOverlap_ / 2 : 0;
+            int y1 = bottom ? tileHeight_ - (yOverlap_ + 1) / 2 : tileHeight_;
+            copyRows(tile.pix, offset, x0, x1, y0, y1);
+         } else {
+            //the part no other tile covers is copied, the overlaps are summed
+            int x0 = left ? xOverlap_ : 0;
+            int x1 = right ? tileWidth_ - xOverlap_ : tileWidth_;
+            int y0 = top ? yOverlap_ : 0;
+            int y1 = bottom ? tileHeight_ - yOverlap_ : tileHeight_;
+            copyRows(tile.pix, offset, x0, x1, y0, y1);
+            for (int y = 0; y < tileHeight_; y++) {
+               float wy = weight(y, y0, y1, yOverlap_, tileHeight_);
+               if (y >= y0 && y < y1) {
+                  addWeighted(tile.pix, offset, y, 0, x0, wy, x0, x1);
+                  addWeighted(tile.pix, offset, y, x1, tileWidth_, wy, x0, x1);
+               } else {
+                  addWeighted(tile.pix, offset, y, 0, tileWidth_, wy, x0, x1);
+               }
+            }
+         }
+         placed_[position] = true;
+         count_++;
+      }
+
+      private void copyRows(Object pix, int offset, int x0, int x1, int y0, int y1) {
+         for (int y = y0; y < y1; y++) {
+            System.arraycopy(pix, y * tileWidth_ + x0, pixels_, offset + y * width_ + x0, x1 - x0);
+         }
+      }
+
+      private void addWeighted(Object pix, int offset, int y, int from, int to,
+              float wy, int x0, int x1) {
+         int src = y * tileWidth_;
+         int dst = offset + y * width_;
+         if (pix instanceof byte[]) {
+            byte[] p = (byte[]) pix;
+            for (int x = from; x < to; x++) {
+               sums_[dst + x] += wy * weight(x, x0, x1, xOverlap_, tileWidth_) * (p[src + x] & 0xff);
+            }
+         } else {
+            short[] p = (short[]) pix;
+            for (int x = from; x < to; x++) {
+               sums_[dst + x] += wy * weight(x, x0, x1, xOverlap_, tileWidth_) * (p[src + x] & 0xffff);
+            }
+         }
+      }
+
+      /**
+       * Returns how much the tile's pixel at i counts for: 1 outside the
+       * overlaps [0, i0) and [i1, size). The weights of the two tiles in an
+       * overlap add up to 1.
+       */
+      private float weight(int i, int i0, int i1, int overlap, int size) {
+         if (i < i0) {
+            return (i + 1) / (float) (overlap + 1);
+         }
+         if (i >= i1) {
+            return (size - i) / (float) (overlap + 1);
+         }
+         return 1;
+      }
+
+      TaggedImage finish() {
+         done_ = true;
+         if (sums_ != null) {
+            resolveOverlaps();
+         }
+         JSONObject tags;
+         try {
+            //copy, so that the tile's tags are unaffected
+            tags = tags_.copy();
+            MDUtils.setWidth(tags, width_);
+            MDUtils.setHeight(tags, height_);
+            MDUtils.setPositionIndex(tags, 0);
+            MDUtils.setPositionName(tags, "Stitched");
+         } catch (JSONException ex) {
+            ReportingUtils.logError(ex, "Problem manipulating image tags");
+            tags = tags_;
+         }
+         TaggedImage stitched = new TaggedImage(pixels_, tags);
+         pixels_ = null;
+         sums_ = null;
+         return stitched;
+      }
+
+      //writes the summed overlaps of the placed tiles into the pixels
+      private void resolveOverlaps() {
+         boolean bytes = pixels_ instanceof byte[];
+         int max = bytes ? 0xff : 0xffff;
+         for (int position = 0; position < placed_.length; position++) {
+            if (!placed_[position]) {
+               continue;
+            }
+            int col = tileCols_[position];
+            int row = tileRows_[position];
+            int x0 = col > 0 && occupied_[col - 1][row] ? xOverlap_ : 0;
+            int x1 = col < numCols_ - 1 && occupied_[col + 1][row] ? tileWidth_ - xOverlap_ : tileWidth_;
+            int y0 = row > 0 && occupied_[col][row - 1] ? yOverlap_ : 0;
+            int y1 = row < numRows_ - 1 && occupied_[col][row + 1] ? tileHeight_ - yOverlap_ : tileHeight_;
+            int offset = getTileY(row) * width_ + getTileX(col);
+            for (int y = 0; y < tileHeight_; y++) {
+               boolean inside = y >= y0 && y < y1;
+               for (int x = 0; x < tileWidth_; x++) {
+                  if (inside && x == x0) {
+                     x = x1;
+                     if (x >= tileWidth_) {
+                        break;
+                     }
+                  }
+                  int i = offset + y * width_ + x;
+                  int value = Math.min(max, (int) (sums_[i] + 0.5f));
+                  if (bytes) {
+                     ((byte[]) pixels_)[i] = (byte) value;
+                  } else {
+                     ((short[]) pixels_)[i] = (short) value;
+                  }
+               }
+            }
+         }
+      }
+   }
+}
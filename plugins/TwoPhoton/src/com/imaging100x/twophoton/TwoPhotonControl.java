@@ -132,7 +132,7 @@ private AcquisitionStitcher stitcher_ = new AcquisitionStitcher();
 private JButton stitchButton_;
 private JComboBox windowsToStitchCombo_;
 private ArrayList<VirtualAcquisitionDisplay> availableVADs_;
-private JCheckBox drawGrid_, drawPosNames_;
+private JCheckBox drawGrid_, drawPosNames_, blendOverlaps_;
    
    /**
     * File filter class for Open/Save file choosers 
@@ -395,12 +395,13 @@ private JCheckBox drawGrid_, drawPosNames_;
    }
    
    private void createStitchPanel() {
-      stitchPanel_ = createPanel("Stitch last time point", 405, 235, 650, 330);
+      stitchPanel_ = createPanel("Stitch last time point", 405, 235, 650, 385);
       stitchPanel_.setLayout(new BoxLayout(stitchPanel_, BoxLayout.Y_AXIS));
 
       JPanel row2 = new JPanel(new FlowLayout(FlowLayout.LEFT));
       drawPosNames_ = new JCheckBox("Show position names");
       drawGrid_ = new JCheckBox("Draw grid");
+      blendOverlaps_ = new JCheckBox("Blend overlaps");
       drawPosNames_.setSelected(true);
       drawGrid_.setSelected(true); 
       row2.add(drawPosNames_);
@@ -411,13 +412,9 @@ private JCheckBox drawGrid_, drawPosNames_;
       stitchButton_.addActionListener(new ActionListener() {
          @Override
          public void actionPerformed(ActionEvent e) {           
-            VirtualAcquisitionDisplay vadToStitch = null;
-            int index = windowsToStitchCombo_.getSelectedIndex();
-            if (index < availableVADs_.size()) {
-               vadToStitch = availableVADs_.get(index);
+            if (!setStitchParameters()) {
+               return;
             }
-            stitcher_.setStitchParameters(drawPosNames_.isSelected(), drawGrid_.isSelected(),
-                    vadToStitch);
             new Thread(new Runnable() {
 
                @Override
@@ -427,12 +424,52 @@ private JCheckBox drawGrid_, drawPosNames_;
             }).start();
          }
       });
+      JButton stitchToDiskButton = new JButton("Stitch to disk...");
+      stitchToDiskButton.setToolTipText("Stitch all time points into a new data set, "
+              + "as they are acquired if the acquisition is running");
+      stitchToDiskButton.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent e) {
+            if (!setStitchParameters()) {
+               return;
+            }
+            JFileChooser chooser = new JFileChooser();
+            chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+            chooser.setDialogTitle("Directory for the stitched data set");
+            if (chooser.showSaveDialog(TwoPhotonControl.this) != JFileChooser.APPROVE_OPTION) {
+               return;
+            }
+            final String dir = chooser.getSelectedFile().getAbsolutePath();
+            new Thread(new Runnable() {
+
+               @Override
+               public void run() {
+                  stitcher_.stitchToDisk(dir);
+               }
+            }).start();
+         }
+      });
       windowsToStitchCombo_ = new JComboBox();
       windowsToStitchCombo_.setPreferredSize(new Dimension(155,23));
       JPanel row3 = new JPanel(new FlowLayout(FlowLayout.LEFT));
       row3.add(stitchButton_);
       row3.add(windowsToStitchCombo_);
       stitchPanel_.add(row3);
+      JPanel row4 = new JPanel(new FlowLayout(FlowLayout.LEFT));
+      row4.add(blendOverlaps_);
+      row4.add(stitchToDiskButton);
+      stitchPanel_.add(row4);
+   }
+
+   //returns false if there is no acquisition to stitch
+   private boolean setStitchParameters() {
+      int index = windowsToStitchCombo_.getSelectedIndex();
+      if (availableVADs_ == null || index < 0 || index >= availableVADs_.size()) {
+         return false;
+      }
+      stitcher_.setStitchParameters(drawPosNames_.isSelected(), drawGrid_.isSelected(),
+              blendOverlaps_.isSelected(), availableVADs_.get(index));
+      return true;
    }
 
    private void createGridPanel() {
@@ -0,0 +1,136 @@
+package com.imaging100x.twophoton;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import mmcorej.TaggedImage;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.micromanager.acquisition.TaggedImageStorageMultipageTiff;
+import org.micromanager.utils.MDUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class AcquisitionStitcherTest {
+   private static final int TILE_WIDTH = 200;
+   private static final int TILE_HEIGHT = 150;
+   private static final int COLUMNS = 2;
+   private static final int ROWS = 2;
+   private static final int SLICES = 2;
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   private static JSONObject makeSummary() throws JSONException {
+      JSONObject summary = new JSONObject();
+      MDUtils.setWidth(summary, TILE_WIDTH);
+      MDUtils.setHeight(summary, TILE_HEIGHT);
+      MDUtils.setPixelTypeFromString(summary, "GRAY16");
+      summary.put("Channels", 1);
+      summary.put("Slices", SLICES);
+      summary.put("Frames", 1);
+      summary.put("Positions", COLUMNS * ROWS);
+      summary.put("Prefix", "tiles");
+      return summary;
+   }
+
+   private static JSONArray makePositionList() throws JSONException {
+      JSONArray positions = new JSONArray();
+      for (int i = 0; i < COLUMNS * ROWS; i++) {
+         JSONObject position = new JSONObject();
+         position.put("GridColumnIndex", i % COLUMNS);
+         position.put("GridRowIndex", i / COLUMNS);
+         positions.put(position);
+      }
+      return positions;
+   }
+
+   // Value of the stitched plane at (x, y)
+   private static short expectedPixel(int x, int y, int slice) {
+      return (short) (x + 1000 * y + 30000 * slice);
+   }
+
+   private static TaggedImage makeTile(int position, int slice) throws JSONException {
+      int left = (position % COLUMNS) * TILE_WIDTH;
+      int top = (position / COLUMNS) * TILE_HEIGHT;
+      short[] pixels = new short[TILE_WIDTH * TILE_HEIGHT];
+      for (int y = 0; y < TILE_HEIGHT; y++) {
+         for (int x = 0; x < TILE_WIDTH; x++) {
+            pixels[y * TILE_WIDTH + x] = expectedPixel(left + x, top + y, slice);
+         }
+      }
+      JSONObject tags = new JSONObject();
+      MDUtils.setWidth(tags, TILE_WIDTH);
+      MDUtils.setHeight(tags, TILE_HEIGHT);
+      MDUtils.setPixelTypeFromString(tags, "GRAY16");
+      MDUtils.setChannelIndex(tags, 0);
+      MDUtils.setSliceIndex(tags, slice);
+      MDUtils.setFrameIndex(tags, 0);
+      MDUtils.setPositionIndex(tags, position);
+      return new TaggedImage(pixels, tags);
+   }
+
+   @Test
+   public void tiffSinkWritesStitchedPlanes() throws Exception {
+      String dir = new File(folder.getRoot(), "stitched").getPath();
+      final AcquisitionStitcher.TiffSink sink = new AcquisitionStitcher.TiffSink(
+            dir, makeSummary());
+      // The stitcher only logs errors of the sink
+      final List<Exception> errors =
+            Collections.synchronizedList(new ArrayList<Exception>());
+      TileStitcher stitcher = new TileStitcher(makePositionList(), TILE_WIDTH,
+            TILE_HEIGHT, 0, 0, false, new TileStitcher.Sink() {
+               @Override
+               public void planeStitched(TaggedImage plane) throws Exception {
+                  try {
+                     sink.planeStitched(plane);
+                  } catch (Exception ex) {
+                     errors.add(ex);
+                     throw ex;
+                  }
+               }
+            });
+      for (int slice = 0; slice < SLICES; slice++) {
+         for (int position = 0; position < COLUMNS * ROWS; position++) {
+            stitcher.addTile(makeTile(position, slice));
+         }
+      }
+      stitcher.finish();
+      assertEquals(new ArrayList<Exception>(), errors);
+      assertTrue(sink.close());
+
+      TaggedImageStorageMultipageTiff storage = new TaggedImageStorageMultipageTiff(
+            dir, false, null, false, false, false);
+      int width = COLUMNS * TILE_WIDTH;
+      int height = ROWS * TILE_HEIGHT;
+      assertEquals(width, MDUtils.getWidth(storage.getSummaryMetadata()));
+      assertEquals(height, MDUtils.getHeight(storage.getSummaryMetadata()));
+      for (int slice = 0; slice < SLICES; slice++) {
+         TaggedImage plane = storage.getImage(0, slice, 0, 0);
+         assertNotNull(plane);
+         short[] pixels = (short[]) plane.pix;
+         assertEquals(width * height, pixels.length);
+         for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+               assertEquals(expectedPixel(x, y, slice), pixels[y * width + x]);
+            }
+         }
+      }
+      storage.close();
+   }
+
+   @Test
+   public void tiffSinkWithoutPlanesWritesNothing() throws Exception {
+      File dir = new File(folder.getRoot(), "empty");
+      AcquisitionStitcher.TiffSink sink = new AcquisitionStitcher.TiffSink(
+            dir.getPath(), makeSummary());
+      assertFalse(sink.close());
+      assertFalse(dir.exists());
+   }
+}